@@ -0,0 +1,71 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Content-addressed avatars, so presence updates can name an avatar by a short id instead of
+ * repeating a possibly large data URL. The id is derived from the content alone, which makes it
+ * the same on every cluster node and lets clients cache avatars across rooms and reconnects.
+ *
+ * <p>Holds at most {@code maxEntries} avatars and forgets the least recently used one beyond that.
+ * Users re-register their avatar whenever they join, so only long idle entries are lost.
+ */
+public class AvatarStore {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    // 64 bits of SHA-256
+    private static final int ID_BYTES = 8;
+
+    private final Map<String, String> avatars;
+
+    public AvatarStore(int maxEntries) {
+        avatars = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Stores the avatar and returns its id; the empty avatar has the empty id.
+     */
+    public String put(String avatar) {
+        if (avatar == null || avatar.isEmpty()) {
+            return "";
+        }
+        String id = idOf(avatar);
+        synchronized (avatars) {
+            avatars.putIfAbsent(id, avatar);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the avatar with the given id, or {@code null} if it is unknown or was evicted.
+     */
+    public String get(String id) {
+        if (id.isEmpty()) {
+            return "";
+        }
+        synchronized (avatars) {
+            return avatars.get(id);
+        }
+    }
+
+    static String idOf(String avatar) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(avatar.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        char[] id = new char[ID_BYTES * 2];
+        for (int i = 0; i < ID_BYTES; i++) {
+            id[2 * i] = HEX[(digest[i] >> 4) & 0xF];
+            id[2 * i + 1] = HEX[digest[i] & 0xF];
+        }
+        return new String(id);
+    }
+}
@@ -0,0 +1,269 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@link EventReader} over a {@link BinaryProtocol} frame. Scalars are converted as leniently as
+ * {@link JsonReader} converts them, so both protocols accept the same documents.
+ */
+public class BinaryEventReader implements EventReader {
+    private final ByteBuffer buf;
+
+    public BinaryEventReader(ByteBuffer buf) {
+        this.buf = buf.slice();
+    }
+
+    @Override
+    public void beginObject() {
+        expect(BinaryProtocol.OBJECT_START);
+    }
+
+    @Override
+    public void endObject() {
+        expect(BinaryProtocol.OBJECT_END);
+    }
+
+    @Override
+    public void beginArray() {
+        expect(BinaryProtocol.ARRAY_START);
+    }
+
+    @Override
+    public void endArray() {
+        expect(BinaryProtocol.ARRAY_END);
+    }
+
+    @Override
+    public boolean hasNext() {
+        int tag = peek();
+        return tag != BinaryProtocol.OBJECT_END && tag != BinaryProtocol.ARRAY_END;
+    }
+
+    @Override
+    public String nextName() {
+        String name = nextString();
+        if (name == null) {
+            throw error("Expected a field name");
+        }
+        return name;
+    }
+
+    @Override
+    public String nextString() {
+        int tag = next();
+        switch (tag) {
+            case BinaryProtocol.STRING:
+            case BinaryProtocol.RAW_JSON:
+                return readUtf8();
+            case BinaryProtocol.INTEGER:
+                return Long.toString(readZigzag());
+            case BinaryProtocol.DOUBLE:
+                return Double.toString(Double.longBitsToDouble(buf.getLong()));
+            case BinaryProtocol.TRUE:
+                return "true";
+            case BinaryProtocol.FALSE:
+                return "false";
+            case BinaryProtocol.NULL:
+                return null;
+            default:
+                return dictionary(tag);
+        }
+    }
+
+    @Override
+    public long nextLong() {
+        int tag = peek();
+        if (tag == BinaryProtocol.INTEGER) {
+            buf.get();
+            return readZigzag();
+        }
+        if (tag == BinaryProtocol.DOUBLE) {
+            buf.get();
+            return (long) Double.longBitsToDouble(buf.getLong());
+        }
+        String value = nextString();
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException | NullPointerException e) {
+            throw error("Expected an integer but was " + value);
+        }
+    }
+
+    @Override
+    public double nextDouble() {
+        int tag = peek();
+        if (tag == BinaryProtocol.DOUBLE) {
+            buf.get();
+            return Double.longBitsToDouble(buf.getLong());
+        }
+        if (tag == BinaryProtocol.INTEGER) {
+            buf.get();
+            return readZigzag();
+        }
+        String value = nextString();
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException | NullPointerException e) {
+            throw error("Expected a number but was " + value);
+        }
+    }
+
+    @Override
+    public boolean nextBoolean() {
+        String value = nextString();
+        if ("true".equalsIgnoreCase(value)) {
+            return true;
+        }
+        if ("false".equalsIgnoreCase(value)) {
+            return false;
+        }
+        throw error("Expected a boolean but was " + value);
+    }
+
+    @Override
+    public String nextRaw() {
+        if (peek() == BinaryProtocol.RAW_JSON) {
+            buf.get();
+            return readUtf8();
+        }
+        JsonEventWriter json = new JsonEventWriter();
+        copyValue(json);
+        return json.toString();
+    }
+
+    @Override
+    public void skipValue() {
+        int tag = next();
+        switch (tag) {
+            case BinaryProtocol.OBJECT_START:
+            case BinaryProtocol.ARRAY_START:
+                while (hasNext()) {
+                    skipValue();
+                }
+                buf.get();
+                break;
+            case BinaryProtocol.STRING:
+            case BinaryProtocol.RAW_JSON:
+                int length = (int) readVarint();
+                buf.position(buf.position() + length);
+                break;
+            case BinaryProtocol.INTEGER:
+                readVarint();
+                break;
+            case BinaryProtocol.DOUBLE:
+                buf.getLong();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void copyValue(EventWriter out) {
+        int tag = peek();
+        switch (tag) {
+            case BinaryProtocol.OBJECT_START:
+                buf.get();
+                out.beginObject();
+                while (hasNext()) {
+                    out.name(nextName());
+                    copyValue(out);
+                }
+                buf.get();
+                out.endObject();
+                break;
+            case BinaryProtocol.ARRAY_START:
+                buf.get();
+                out.beginArray();
+                while (hasNext()) {
+                    copyValue(out);
+                }
+                buf.get();
+                out.endArray();
+                break;
+            case BinaryProtocol.INTEGER:
+                buf.get();
+                out.value(readZigzag());
+                break;
+            case BinaryProtocol.DOUBLE:
+                buf.get();
+                out.value(Double.longBitsToDouble(buf.getLong()));
+                break;
+            case BinaryProtocol.TRUE:
+            case BinaryProtocol.FALSE:
+                out.value(nextBoolean());
+                break;
+            case BinaryProtocol.RAW_JSON:
+                buf.get();
+                out.rawJson(readUtf8());
+                break;
+            default:
+                out.value(nextString());
+                break;
+        }
+    }
+
+    private String readUtf8() {
+        int length = (int) readVarint();
+        if (length < 0 || length > buf.remaining()) {
+            throw error("Invalid string length " + length);
+        }
+        String value;
+        if (buf.hasArray()) {
+            value = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+            buf.position(buf.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buf.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    private long readZigzag() {
+        long value = readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private long readVarint() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw error("Malformed varint");
+    }
+
+    private String dictionary(int tag) {
+        int index = tag - BinaryProtocol.DICTIONARY_BASE;
+        if (index < 0 || index >= BinaryProtocol.DICTIONARY.length) {
+            throw error("Unknown tag 0x" + Integer.toHexString(tag));
+        }
+        return BinaryProtocol.DICTIONARY[index];
+    }
+
+    private void expect(int tag) {
+        if (next() != tag) {
+            throw error("Expected tag 0x" + Integer.toHexString(tag));
+        }
+    }
+
+    private int peek() {
+        if (!buf.hasRemaining()) {
+            throw error("Unexpected end of input");
+        }
+        return buf.get(buf.position()) & 0xFF;
+    }
+
+    private int next() {
+        if (!buf.hasRemaining()) {
+            throw error("Unexpected end of input");
+        }
+        return buf.get() & 0xFF;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at offset " + buf.position());
+    }
+}
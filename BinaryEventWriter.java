@@ -0,0 +1,127 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * {@link EventWriter} for the {@link BinaryProtocol} format, writing into a reusable byte array.
+ */
+public class BinaryEventWriter implements EventWriter {
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private byte[] buf = new byte[512];
+    private int len;
+
+    public void reset() {
+        if (buf.length > MAX_RETAINED_CAPACITY) {
+            buf = new byte[512];
+        }
+        len = 0;
+    }
+
+    public ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(Arrays.copyOf(buf, len));
+    }
+
+    @Override
+    public EventWriter beginObject() {
+        put(BinaryProtocol.OBJECT_START);
+        return this;
+    }
+
+    @Override
+    public EventWriter endObject() {
+        put(BinaryProtocol.OBJECT_END);
+        return this;
+    }
+
+    @Override
+    public EventWriter beginArray() {
+        put(BinaryProtocol.ARRAY_START);
+        return this;
+    }
+
+    @Override
+    public EventWriter endArray() {
+        put(BinaryProtocol.ARRAY_END);
+        return this;
+    }
+
+    @Override
+    public EventWriter name(String name) {
+        return value(name);
+    }
+
+    @Override
+    public EventWriter value(String value) {
+        if (value == null) {
+            put(BinaryProtocol.NULL);
+            return this;
+        }
+        int index = BinaryProtocol.dictionaryIndex(value);
+        if (index >= 0) {
+            put(BinaryProtocol.DICTIONARY_BASE + index);
+        } else {
+            writeBytes(BinaryProtocol.STRING, value);
+        }
+        return this;
+    }
+
+    @Override
+    public EventWriter value(long value) {
+        put(BinaryProtocol.INTEGER);
+        writeVarint((value << 1) ^ (value >> 63));
+        return this;
+    }
+
+    @Override
+    public EventWriter value(double value) {
+        put(BinaryProtocol.DOUBLE);
+        long bits = Double.doubleToLongBits(value);
+        ensure(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buf[len++] = (byte) (bits >>> shift);
+        }
+        return this;
+    }
+
+    @Override
+    public EventWriter value(boolean value) {
+        put(value ? BinaryProtocol.TRUE : BinaryProtocol.FALSE);
+        return this;
+    }
+
+    @Override
+    public EventWriter rawJson(String json) {
+        writeBytes(BinaryProtocol.RAW_JSON, json);
+        return this;
+    }
+
+    private void writeBytes(int tag, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        put(tag);
+        writeVarint(bytes.length);
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, len, bytes.length);
+        len += bytes.length;
+    }
+
+    private void writeVarint(long value) {
+        ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            buf[len++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[len++] = (byte) value;
+    }
+
+    private void put(int b) {
+        ensure(1);
+        buf[len++] = (byte) b;
+    }
+
+    private void ensure(int extra) {
+        if (len + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+        }
+    }
+}
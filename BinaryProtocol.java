@@ -0,0 +1,71 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Constants of the compact binary wire format, negotiated with the {@value #SUBPROTOCOL}
+ * WebSocket subprotocol. A frame encodes the same document shape as the JSON protocol as a
+ * sequence of one-byte tags:
+ *
+ * <pre>
+ * 0x01 / 0x02   object start / end     (fields are a name followed by a value)
+ * 0x03 / 0x04   array start / end
+ * 0x05          string: varint byte length, UTF-8 bytes
+ * 0x06          integer: zigzag varint
+ * 0x07          double: 8 bytes, big endian
+ * 0x08 / 0x09   true / false
+ * 0x0A          null
+ * 0x0B          raw JSON text (varint length, UTF-8), e.g. relayed WebRTC signals
+ * 0x80 + n      entry n of {@link #DICTIONARY}, usable for names and string values
+ * </pre>
+ *
+ * The dictionary is part of the protocol: entries may only be appended.
+ */
+public final class BinaryProtocol {
+    public static final String SUBPROTOCOL = "chat.binary.v1";
+
+    static final int OBJECT_START = 0x01;
+    static final int OBJECT_END = 0x02;
+    static final int ARRAY_START = 0x03;
+    static final int ARRAY_END = 0x04;
+    static final int STRING = 0x05;
+    static final int INTEGER = 0x06;
+    static final int DOUBLE = 0x07;
+    static final int TRUE = 0x08;
+    static final int FALSE = 0x09;
+    static final int NULL = 0x0A;
+    static final int RAW_JSON = 0x0B;
+    static final int DICTIONARY_BASE = 0x80;
+
+    static final String[] DICTIONARY = {
+            "type", "username", "message", "messageId", "fileUrl", "isImage", "latitude", "longitude",
+            "newMessage", "callId", "target", "signal", "participants", "initiator", "emoji", "isTyping",
+            "avatar", "userList", "started", "stopped", "receipts", "readBy",
+            "join", "leave", "file", "location", "delete", "edit", "typing", "reaction", "read", "error",
+            "call-initiate", "call-accept", "call-reject", "call-end", "call-signal", "call-info",
+            "call-user-left", "user-list-update", "offer", "answer", "candidate", "sdp",
+            "lastMessageId", "room", "join-room", "leave-room", "lobby",
+            "presence-snapshot", "presence-delta", "presence-sync", "version", "users", "added", "removed",
+            "avatarId", "resumeToken", "resume-token", "token", "session", "targetSession", "signals",
+            "call-signal-batch", "reactions", "messages", "message-state", "messageIds", "edited", "deleted",
+            "search", "search-results", "query", "results", "before", "limit", "next"
+    };
+
+    private static final Map<String, Integer> DICTIONARY_INDEX = new HashMap<>();
+
+    static {
+        for (int i = 0; i < DICTIONARY.length; i++) {
+            DICTIONARY_INDEX.put(DICTIONARY[i], i);
+        }
+    }
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Returns the dictionary index of the string, or {@code -1} if it is not in the dictionary.
+     */
+    static int dictionaryIndex(String value) {
+        Integer index = DICTIONARY_INDEX.get(value);
+        return index != null ? index : -1;
+    }
+}
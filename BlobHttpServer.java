@@ -0,0 +1,483 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Small HTTP/1.1 server for the web client, replacing {@code app.py}: it serves the static client
+ * files and the {@link BlobStore}, so chat frames only carry a short link to an uploaded file.
+ *
+ * <pre>
+ * POST /blobs              raw file as the body; answers {"blobId": ..., "url": "/blobs/&lt;id&gt;"}
+ * GET  /blobs/&lt;id&gt;         the blob, with single-range requests and immutable caching
+ * GET  /, /&lt;file&gt;          index.html and the html, js and css files in the static directory
+ * </pre>
+ *
+ * Uploads are admitted by the {@link RateLimiter} as events of type {@code upload}, per client
+ * address. Server metrics are not served here but by a separate {@link #admin} server, with no
+ * CORS headers, meant to listen on a loopback or internal address only:
+ *
+ * <pre>
+ * GET  /metrics            server metrics as Prometheus text
+ * </pre>
+ *
+ * Blobs are sent with {@link FileChannel#transferTo}, so file bytes go from the page cache to the
+ * socket without being copied through the heap. Each connection gets a thread, like the
+ * {@link TcpClusterBus}, up to a maximum number of connections; beyond it, new connections are
+ * answered {@code 503} and closed. Idle keep-alive connections are closed after a timeout.
+ */
+public class BlobHttpServer implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(BlobHttpServer.class);
+    private static final int MAX_HEAD_BYTES = 16 * 1024;
+    private static final int IDLE_TIMEOUT_MS = 30_000;
+    // Client addresses whose upload limits are kept; the least recently seen are forgotten first
+    private static final int MAX_UPLOADERS = 10_000;
+    private static final int ADMIN_MAX_CONNECTIONS = 4;
+    private static final Map<String, String> STATIC_TYPES = Map.of(
+            "html", "text/html; charset=utf-8",
+            "js", "text/javascript; charset=utf-8",
+            "css", "text/css; charset=utf-8");
+
+    private final InetSocketAddress address;
+    private final BlobStore blobs;
+    private final Path staticDir;
+    private final RateLimiter limiter;
+    private final Map<String, RateLimiter.SessionLimits> uploaders;
+    private final Supplier<String> metrics;
+    private final String name;
+    private final ExecutorService connections;
+    private volatile boolean closed;
+    private ServerSocketChannel server;
+
+    public BlobHttpServer(InetSocketAddress address, int maxConnections, BlobStore blobs, Path staticDir,
+            RateLimiter limiter) {
+        this(address, maxConnections, blobs, staticDir.toAbsolutePath().normalize(), limiter, null, "http");
+    }
+
+    private BlobHttpServer(InetSocketAddress address, int maxConnections, BlobStore blobs, Path staticDir,
+            RateLimiter limiter, Supplier<String> metrics, String name) {
+        this.address = address;
+        this.blobs = blobs;
+        this.staticDir = staticDir;
+        this.limiter = limiter;
+        this.uploaders = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, RateLimiter.SessionLimits> eldest) {
+                return size() > MAX_UPLOADERS;
+            }
+        };
+        this.metrics = metrics;
+        this.name = name;
+        AtomicInteger count = new AtomicInteger();
+        connections = new ThreadPoolExecutor(0, maxConnections, IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<>(), r -> {
+                    Thread thread = new Thread(r, "chat-" + name + "-" + count.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Returns a server that answers only {@code GET /metrics}, with the body {@code metrics}
+     * renders.
+     */
+    public static BlobHttpServer admin(InetSocketAddress address, Supplier<String> metrics) {
+        return new BlobHttpServer(address, ADMIN_MAX_CONNECTIONS, null, null, null, metrics, "admin");
+    }
+
+    public void start() throws IOException {
+        server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.bind(address);
+        Thread acceptor = new Thread(this::acceptLoop, "chat-" + name + "-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        logger.info("HTTP server ({}) listening on {}", name, server.getLocalAddress());
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            if (server != null) {
+                server.close();
+            }
+        } catch (IOException e) {
+            // Already closing
+        }
+        connections.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                SocketChannel channel = server.accept();
+                try {
+                    connections.execute(() -> serve(channel));
+                } catch (RejectedExecutionException e) {
+                    refuse(channel);
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    logger.error("Error accepting HTTP connection", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Turns away a connection over the limit. The answer fits in the socket's send buffer, so
+     * this does not hold up the accept loop.
+     */
+    private void refuse(SocketChannel channel) {
+        try (SocketChannel ch = channel) {
+            if (!closed) {
+                logger.debug("Refusing HTTP connection from {}: too many connections", ch.getRemoteAddress());
+                Map<String, String> headers = new LinkedHashMap<>();
+                headers.put("Connection", "close");
+                headers.put("Retry-After", "1");
+                respond(ch, 503, "Service Unavailable", headers, "Server busy, try again later");
+            }
+        } catch (IOException e) {
+            logger.debug("Failed to refuse HTTP connection: {}", e.getMessage());
+        }
+    }
+
+    private void serve(SocketChannel channel) {
+        try (SocketChannel ch = channel) {
+            ch.socket().setSoTimeout(IDLE_TIMEOUT_MS);
+            ch.socket().setTcpNoDelay(true);
+            // Reads go through the socket's stream, which honours the timeout; writes go straight
+            // to the channel so transferTo can hand files to the kernel
+            ReadableByteChannel in = Channels.newChannel(ch.socket().getInputStream());
+            ByteBuffer buffer = ByteBuffer.allocate(MAX_HEAD_BYTES);
+            buffer.flip();
+            while (!closed) {
+                Request request = readRequest(in, buffer);
+                if (request == null) {
+                    return;
+                }
+                if (!handle(ch, in, buffer, request) || "close".equalsIgnoreCase(request.header("connection"))) {
+                    return;
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            logger.debug("Closing idle HTTP connection");
+        } catch (IOException e) {
+            logger.debug("HTTP connection failed: {}", e.getMessage());
+        } catch (Exception e) {
+            logger.error("Error serving HTTP request", e);
+        }
+    }
+
+    /**
+     * Reads up to the end of the next request head. The buffer is in read mode before and after;
+     * whatever follows the head stays in it.
+     *
+     * @return the request, or {@code null} if the client closed the connection between requests
+     */
+    private static Request readRequest(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+        int end;
+        while ((end = headEnd(buffer)) < 0) {
+            buffer.compact();
+            if (!buffer.hasRemaining()) {
+                throw new IOException("Request head too large");
+            }
+            int read = in.read(buffer);
+            buffer.flip();
+            if (read < 0) {
+                if (buffer.hasRemaining()) {
+                    throw new IOException("Connection closed inside a request head");
+                }
+                return null;
+            }
+        }
+        String head = StandardCharsets.ISO_8859_1.decode(buffer.slice().limit(end - buffer.position())).toString();
+        buffer.position(end + 4);
+        String[] lines = head.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3) {
+            throw new IOException("Malformed request line: " + lines[0]);
+        }
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+            }
+        }
+        return new Request(requestLine[0], requestLine[1], headers);
+    }
+
+    private static int headEnd(ByteBuffer buffer) {
+        for (int i = buffer.position(); i + 3 < buffer.limit(); i++) {
+            if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n' && buffer.get(i + 2) == '\r'
+                    && buffer.get(i + 3) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return {@code false} if the connection must be closed after the response
+     */
+    private boolean handle(SocketChannel out, ReadableByteChannel in, ByteBuffer buffer, Request request)
+            throws IOException {
+        String path = request.target;
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+        if (metrics != null) {
+            if (request.method.equals("GET") && path.equals("/metrics")) {
+                Map<String, String> headers = new LinkedHashMap<>();
+                headers.put("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                headers.put("Cache-Control", "no-store");
+                respond(out, 200, "OK", headers, metrics.get());
+                return true;
+            }
+            respond(out, 404, "Not Found", new LinkedHashMap<>(), "Not found");
+            return request.header("content-length") == null;
+        }
+        switch (request.method) {
+            case "OPTIONS":
+                respond(out, 204, "No Content", new LinkedHashMap<>(), null);
+                return true;
+            case "POST":
+                if (path.equals("/blobs")) {
+                    return upload(out, in, buffer, request);
+                }
+                break;
+            case "GET":
+            case "HEAD":
+                if (path.startsWith("/blobs/")) {
+                    download(out, request, path.substring("/blobs/".length()));
+                } else {
+                    serveStatic(out, request, path);
+                }
+                return true;
+            default:
+                break;
+        }
+        respond(out, 404, "Not Found", new LinkedHashMap<>(), "Not found");
+        // An unread request body would be taken for the next request
+        return request.header("content-length") == null;
+    }
+
+    private boolean upload(SocketChannel out, ReadableByteChannel in, ByteBuffer buffer, Request request)
+            throws IOException {
+        String contentLength = request.header("content-length");
+        if (contentLength == null) {
+            respond(out, 411, "Length Required", new LinkedHashMap<>(), "Content-Length required");
+            return false;
+        }
+        long length;
+        try {
+            length = Long.parseLong(contentLength);
+        } catch (NumberFormatException e) {
+            respond(out, 400, "Bad Request", new LinkedHashMap<>(), "Invalid Content-Length");
+            return false;
+        }
+        if (length < 0 || length > blobs.getMaxBytes()) {
+            respond(out, 413, "Payload Too Large", new LinkedHashMap<>(),
+                    "Files are limited to " + blobs.getMaxBytes() + " bytes");
+            return false;
+        }
+        if (!admitUpload(out)) {
+            respond(out, 429, "Too Many Requests", new LinkedHashMap<>(), "Too many uploads, try again later");
+            return false;
+        }
+        String id;
+        try {
+            id = blobs.put(in, buffer, length, request.header("content-type"));
+        } catch (IllegalStateException e) {
+            logger.warn("Rejected an upload of {} bytes: {} of files stored", length, blobs.getTotalBytes());
+            respond(out, 507, "Insufficient Storage", new LinkedHashMap<>(), "No room left for files");
+            return false;
+        }
+        logger.info("Stored blob {} of {} bytes", id, length);
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Content-Type", "application/json");
+        respond(out, 201, "Created", headers,
+                "{\"blobId\":\"" + id + "\",\"url\":\"/blobs/" + id + "\",\"size\":" + length + "}");
+        return true;
+    }
+
+    private boolean admitUpload(SocketChannel out) throws IOException {
+        String client = ((InetSocketAddress) out.getRemoteAddress()).getAddress().getHostAddress();
+        RateLimiter.SessionLimits limits;
+        synchronized (uploaders) {
+            limits = uploaders.computeIfAbsent(client, c -> limiter.newSession());
+        }
+        return limiter.admit(limits, null, "upload", null) == RateLimiter.Decision.ACCEPT;
+    }
+
+    private void download(SocketChannel out, Request request, String id) throws IOException {
+        try (FileChannel file = blobs.open(id)) {
+            if (file == null) {
+                respond(out, 404, "Not Found", new LinkedHashMap<>(), "No such blob");
+                return;
+            }
+            String contentType = blobs.contentType(id);
+            Map<String, String> headers = new LinkedHashMap<>();
+            headers.put("Content-Type", contentType);
+            headers.put("X-Content-Type-Options", "nosniff");
+            if (!isSafeInline(contentType)) {
+                headers.put("Content-Disposition", "attachment");
+            }
+            headers.put("ETag", "\"" + id + "\"");
+            headers.put("Cache-Control", "public, max-age=31536000, immutable");
+            headers.put("Accept-Ranges", "bytes");
+            if (("\"" + id + "\"").equals(request.header("if-none-match"))) {
+                respond(out, 304, "Not Modified", headers, null);
+                return;
+            }
+            sendFile(out, request, file, headers);
+        }
+    }
+
+    private void serveStatic(SocketChannel out, Request request, String path) throws IOException {
+        String name = path.equals("/") ? "index.html" : path.substring(1);
+        int dot = name.lastIndexOf('.');
+        String contentType = dot > 0 ? STATIC_TYPES.get(name.substring(dot + 1)) : null;
+        // Only plain files directly in the static directory, never paths into other directories
+        Path file = staticDir.resolve(name).normalize();
+        if (contentType == null || name.contains("/") || name.contains("\\") || !staticDir.equals(file.getParent())
+                || !Files.isRegularFile(file)) {
+            respond(out, 404, "Not Found", new LinkedHashMap<>(), "Not found");
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Map<String, String> headers = new LinkedHashMap<>();
+            headers.put("Content-Type", contentType);
+            headers.put("Cache-Control", "no-cache");
+            sendFile(out, request, channel, headers);
+        }
+    }
+
+    /**
+     * Sends the file, or the part of it named by a single {@code Range: bytes=...} header.
+     */
+    private void sendFile(SocketChannel out, Request request, FileChannel file, Map<String, String> headers)
+            throws IOException {
+        long size = file.size();
+        long start = 0;
+        long end = size - 1;
+        int status = 200;
+        String range = request.header("range");
+        if (range != null && range.startsWith("bytes=") && range.indexOf(',') < 0) {
+            String spec = range.substring("bytes=".length()).trim();
+            int dash = spec.indexOf('-');
+            try {
+                if (dash == 0) {
+                    start = Math.max(0, size - Long.parseLong(spec.substring(1)));
+                } else if (dash > 0) {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    if (dash < spec.length() - 1) {
+                        end = Math.min(end, Long.parseLong(spec.substring(dash + 1)));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                dash = -1;
+            }
+            if (dash < 0 || start > end || start >= size) {
+                headers.put("Content-Range", "bytes */" + size);
+                respond(out, 416, "Range Not Satisfiable", headers, null);
+                return;
+            }
+            status = 206;
+            headers.put("Content-Range", "bytes " + start + "-" + end + "/" + size);
+        }
+        long length = end - start + 1;
+        headers.put("Content-Length", Long.toString(length));
+        writeHead(out, status, status == 206 ? "Partial Content" : "OK", headers);
+        if (request.method.equals("HEAD")) {
+            return;
+        }
+        long position = start;
+        while (position <= end) {
+            long sent = file.transferTo(position, end + 1 - position, out);
+            if (sent <= 0 && position >= file.size()) {
+                throw new IOException("File shrank while being sent");
+            }
+            position += sent;
+        }
+    }
+
+    private static boolean isSafeInline(String contentType) {
+        return (contentType.startsWith("image/") && !contentType.contains("svg"))
+                || contentType.startsWith("audio/") || contentType.startsWith("video/");
+    }
+
+    private void respond(SocketChannel out, int status, String reason, Map<String, String> headers,
+            String body) throws IOException {
+        byte[] bytes = body != null ? body.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        headers.putIfAbsent("Content-Type", "text/plain; charset=utf-8");
+        if (status != 204 && status != 304) {
+            headers.put("Content-Length", Integer.toString(bytes.length));
+        }
+        writeHead(out, status, reason, headers);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private void writeHead(SocketChannel out, int status, String reason, Map<String, String> headers)
+            throws IOException {
+        StringBuilder head = new StringBuilder(256)
+                .append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+        if (blobs != null) {
+            head.append("Access-Control-Allow-Origin: *\r\n")
+                    .append("Access-Control-Allow-Methods: GET, HEAD, POST, OPTIONS\r\n")
+                    .append("Access-Control-Allow-Headers: Content-Type, Range\r\n")
+                    .append("Access-Control-Expose-Headers: Content-Length, Content-Range, Accept-Ranges\r\n");
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        head.append("\r\n");
+        ByteBuffer buffer = StandardCharsets.ISO_8859_1.encode(head.toString());
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private static class Request {
+        final String method;
+        final String target;
+        final Map<String, String> headers;
+
+        Request(String method, String target, Map<String, String> headers) {
+            this.method = method;
+            this.target = target;
+            this.headers = headers;
+        }
+
+        String header(String name) {
+            return headers.get(name);
+        }
+    }
+}
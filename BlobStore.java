@@ -0,0 +1,196 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed file storage for uploads. A blob's id is the hex SHA-256 of its bytes, so the
+ * same file uploaded twice is stored once and a blob never changes once written. Blobs live in
+ * {@code <dir>/<first two id chars>/<id>}, next to a small {@code <id>.type} file holding the
+ * content type given by the first uploader.
+ *
+ * <p>Uploads are streamed to a temporary file while being hashed and then moved into place, so a
+ * reader never sees a partial blob. The blobs together may take up to {@code maxTotalBytes}; an
+ * upload's length is reserved before it is read, so concurrent uploads cannot overshoot it.
+ */
+public class BlobStore {
+    private static final Pattern BLOB_ID = Pattern.compile("[0-9a-f]{64}");
+    private static final Pattern CONTENT_TYPE = Pattern.compile("[\\w.+-]+/[\\w.+-]+");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+    private final Path dir;
+    private final Path tmp;
+    private final long maxBytes;
+    private final long maxTotalBytes;
+    // Bytes of the stored blobs and of the uploads in progress
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    public BlobStore(Path dir, long maxBytes, long maxTotalBytes) throws IOException {
+        this.dir = dir;
+        this.tmp = dir.resolve("tmp");
+        this.maxBytes = maxBytes;
+        this.maxTotalBytes = maxTotalBytes;
+        Files.createDirectories(tmp);
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.filter(file -> isValidId(file.getFileName().toString())).forEach(file -> {
+                try {
+                    totalBytes.addAndGet(Files.size(file));
+                } catch (IOException e) {
+                    // Removed while counting
+                }
+            });
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Bytes taken up by the stored blobs and the uploads in progress.
+     */
+    public long getTotalBytes() {
+        return totalBytes.get();
+    }
+
+    /**
+     * Stores the next {@code length} bytes, taken first from {@code buffered} and then from the
+     * channel, and returns the blob's id. Bytes in {@code buffered} beyond the blob are left
+     * unconsumed.
+     *
+     * @throws IllegalArgumentException if the blob is larger than the store allows
+     * @throws IllegalStateException if the store has no room left for the blob
+     * @throws IOException if the channel ends early or the blob cannot be written
+     */
+    public String put(ReadableByteChannel in, ByteBuffer buffered, long length, String contentType)
+            throws IOException {
+        if (length > maxBytes) {
+            throw new IllegalArgumentException("Blob of " + length + " bytes exceeds the limit of " + maxBytes);
+        }
+        if (totalBytes.addAndGet(length) > maxTotalBytes) {
+            totalBytes.addAndGet(-length);
+            throw new IllegalStateException("Blob store is full");
+        }
+        boolean stored = false;
+        MessageDigest digest = sha256();
+        Path upload = null;
+        try {
+            upload = Files.createTempFile(tmp, "upload", null);
+            try (FileChannel out = FileChannel.open(upload, StandardOpenOption.WRITE)) {
+                long remaining = length;
+                ByteBuffer buffer = buffered;
+                while (remaining > 0) {
+                    if (!buffer.hasRemaining()) {
+                        if (buffer == buffered) {
+                            buffer = ByteBuffer.allocate(64 * 1024);
+                        }
+                        buffer.clear().limit((int) Math.min(buffer.capacity(), remaining));
+                        if (in.read(buffer) < 0) {
+                            throw new IOException("Upload ended after " + (length - remaining) + " of " + length
+                                    + " bytes");
+                        }
+                        buffer.flip();
+                    }
+                    ByteBuffer chunk = buffer.duplicate();
+                    if (chunk.remaining() > remaining) {
+                        chunk.limit(chunk.position() + (int) remaining);
+                    }
+                    buffer.position(chunk.limit());
+                    remaining -= chunk.remaining();
+                    digest.update(chunk.duplicate());
+                    while (chunk.hasRemaining()) {
+                        out.write(chunk);
+                    }
+                }
+                out.force(false);
+            }
+            String id = hex(digest.digest());
+            Path target = pathOf(id);
+            if (!Files.exists(target)) {
+                Files.createDirectories(target.getParent());
+                Files.write(typePathOf(id), sanitize(contentType).getBytes(StandardCharsets.US_ASCII));
+                try {
+                    Files.move(upload, target, StandardCopyOption.ATOMIC_MOVE);
+                    stored = true;
+                } catch (FileAlreadyExistsException e) {
+                    // Stored concurrently by another upload of the same bytes
+                }
+            }
+            return id;
+        } finally {
+            if (!stored) {
+                totalBytes.addAndGet(-length);
+            }
+            if (upload != null) {
+                Files.deleteIfExists(upload);
+            }
+        }
+    }
+
+    /**
+     * Opens the blob for reading, or returns {@code null} if there is no such blob.
+     */
+    public FileChannel open(String id) throws IOException {
+        if (!isValidId(id)) {
+            return null;
+        }
+        Path path = pathOf(id);
+        return Files.exists(path) ? FileChannel.open(path, StandardOpenOption.READ) : null;
+    }
+
+    public String contentType(String id) throws IOException {
+        Path path = typePathOf(id);
+        return Files.exists(path) ? sanitize(new String(Files.readAllBytes(path), StandardCharsets.US_ASCII))
+                : DEFAULT_CONTENT_TYPE;
+    }
+
+    public static boolean isValidId(String id) {
+        return BLOB_ID.matcher(id).matches();
+    }
+
+    private Path pathOf(String id) {
+        return dir.resolve(id.substring(0, 2)).resolve(id);
+    }
+
+    private Path typePathOf(String id) {
+        return dir.resolve(id.substring(0, 2)).resolve(id + ".type");
+    }
+
+    private static String sanitize(String contentType) {
+        if (contentType == null) {
+            return DEFAULT_CONTENT_TYPE;
+        }
+        int semicolon = contentType.indexOf(';');
+        String type = (semicolon >= 0 ? contentType.substring(0, semicolon) : contentType).trim().toLowerCase();
+        return CONTENT_TYPE.matcher(type).matches() ? type : DEFAULT_CONTENT_TYPE;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,423 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.java_websocket.framing.Framedata;
+
+/**
+ * Decodes client frames into typed {@link InboundEvent}s and encodes {@link OutboundEvent}s into
+ * shared frames, for both JSON text frames and the {@link BinaryProtocol}. Decoding walks the frame
+ * once with an {@link EventReader}; encoding writes straight into a per-thread reusable writer.
+ */
+public class ChatCodec {
+    private static final ThreadLocal<JsonEventWriter> JSON_WRITER = ThreadLocal.withInitial(JsonEventWriter::new);
+    private static final ThreadLocal<BinaryEventWriter> BINARY_WRITER = ThreadLocal.withInitial(BinaryEventWriter::new);
+    private static final int MAX_ROOM_NAME_LENGTH = 64;
+    // One page of messages
+    private static final int MAX_MESSAGE_IDS = 100;
+    private final FrameCompressor compressor;
+
+    public ChatCodec() {
+        this(FrameCompressor.fromSystemProperties());
+    }
+
+    public ChatCodec(FrameCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    public FrameCompressor getCompressor() {
+        return compressor;
+    }
+
+    /**
+     * Compresses a frame for sessions that negotiated permessage-deflate; see
+     * {@link FrameCompressor#compress}.
+     */
+    public Framedata compress(Framedata frame) {
+        return compressor.compress(frame);
+    }
+
+    /**
+     * Decodes one JSON text frame.
+     *
+     * @throws IllegalArgumentException if the frame is malformed or misses a required field
+     */
+    public InboundEvent decode(String message) {
+        return decode(new JsonReader(message));
+    }
+
+    /**
+     * Decodes one binary protocol frame.
+     *
+     * @throws IllegalArgumentException if the frame is malformed or misses a required field
+     */
+    public InboundEvent decode(ByteBuffer message) {
+        return decode(new BinaryEventReader(message));
+    }
+
+    /**
+     * Reads only the {@code type} field of a JSON frame, for decisions taken before decoding it.
+     *
+     * @return the type, or {@code null} if the frame has none or is malformed
+     */
+    public String peekType(String message) {
+        return peekType(new JsonReader(message));
+    }
+
+    /**
+     * Like {@link #peekType(String)} for a binary protocol frame, without consuming it.
+     */
+    public String peekType(ByteBuffer message) {
+        return peekType(new BinaryEventReader(message.duplicate()));
+    }
+
+    private static String peekType(EventReader reader) {
+        try {
+            // Clients send the type first, so this rarely skips anything
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("type")) {
+                    return reader.nextString();
+                }
+                reader.skipValue();
+            }
+        } catch (RuntimeException e) {
+            // Left to the full decode to report
+        }
+        return null;
+    }
+
+    private InboundEvent decode(EventReader reader) {
+        String type = null;
+        String username = "";
+        String avatar = "";
+        String avatarId = null;
+        String text = null;
+        String newMessage = null;
+        String fileUrl = null;
+        String callId = null;
+        String target = null;
+        Long targetSession = null;
+        String signal = null;
+        String emoji = null;
+        String room = null;
+        Long messageId = null;
+        Long lastMessageId = null;
+        List<Long> messageIds = null;
+        String query = null;
+        Long before = null;
+        Long limit = null;
+        String resumeToken = null;
+        Boolean flag = null;
+        double latitude = Double.NaN;
+        double longitude = Double.NaN;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+                case "type":
+                    type = reader.nextString();
+                    break;
+                case "username":
+                    username = orEmpty(reader.nextString());
+                    break;
+                case "avatar":
+                    avatar = orEmpty(reader.nextString());
+                    break;
+                case "avatarId":
+                    avatarId = reader.nextString();
+                    break;
+                case "message":
+                    text = reader.nextString();
+                    break;
+                case "newMessage":
+                    newMessage = reader.nextString();
+                    break;
+                case "fileUrl":
+                    fileUrl = reader.nextString();
+                    break;
+                case "callId":
+                    callId = reader.nextString();
+                    break;
+                case "target":
+                    target = reader.nextString();
+                    break;
+                case "targetSession":
+                    targetSession = reader.nextLong();
+                    break;
+                case "signal":
+                    signal = reader.nextRaw();
+                    break;
+                case "emoji":
+                    emoji = reader.nextString();
+                    break;
+                case "room":
+                    room = roomName(reader.nextString());
+                    break;
+                case "messageId":
+                    messageId = reader.nextLong();
+                    break;
+                case "lastMessageId":
+                    lastMessageId = reader.nextLong();
+                    break;
+                case "resumeToken":
+                    resumeToken = reader.nextString();
+                    break;
+                case "messageIds":
+                    messageIds = new ArrayList<>();
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        if (messageIds.size() == MAX_MESSAGE_IDS) {
+                            throw new IllegalArgumentException("Too many message ids");
+                        }
+                        messageIds.add(reader.nextLong());
+                    }
+                    reader.endArray();
+                    break;
+                case "query":
+                    query = reader.nextString();
+                    break;
+                case "before":
+                    before = reader.nextLong();
+                    break;
+                case "limit":
+                    limit = reader.nextLong();
+                    break;
+                case "isImage":
+                case "isTyping":
+                    flag = reader.nextBoolean();
+                    break;
+                case "latitude":
+                    latitude = reader.nextDouble();
+                    break;
+                case "longitude":
+                    longitude = reader.nextDouble();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        if (type == null) {
+            throw new IllegalArgumentException("Missing field: type");
+        }
+        InboundEvent event;
+        switch (type) {
+            case "join":
+                event = new InboundEvent.Join(username, avatar, lastMessageId, resumeToken);
+                break;
+            case "leave":
+                event = new InboundEvent.Leave(username);
+                break;
+            case "message":
+                event = new InboundEvent.ChatMessage(username, require("message", text), messageId);
+                break;
+            case "file":
+                event = new InboundEvent.FileMessage(username, require("fileUrl", fileUrl), require("isImage", flag),
+                        messageId);
+                break;
+            case "location":
+                if (Double.isNaN(latitude) || Double.isNaN(longitude)) {
+                    throw new IllegalArgumentException("Missing field: latitude/longitude");
+                }
+                event = new InboundEvent.Location(username, latitude, longitude);
+                break;
+            case "delete":
+                event = new InboundEvent.Delete(username, require("messageId", messageId));
+                break;
+            case "edit":
+                event = new InboundEvent.Edit(username, require("messageId", messageId), require("newMessage", newMessage));
+                break;
+            case "call-initiate":
+            case "call-accept":
+            case "call-reject":
+            case "call-end":
+                event = new InboundEvent.CallAction(type, username, require("callId", callId));
+                break;
+            case "call-signal":
+                require("signal", signal);
+                event = new InboundEvent.CallSignal(username, require("callId", callId), require("target", target),
+                        targetSession, signalType(signal), signal);
+                break;
+            case "typing":
+                event = new InboundEvent.Typing(username, require("isTyping", flag));
+                break;
+            case "reaction":
+                event = new InboundEvent.Reaction(username, require("messageId", messageId), require("emoji", emoji));
+                break;
+            case "read":
+                event = new InboundEvent.Read(username, require("messageId", messageId));
+                break;
+            case "join-room":
+            case "leave-room":
+            case "presence-sync":
+                event = new InboundEvent.RoomAction(type, username);
+                break;
+            case "message-state":
+                event = new InboundEvent.MessageStateRequest(username, require("messageIds", messageIds));
+                break;
+            case "search":
+                event = new InboundEvent.Search(username, require("query", query), before, limit);
+                break;
+            case "avatar":
+                event = new InboundEvent.AvatarRequest(username, require("avatarId", avatarId));
+                break;
+            default:
+                event = new InboundEvent.Unknown(type, username);
+                break;
+        }
+        if (room != null) {
+            event.setRoom(room);
+        }
+        return event;
+    }
+
+    /**
+     * Encodes the event as JSON into a shared text frame.
+     */
+    public Framedata encodeJson(OutboundEvent event) {
+        JsonEventWriter writer = JSON_WRITER.get();
+        writer.reset();
+        event.writeTo(writer);
+        return FanOut.textFrame(writer.toByteBuffer());
+    }
+
+    /**
+     * Encodes the event in the binary protocol into a shared binary frame.
+     */
+    public Framedata encodeBinary(OutboundEvent event) {
+        BinaryEventWriter writer = BINARY_WRITER.get();
+        writer.reset();
+        event.writeTo(writer);
+        return FanOut.binaryFrame(writer.toByteBuffer());
+    }
+
+    /**
+     * Re-encodes a JSON document, such as a replayed log record, in the binary protocol.
+     */
+    public Framedata transcodeToBinary(ByteBuffer json) {
+        BinaryEventWriter writer = BINARY_WRITER.get();
+        writer.reset();
+        new JsonReader(StandardCharsets.UTF_8.decode(json.duplicate()).toString()).copyValue(writer);
+        return FanOut.binaryFrame(writer.toByteBuffer());
+    }
+
+    /**
+     * Returns a top-level string field of a JSON document, such as a logged record, or
+     * {@code null} if it is missing.
+     */
+    public String readField(ByteBuffer json, String field) {
+        return readFields(json, field)[0];
+    }
+
+    /**
+     * Returns top-level string fields of a JSON document in one pass, {@code null} for those that
+     * are missing.
+     */
+    public String[] readFields(ByteBuffer json, String... fields) {
+        String[] values = new String[fields.length];
+        JsonReader reader = new JsonReader(StandardCharsets.UTF_8.decode(json.duplicate()).toString());
+        reader.beginObject();
+        int found = 0;
+        while (found < fields.length && reader.hasNext()) {
+            String name = reader.nextName();
+            int index = indexOf(fields, name);
+            if (index >= 0 && values[index] == null) {
+                values[index] = reader.nextString();
+                found++;
+            } else {
+                reader.skipValue();
+            }
+        }
+        return values;
+    }
+
+    private static int indexOf(String[] fields, String name) {
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Wraps the event so each wire representation is encoded at most once, on first use.
+     */
+    public EncodedEvent prepare(OutboundEvent event) {
+        return prepare(event, OutboundQueue.Delivery.RELIABLE, null);
+    }
+
+    /**
+     * Like {@link #prepare(OutboundEvent)}, with the delivery class slow connections apply to it.
+     */
+    public EncodedEvent prepare(OutboundEvent event, OutboundQueue.Delivery delivery, String coalesceKey) {
+        return new EncodedEvent(this, event, delivery, coalesceKey);
+    }
+
+    /**
+     * Wraps an already encoded JSON event. The JSON frame shares the given bytes; the binary frame
+     * is transcoded on first use.
+     */
+    public EncodedEvent prepareJson(String json, OutboundQueue.Delivery delivery, String coalesceKey) {
+        ByteBuffer utf8 = ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8));
+        return new EncodedEvent(this, w -> new JsonReader(json).copyValue(w), delivery, coalesceKey,
+                FanOut.textFrame(utf8));
+    }
+
+    /**
+     * Encodes the event in the binary protocol into a buffer of its own, e.g. for the cluster bus.
+     */
+    public ByteBuffer toBinary(OutboundEvent event) {
+        BinaryEventWriter writer = BINARY_WRITER.get();
+        writer.reset();
+        event.writeTo(writer);
+        return writer.toByteBuffer();
+    }
+
+    /**
+     * Encodes the event as a JSON string, for callers that need the text itself.
+     */
+    public String toJson(OutboundEvent event) {
+        JsonEventWriter writer = JSON_WRITER.get();
+        writer.reset();
+        event.writeTo(writer);
+        return writer.toString();
+    }
+
+    private static String signalType(String signal) {
+        JsonReader reader = new JsonReader(signal);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("type")) {
+                return reader.nextString();
+            }
+            reader.skipValue();
+        }
+        return null;
+    }
+
+    private static String roomName(String room) {
+        if (room == null || room.isEmpty()) {
+            return null;
+        }
+        if (room.length() > MAX_ROOM_NAME_LENGTH) {
+            throw new IllegalArgumentException("Room name too long");
+        }
+        return room;
+    }
+
+    private static String orEmpty(String value) {
+        return value != null ? value : "";
+    }
+
+    private static <T> T require(String field, T value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Missing field: " + field);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,272 @@
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server instrumentation: inbound events, rate-limited events and handler time per event type,
+ * fan-out time and recipients per broadcast, payload bytes in and out, and gauges for
+ * connections, calls and outbound queue depth. Recording uses {@link LongAdder}s and {@link Histogram}s created up
+ * front, so the hot path takes no locks and does not allocate. Exposed over JMX and as
+ * Prometheus text by {@link #scrape()}.
+ */
+public class ChatMetrics implements ChatMetricsMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(ChatMetrics.class);
+    // Types come from clients; anything beyond this is counted as "other"
+    private static final int MAX_TYPES = 64;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final Map<String, TypeStats> types = new ConcurrentHashMap<>();
+    private final TypeStats otherType = new TypeStats();
+    private final Histogram fanOutNanos = new Histogram();
+    private final Histogram fanOutRecipients = new Histogram();
+    private final LongAdder inboundBytes = new LongAdder();
+    private final LongAdder outboundBytes = new LongAdder();
+    private final LongAdder heartbeatExpirations = new LongAdder();
+    private final IntSupplier connections;
+    private final IntSupplier calls;
+    private final LongSupplier outboundDepth;
+    private ObjectName registeredAs;
+
+    /**
+     * Metrics without gauges, e.g. for a {@link FanOut} outside a server.
+     */
+    public ChatMetrics() {
+        this(() -> 0, () -> 0, () -> 0);
+    }
+
+    public ChatMetrics(IntSupplier connections, IntSupplier calls, LongSupplier outboundDepth) {
+        this.connections = connections;
+        this.calls = calls;
+        this.outboundDepth = outboundDepth;
+    }
+
+    public void recordInbound(int bytes) {
+        inboundBytes.add(bytes);
+    }
+
+    /**
+     * Counts one handled event of this type and the time its handler took.
+     */
+    public void recordHandler(String type, long nanos) {
+        TypeStats stats = types.get(type);
+        if (stats == null) {
+            stats = typeStats(type);
+        }
+        stats.count.increment();
+        stats.handlerNanos.record(nanos);
+    }
+
+    /**
+     * Counts one event of this type held back by the rate limits.
+     */
+    public void recordLimited(String type) {
+        TypeStats stats = types.get(type);
+        if (stats == null) {
+            stats = typeStats(type);
+        }
+        stats.limited.increment();
+    }
+
+    public void recordFanOut(int recipients, long nanos) {
+        fanOutRecipients.record(recipients);
+        fanOutNanos.record(nanos);
+    }
+
+    public void recordOutbound(int bytes) {
+        outboundBytes.add(bytes);
+    }
+
+    /**
+     * Counts one connection closed for missing its heartbeat.
+     */
+    public void recordHeartbeatExpired() {
+        heartbeatExpirations.increment();
+    }
+
+    private TypeStats typeStats(String type) {
+        if (types.size() >= MAX_TYPES) {
+            return otherType;
+        }
+        return types.computeIfAbsent(type, t -> new TypeStats());
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server under {@code com.chatapp:type=ChatMetrics},
+     * one bean per cluster node.
+     */
+    public void register(String node) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("com.chatapp:type=ChatMetrics,node=" + ObjectName.quote(node));
+            server.registerMBean(this, name);
+            registeredAs = name;
+        } catch (JMException e) {
+            logger.warn("Could not register metrics MBean for node {}: {}", node, e.getMessage());
+        }
+    }
+
+    public void unregister() {
+        if (registeredAs == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredAs);
+        } catch (JMException e) {
+            logger.warn("Could not unregister metrics MBean {}: {}", registeredAs, e.getMessage());
+        }
+        registeredAs = null;
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return connections.getAsInt();
+    }
+
+    @Override
+    public int getActiveCalls() {
+        return calls.getAsInt();
+    }
+
+    @Override
+    public long getOutboundQueueDepth() {
+        return outboundDepth.getAsLong();
+    }
+
+    @Override
+    public long getInboundBytes() {
+        return inboundBytes.sum();
+    }
+
+    @Override
+    public long getOutboundBytes() {
+        return outboundBytes.sum();
+    }
+
+    @Override
+    public long getHeartbeatExpirations() {
+        return heartbeatExpirations.sum();
+    }
+
+    @Override
+    public Map<String, Long> getInboundEvents() {
+        Map<String, Long> counts = new TreeMap<>();
+        forEachType((type, stats) -> counts.put(type, stats.count.sum()));
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getLimitedEvents() {
+        Map<String, Long> counts = new TreeMap<>();
+        forEachType((type, stats) -> counts.put(type, stats.limited.sum()));
+        return counts;
+    }
+
+    @Override
+    public Map<String, String> getHandlerMicros() {
+        Map<String, String> latencies = new TreeMap<>();
+        forEachType((type, stats) -> latencies.put(type, summary(stats.handlerNanos, 1e3)));
+        return latencies;
+    }
+
+    @Override
+    public String getFanOutMicros() {
+        return summary(fanOutNanos, 1e3);
+    }
+
+    @Override
+    public String getFanOutRecipients() {
+        return summary(fanOutRecipients, 1);
+    }
+
+    private void forEachType(BiConsumer<String, TypeStats> action) {
+        new TreeMap<>(types).forEach(action);
+        if (otherType.count.sum() > 0 || otherType.limited.sum() > 0) {
+            action.accept("other", otherType);
+        }
+    }
+
+    private static String summary(Histogram histogram, double unit) {
+        long[] values = histogram.percentiles(QUANTILES);
+        return String.format("p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f", values[0] / unit, values[1] / unit,
+                values[2] / unit, values[3] / unit, histogram.getMax() / unit);
+    }
+
+    /**
+     * Renders all metrics in the Prometheus text exposition format.
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        gauge(out, "chat_connections", "Open WebSocket connections.", getActiveConnections());
+        gauge(out, "chat_calls", "Calls in progress.", getActiveCalls());
+        gauge(out, "chat_outbound_queue_depth", "Frames waiting to be written, over all connections.",
+                getOutboundQueueDepth());
+        counter(out, "chat_inbound_bytes_total", "Inbound payload size; text frames count characters.",
+                getInboundBytes());
+        counter(out, "chat_outbound_bytes_total", "Outbound payload bytes queued for connections, after compression.",
+                getOutboundBytes());
+        counter(out, "chat_heartbeat_expirations_total", "Connections closed for missing their heartbeat.",
+                getHeartbeatExpirations());
+        header(out, "chat_inbound_events_total", "Inbound events handled, by type.", "counter");
+        forEachType((type, stats) -> out.append("chat_inbound_events_total{type=\"").append(escape(type))
+                .append("\"} ").append(stats.count.sum()).append('\n'));
+        header(out, "chat_limited_events_total", "Inbound events dropped, coalesced or rejected by rate limits.",
+                "counter");
+        forEachType((type, stats) -> out.append("chat_limited_events_total{type=\"").append(escape(type))
+                .append("\"} ").append(stats.limited.sum()).append('\n'));
+        header(out, "chat_handler_seconds", "Time to decode and handle one inbound event, by type.", "summary");
+        forEachType((type, stats) -> quantiles(out, "chat_handler_seconds", "type=\"" + escape(type) + "\",",
+                stats.handlerNanos, 1e9));
+        header(out, "chat_fanout_seconds", "Time to encode one broadcast and queue it for every recipient.",
+                "summary");
+        quantiles(out, "chat_fanout_seconds", "", fanOutNanos, 1e9);
+        header(out, "chat_fanout_recipients", "Recipients per broadcast.", "summary");
+        quantiles(out, "chat_fanout_recipients", "", fanOutRecipients, 1);
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "gauge");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "counter");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void quantiles(StringBuilder out, String name, String labels, Histogram histogram, double unit) {
+        long[] values = histogram.percentiles(QUANTILES);
+        for (int i = 0; i < QUANTILES.length; i++) {
+            out.append(name).append('{').append(labels).append("quantile=\"").append(QUANTILES[i]).append("\"} ")
+                    .append(values[i] / unit).append('\n');
+        }
+        String bare = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+        out.append(name).append("_sum").append(bare).append(' ').append(histogram.getSum() / unit).append('\n');
+        out.append(name).append("_count").append(bare).append(' ').append(histogram.getCount()).append('\n');
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static class TypeStats {
+        final LongAdder count = new LongAdder();
+        final LongAdder limited = new LongAdder();
+        final Histogram handlerNanos = new Histogram();
+    }
+}
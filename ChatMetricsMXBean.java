@@ -0,0 +1,47 @@
+import java.util.Map;
+
+/**
+ * JMX view of {@link ChatMetrics}. Latencies are in microseconds.
+ */
+public interface ChatMetricsMXBean {
+
+    int getActiveConnections();
+
+    int getActiveCalls();
+
+    long getOutboundQueueDepth();
+
+    long getInboundBytes();
+
+    long getOutboundBytes();
+
+    /**
+     * Connections closed for missing their heartbeat.
+     */
+    long getHeartbeatExpirations();
+
+    /**
+     * Inbound events handled so far, by {@code type}.
+     */
+    Map<String, Long> getInboundEvents();
+
+    /**
+     * Inbound events dropped, coalesced or rejected by the rate limits, by {@code type}.
+     */
+    Map<String, Long> getLimitedEvents();
+
+    /**
+     * p50, p90, p99, p99.9 and max handler time, by {@code type}.
+     */
+    Map<String, String> getHandlerMicros();
+
+    /**
+     * p50, p90, p99, p99.9 and max time to encode and queue one broadcast for all recipients.
+     */
+    String getFanOutMicros();
+
+    /**
+     * p50, p90, p99, p99.9 and max recipients per broadcast.
+     */
+    String getFanOutRecipients();
+}
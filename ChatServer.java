@@ -1,437 +1,2393 @@
+import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import lib.Server;
 import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.Framedata;
 import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.protocols.Protocol;
 import org.java_websocket.server.WebSocketServer;
-import org.json.JSONArray;
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class ChatServer extends WebSocketServer {
     private static final Logger logger = LoggerFactory.getLogger(ChatServer.class);
-    private Map<WebSocket, String> usernames;
+    private static final long TYPING_FLUSH_INTERVAL_MS = Long.getLong("chat.typing.flushIntervalMs", 250);
+    private static final long TYPING_IDLE_TIMEOUT_MS = Long.getLong("chat.typing.idleTimeoutMs", 5000);
+    private static final long PRESENCE_FLUSH_INTERVAL_MS = Long.getLong("chat.presence.flushIntervalMs", 100);
+    private static final int AVATAR_MAX_ENTRIES = Integer.getInteger("chat.avatar.maxEntries", 10_000);
+    private static final long READ_RECEIPT_FLUSH_INTERVAL_MS = Long.getLong("chat.read.flushIntervalMs", 500);
+    // Per room
+    private static final int READ_RECEIPT_MAX_MESSAGES = Integer.getInteger("chat.read.maxMessages", 1_000);
+    private static final long READ_RECEIPT_RETENTION_MS = Long.getLong("chat.read.retentionMs", 24 * 60 * 60 * 1000L);
+    private static final int MESSAGE_STATE_MAX_MESSAGES = Integer.getInteger("chat.messageState.maxMessages", 1_000);
+    private static final int REACTION_MAX_KINDS = Integer.getInteger("chat.reaction.maxKinds", 20);
+    private static final int REACTION_MAX_LENGTH = 32;
+    private static final long REACTION_FLUSH_INTERVAL_MS = Long.getLong("chat.reaction.flushIntervalMs", 250);
+    private static final long OUTBOUND_DRAIN_INTERVAL_MS = Long.getLong("chat.outbound.drainIntervalMs", 50);
+    private static final String LOG_DIR = System.getProperty("chat.log.dir", "data/log");
+    private static final int LOG_SEGMENT_BYTES = Integer.getInteger("chat.log.segmentBytes", 64 * 1024 * 1024);
+    private static final int LOG_MAX_SEGMENTS = Integer.getInteger("chat.log.maxSegments", 16);
+    private static final long LOG_FLUSH_INTERVAL_MS = Long.getLong("chat.log.flushIntervalMs", 1000);
+    private static final int LOG_REPLAY_ON_JOIN = Integer.getInteger("chat.log.replayOnJoin", 50);
+    private static final int LOG_MAX_REPLAY = Integer.getInteger("chat.log.maxReplay", 1000);
+    // How far back replay looks for a room's events among those of all rooms
+    private static final int LOG_MAX_REPLAY_SCAN = Integer.getInteger("chat.log.maxReplayScan", 100_000);
+    private static final String SEARCH_DIR = "search";
+    private static final int SEARCH_SEGMENT_DOCS = Integer.getInteger("chat.search.segmentDocs", 64 * 1024);
+    private static final int SEARCH_MAX_SEGMENTS = Integer.getInteger("chat.search.maxSegments", 64);
+    private static final int SEARCH_PAGE_SIZE = Integer.getInteger("chat.search.pageSize", 20);
+    private static final int SEARCH_MAX_PAGE_SIZE = 100;
+    private static final int SEARCH_MAX_QUERY_LENGTH = 256;
+    // Files go through the blob store; chat frames only carry a link to them
+    private static final int FILE_URL_MAX_LENGTH = Integer.getInteger("chat.file.maxUrlLength", 2048);
+    // Address the WebSocket and HTTP servers listen on
+    private static final String HOST = System.getProperty("chat.host", "localhost");
+    private static final int HTTP_PORT = Integer.getInteger("chat.http.port", 8888);
+    // Connections served at once, each on its own thread; more are answered 503
+    private static final int HTTP_MAX_CONNECTIONS = Integer.getInteger("chat.http.maxConnections", 256);
+    private static final String BLOB_DIR = System.getProperty("chat.blob.dir", "data/blobs");
+    private static final long BLOB_MAX_BYTES = Long.getLong("chat.blob.maxBytes", 10 * 1024 * 1024L);
+    private static final long BLOB_MAX_TOTAL_BYTES = Long.getLong("chat.blob.maxTotalBytes", 10L * 1024 * 1024 * 1024);
+    private static final String STATIC_DIR = System.getProperty("chat.http.staticDir", ".");
+    // Metrics are served apart from the client, on an address only operators can reach
+    private static final String ADMIN_HOST = System.getProperty("chat.admin.host", "127.0.0.1");
+    private static final int ADMIN_PORT = Integer.getInteger("chat.admin.port", 8889);
+    private static final long LIMIT_COALESCE_INTERVAL_MS = Long.getLong("chat.limit.coalesceIntervalMs", 100);
+    // Gateway for the line protocol clients, 0 to disable
+    private static final int LINE_PORT = Integer.getInteger("chat.line.port", 5000);
+    private static final int LINE_MAX_LINE_BYTES = Integer.getInteger("chat.line.maxLineBytes", 8192);
+    private static final long LINE_MAX_PENDING_BYTES = Long.getLong("chat.line.maxPendingBytes", 1024 * 1024L);
+    private static final String SNAPSHOT_FILE = "state.snapshot";
+    // Also taken on stop; 0 for none
+    private static final long SNAPSHOT_INTERVAL_MS = Long.getLong("chat.snapshot.intervalMs", 10_000);
+    // Window for coalescing ICE candidates to one target; 0 forwards each one at once
+    private static final long CALL_SIGNAL_BATCH_MS = Long.getLong("chat.call.batchIntervalMs", 20);
+    private static final long RESUME_EXPIRY_INTERVAL_MS = Long.getLong("chat.resume.expiryIntervalMs", 1000);
+    private static final int FANOUT_SHARDS = Integer.getInteger("chat.fanout.shards",
+            Runtime.getRuntime().availableProcessors());
+    // The low bits of a message id name the node that assigned it, so nodes never hand out the same id
+    private static final int NODE_INDEX_BITS = 10;
+    // Unique per node of a cluster; taken from a hash of the node id if not set
+    private static final Integer NODE_INDEX = Integer.getInteger("chat.cluster.nodeIndex");
+    private final SessionRegistry sessions = new SessionRegistry();
+    private final RoomRegistry rooms;
     private Map<String, Set<String>> calls;
     private Map<String, String> callInitiators;
-    private Map<String, String> userAvatars;
-    private Map<String, Set<WebSocket>> typingUsers;
-    private Map<Long, Set<String>> messageReadBy;
+    private Map<String, String> callRooms;
+    private Map<String, String> userAvatarIds;
+    private final UserIds userIds = new UserIds();
+    private final AvatarStore avatars = new AvatarStore(AVATAR_MAX_ENTRIES);
+    private final ChatMetrics metrics = new ChatMetrics(() -> sessions.getSessions().size(), () -> calls.size(),
+            this::outboundQueueDepth);
+    private final FanOut fanOut = new FanOut(metrics);
+    private final ChatCodec codec = new ChatCodec();
+    private final OutboundQueue.Limits outboundLimits = OutboundQueue.Limits.fromSystemProperties();
+    private final Set<OutboundQueue> outboundBacklog = ConcurrentHashMap.newKeySet();
+    private final RateLimiter limiter = RateLimiter.fromSystemProperties();
+    // Sessions holding coalesced events over their rate limit
+    private final Set<Session> limitedBacklog = ConcurrentHashMap.newKeySet();
+    // Sessions holding ICE candidates for the next batch
+    private final Set<Session> signalBacklog = ConcurrentHashMap.newKeySet();
+    private final Heartbeat<Session> heartbeat = Heartbeat.fromSystemProperties(new HeartbeatListener());
+    private final MessageLog messageLog;
+    private final SearchIndex searchIndex;
+    private final ResumeTokens tickets = ResumeTokens.fromSystemProperties();
+    private final Path snapshotFile;
+    private final ClusterBus cluster;
+    private final RemotePresence remotePresence = new RemotePresence();
+    // Rate limits of the line protocol clients, which are users of the default room
+    private final Map<String, RateLimiter.SessionLimits> lineUsers = new ConcurrentHashMap<>();
+    // Sequence part of the ids of the messages and files sent to this node; clients do not pick them
+    private final AtomicLong messageIds = new AtomicLong();
+    private final int nodeIndex;
+    private volatile Server lineServer;
+    private final ShardedExecutor fanOutShards = new ShardedExecutor(FANOUT_SHARDS, "chat-fanout");
+    private final HandlerExecutor handlers;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "chat-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    public ChatServer(InetSocketAddress address) {
-        super(address);
-        usernames = new ConcurrentHashMap<>();
+    public ChatServer(InetSocketAddress address) throws IOException {
+        this(address, ClusterBus.fromSystemProperties(), Paths.get(LOG_DIR));
+    }
+
+    /**
+     * Creates a cluster node that shares rooms, presence and calls with the other nodes on the bus.
+     */
+    public ChatServer(InetSocketAddress address, ClusterBus cluster, Path logDir) throws IOException {
+        this(address, cluster, logDir, HandlerExecutor.fromSystemProperties());
+    }
+
+    public ChatServer(InetSocketAddress address, ClusterBus cluster, Path logDir, HandlerExecutor handlers)
+            throws IOException {
+        super(address, Collections.singletonList(new Draft_6455(extensions(),
+                Arrays.asList(new Protocol(BinaryProtocol.SUBPROTOCOL), new Protocol("")))));
         calls = new ConcurrentHashMap<>();
         callInitiators = new ConcurrentHashMap<>();
-        userAvatars = new ConcurrentHashMap<>();
-        typingUsers = new ConcurrentHashMap<>();
-        messageReadBy = new ConcurrentHashMap<>();
-        logger.info("ChatServer initialized on {}", address);
+        callRooms = new ConcurrentHashMap<>();
+        userAvatarIds = new ConcurrentHashMap<>();
+        rooms = new RoomRegistry(name -> new Room(name, new TypingPresence(TYPING_IDLE_TIMEOUT_MS),
+                new ReadReceiptStore(userIds, READ_RECEIPT_MAX_MESSAGES, READ_RECEIPT_RETENTION_MS),
+                new MessageStateStore(userIds, MESSAGE_STATE_MAX_MESSAGES, REACTION_MAX_KINDS)));
+        messageLog = new MessageLog(logDir, LOG_SEGMENT_BYTES, LOG_MAX_SEGMENTS);
+        messageIds.set(messageLog.highestMessageId() >>> NODE_INDEX_BITS);
+        searchIndex = new SearchIndex(logDir.resolve(SEARCH_DIR), SEARCH_SEGMENT_DOCS, SEARCH_MAX_SEGMENTS);
+        catchUpSearchIndex();
+        this.cluster = cluster;
+        nodeIndex = NODE_INDEX != null ? NODE_INDEX
+                : Math.floorMod(cluster.getNodeId().hashCode(), 1 << NODE_INDEX_BITS);
+        if (nodeIndex < 0 || nodeIndex >= 1 << NODE_INDEX_BITS) {
+            throw new IllegalArgumentException("chat.cluster.nodeIndex must be below " + (1 << NODE_INDEX_BITS));
+        }
+        this.handlers = handlers;
+        snapshotFile = logDir.resolve(SNAPSHOT_FILE);
+        restoreSnapshot();
+        // The heartbeat wheel replaces the library's check, which walks every connection at once
+        setConnectionLostTimeout(0);
+        logger.info("ChatServer initialized on {} as cluster node {} (index {}), handlers {}", address,
+                cluster.getNodeId(), nodeIndex, handlers);
+    }
+
+    private static List<IExtension> extensions() {
+        FrameCompressor compressor = FrameCompressor.fromSystemProperties();
+        return compressor.isEnabled() ? List.of(compressor.newExtension()) : List.of();
+    }
+
+    @Override
+    public void onOpen(WebSocket conn, ClientHandshake handshake) {
+        boolean binary = BinaryProtocol.SUBPROTOCOL.equals(conn.getProtocol().getProvidedProtocol());
+        boolean deflate = conn.getDraft() instanceof Draft_6455
+                && ((Draft_6455) conn.getDraft()).getExtension() instanceof PerMessageDeflateExtension;
+        logger.info("New connection from {} ({}{})", conn.getRemoteSocketAddress(), binary ? "binary" : "json",
+                deflate ? ", deflate" : "");
+        Session session = sessions.open(conn, binary, deflate, new OutboundQueue(conn, outboundLimits, outboundBacklog),
+                handlers.newSerial(), limiter.newSession());
+        session.setHeartbeat(heartbeat.track(session));
+    }
+
+    @Override
+    public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+        Session session = sessions.get(conn);
+        if (session == null) {
+            return;
+        }
+        heartbeat.cancel(session.getHeartbeat());
+        // After the events still queued for this connection
+        session.getInbound().executeLast(() -> {
+            String username = session.getUsername();
+            if (username != null) {
+                logger.info("User {} disconnected: code={}, reason={}", username, code, reason);
+                removeUser(session, true);
+            }
+            session.getOutbound().close();
+            limitedBacklog.remove(session);
+            signalBacklog.remove(session);
+            sessions.close(conn);
+        });
+    }
+
+    @Override
+    public void onMessage(WebSocket conn, String message) {
+        metrics.recordInbound(message.length());
+        Session session = sessions.get(conn);
+        if (session != null) {
+            heartbeat.touch(session.getHeartbeat());
+        }
+        if (session != null && admit(session, codec.peekType(message), message)) {
+            handle(session, message);
+        }
+    }
+
+    @Override
+    public void onMessage(WebSocket conn, ByteBuffer message) {
+        metrics.recordInbound(message.remaining());
+        Session session = sessions.get(conn);
+        if (session != null) {
+            heartbeat.touch(session.getHeartbeat());
+        }
+        if (session != null && admit(session, codec.peekType(message), message)) {
+            handle(session, message);
+        }
+    }
+
+    @Override
+    public void onWebsocketPing(WebSocket conn, Framedata f) {
+        super.onWebsocketPing(conn, f);
+        touchHeartbeat(conn);
+    }
+
+    @Override
+    public void onWebsocketPong(WebSocket conn, Framedata f) {
+        touchHeartbeat(conn);
+    }
+
+    private void touchHeartbeat(WebSocket conn) {
+        Session session = sessions.get(conn);
+        if (session != null) {
+            heartbeat.touch(session.getHeartbeat());
+        }
+    }
+
+    /**
+     * Applies the session's rate limits to an event before it is decoded.
+     *
+     * @return {@code true} if the event is to be handled now
+     */
+    private boolean admit(Session session, String type, Object frame) {
+        RateLimiter.Decision decision = limiter.admit(session.getLimits(), session.getUsername(), type, frame);
+        if (decision == RateLimiter.Decision.ACCEPT) {
+            return true;
+        }
+        metrics.recordLimited(type != null ? type : "invalid");
+        WebSocket conn = session.getConnection();
+        switch (decision) {
+            case COALESCE:
+                limitedBacklog.add(session);
+                break;
+            case REJECT:
+                sendError(conn, type != null ? "Rate limit exceeded for " + type : "Rate limit exceeded");
+                break;
+            case DISCONNECT:
+                // Frames already in flight keep arriving until the close completes
+                if (conn.isOpen()) {
+                    logger.warn("Disconnecting {}: too many events over the rate limit", session);
+                    conn.close(CloseFrame.POLICY_VALIDATION, "Rate limit exceeded");
+                }
+                break;
+            default:
+                break;
+        }
+        return false;
+    }
+
+    /**
+     * Decodes and handles the frame on the connection's lane instead of the WebSocket thread,
+     * unless handlers run inline.
+     */
+    private void handle(Session session, Object frame) {
+        WebSocket conn = session.getConnection();
+        if (!session.getInbound().execute(() -> process(conn, frame))) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Dropping event from {}: too many events pending", session);
+            }
+            sendError(conn, "Server busy, message dropped");
+        }
+    }
+
+    private void process(WebSocket conn, Object frame) {
+        long start = System.nanoTime();
+        String type = "invalid";
+        try {
+            InboundEvent event = frame instanceof String
+                    ? codec.decode((String) frame)
+                    : codec.decode((ByteBuffer) frame);
+            type = event.getType();
+            dispatch(conn, event);
+        } catch (Exception e) {
+            if (frame instanceof String) {
+                logger.error("Error processing message: {}", frame, e);
+            } else {
+                logger.error("Error processing binary message of {} bytes", ((ByteBuffer) frame).remaining(), e);
+            }
+            sendError(conn, "Invalid message format");
+        }
+        metrics.recordHandler(type, System.nanoTime() - start);
+    }
+
+    private void dispatch(WebSocket conn, InboundEvent event) {
+        Session session = sessions.get(conn);
+        // Past the join, events act as the user the session joined as, whatever name the frame gives
+        String username = "join".equals(event.getType()) ? event.getUsername() : session.getUsername();
+        String room = event.getRoom();
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Received message from {}: type={}, room={}", username, event.getType(), room);
+        }
+        if (username == null) {
+            sendError(conn, "Join before sending " + event.getType());
+            return;
+        }
+
+        switch (event.getType()) {
+            case "join": {
+                InboundEvent.Join join = (InboundEvent.Join) event;
+                handleJoin(conn, username, join.getAvatar(), room, join.getLastMessageId(), join.getResumeToken());
+                break;
+            }
+            case "join-room":
+                joinRoom(session, room, null, false);
+                break;
+            case "leave-room":
+                leaveRoom(session, room);
+                break;
+            case "presence-sync":
+                inRoom(conn, room, r -> fanOut.send(conn, presenceSnapshot(r)));
+                break;
+            case "avatar":
+                handleAvatarRequest(conn, ((InboundEvent.AvatarRequest) event).getAvatarId());
+                break;
+            case "message": {
+                InboundEvent.ChatMessage chat = (InboundEvent.ChatMessage) event;
+                handleChatMessage(conn, room, username, chat.getMessage(), nextMessageId());
+                break;
+            }
+            case "file": {
+                InboundEvent.FileMessage file = (InboundEvent.FileMessage) event;
+                handleFileMessage(conn, room, username, file.getFileUrl(), file.isImage(), nextMessageId());
+                break;
+            }
+            case "leave":
+                handleLeave(conn, username);
+                break;
+            case "location": {
+                InboundEvent.Location location = (InboundEvent.Location) event;
+                handleLocationMessage(conn, room, username, location.getLatitude(), location.getLongitude());
+                break;
+            }
+            case "delete":
+                handleDeleteMessage(conn, room, username, ((InboundEvent.Delete) event).getMessageId());
+                break;
+            case "edit": {
+                InboundEvent.Edit edit = (InboundEvent.Edit) event;
+                handleEditMessage(conn, room, username, edit.getMessageId(), edit.getNewMessage());
+                break;
+            }
+            case "call-initiate":
+                handleCallInitiate(conn, room, username, ((InboundEvent.CallAction) event).getCallId());
+                break;
+            case "call-accept":
+                handleCallAccept(username, ((InboundEvent.CallAction) event).getCallId());
+                break;
+            case "call-reject":
+                handleCallReject(username, ((InboundEvent.CallAction) event).getCallId());
+                break;
+            case "call-end":
+                handleCallEnd(username, ((InboundEvent.CallAction) event).getCallId());
+                break;
+            case "call-signal":
+                handleCallSignal(session, (InboundEvent.CallSignal) event);
+                break;
+            case "typing":
+                handleTyping(conn, room, username, ((InboundEvent.Typing) event).isTyping());
+                break;
+            case "reaction": {
+                InboundEvent.Reaction reaction = (InboundEvent.Reaction) event;
+                handleReaction(conn, room, username, reaction.getMessageId(), reaction.getEmoji());
+                break;
+            }
+            case "read":
+                handleReadReceipt(conn, room, username, ((InboundEvent.Read) event).getMessageId());
+                break;
+            case "message-state":
+                handleMessageStateRequest(conn, room, ((InboundEvent.MessageStateRequest) event).getMessageIds());
+                break;
+            case "search": {
+                InboundEvent.Search search = (InboundEvent.Search) event;
+                handleSearch(session, room, search.getQuery(), search.getBefore(), search.getLimit());
+                break;
+            }
+            default:
+                logger.warn("Unknown message type: {}", event.getType());
+                break;
+        }
+    }
+
+    @Override
+    public void onError(WebSocket conn, Exception ex) {
+        logger.error("WebSocket error on connection {}: {}", conn != null ? conn.getRemoteSocketAddress() : "unknown",
+                ex.getMessage(), ex);
+        if (conn != null) {
+            sendError(conn, "Server error occurred");
+        }
+    }
+
+    public void onStart() {
+        scheduler.scheduleAtFixedRate(this::flushPresenceUpdates, PRESENCE_FLUSH_INTERVAL_MS,
+                PRESENCE_FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate(this::flushTypingUpdates, TYPING_FLUSH_INTERVAL_MS, TYPING_FLUSH_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate(this::flushReadReceipts, READ_RECEIPT_FLUSH_INTERVAL_MS,
+                READ_RECEIPT_FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate(this::flushReactions, REACTION_FLUSH_INTERVAL_MS, REACTION_FLUSH_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::drainOutboundQueues, OUTBOUND_DRAIN_INTERVAL_MS,
+                OUTBOUND_DRAIN_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::releaseCoalescedEvents, LIMIT_COALESCE_INTERVAL_MS,
+                LIMIT_COALESCE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::sealSearchIndex, LOG_FLUSH_INTERVAL_MS, LOG_FLUSH_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::flushMessageLog, LOG_FLUSH_INTERVAL_MS, LOG_FLUSH_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+        if (tickets.isEnabled()) {
+            scheduler.scheduleWithFixedDelay(this::expireHeldPlaces, RESUME_EXPIRY_INTERVAL_MS,
+                    RESUME_EXPIRY_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+        if (CALL_SIGNAL_BATCH_MS > 0) {
+            scheduler.scheduleWithFixedDelay(this::flushCallSignals, CALL_SIGNAL_BATCH_MS, CALL_SIGNAL_BATCH_MS,
+                    TimeUnit.MILLISECONDS);
+        }
+        if (heartbeat.isEnabled()) {
+            scheduler.scheduleWithFixedDelay(this::tickHeartbeat, heartbeat.getTickMillis(),
+                    heartbeat.getTickMillis(), TimeUnit.MILLISECONDS);
+        }
+        if (SNAPSHOT_INTERVAL_MS > 0) {
+            scheduler.scheduleWithFixedDelay(this::writeSnapshot, SNAPSHOT_INTERVAL_MS, SNAPSHOT_INTERVAL_MS,
+                    TimeUnit.MILLISECONDS);
+        }
+        try {
+            cluster.start(new ClusterListener());
+        } catch (IOException e) {
+            logger.error("Failed to join the cluster as node {}", cluster.getNodeId(), e);
+        }
+        metrics.register(cluster.getNodeId());
+        logger.info("WebSocket server started successfully with {} fan-out shards", fanOutShards.getShardCount());
+    }
+
+    @Override
+    public void stop(int timeout, String closeMessage) throws InterruptedException {
+        scheduler.shutdownNow();
+        if (SNAPSHOT_INTERVAL_MS > 0) {
+            // While every session is still in its rooms
+            writeSnapshot();
+        }
+        metrics.unregister();
+        if (lineServer != null) {
+            try {
+                lineServer.close();
+            } catch (IOException e) {
+                logger.error("Error closing line protocol server", e);
+            }
+        }
+        super.stop(timeout, closeMessage);
+        cluster.close();
+        handlers.shutdown();
+        fanOutShards.shutdown();
+        try {
+            messageLog.close();
+        } catch (IOException e) {
+            logger.error("Error closing message log", e);
+        }
+        try {
+            searchIndex.close();
+        } catch (IOException e) {
+            logger.error("Error closing search index", e);
+        }
+    }
+
+    /**
+     * Binds the session to the user and enters the room. With a valid resume token the session
+     * also takes back every room held for the user, without join notices.
+     */
+    private void handleJoin(WebSocket conn, String username, String avatar, String room, Long lastMessageId,
+            String resumeToken) {
+        if (username.isEmpty()) {
+            sendError(conn, "Username cannot be empty");
+            return;
+        }
+        Session session = sessions.get(conn);
+        ResumeTokens.Ticket resumed = resumeToken != null && tickets.isEnabled()
+                ? tickets.resume(resumeToken, username)
+                : null;
+        if (!username.equals(session.getUsername())) {
+            if (session.getUsername() != null) {
+                removeUser(session, false);
+            }
+            sessions.join(session, username);
+            String avatarId = avatars.put(avatar);
+            userAvatarIds.put(username, avatarId);
+            logger.info("User {} {} with avatar {}", username, resumed != null ? "resumed" : "joined", avatarId);
+            if (tickets.isEnabled()) {
+                ResumeTokens.Ticket ticket = tickets.issue(username, resumed);
+                ticket.setOnline();
+                send(conn, w -> w.beginObject()
+                        .field("type", "resume-token")
+                        .field("token", ticket.getToken())
+                        .endObject());
+            }
+        }
+        if (resumed != null) {
+            for (String heldRoom : new ArrayList<>(resumed.getHeldRooms())) {
+                if (!heldRoom.equals(room)) {
+                    joinRoom(session, heldRoom, lastMessageId, true);
+                }
+            }
+        }
+        joinRoom(session, room, lastMessageId, resumed != null);
+    }
+
+    /**
+     * Adds the session to the room on the room's shard, announces the user if this is their first
+     * session there, and sends the newcomer the room's presence, calls and history. A user taking
+     * back a place held for them never left as far as the room knows, so a resumed session is not
+     * announced.
+     */
+    private void joinRoom(Session session, String roomName, Long lastMessageId, boolean resumed) {
+        WebSocket conn = session.getConnection();
+        String username = session.getUsername();
+        if (username == null) {
+            sendError(conn, "Join before entering a room");
+            return;
+        }
+        if (!session.enterRoom(roomName)) {
+            return;
+        }
+        fanOutShards.execute(roomName, () -> {
+            Room room = rooms.getOrCreate(roomName);
+            boolean first = room.add(conn, username);
+            ResumeTokens.Ticket ticket = tickets.get(username);
+            if (ticket != null && ticket.release(roomName)) {
+                room.removeRemote(holdNode(), username);
+                if (resumed) {
+                    logger.info("User {} resumed room {}", username, roomName);
+                    first = false;
+                }
+            }
+            if (first) {
+                logger.info("User {} entered room {}", username, roomName);
+                room.getPresence().add(username, avatarIdOf(username, room));
+                publishPresence(roomName, username, true);
+                roomBroadcast(room, w -> w.beginObject()
+                        .field("type", "join")
+                        .field("room", roomName)
+                        .field("username", username)
+                        .endObject());
+            }
+            fanOut.send(conn, presenceSnapshot(room));
+            for (Map.Entry<String, Set<String>> entry : calls.entrySet()) {
+                String callId = entry.getKey();
+                if (!roomName.equals(callRooms.get(callId))) {
+                    continue;
+                }
+                Set<String> participants = entry.getValue();
+                send(conn, w -> w.beginObject()
+                        .field("type", "call-info")
+                        .field("room", roomName)
+                        .field("callId", callId)
+                        .field("initiator", callInitiators.get(callId))
+                        .stringArray("participants", participants)
+                        .endObject());
+            }
+            replayHistory(session, roomName, lastMessageId);
+        });
+    }
+
+    private void leaveRoom(Session session, String roomName) {
+        if (!session.exitRoom(roomName)) {
+            return;
+        }
+        WebSocket conn = session.getConnection();
+        fanOutShards.execute(roomName, () -> {
+            Room room = rooms.get(roomName);
+            if (room == null) {
+                return;
+            }
+            String username = room.getUsername(conn);
+            if (room.remove(conn)) {
+                logger.info("User {} left room {}", username, roomName);
+                if (!room.hasUser(username)) {
+                    room.getPresence().remove(username);
+                }
+                publishPresence(roomName, username, false);
+                roomBroadcast(room, w -> w.beginObject()
+                        .field("type", "leave")
+                        .field("room", roomName)
+                        .field("username", username)
+                        .endObject());
+            }
+            rooms.removeIfEmpty(room);
+        });
+    }
+
+    /**
+     * Sends the session what it missed in the room: the events after {@code lastMessageId} when
+     * the client is reconnecting, otherwise the room's most recent history; the newest of them
+     * when there are more than the limit. Runs on the room's shard, so nothing broadcast to the room can slip
+     * in between. Records go out as stored, straight from the mapped log, and are transcoded only
+     * for binary sessions.
+     */
+    private void replayHistory(Session session, String roomName, Long lastMessageId) {
+        long from = lastMessageId != null ? messageLog.offsetAfter(lastMessageId) : messageLog.firstOffset();
+        int limit = lastMessageId != null ? LOG_MAX_REPLAY : LOG_REPLAY_ON_JOIN;
+        long end = messageLog.nextOffset();
+        long floor = Math.max(from, end - LOG_MAX_REPLAY_SCAN);
+        // Pages back from the newest record, since a quiet room's history may be far behind the
+        // other rooms' events
+        Deque<ByteBuffer> records = new ArrayDeque<>();
+        Deque<Long> messageIds = new ArrayDeque<>();
+        List<ByteBuffer> pageRecords = new ArrayList<>();
+        List<Long> pageIds = new ArrayList<>();
+        while (records.size() < limit && end > Math.max(floor, messageLog.firstOffset())) {
+            long start = Math.max(floor, end - LOG_MAX_REPLAY);
+            long pageEnd = end;
+            pageRecords.clear();
+            pageIds.clear();
+            messageLog.read(start, (int) (pageEnd - start), (offset, messageId, payload) -> {
+                String recordRoom = codec.readField(payload, "room");
+                // Segments deleted meanwhile move the start up, and the page past its end
+                if (offset < pageEnd && roomName.equals(recordRoom != null ? recordRoom : Room.DEFAULT)) {
+                    pageRecords.add(payload);
+                    pageIds.add(messageId);
+                }
+            });
+            for (int i = pageRecords.size() - 1; i >= 0 && records.size() < limit; i--) {
+                records.addFirst(pageRecords.get(i));
+                messageIds.addFirst(pageIds.get(i));
+            }
+            end = start;
+        }
+        for (ByteBuffer payload : records) {
+            Framedata frame = session.isBinary() ? codec.transcodeToBinary(payload) : FanOut.textFrame(payload);
+            if (session.isDeflate()) {
+                frame = codec.compress(frame);
+            }
+            session.getOutbound().offer(frame, OutboundQueue.Delivery.RELIABLE, null);
+        }
+        // Reactions are not logged; the replayed messages' current state brings them in
+        Room room = rooms.get(roomName);
+        List<MessageStateStore.MessageState> states = room != null
+                ? room.getMessageStates().getAll(new LinkedHashSet<>(messageIds)) : List.of();
+        if (!states.isEmpty()) {
+            send(session.getConnection(), w -> writeMessageStates(w, roomName, states));
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Replayed {} logged events of room {} to {}", records.size(), roomName, session.getUsername());
+        }
+    }
+
+    /**
+     * Assigns the id of a new message: a sequence, the current time in milliseconds or one more
+     * than the previous one if that is not later, followed by this node's index. Ids are unique
+     * across the cluster and increase in the order a node hands them out, so clients can use them
+     * as their replay position.
+     */
+    private long nextMessageId() {
+        long sequence = messageIds.accumulateAndGet(System.currentTimeMillis(),
+                (last, now) -> Math.max(last + 1, now));
+        return sequence << NODE_INDEX_BITS | nodeIndex;
+    }
+
+    /**
+     * Moves the sequence past a message id assigned by another node, so the ids handed out here
+     * after its message stay later than it.
+     */
+    private void observeMessageId(long messageId) {
+        if ((messageId & (1 << NODE_INDEX_BITS) - 1) == nodeIndex) {
+            logger.warn("Message {} from another node carries this node's index {}; set chat.cluster.nodeIndex "
+                    + "to a different value on each node", messageId, nodeIndex);
+        }
+        messageIds.accumulateAndGet(messageId >>> NODE_INDEX_BITS, Math::max);
+    }
+
+    private void handleChatMessage(WebSocket conn, String roomName, String username, String message, long messageId) {
+        inRoom(conn, roomName, room -> {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Broadcasting message from {} to {}: {}", username, roomName, message);
+            }
+            room.getMessageStates().put(messageId, username, message);
+            long offset = broadcastAndLog(room, messageId, false, w -> w.beginObject()
+                    .field("type", "message")
+                    .field("room", roomName)
+                    .field("username", username)
+                    .field("message", message)
+                    .field("messageId", messageId)
+                    .endObject());
+            searchIndex.add(offset, roomName, messageId, username, message);
+        });
+    }
+
+    private void handleFileMessage(WebSocket conn, String roomName, String username, String fileUrl, boolean isImage,
+            long messageId) {
+        if (fileUrl.length() > FILE_URL_MAX_LENGTH) {
+            sendError(conn, "File links are limited to " + FILE_URL_MAX_LENGTH + " characters, upload the file first");
+            return;
+        }
+        inRoom(conn, roomName, room -> {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Broadcasting file from {} to {}: {}", username, roomName, fileUrl);
+            }
+            room.getMessageStates().put(messageId, username, fileUrl);
+            broadcastAndLog(room, messageId, false, w -> w.beginObject()
+                    .field("type", "file")
+                    .field("room", roomName)
+                    .field("username", username)
+                    .field("fileUrl", fileUrl)
+                    .field("isImage", isImage)
+                    .field("messageId", messageId)
+                    .endObject());
+        });
+    }
+
+    private void handleLeave(WebSocket conn, String username) {
+        Session session = sessions.get(conn);
+        if (session.getUsername() != null) {
+            logger.info("User {} left", session.getUsername());
+            removeUser(session, false);
+        }
+    }
+
+    /**
+     * Takes the session out of its rooms and, if it was the user's last, the user out of their
+     * calls. With {@code hold}, a user with a resume ticket keeps those places for the grace
+     * period instead.
+     */
+    private void removeUser(Session session, boolean hold) {
+        String username = session.getUsername();
+        ResumeTokens.Ticket ticket = tickets.get(username);
+        for (String room : new ArrayList<>(session.getRooms())) {
+            if (hold && ticket != null) {
+                holdRoom(session, room, ticket);
+            } else {
+                leaveRoom(session, room);
+            }
+        }
+        if (!sessions.leave(session)) {
+            return;
+        }
+        limiter.forget(username);
+        if (hold && ticket != null) {
+            ticket.setOffline();
+            return;
+        }
+        if (ticket != null) {
+            tickets.forget(ticket);
+            for (String room : new ArrayList<>(ticket.getHeldRooms())) {
+                if (ticket.release(room)) {
+                    releaseRoom(room, username);
+                }
+            }
+        }
+        for (String callId : sessions.getCalls(username)) {
+            leaveCall(username, callId);
+        }
+        userAvatarIds.remove(username);
+    }
+
+    /**
+     * Takes the session out of the room and, if it was the user's last session there, holds the
+     * user's place in it: the user stays in the room's presence, like a user on another node, and
+     * nobody is told about the disconnect.
+     */
+    private void holdRoom(Session session, String roomName, ResumeTokens.Ticket ticket) {
+        if (!session.exitRoom(roomName)) {
+            return;
+        }
+        WebSocket conn = session.getConnection();
+        fanOutShards.execute(roomName, () -> {
+            Room room = rooms.get(roomName);
+            if (room == null) {
+                return;
+            }
+            String username = room.getUsername(conn);
+            if (room.remove(conn)) {
+                ticket.hold(roomName);
+                room.addRemote(holdNode(), username, avatarIdOf(username, room));
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Holding the place of {} in room {}", username, roomName);
+                }
+            }
+        });
+    }
+
+    /**
+     * Gives up a held place in the room, announcing that the user left.
+     */
+    private void releaseRoom(String roomName, String username) {
+        fanOutShards.execute(roomName, () -> {
+            Room room = rooms.get(roomName);
+            if (room == null) {
+                return;
+            }
+            if (room.removeRemote(holdNode(), username)) {
+                logger.info("User {} left room {}", username, roomName);
+                room.getPresence().remove(username);
+                publishPresence(roomName, username, false);
+                roomBroadcast(room, w -> w.beginObject()
+                        .field("type", "leave")
+                        .field("room", roomName)
+                        .field("username", username)
+                        .endObject());
+            }
+            rooms.removeIfEmpty(room);
+        });
+    }
+
+    private void tickHeartbeat() {
+        try {
+            heartbeat.tick();
+        } catch (Exception e) {
+            logger.error("Error checking connection heartbeats", e);
+        }
+    }
+
+    /**
+     * Gives up the places of users who did not come back within the grace period.
+     */
+    private void expireHeldPlaces() {
+        try {
+            long now = System.currentTimeMillis();
+            for (ResumeTokens.Ticket ticket : tickets.getTickets()) {
+                String username = ticket.getUsername();
+                for (String room : ticket.expireRooms(now)) {
+                    releaseRoom(room, username);
+                }
+                if (!ticket.isExpired(now) || sessions.isOnline(username)) {
+                    continue;
+                }
+                logger.info("Session of {} expired", username);
+                tickets.forget(ticket);
+                for (String room : new ArrayList<>(ticket.getHeldRooms())) {
+                    if (ticket.release(room)) {
+                        releaseRoom(room, username);
+                    }
+                }
+                for (String callId : sessions.getCalls(username)) {
+                    leaveCall(username, callId);
+                }
+                userAvatarIds.remove(username);
+            }
+        } catch (Exception e) {
+            logger.error("Error expiring held sessions", e);
+        }
+    }
+
+    /**
+     * The pseudo cluster node that held places are recorded under in a room.
+     */
+    private String holdNode() {
+        return cluster.getNodeId() + "/resume";
+    }
+
+    private void leaveCall(String username, String callId) {
+        sessions.removeCall(username, callId);
+        Set<String> participants = calls.get(callId);
+        if (participants == null) {
+            return;
+        }
+        participants.remove(username);
+        if (participants.isEmpty()) {
+            calls.remove(callId);
+            callInitiators.remove(callId);
+            callRooms.remove(callId);
+        } else {
+            broadcastCallUpdate(participants, username, callId);
+        }
+        publishCallState(callId);
+    }
+
+    private void handleLocationMessage(WebSocket conn, String roomName, String username, double latitude,
+            double longitude) {
+        inRoom(conn, roomName, room -> {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Broadcasting location from {} to {}: lat={}, lon={}", username, roomName, latitude,
+                        longitude);
+            }
+            broadcastAndLog(room, 0, false, w -> w.beginObject()
+                    .field("type", "location")
+                    .field("room", roomName)
+                    .field("username", username)
+                    .field("latitude", latitude)
+                    .field("longitude", longitude)
+                    .endObject());
+        });
+    }
+
+    private void handleDeleteMessage(WebSocket conn, String roomName, String username, long messageId) {
+        inRoom(conn, roomName, room -> {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Deleting message {} in {} by {}", messageId, roomName, username);
+            }
+            if (!checkAuthor(conn, room, messageId, username, "delete")) {
+                return;
+            }
+            room.getMessageStates().delete(messageId, username);
+            long offset = broadcastAndLog(room, messageId, true, w -> w.beginObject()
+                    .field("type", "delete")
+                    .field("room", roomName)
+                    .field("username", username)
+                    .field("messageId", messageId)
+                    .endObject());
+            searchIndex.delete(offset, roomName, messageId, username);
+            room.getReadReceipts().remove(messageId);
+        });
+    }
+
+    private void handleEditMessage(WebSocket conn, String roomName, String username, long messageId,
+            String newMessage) {
+        inRoom(conn, roomName, room -> {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Editing message {} in {} by {}: {}", messageId, roomName, username, newMessage);
+            }
+            if (!checkAuthor(conn, room, messageId, username, "edit")) {
+                return;
+            }
+            if (!room.getMessageStates().edit(messageId, username, newMessage)) {
+                sendError(conn, "Message was deleted");
+                return;
+            }
+            long offset = broadcastAndLog(room, messageId, true, w -> w.beginObject()
+                    .field("type", "edit")
+                    .field("room", roomName)
+                    .field("username", username)
+                    .field("messageId", messageId)
+                    .field("newMessage", newMessage)
+                    .endObject());
+            searchIndex.edit(offset, roomName, messageId, username, newMessage);
+        });
+    }
+
+    /**
+     * Answers with an error unless the user sent the message. Runs on the room's shard.
+     */
+    private boolean checkAuthor(WebSocket conn, Room room, long messageId, String username, String action) {
+        String author = authorOf(room, messageId);
+        if (author == null) {
+            sendError(conn, "Unknown message");
+            return false;
+        }
+        if (!author.equals(username)) {
+            sendError(conn, "Only the author can " + action + " a message");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns who sent the message: from the room's message state, or from the message log for a
+     * message the state no longer holds. {@code null} if neither has it.
+     */
+    private String authorOf(Room room, long messageId) {
+        MessageStateStore.MessageState state = room.getMessageStates().get(messageId);
+        if (state != null && state.getUsername() != null) {
+            return state.getUsername();
+        }
+        // A new message's id is its log key, so it is the record just before the next key
+        String[] author = new String[1];
+        messageLog.read(messageLog.offsetAfter(messageId) - 1, 1, (offset, id, payload) -> {
+            String[] fields = codec.readFields(payload, "type", "room", "username");
+            if (id == messageId && ("message".equals(fields[0]) || "file".equals(fields[0]))
+                    && room.getName().equals(fields[1] != null ? fields[1] : Room.DEFAULT)) {
+                author[0] = fields[2];
+            }
+        });
+        return author[0];
+    }
+
+    private void handleCallInitiate(WebSocket conn, String roomName, String username, String callId) {
+        inRoom(conn, roomName, room -> {
+            Set<String> participants = ConcurrentHashMap.newKeySet();
+            participants.add(username);
+            calls.put(callId, participants);
+            callInitiators.put(callId, username);
+            callRooms.put(callId, roomName);
+            sessions.addCall(username, callId);
+            logger.info("Call initiated by {} in {} with callId: {}", username, roomName, callId);
+            publishCallState(callId);
+            EncodedEvent frame = codec.prepare(w -> w.beginObject()
+                    .field("type", "call-initiate")
+                    .field("room", roomName)
+                    .field("username", username)
+                    .field("callId", callId)
+                    .endObject());
+            broadcastExcept(room, frame, username);
+            publishRoomEvent(roomName, frame, null, username);
+        });
+    }
+
+    private void handleCallAccept(String username, String callId) {
+        Set<String> participants = calls.get(callId);
+        if (participants != null) {
+            participants.add(username);
+            sessions.addCall(username, callId);
+            logger.info("User {} accepted call {}", username, callId);
+            publishCallState(callId);
+            callBroadcast(callId, w -> w.beginObject()
+                    .field("type", "call-accept")
+                    .field("username", username)
+                    .field("callId", callId)
+                    .stringArray("participants", participants)
+                    .endObject());
+        } else {
+            logger.warn("Call {} not found for user {}", callId, username);
+        }
+    }
+
+    private void handleCallReject(String username, String callId) {
+        logger.info("User {} rejected call {}", username, callId);
+        callBroadcast(callId, w -> w.beginObject()
+                .field("type", "call-reject")
+                .field("username", username)
+                .field("callId", callId)
+                .endObject());
+    }
+
+    private void handleCallEnd(String username, String callId) {
+        Set<String> participants = calls.get(callId);
+        String initiator = callInitiators.get(callId);
+        if (participants != null) {
+            if (username.equals(initiator)) {
+                callRooms.remove(callId);
+                calls.remove(callId);
+                callInitiators.remove(callId);
+                for (String participant : participants) {
+                    sessions.removeCall(participant, callId);
+                }
+                logger.info("Call {} ended by initiator {}", callId, username);
+                publishCallState(callId);
+                sendToParticipants(participants, codec.prepare(w -> w.beginObject()
+                        .field("type", "call-end")
+                        .field("username", username)
+                        .field("callId", callId)
+                        .endObject()), true);
+            } else {
+                logger.info("User {} left call {}", username, callId);
+                leaveCall(username, callId);
+            }
+        } else {
+            logger.warn("Call {} not found to end by {}", callId, username);
+        }
+    }
+
+    /**
+     * Forwards a WebRTC signal to its target. Candidates wait for the next batch to the same
+     * target; anything else sends the pending batch first, so it never overtakes a candidate.
+     */
+    private void handleCallSignal(Session session, InboundEvent.CallSignal signal) {
+        String callId = signal.getCallId();
+        String target = signal.getTarget();
+        if (logger.isDebugEnabled()) {
+            logger.debug("Handling call signal from {} to {} for call {}: type={}", session.getUsername(), target,
+                    callId, signal.getSignalType());
+        }
+        SignalBatches batches = session.getSignalBatches();
+        if (CALL_SIGNAL_BATCH_MS > 0 && "candidate".equals(signal.getSignalType())) {
+            SignalBatches.Batch full = batches.add(callId, target, signal.getTargetSession(), signal.getSignal());
+            if (full != null) {
+                sendCallSignals(session, full.getCallId(), full.getTarget(), full.getTargetSession(),
+                        full.getSignals());
+            } else {
+                signalBacklog.add(session);
+            }
+            return;
+        }
+        SignalBatches.Batch pending = batches.take(callId, target, signal.getTargetSession());
+        if (pending != null) {
+            sendCallSignals(session, callId, target, pending.getTargetSession(), pending.getSignals());
+        }
+        sendCallSignals(session, callId, target, signal.getTargetSession(), List.of(signal.getSignal()));
+    }
+
+    /**
+     * Sends the signals in one frame: a {@code call-signal} for one, a {@code call-signal-batch}
+     * for several. The frame names the sending session, so the target can answer that session
+     * alone; it goes to the target session if given and still here, else to all of the target's
+     * sessions and nodes.
+     */
+    private void sendCallSignals(Session from, String callId, String target, Long targetSession,
+            List<String> signals) {
+        EncodedEvent frame = codec.prepare(w -> {
+            w.beginObject()
+                    .field("type", signals.size() == 1 ? "call-signal" : "call-signal-batch")
+                    .field("username", from.getUsername())
+                    .field("session", from.getId())
+                    .field("callId", callId)
+                    .field("target", target);
+            if (signals.size() == 1) {
+                w.name("signal").rawJson(signals.get(0));
+            } else {
+                w.name("signals").beginArray();
+                for (String signal : signals) {
+                    w.rawJson(signal);
+                }
+                w.endArray();
+            }
+            w.endObject();
+        });
+        Session direct = targetSession != null ? sessions.get(targetSession) : null;
+        if (direct != null && target.equals(direct.getUsername())) {
+            fanOut.send(direct.getConnection(), frame);
+            return;
+        }
+        for (Session session : sessions.getSessions(target)) {
+            fanOut.send(session.getConnection(), frame);
+        }
+        Set<String> nodes = remotePresence.getNodes(target);
+        if (!nodes.isEmpty()) {
+            String json = jsonOf(frame);
+            ByteBuffer message = codec.toBinary(w -> w.beginObject()
+                    .field("kind", "call-signal")
+                    .field("target", target)
+                    .name("event").rawJson(json)
+                    .endObject());
+            for (String node : nodes) {
+                cluster.send(node, message);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Forwarded call signal for {} to node {}", target, node);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the candidates held back for the current batch window, on each session's lane.
+     */
+    private void flushCallSignals() {
+        try {
+            for (Iterator<Session> backlog = signalBacklog.iterator(); backlog.hasNext(); ) {
+                Session session = backlog.next();
+                backlog.remove();
+                session.getInbound().executeLast(() -> {
+                    for (SignalBatches.Batch batch : session.getSignalBatches().drain()) {
+                        sendCallSignals(session, batch.getCallId(), batch.getTarget(), batch.getTargetSession(),
+                                batch.getSignals());
+                    }
+                });
+            }
+        } catch (Exception e) {
+            logger.error("Error flushing call signals", e);
+        }
+    }
+
+    private void handleTyping(WebSocket conn, String roomName, String username, boolean isTyping) {
+        inRoom(conn, roomName, room -> {
+            if (logger.isDebugEnabled()) {
+                logger.debug("User {} typing={} in {}", username, isTyping, roomName);
+            }
+            room.getTyping().record(username, isTyping);
+        });
+    }
+
+    /**
+     * Counts the reaction in the message's state; the room gets the new counts with the next
+     * {@link #flushReactions} instead of one broadcast per click. Other nodes get the reaction
+     * itself and count it in their own copy.
+     */
+    private void handleReaction(WebSocket conn, String roomName, String username, long messageId, String emoji) {
+        if (emoji.isEmpty() || emoji.length() > REACTION_MAX_LENGTH) {
+            sendError(conn, "Invalid reaction");
+            return;
+        }
+        inRoom(conn, roomName, room -> {
+            if (logger.isDebugEnabled()) {
+                logger.debug("User {} reacted to message {} in {} with {}", username, messageId, roomName, emoji);
+            }
+            if (room.getMessageStates().react(messageId, username, emoji)) {
+                publishRoomEvent(roomName, codec.prepare(w -> w.beginObject()
+                        .field("type", "reaction")
+                        .field("room", roomName)
+                        .field("username", username)
+                        .field("messageId", messageId)
+                        .field("emoji", emoji)
+                        .endObject()), null, null);
+            }
+        });
+    }
+
+    /**
+     * Sends the current state of the requested messages that the room still knows, in one frame.
+     */
+    private void handleMessageStateRequest(WebSocket conn, String roomName, List<Long> messageIds) {
+        inRoom(conn, roomName, room -> {
+            List<MessageStateStore.MessageState> states = room.getMessageStates().getAll(messageIds);
+            send(conn, w -> writeMessageStates(w, roomName, states));
+        });
+    }
+
+    /**
+     * Answers with a page of the room's messages that contain every word of the query, newest
+     * first. Runs on the session's lane rather than the room's shard, so a search does not hold up
+     * the room; the session's own rooms are known on its lane.
+     */
+    private void handleSearch(Session session, String roomName, String query, Long before, Long limit) {
+        WebSocket conn = session.getConnection();
+        if (!session.getRooms().contains(roomName)) {
+            sendError(conn, "Not a member of room " + roomName);
+            return;
+        }
+        if (query.length() > SEARCH_MAX_QUERY_LENGTH) {
+            sendError(conn, "Search queries are limited to " + SEARCH_MAX_QUERY_LENGTH + " characters");
+            return;
+        }
+        int pageSize = limit != null ? (int) Math.max(1, Math.min(limit, SEARCH_MAX_PAGE_SIZE)) : SEARCH_PAGE_SIZE;
+        int cursor = before != null ? (int) Math.max(0, Math.min(before, Integer.MAX_VALUE)) : Integer.MAX_VALUE;
+        SearchIndex.Page page = searchIndex.search(roomName, query, cursor, pageSize);
+        send(conn, w -> {
+            w.beginObject().field("type", "search-results").field("room", roomName).field("query", query)
+                    .name("results").beginArray();
+            for (SearchIndex.Hit hit : page.getHits()) {
+                w.beginObject()
+                        .field("messageId", hit.getMessageId())
+                        .field("username", hit.getUsername())
+                        .field("message", hit.getText())
+                        .endObject();
+            }
+            w.endArray();
+            if (page.getNext() >= 0) {
+                w.field("next", page.getNext());
+            }
+            w.endObject();
+        });
+    }
+
+    private void writeMessageStates(EventWriter w, String roomName, List<MessageStateStore.MessageState> states) {
+        w.beginObject().field("type", "message-state").field("room", roomName).name("messages").beginArray();
+        for (MessageStateStore.MessageState state : states) {
+            w.beginObject().field("messageId", state.getMessageId());
+            if (state.getUsername() != null) {
+                w.field("username", state.getUsername());
+            }
+            if (state.getText() != null) {
+                w.field("message", state.getText());
+            }
+            w.field("edited", state.isEdited()).field("deleted", state.isDeleted());
+            state.writeReactions(w);
+            w.endObject();
+        }
+        w.endArray().endObject();
+    }
+
+    private void handleReadReceipt(WebSocket conn, String roomName, String username, long messageId) {
+        inRoom(conn, roomName, room -> {
+            // A made-up id would take a slot of the receipt ring from a real message
+            if (authorOf(room, messageId) == null) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Ignoring read receipt from {} for unknown message {} in {}", username, messageId,
+                            roomName);
+                }
+                return;
+            }
+            if (room.getReadReceipts().markRead(messageId, username)) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("User {} read message {} in {}", username, messageId, roomName);
+                }
+            }
+        });
+    }
+
+    private void broadcastCallUpdate(Set<String> participants, String leftUser, String callId) {
+        logger.info("Broadcasting call update for user {} leaving call {}", leftUser, callId);
+        callBroadcast(callId, w -> w.beginObject()
+                .field("type", "call-user-left")
+                .field("username", leftUser)
+                .stringArray("participants", participants)
+                .field("callId", callId)
+                .endObject());
+    }
+
+    private void flushPresenceUpdates() {
+        try {
+            for (Room room : rooms.getRooms()) {
+                fanOutShards.execute(room.getName(), () -> flushPresenceUpdates(room));
+            }
+        } catch (Exception e) {
+            logger.error("Error flushing presence updates", e);
+        }
+    }
+
+    /**
+     * Sends the room's members who entered and left it since the last flush. Every node tracks the
+     * merged presence itself, so this is not replicated. A slow connection only gets the room's
+     * latest delta; the client sees the gap in versions and asks for a snapshot.
+     */
+    private void flushPresenceUpdates(Room room) {
+        RoomPresence.Delta delta = room.getPresence().flush();
+        if (delta == null) {
+            return;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Broadcasting presence version {} to {}: added={}, removed={}", delta.getVersion(),
+                    room.getName(), delta.getAdded().keySet(), delta.getRemoved());
+        }
+        fanOut.broadcast(codec.prepare(w -> {
+            w.beginObject()
+                    .field("type", "presence-delta")
+                    .field("room", room.getName())
+                    .field("version", delta.getVersion())
+                    .name("added").beginArray();
+            for (Map.Entry<String, String> entry : delta.getAdded().entrySet()) {
+                w.beginObject()
+                        .field("username", entry.getKey())
+                        .field("avatarId", entry.getValue())
+                        .endObject();
+            }
+            w.endArray().stringArray("removed", delta.getRemoved()).endObject();
+        }, OutboundQueue.Delivery.COALESCE, "presence:" + room.getName()), room.getConnections());
+    }
+
+    private void handleAvatarRequest(WebSocket conn, String avatarId) {
+        String avatar = avatars.get(avatarId);
+        if (avatar == null) {
+            sendError(conn, "Unknown avatar " + avatarId);
+            return;
+        }
+        send(conn, w -> w.beginObject()
+                .field("type", "avatar")
+                .field("avatarId", avatarId)
+                .field("avatar", avatar)
+                .endObject());
+    }
+
+    /**
+     * Returns the number of frames waiting for each open session, keyed by session id.
+     */
+    public Map<Long, Integer> getOutboundQueueDepths() {
+        Map<Long, Integer> depths = new HashMap<>();
+        for (Session session : sessions.getSessions()) {
+            depths.put(session.getId(), session.getOutbound().depth());
+        }
+        return depths;
+    }
+
+    public ChatMetrics getMetrics() {
+        return metrics;
+    }
+
+    private long outboundQueueDepth() {
+        long depth = 0;
+        for (Session session : sessions.getSessions()) {
+            depth += session.getOutbound().depth();
+        }
+        return depth;
+    }
+
+    private void drainOutboundQueues() {
+        try {
+            for (OutboundQueue queue : outboundBacklog) {
+                queue.drain();
+            }
+        } catch (Exception e) {
+            logger.error("Error draining outbound queues", e);
+        }
+    }
+
+    /**
+     * Handles coalesced events whose sessions are back within their rate limits.
+     */
+    private void releaseCoalescedEvents() {
+        try {
+            for (Session session : limitedBacklog) {
+                // Removed first, so an event parked while releasing adds the session back
+                limitedBacklog.remove(session);
+                if (!session.getConnection().isOpen()) {
+                    continue;
+                }
+                if (limiter.releaseParked(session.getLimits(), session.getUsername(),
+                        frame -> handle(session, frame))) {
+                    limitedBacklog.add(session);
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Error releasing coalesced events", e);
+        }
+    }
+
+    private void flushTypingUpdates() {
+        try {
+            for (Room room : rooms.getRooms()) {
+                fanOutShards.execute(room.getName(), () -> flushTypingUpdates(room));
+            }
+        } catch (Exception e) {
+            logger.error("Error flushing typing updates", e);
+        }
+    }
+
+    private void flushTypingUpdates(Room room) {
+        TypingPresence.Delta delta = room.getTyping().flush();
+        if (delta == null) {
+            return;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Broadcasting typing update to {}: started={}, stopped={}", room.getName(), delta.getStarted(),
+                    delta.getStopped());
+        }
+        roomBroadcast(room, w -> w.beginObject()
+                .field("type", "typing")
+                .field("room", room.getName())
+                .stringArray("started", delta.getStarted())
+                .stringArray("stopped", delta.getStopped())
+                .endObject(), OutboundQueue.Delivery.DROPPABLE, null);
+    }
+
+    private void flushReadReceipts() {
+        try {
+            for (Room room : rooms.getRooms()) {
+                fanOutShards.execute(room.getName(), () -> flushReadReceipts(room));
+            }
+        } catch (Exception e) {
+            logger.error("Error flushing read receipts", e);
+        }
+    }
+
+    private void flushReadReceipts(Room room) {
+        Map<Long, List<String>> batch = room.getReadReceipts().drainPending();
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Broadcasting read receipts for {} messages to {}", batch.size(), room.getName());
+        }
+        roomBroadcast(room, w -> {
+            w.beginObject().field("type", "read").field("room", room.getName()).name("receipts").beginArray();
+            for (Map.Entry<Long, List<String>> entry : batch.entrySet()) {
+                w.beginObject()
+                        .field("messageId", entry.getKey())
+                        .stringArray("readBy", entry.getValue())
+                        .endObject();
+            }
+            w.endArray().endObject();
+        }, OutboundQueue.Delivery.DROPPABLE, null);
     }
 
-    @Override
-    public void onOpen(WebSocket conn, ClientHandshake handshake) {
-        logger.info("New connection from {}", conn.getRemoteSocketAddress());
+    private void flushReactions() {
+        try {
+            for (Room room : rooms.getRooms()) {
+                fanOutShards.execute(room.getName(), () -> flushReactions(room));
+            }
+        } catch (Exception e) {
+            logger.error("Error flushing reactions", e);
+        }
     }
 
-    @Override
-    public void onClose(WebSocket conn, int code, String reason, boolean remote) {
-        String username = usernames.get(conn);
-        if (username != null) {
-            logger.info("User {} disconnected: code={}, reason={}", username, code, reason);
+    /**
+     * Broadcasts the reaction counts of every message whose reactions changed since the last flush.
+     * Counts are totals, so a dropped update is made good by the next one or a message-state request.
+     */
+    private void flushReactions(Room room) {
+        List<MessageStateStore.MessageState> changed = room.getMessageStates().drainReactions();
+        if (changed.isEmpty()) {
+            return;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Broadcasting reactions for {} messages to {}", changed.size(), room.getName());
+        }
+        EncodedEvent encoded = codec.prepare(w -> {
+            w.beginObject().field("type", "reactions").field("room", room.getName()).name("messages").beginArray();
+            for (MessageStateStore.MessageState state : changed) {
+                w.beginObject().field("messageId", state.getMessageId());
+                state.writeReactions(w);
+                w.endObject();
+            }
+            w.endArray().endObject();
+        }, OutboundQueue.Delivery.DROPPABLE, null);
+        fanOut.broadcast(encoded, room.getConnections());
+    }
+
+    /**
+     * The room's presence snapshot, encoded once for every newcomer until presence changes.
+     */
+    private EncodedEvent presenceSnapshot(Room room) {
+        EncodedEvent snapshot = room.getPresence().getSnapshot();
+        if (snapshot == null) {
+            snapshot = codec.prepare(w -> writePresenceSnapshot(w, room));
+            room.getPresence().setSnapshot(snapshot);
+        }
+        return snapshot;
+    }
+
+    private void writePresenceSnapshot(EventWriter w, Room room) {
+        w.beginObject()
+                .field("type", "presence-snapshot")
+                .field("room", room.getName())
+                .field("version", room.getPresence().getVersion())
+                .name("users").beginArray();
+        for (String username : room.getUsernames()) {
+            w.beginObject()
+                    .field("username", username)
+                    .field("avatarId", avatarIdOf(username, room))
+                    .endObject();
+        }
+        w.endArray().endObject();
+    }
+
+    /**
+     * Runs the action on the room's shard if the connection is a member of the room, and answers
+     * with an error otherwise.
+     */
+    private void inRoom(WebSocket conn, String roomName, Consumer<Room> action) {
+        fanOutShards.execute(roomName, () -> {
+            Room room = rooms.get(roomName);
+            if (room == null || !room.contains(conn)) {
+                sendError(conn, "Not a member of room " + roomName);
+                return;
+            }
+            action.accept(room);
+        });
+    }
+
+    /**
+     * Broadcasts the event to the room and appends its JSON encoding to the message log for
+     * replay. Called on the room's shard, so the log and the members see the same order.
+     * {@code update} marks an edit or delete of the message with {@code messageId}.
+     *
+     * @return the log offset of the event, or {@code -1} if it could not be logged
+     */
+    private long broadcastAndLog(Room room, long messageId, boolean update, OutboundEvent event) {
+        EncodedEvent encoded = codec.prepare(event);
+        long offset = -1;
+        try {
+            ByteBuffer payload = encoded.jsonFrame().getPayloadData();
+            offset = update ? messageLog.appendUpdate(messageId, payload) : messageLog.append(messageId, payload);
+        } catch (IOException e) {
+            logger.error("Error appending message {} to the log", messageId, e);
+        }
+        fanOut.broadcast(encoded, room.getConnections());
+        relayToLineClients(room.getName(), encoded);
+        publishRoomEvent(room.getName(), encoded, messageId, null);
+        return offset;
+    }
+
+    /**
+     * Writes the state a restart would lose to the snapshot file: resume tickets with every room
+     * their user is in or has held, calls, and read receipts.
+     */
+    private void writeSnapshot() {
+        try {
+            long start = System.nanoTime();
+            StateSnapshot snapshot = new StateSnapshot(System.currentTimeMillis());
+            for (ResumeTokens.Ticket ticket : tickets.getTickets()) {
+                String username = ticket.getUsername();
+                Set<String> userRooms = new LinkedHashSet<>(ticket.getHeldRooms());
+                for (Session session : sessions.getSessions(username)) {
+                    userRooms.addAll(session.getRooms());
+                }
+                String avatar = avatars.get(userAvatarIds.getOrDefault(username, ""));
+                snapshot.addTicket(ticket.getToken(), username, avatar != null ? avatar : "",
+                        new ArrayList<>(userRooms));
+            }
             for (Map.Entry<String, Set<String>> entry : calls.entrySet()) {
                 String callId = entry.getKey();
-                Set<String> participants = entry.getValue();
-                if (participants.contains(username)) {
-                    participants.remove(username);
-                    if (participants.isEmpty()) {
-                        calls.remove(callId);
-                        callInitiators.remove(callId);
-                    } else {
-                        broadcastCallUpdate(participants, username, callId);
-                    }
+                String roomName = callRooms.get(callId);
+                String initiator = callInitiators.get(callId);
+                if (roomName != null && initiator != null) {
+                    snapshot.addCall(callId, roomName, initiator, new ArrayList<>(entry.getValue()));
                 }
             }
-            broadcastMessage("leave", username, null, null);
-            usernames.remove(conn);
-            userAvatars.remove(username);
-            typingUsers.remove(username);
-            broadcastUserListUpdate();
+            for (Room room : rooms.getRooms()) {
+                room.getReadReceipts().forEach((messageId, createdAt, readers) ->
+                        snapshot.addReceipt(room.getName(), messageId, createdAt, readers));
+            }
+            int bytes = snapshot.write(snapshotFile);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Wrote snapshot of {} bytes in {} ms", bytes, (System.nanoTime() - start) / 1_000_000);
+            }
+        } catch (Exception e) {
+            logger.error("Error writing snapshot {}", snapshotFile, e);
         }
     }
 
-    @Override
-    public void onMessage(WebSocket conn, String message) {
+    /**
+     * Puts back the state of the last snapshot before the server accepts connections: calls, read
+     * receipts, and the places of every ticket's user, held for the grace period so that clients
+     * can resume them.
+     */
+    private void restoreSnapshot() {
+        long start = System.nanoTime();
+        StateSnapshot snapshot;
+        try {
+            snapshot = StateSnapshot.read(snapshotFile);
+        } catch (IOException e) {
+            logger.error("Ignoring snapshot {}", snapshotFile, e);
+            return;
+        }
+        if (snapshot == null) {
+            return;
+        }
+        for (Map.Entry<String, List<StateSnapshot.Receipt>> entry : snapshot.getReceipts().entrySet()) {
+            ReadReceiptStore receipts = rooms.getOrCreate(entry.getKey()).getReadReceipts();
+            for (StateSnapshot.Receipt receipt : entry.getValue()) {
+                receipts.restore(receipt.messageId, receipt.createdAt, receipt.readers);
+            }
+        }
+        // Without tickets nobody could come back to them
+        if (tickets.isEnabled()) {
+            long now = System.currentTimeMillis();
+            for (StateSnapshot.Ticket ticket : snapshot.getTickets()) {
+                String avatarId = avatars.put(ticket.avatar);
+                userAvatarIds.put(ticket.username, avatarId);
+                tickets.restore(ticket.token, ticket.username, ticket.rooms, now);
+                for (String roomName : ticket.rooms) {
+                    Room room = rooms.getOrCreate(roomName);
+                    room.addRemote(holdNode(), ticket.username, avatarId);
+                    room.getPresence().add(ticket.username, avatarId);
+                }
+            }
+            for (StateSnapshot.Call call : snapshot.getCalls()) {
+                Set<String> participants = ConcurrentHashMap.newKeySet();
+                participants.addAll(call.participants);
+                calls.put(call.callId, participants);
+                callInitiators.put(call.callId, call.initiator);
+                callRooms.put(call.callId, call.room);
+                for (String participant : participants) {
+                    sessions.addCall(participant, call.callId);
+                }
+            }
+        }
+        logger.info("Restored {} tickets, {} calls and {} read receipts from a snapshot taken {} ms ago, in {} ms",
+                snapshot.getTickets().size(), snapshot.getCalls().size(), snapshot.getReceiptCount(),
+                System.currentTimeMillis() - snapshot.getTakenAt(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private void flushMessageLog() {
         try {
-            JSONObject jsonMessage = new JSONObject(message);
-            String type = jsonMessage.getString("type");
-            String username = jsonMessage.optString("username", "");
+            messageLog.flush();
+        } catch (Exception e) {
+            logger.error("Error flushing message log", e);
+        }
+    }
+
+    private void sealSearchIndex() {
+        try {
+            searchIndex.sealIfFull();
+        } catch (Exception e) {
+            logger.error("Error writing search index segment", e);
+        }
+    }
+
+    /**
+     * Indexes what the log has beyond the search index: the history logged before the index
+     * existed, and messages lost with the index's unwritten tail when the server did not stop
+     * cleanly.
+     */
+    private void catchUpSearchIndex() {
+        long start = System.nanoTime();
+        long from = Math.max(searchIndex.getIndexedOffset() + 1, messageLog.firstOffset());
+        long end = messageLog.nextOffset();
+        while (from < end) {
+            int read = messageLog.read(from, LOG_MAX_REPLAY, (offset, messageId, payload) -> {
+                try {
+                    indexLogged(offset, StandardCharsets.UTF_8.decode(payload).toString());
+                } catch (RuntimeException e) {
+                    logger.warn("Skipping unreadable log record {} for the search index", offset, e);
+                }
+            });
+            if (read == 0) {
+                break;
+            }
+            from += read;
+        }
+        logger.info("Search index holds {} documents, caught up from the log in {} ms", searchIndex.size(),
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Indexes a logged message, edit or delete that was not handled here: one relayed from another
+     * node, or one read back from the log.
+     */
+    private void indexLogged(long offset, String json) {
+        String type = codec.peekType(json);
+        if (type == null) {
+            return;
+        }
+        switch (type) {
+            case "message": {
+                InboundEvent.ChatMessage message = (InboundEvent.ChatMessage) codec.decode(json);
+                searchIndex.add(offset, message.getRoom(), message.getMessageId(), message.getUsername(),
+                        message.getMessage());
+                break;
+            }
+            case "edit": {
+                InboundEvent.Edit edit = (InboundEvent.Edit) codec.decode(json);
+                searchIndex.edit(offset, edit.getRoom(), edit.getMessageId(), edit.getUsername(), edit.getNewMessage());
+                break;
+            }
+            case "delete": {
+                InboundEvent.Delete delete = (InboundEvent.Delete) codec.decode(json);
+                searchIndex.delete(offset, delete.getRoom(), delete.getMessageId(), delete.getUsername());
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    private void callBroadcast(String callId, OutboundEvent event) {
+        Set<String> participants = calls.get(callId);
+        if (participants != null) {
+            sendToParticipants(participants, codec.prepare(event), true);
+        }
+    }
+
+    /**
+     * Sends a call event to the participants' sessions, and with {@code forward} to the nodes the
+     * others are on, instead of to everyone in the call's room.
+     */
+    private void sendToParticipants(Collection<String> participants, EncodedEvent frame, boolean forward) {
+        Set<String> nodes = new HashSet<>();
+        for (String participant : participants) {
+            for (Session session : sessions.getSessions(participant)) {
+                fanOut.send(session.getConnection(), frame);
+            }
+            if (forward) {
+                nodes.addAll(remotePresence.getNodes(participant));
+            }
+        }
+        if (nodes.isEmpty()) {
+            return;
+        }
+        String json = jsonOf(frame);
+        ByteBuffer message = codec.toBinary(w -> w.beginObject()
+                .field("kind", "call-event")
+                .stringArray("participants", participants)
+                .name("event").rawJson(json)
+                .endObject());
+        for (String node : nodes) {
+            cluster.send(node, message);
+        }
+    }
+
+    /**
+     * Broadcasts to the room from its shard, for callers on other threads.
+     */
+    private void roomBroadcast(String roomName, OutboundEvent event) {
+        fanOutShards.execute(roomName, () -> {
+            EncodedEvent encoded = codec.prepare(event);
+            Room room = rooms.get(roomName);
+            if (room != null) {
+                fanOut.broadcast(encoded, room.getConnections());
+            }
+            relayToLineClients(roomName, encoded);
+            publishRoomEvent(roomName, encoded, null, null);
+        });
+    }
+
+    private void roomBroadcast(Room room, OutboundEvent event) {
+        roomBroadcast(room, event, OutboundQueue.Delivery.RELIABLE, null);
+    }
+
+    /**
+     * Broadcasts to the room's members on this node and relays the event to the other nodes.
+     */
+    private void roomBroadcast(Room room, OutboundEvent event, OutboundQueue.Delivery delivery, String coalesceKey) {
+        EncodedEvent encoded = codec.prepare(event, delivery, coalesceKey);
+        fanOut.broadcast(encoded, room.getConnections());
+        relayToLineClients(room.getName(), encoded);
+        publishRoomEvent(room.getName(), encoded, null, null);
+    }
+
+    private void broadcastExcept(Room room, EncodedEvent event, String excludedUsername) {
+        for (WebSocket member : room.getConnections()) {
+            if (!excludedUsername.equals(room.getUsername(member))) {
+                fanOut.send(member, event);
+            }
+        }
+    }
+
+    /**
+     * Passes messages, joins and leaves of the default room on to the line protocol clients, as
+     * text. Everything else has no equivalent in their protocol.
+     */
+    private void relayToLineClients(String roomName, EncodedEvent event) {
+        Server server = lineServer;
+        if (server == null || server.getClientCount() == 0 || !Room.DEFAULT.equals(roomName)) {
+            return;
+        }
+        String[] fields = codec.readFields(event.jsonFrame().getPayloadData(), "type", "username", "message",
+                "fileUrl");
+        String type = fields[0];
+        String username = fields[1];
+        if (type == null || username == null) {
+            return;
+        }
+        switch (type) {
+            case "message":
+                server.deliver(username, fields[2]);
+                break;
+            case "file":
+                server.deliver(username, fields[3]);
+                break;
+            case "location":
+                server.deliver(username, "shared a location");
+                break;
+            case "join":
+                server.announce(username + " has joined the chat");
+                break;
+            case "leave":
+                server.announce(username + " has left the chat");
+                break;
+            default:
+                break;
+        }
+    }
+
+    private String avatarIdOf(String username, Room room) {
+        String avatarId = userAvatarIds.get(username);
+        if (avatarId == null) {
+            avatarId = room.getRemoteAvatarId(username);
+        }
+        return avatarId != null ? avatarId : "";
+    }
+
+    private static String jsonOf(EncodedEvent event) {
+        return StandardCharsets.UTF_8.decode(event.jsonFrame().getPayloadData()).toString();
+    }
+
+    /**
+     * Relays a room event to the other nodes, which deliver it to their members of the room and,
+     * if it has a message id, append it to their own log.
+     */
+    private void publishRoomEvent(String roomName, EncodedEvent event, Long messageId, String excludedUsername) {
+        if (!cluster.hasPeers()) {
+            return;
+        }
+        String json = jsonOf(event);
+        cluster.publish(codec.toBinary(w -> {
+            w.beginObject()
+                    .field("kind", "room-event")
+                    .field("room", roomName)
+                    .field("delivery", event.getDelivery().name());
+            if (event.getCoalesceKey() != null) {
+                w.field("key", event.getCoalesceKey());
+            }
+            if (messageId != null) {
+                w.field("messageId", messageId);
+            }
+            if (excludedUsername != null) {
+                w.field("exclude", excludedUsername);
+            }
+            w.name("event").rawJson(json).endObject();
+        }));
+    }
+
+    private void publishPresence(String roomName, String username, boolean present) {
+        if (cluster.hasPeers()) {
+            cluster.publish(presenceMessage(roomName, username, present));
+        }
+    }
+
+    private ByteBuffer presenceMessage(String roomName, String username, boolean present) {
+        return codec.toBinary(w -> w.beginObject()
+                .field("kind", "presence")
+                .field("room", roomName)
+                .field("username", username)
+                .field("avatar", Objects.toString(avatars.get(userAvatarIds.getOrDefault(username, "")), ""))
+                .field("present", present)
+                .endObject());
+    }
+
+    private void publishCallState(String callId) {
+        if (cluster.hasPeers()) {
+            cluster.publish(callStateMessage(callId));
+        }
+    }
+
+    /**
+     * The call's full state, or its end if it is gone. Nodes replace their copy with it, so the
+     * last update wins if two nodes change the same call at once.
+     */
+    private ByteBuffer callStateMessage(String callId) {
+        Set<String> participants = calls.get(callId);
+        return codec.toBinary(w -> {
+            w.beginObject().field("kind", "call-state").field("callId", callId);
+            if (participants == null) {
+                w.field("ended", true);
+            } else {
+                w.field("room", callRooms.get(callId))
+                        .field("initiator", callInitiators.get(callId))
+                        .stringArray("participants", participants);
+            }
+            w.endObject();
+        });
+    }
 
-            logger.debug("Received message from {}: type={}", username, type);
+    private void onClusterMessage(String fromNode, ByteBuffer message) {
+        String kind = null;
+        String room = null;
+        String username = null;
+        String avatar = "";
+        String delivery = null;
+        String key = null;
+        String exclude = null;
+        String event = null;
+        String target = null;
+        String callId = null;
+        String initiator = null;
+        Long messageId = null;
+        boolean present = false;
+        boolean ended = false;
+        List<String> participants = new ArrayList<>();
 
-            switch (type) {
-                case "join":
-                    handleJoin(conn, username, jsonMessage.optString("avatar", ""));
+        BinaryEventReader reader = new BinaryEventReader(message);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "kind":
+                    kind = reader.nextString();
                     break;
-                case "message":
-                    handleChatMessage(username, jsonMessage.getString("message"), jsonMessage.getLong("messageId"));
+                case "room":
+                    room = reader.nextString();
                     break;
-                case "file":
-                    handleFileMessage(username, jsonMessage.getString("fileUrl"), jsonMessage.getBoolean("isImage"),
-                            jsonMessage.getLong("messageId"));
+                case "username":
+                    username = reader.nextString();
                     break;
-                case "leave":
-                    handleLeave(conn, username);
+                case "avatar":
+                    avatar = reader.nextString();
                     break;
-                case "location":
-                    handleLocationMessage(username, jsonMessage.getDouble("latitude"),
-                            jsonMessage.getDouble("longitude"));
+                case "delivery":
+                    delivery = reader.nextString();
                     break;
-                case "delete":
-                    handleDeleteMessage(username, jsonMessage.getLong("messageId"));
+                case "key":
+                    key = reader.nextString();
                     break;
-                case "edit":
-                    handleEditMessage(username, jsonMessage.getLong("messageId"), jsonMessage.getString("newMessage"));
+                case "exclude":
+                    exclude = reader.nextString();
                     break;
-                case "call-initiate":
-                    handleCallInitiate(username, jsonMessage.getString("callId"));
+                case "event":
+                    event = reader.nextRaw();
                     break;
-                case "call-accept":
-                    handleCallAccept(username, jsonMessage.getString("callId"));
+                case "target":
+                    target = reader.nextString();
                     break;
-                case "call-reject":
-                    handleCallReject(username, jsonMessage.getString("callId"));
+                case "callId":
+                    callId = reader.nextString();
                     break;
-                case "call-end":
-                    handleCallEnd(username, jsonMessage.getString("callId"));
+                case "initiator":
+                    initiator = reader.nextString();
                     break;
-                case "call-signal":
-                    handleCallSignal(username, jsonMessage.getString("callId"), jsonMessage.getString("target"),
-                            jsonMessage.getJSONObject("signal"));
+                case "messageId":
+                    messageId = reader.nextLong();
                     break;
-                case "typing":
-                    handleTyping(username, jsonMessage.getBoolean("isTyping"));
+                case "present":
+                    present = reader.nextBoolean();
                     break;
-                case "reaction":
-                    handleReaction(username, jsonMessage.getLong("messageId"), jsonMessage.getString("emoji"));
+                case "ended":
+                    ended = reader.nextBoolean();
                     break;
-                case "read":
-                    handleReadReceipt(username, jsonMessage.getLong("messageId"));
+                case "participants":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        participants.add(reader.nextString());
+                    }
+                    reader.endArray();
                     break;
                 default:
-                    logger.warn("Unknown message type: {}", type);
+                    reader.skipValue();
                     break;
             }
-        } catch (Exception e) {
-            logger.error("Error processing message: {}", message, e);
-            sendError(conn, "Invalid message format");
         }
-    }
+        reader.endObject();
 
-    @Override
-    public void onError(WebSocket conn, Exception ex) {
-        logger.error("WebSocket error on connection {}: {}", conn != null ? conn.getRemoteSocketAddress() : "unknown",
-                ex.getMessage(), ex);
-        if (conn != null) {
-            sendError(conn, "Server error occurred");
+        switch (String.valueOf(kind)) {
+            case "room-event":
+                handleRemoteRoomEvent(room, OutboundQueue.Delivery.valueOf(delivery), key, messageId, exclude, event);
+                break;
+            case "presence":
+                handleRemotePresence(fromNode, room, username, avatar, present);
+                break;
+            case "call-signal":
+                handleRemoteCallSignal(target, event);
+                break;
+            case "call-event":
+                sendToParticipants(participants, codec.prepareJson(event, OutboundQueue.Delivery.RELIABLE, null),
+                        false);
+                break;
+            case "call-state":
+                handleRemoteCallState(callId, ended, room, initiator, participants);
+                break;
+            default:
+                logger.warn("Unknown cluster message kind {} from node {}", kind, fromNode);
+                break;
         }
     }
 
-    public void onStart() {
-        logger.info("WebSocket server started successfully");
+    private void handleRemoteRoomEvent(String roomName, OutboundQueue.Delivery delivery, String key, Long messageId,
+            String exclude, String json) {
+        fanOutShards.execute(roomName, () -> {
+            if (messageId != null) {
+                try {
+                    ByteBuffer payload = ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8));
+                    String type = codec.peekType(json);
+                    boolean added = "message".equals(type) || "file".equals(type);
+                    if (added) {
+                        observeMessageId(messageId);
+                    }
+                    long offset = added
+                            ? messageLog.append(messageId, payload) : messageLog.appendUpdate(messageId, payload);
+                    indexLogged(offset, json);
+                } catch (IOException e) {
+                    logger.error("Error appending relayed message {} to the log", messageId, e);
+                }
+            }
+            Room room = rooms.get(roomName);
+            if (room != null && !applyMessageState(room, json)) {
+                // Counted, and broadcast with the next flush
+                return;
+            }
+            EncodedEvent encoded = codec.prepareJson(json, delivery, key);
+            relayToLineClients(roomName, encoded);
+            if (room == null) {
+                return;
+            }
+            if (exclude != null) {
+                broadcastExcept(room, encoded, exclude);
+            } else {
+                fanOut.broadcast(encoded, room.getConnections());
+            }
+        });
     }
 
-    private void handleJoin(WebSocket conn, String username, String avatar) {
-        if (username.isEmpty()) {
-            sendError(conn, "Username cannot be empty");
-            return;
+    /**
+     * Keeps the room's message state in step with events handled on other nodes.
+     *
+     * @return {@code false} for a reaction, which is not broadcast as such
+     */
+    private boolean applyMessageState(Room room, String json) {
+        String type = codec.peekType(json);
+        if (type == null) {
+            return true;
         }
-        usernames.put(conn, username);
-        userAvatars.put(username, avatar);
-        logger.info("User {} joined with avatar: {}", username, avatar);
-        broadcastMessage("join", username, null, null);
-        broadcastUserListUpdate();
-        for (Map.Entry<String, Set<String>> entry : calls.entrySet()) {
-            String callId = entry.getKey();
-            Set<String> participants = entry.getValue();
-            JSONObject callMessage = new JSONObject();
-            callMessage.put("type", "call-info");
-            callMessage.put("callId", callId);
-            callMessage.put("initiator", callInitiators.get(callId));
-            callMessage.put("participants", new JSONArray(participants));
-            conn.send(callMessage.toString());
+        MessageStateStore states = room.getMessageStates();
+        switch (type) {
+            case "message": {
+                InboundEvent.ChatMessage message = (InboundEvent.ChatMessage) codec.decode(json);
+                states.put(message.getMessageId(), message.getUsername(), message.getMessage());
+                return true;
+            }
+            case "file": {
+                InboundEvent.FileMessage file = (InboundEvent.FileMessage) codec.decode(json);
+                states.put(file.getMessageId(), file.getUsername(), file.getFileUrl());
+                return true;
+            }
+            case "edit": {
+                InboundEvent.Edit edit = (InboundEvent.Edit) codec.decode(json);
+                states.edit(edit.getMessageId(), edit.getUsername(), edit.getNewMessage());
+                return true;
+            }
+            case "delete": {
+                InboundEvent.Delete delete = (InboundEvent.Delete) codec.decode(json);
+                states.delete(delete.getMessageId(), delete.getUsername());
+                return true;
+            }
+            case "reaction": {
+                InboundEvent.Reaction reaction = (InboundEvent.Reaction) codec.decode(json);
+                states.react(reaction.getMessageId(), reaction.getUsername(), reaction.getEmoji());
+                return false;
+            }
+            default:
+                return true;
         }
     }
 
-    private void handleChatMessage(String username, String message, long messageId) {
-        logger.debug("Broadcasting message from {}: {}", username, message);
-        broadcastMessage("message", username, message, null, messageId);
-    }
-
-    private void handleFileMessage(String username, String fileUrl, boolean isImage, long messageId) {
-        logger.debug("Broadcasting file from {}: {}", username, fileUrl);
-        broadcastMessage("file", username, null, fileUrl, isImage, messageId);
+    private void handleRemotePresence(String fromNode, String roomName, String username, String avatar,
+            boolean present) {
+        if (present) {
+            remotePresence.add(fromNode, username, roomName);
+        } else {
+            remotePresence.remove(fromNode, username, roomName);
+        }
+        fanOutShards.execute(roomName, () -> {
+            Room room = present ? rooms.getOrCreate(roomName) : rooms.get(roomName);
+            if (room == null) {
+                return;
+            }
+            if (present) {
+                String avatarId = avatars.put(avatar);
+                if (room.addRemote(fromNode, username, avatarId)) {
+                    room.getPresence().add(username, avatarId);
+                }
+            } else if (room.removeRemote(fromNode, username)) {
+                room.getPresence().remove(username);
+            }
+            rooms.removeIfEmpty(room);
+        });
     }
 
-    private void handleLeave(WebSocket conn, String username) {
-        logger.info("User {} left", username);
-        usernames.remove(conn);
-        userAvatars.remove(username);
-        typingUsers.remove(username);
-        broadcastMessage("leave", username, null, null);
-        broadcastUserListUpdate();
-    }
-
-    private void handleLocationMessage(String username, double latitude, double longitude) {
-        logger.debug("Broadcasting location from {}: lat={}, lon={}", username, latitude, longitude);
-        broadcastMessage("location", username, null, null, latitude, longitude);
-    }
-
-    private void handleDeleteMessage(String username, long messageId) {
-        logger.debug("Deleting message {} by {}", messageId, username);
-        JSONObject jsonMessage = new JSONObject();
-        jsonMessage.put("type", "delete");
-        jsonMessage.put("username", username);
-        jsonMessage.put("messageId", messageId);
-        customBroadcast(jsonMessage.toString());
-        messageReadBy.remove(messageId);
-    }
-
-    private void handleEditMessage(String username, long messageId, String newMessage) {
-        logger.debug("Editing message {} by {}: {}", messageId, username, newMessage);
-        JSONObject jsonMessage = new JSONObject();
-        jsonMessage.put("type", "edit");
-        jsonMessage.put("username", username);
-        jsonMessage.put("messageId", messageId);
-        jsonMessage.put("newMessage", newMessage);
-        customBroadcast(jsonMessage.toString());
-    }
-
-    private void handleCallInitiate(String username, String callId) {
-        Set<String> participants = ConcurrentHashMap.newKeySet();
-        participants.add(username);
-        calls.put(callId, participants);
-        callInitiators.put(callId, username);
-        logger.info("Call initiated by {} with callId: {}", username, callId);
-        JSONObject jsonMessage = new JSONObject();
-        jsonMessage.put("type", "call-initiate");
-        jsonMessage.put("username", username);
-        jsonMessage.put("callId", callId);
-        broadcastToOthers(username, jsonMessage.toString());
+    private void handleRemoteCallSignal(String target, String json) {
+        EncodedEvent frame = codec.prepareJson(json, OutboundQueue.Delivery.RELIABLE, null);
+        for (Session session : sessions.getSessions(target)) {
+            fanOut.send(session.getConnection(), frame);
+        }
     }
 
-    private void handleCallAccept(String username, String callId) {
-        Set<String> participants = calls.get(callId);
-        if (participants != null) {
-            participants.add(username);
-            logger.info("User {} accepted call {}", username, callId);
-            JSONObject jsonMessage = new JSONObject();
-            jsonMessage.put("type", "call-accept");
-            jsonMessage.put("username", username);
-            jsonMessage.put("callId", callId);
-            jsonMessage.put("participants", new JSONArray(participants));
-            customBroadcast(jsonMessage.toString());
-        } else {
-            logger.warn("Call {} not found for user {}", callId, username);
+    private void handleRemoteCallState(String callId, boolean ended, String roomName, String initiator,
+            List<String> participants) {
+        if (ended) {
+            Set<String> previous = calls.remove(callId);
+            callInitiators.remove(callId);
+            callRooms.remove(callId);
+            if (previous != null) {
+                for (String participant : previous) {
+                    sessions.removeCall(participant, callId);
+                }
+            }
+            return;
         }
+        Set<String> updated = ConcurrentHashMap.newKeySet();
+        updated.addAll(participants);
+        calls.put(callId, updated);
+        callInitiators.put(callId, initiator);
+        callRooms.put(callId, roomName);
     }
 
-    private void handleCallReject(String username, String callId) {
-        logger.info("User {} rejected call {}", username, callId);
-        JSONObject jsonMessage = new JSONObject();
-        jsonMessage.put("type", "call-reject");
-        jsonMessage.put("username", username);
-        jsonMessage.put("callId", callId);
-        customBroadcast(jsonMessage.toString());
+    /**
+     * Sends a node that just came up everything it needs to know about this node: who is in which
+     * room, and the calls this node knows of.
+     */
+    private void handleNodeUp(String nodeId) {
+        for (Room room : rooms.getRooms()) {
+            String roomName = room.getName();
+            fanOutShards.execute(roomName, () -> {
+                for (String username : new ArrayList<>(room.getLocalUsernames())) {
+                    cluster.send(nodeId, presenceMessage(roomName, username, true));
+                }
+                if (Room.DEFAULT.equals(roomName)) {
+                    for (String username : lineUsers.keySet()) {
+                        cluster.send(nodeId, presenceMessage(roomName, username, true));
+                    }
+                }
+            });
+        }
+        for (ResumeTokens.Ticket ticket : tickets.getTickets()) {
+            for (String roomName : ticket.getHeldRooms()) {
+                cluster.send(nodeId, presenceMessage(roomName, ticket.getUsername(), true));
+            }
+        }
+        for (String callId : calls.keySet()) {
+            cluster.send(nodeId, callStateMessage(callId));
+        }
     }
 
-    private void handleCallEnd(String username, String callId) {
-        Set<String> participants = calls.get(callId);
-        String initiator = callInitiators.get(callId);
-        if (participants != null) {
-            if (username.equals(initiator)) {
-                calls.remove(callId);
-                callInitiators.remove(callId);
-                logger.info("Call {} ended by initiator {}", callId, username);
-                JSONObject jsonMessage = new JSONObject();
-                jsonMessage.put("type", "call-end");
-                jsonMessage.put("username", username);
-                jsonMessage.put("callId", callId);
-                customBroadcast(jsonMessage.toString());
-            } else {
-                participants.remove(username);
-                logger.info("User {} left call {}", username, callId);
+    /**
+     * Drops everything the node announced: its users leave their rooms, and calls, here. Every
+     * node does the same, so nothing is relayed.
+     */
+    private void handleNodeDown(String nodeId) {
+        remotePresence.removeNode(nodeId);
+        for (Room room : rooms.getRooms()) {
+            String roomName = room.getName();
+            fanOutShards.execute(roomName, () -> {
+                List<String> gone = room.removeNode(nodeId);
+                for (String username : gone) {
+                    room.getPresence().remove(username);
+                    fanOut.broadcast(codec.prepare(w -> w.beginObject()
+                            .field("type", "leave")
+                            .field("room", roomName)
+                            .field("username", username)
+                            .endObject()), room.getConnections());
+                }
+                rooms.removeIfEmpty(room);
+            });
+        }
+        for (Map.Entry<String, Set<String>> entry : calls.entrySet()) {
+            String callId = entry.getKey();
+            Set<String> participants = entry.getValue();
+            for (String participant : participants) {
+                if (sessions.isOnline(participant) || remotePresence.isOnline(participant)) {
+                    continue;
+                }
+                participants.remove(participant);
                 if (participants.isEmpty()) {
                     calls.remove(callId);
                     callInitiators.remove(callId);
+                    callRooms.remove(callId);
                 } else {
-                    broadcastCallUpdate(participants, username, callId);
+                    // Every node tells its own participants
+                    sendToParticipants(participants, codec.prepare(w -> w.beginObject()
+                            .field("type", "call-user-left")
+                            .field("username", participant)
+                            .stringArray("participants", participants)
+                            .field("callId", callId)
+                            .endObject()), false);
                 }
             }
-        } else {
-            logger.warn("Call {} not found to end by {}", callId, username);
         }
     }
 
-    private void handleCallSignal(String username, String callId, String target, JSONObject signal) {
-        logger.debug("Handling call signal from {} to {} for call {}: type={}", username, target, callId,
-                signal.optString("type"));
-        JSONObject jsonMessage = new JSONObject();
-        jsonMessage.put("type", "call-signal");
-        jsonMessage.put("username", username);
-        jsonMessage.put("callId", callId);
-        jsonMessage.put("target", target);
-        jsonMessage.put("signal", signal);
-        for (Map.Entry<WebSocket, String> entry : usernames.entrySet()) {
-            if (entry.getValue().equals(target)) {
-                entry.getKey().send(jsonMessage.toString());
-                logger.debug("Sent call signal to {}", target);
-                break;
+    /**
+     * Pings quiet connections and closes dead ones, which then leave like any other disconnect,
+     * holding their places for a resume.
+     */
+    private class HeartbeatListener implements Heartbeat.Listener<Session> {
+
+        @Override
+        public void ping(Session session) {
+            WebSocket conn = session.getConnection();
+            try {
+                conn.sendPing();
+            } catch (WebsocketNotConnectedException e) {
+                // Closing already
             }
         }
-    }
 
-    private void handleTyping(String username, boolean isTyping) {
-        if (isTyping) {
-            typingUsers.computeIfAbsent(username, k -> ConcurrentHashMap.newKeySet());
-            logger.debug("User {} is typing", username);
-        } else {
-            typingUsers.remove(username);
-            logger.debug("User {} stopped typing", username);
+        @Override
+        public void expire(Session session) {
+            logger.info("Closing {}: no heartbeat from {}", session, session.getConnection().getRemoteSocketAddress());
+            metrics.recordHeartbeatExpired();
+            // No close handshake, the peer is gone
+            session.getConnection().closeConnection(CloseFrame.ABNORMAL_CLOSE, "Heartbeat timeout");
         }
-        broadcastTypingUpdate();
-    }
-
-    private void handleReaction(String username, long messageId, String emoji) {
-        logger.debug("User {} reacted to message {} with {}", username, messageId, emoji);
-        JSONObject jsonMessage = new JSONObject();
-        jsonMessage.put("type", "reaction");
-        jsonMessage.put("username", username);
-        jsonMessage.put("messageId", messageId);
-        jsonMessage.put("emoji", emoji);
-        customBroadcast(jsonMessage.toString());
-    }
-
-    private void handleReadReceipt(String username, long messageId) {
-        messageReadBy.computeIfAbsent(messageId, k -> ConcurrentHashMap.newKeySet()).add(username);
-        logger.debug("User {} read message {}", username, messageId);
-        broadcastReadReceiptUpdate(messageId);
     }
 
-    private void broadcastCallUpdate(Set<String> participants, String leftUser, String callId) {
-        logger.info("Broadcasting call update for user {} leaving call {}", leftUser, callId);
-        JSONObject jsonMessage = new JSONObject();
-        jsonMessage.put("type", "call-user-left");
-        jsonMessage.put("username", leftUser);
-        jsonMessage.put("participants", new JSONArray(participants));
-        jsonMessage.put("callId", callId);
-        customBroadcast(jsonMessage.toString());
-    }
+    private class ClusterListener implements ClusterBus.Listener {
 
-    private String getCallIdForUser(String username) {
-        for (Map.Entry<String, Set<String>> entry : calls.entrySet()) {
-            if (entry.getValue().contains(username)) {
-                return entry.getKey();
+        @Override
+        public void onMessage(String fromNode, ByteBuffer message) {
+            try {
+                onClusterMessage(fromNode, message);
+            } catch (Exception e) {
+                logger.error("Error processing cluster message from node {}", fromNode, e);
             }
         }
-        return null;
-    }
 
-    private void broadcastUserListUpdate() {
-        logger.debug("Broadcasting user list update");
-        JSONObject jsonMessage = new JSONObject();
-        jsonMessage.put("type", "user-list-update");
-        jsonMessage.put("userList", getUserList());
-        customBroadcast(jsonMessage.toString());
-    }
+        @Override
+        public void onNodeUp(String nodeId) {
+            logger.info("Cluster node {} is up", nodeId);
+            handleNodeUp(nodeId);
+        }
 
-    private void broadcastTypingUpdate() {
-        logger.debug("Broadcasting typing update");
-        JSONObject jsonMessage = new JSONObject();
-        jsonMessage.put("type", "typing");
-        jsonMessage.put("typingUsers", new JSONArray(typingUsers.keySet()));
-        customBroadcast(jsonMessage.toString());
+        @Override
+        public void onNodeDown(String nodeId) {
+            logger.info("Cluster node {} is down", nodeId);
+            handleNodeDown(nodeId);
+        }
     }
 
-    private void broadcastReadReceiptUpdate(long messageId) {
-        logger.debug("Broadcasting read receipt for message {}", messageId);
-        JSONObject jsonMessage = new JSONObject();
-        jsonMessage.put("type", "read");
-        jsonMessage.put("messageId", messageId);
-        jsonMessage.put("readBy", new JSONArray(messageReadBy.getOrDefault(messageId, Collections.emptySet())));
-        customBroadcast(jsonMessage.toString());
+    /**
+     * Starts the gateway for clients of the line protocol in {@link Server}. Each of them is a
+     * user of the default room, held in the room like a user on another node, under this node's
+     * id with a {@code /line} suffix: its lines are broadcast and logged as {@code message}
+     * events, and it gets the room's messages, joins and leaves from any node.
+     */
+    public Server startLineServer(int port) throws IOException {
+        Server server = new Server(port, new LineListener(), LINE_MAX_LINE_BYTES, LINE_MAX_PENDING_BYTES);
+        server.start();
+        lineServer = server;
+        return server;
     }
 
-    private JSONArray getUserList() {
-        JSONArray userList = new JSONArray();
-        for (Map.Entry<WebSocket, String> entry : usernames.entrySet()) {
-            JSONObject user = new JSONObject();
-            String username = entry.getValue();
-            user.put("username", username);
-            user.put("avatar", userAvatars.getOrDefault(username, ""));
-            userList.put(user);
-        }
-        return userList;
-    }
+    private class LineListener implements Server.Listener {
+        private final String lineNode = cluster.getNodeId() + "/line";
 
-    private void broadcastMessage(String type, String username, String message, String fileUrl, Object... extras) {
-        JSONObject jsonMessage = new JSONObject();
-        jsonMessage.put("type", type);
-        jsonMessage.put("username", username);
-        if (message != null) {
-            jsonMessage.put("message", message);
-        }
-        if (fileUrl != null) {
-            jsonMessage.put("fileUrl", fileUrl);
-            if (extras.length > 0 && extras[0] instanceof Boolean) {
-                jsonMessage.put("isImage", extras[0]);
+        @Override
+        public boolean onJoin(String name) {
+            if (sessions.isOnline(name) || remotePresence.isOnline(name)
+                    || lineUsers.putIfAbsent(name, limiter.newSession()) != null) {
+                return false;
             }
+            fanOutShards.execute(Room.DEFAULT, () -> {
+                Room room = rooms.getOrCreate(Room.DEFAULT);
+                if (room.addRemote(lineNode, name, "")) {
+                    logger.info("Line client {} entered room {}", name, Room.DEFAULT);
+                    room.getPresence().add(name, "");
+                    publishPresence(Room.DEFAULT, name, true);
+                    roomBroadcast(room, w -> w.beginObject()
+                            .field("type", "join")
+                            .field("room", Room.DEFAULT)
+                            .field("username", name)
+                            .endObject());
+                }
+            });
+            return true;
         }
-        if (extras.length > 0) {
-            if (extras[0] instanceof Long) {
-                jsonMessage.put("messageId", extras[0]);
-            } else if (extras[0] instanceof Double) {
-                jsonMessage.put("latitude", extras[0]);
-                jsonMessage.put("longitude", extras[1]);
+
+        @Override
+        public void onMessage(String name, String text) {
+            metrics.recordInbound(text.length());
+            RateLimiter.SessionLimits limits = lineUsers.get(name);
+            if (limits == null || text.isEmpty()) {
+                return;
             }
+            // Over the limit is a drop: the protocol has no way to tell the client
+            if (limiter.admit(limits, name, "message", text) != RateLimiter.Decision.ACCEPT) {
+                metrics.recordLimited("message");
+                return;
+            }
+            long messageId = nextMessageId();
+            fanOutShards.execute(Room.DEFAULT, () -> {
+                Room room = rooms.get(Room.DEFAULT);
+                if (room == null) {
+                    return;
+                }
+                room.getMessageStates().put(messageId, name, text);
+                long offset = broadcastAndLog(room, messageId, false, w -> w.beginObject()
+                        .field("type", "message")
+                        .field("room", Room.DEFAULT)
+                        .field("username", name)
+                        .field("message", text)
+                        .field("messageId", messageId)
+                        .endObject());
+                searchIndex.add(offset, Room.DEFAULT, messageId, name, text);
+            });
         }
-        customBroadcast(jsonMessage.toString());
-    }
 
-    private void broadcastToOthers(String senderUsername, String message) {
-        for (Map.Entry<WebSocket, String> entry : usernames.entrySet()) {
-            if (!entry.getValue().equals(senderUsername)) {
-                entry.getKey().send(message);
+        @Override
+        public void onLeave(String name) {
+            if (lineUsers.remove(name) == null) {
+                return;
             }
+            limiter.forget(name);
+            fanOutShards.execute(Room.DEFAULT, () -> {
+                Room room = rooms.get(Room.DEFAULT);
+                if (room == null) {
+                    return;
+                }
+                if (room.removeRemote(lineNode, name)) {
+                    logger.info("Line client {} left room {}", name, Room.DEFAULT);
+                    room.getPresence().remove(name);
+                    publishPresence(Room.DEFAULT, name, false);
+                    roomBroadcast(room, w -> w.beginObject()
+                            .field("type", "leave")
+                            .field("room", Room.DEFAULT)
+                            .field("username", name)
+                            .endObject());
+                }
+                rooms.removeIfEmpty(room);
+            });
         }
     }
 
-    private void customBroadcast(String message) {
-        for (WebSocket conn : usernames.keySet()) {
-            if (conn.isOpen()) {
-                conn.send(message);
-            }
-        }
+    private void send(WebSocket conn, OutboundEvent event) {
+        fanOut.send(conn, codec.prepare(event));
     }
 
     private void sendError(WebSocket conn, String errorMessage) {
-        JSONObject error = new JSONObject();
-        error.put("type", "error");
-        error.put("message", errorMessage);
-        conn.send(error.toString());
+        send(conn, w -> w.beginObject()
+                .field("type", "error")
+                .field("message", errorMessage)
+                .endObject());
     }
 
     public static void main(String[] args) {
-        String host = "localhost";
+        String host = HOST;
         int port = 8887;
         try {
             InetSocketAddress address = new InetSocketAddress(host, port);
             ChatServer server = new ChatServer(address);
             server.start();
             logger.info("ChatServer started on ws://{}:{}", host, port);
+            BlobHttpServer http = new BlobHttpServer(new InetSocketAddress(host, HTTP_PORT), HTTP_MAX_CONNECTIONS,
+                    new BlobStore(Paths.get(BLOB_DIR), BLOB_MAX_BYTES, BLOB_MAX_TOTAL_BYTES), Paths.get(STATIC_DIR),
+                    server.limiter);
+            http.start();
+            logger.info("Client and uploads served on http://{}:{}", host, HTTP_PORT);
+            BlobHttpServer admin = BlobHttpServer.admin(new InetSocketAddress(ADMIN_HOST, ADMIN_PORT),
+                    server.getMetrics()::scrape);
+            admin.start();
+            logger.info("Metrics served on http://{}:{}/metrics", ADMIN_HOST, ADMIN_PORT);
+            if (LINE_PORT > 0) {
+                server.startLineServer(LINE_PORT);
+            }
             // Keep the server running
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 try {
+                    http.close();
+                    admin.close();
                     server.stop();
                     logger.info("ChatServer stopped successfully");
                 } catch (Exception e) {
@@ -443,4 +2399,4 @@ public class ChatServer extends WebSocketServer {
             System.exit(1);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,79 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Message bus between the {@link ChatServer} nodes of a cluster. Messages are opaque byte buffers;
+ * the bus only guarantees that messages from one node to another arrive in the order they were
+ * sent, and tells the listener when a node appears or disappears so presence can be resynced.
+ *
+ * <p>Delivery is best effort: a node that is down or too slow to keep up loses messages.
+ */
+public interface ClusterBus extends AutoCloseable {
+
+    interface Listener {
+
+        void onMessage(String fromNode, ByteBuffer message);
+
+        /**
+         * A node became reachable; it knows nothing of this node's state yet.
+         */
+        void onNodeUp(String nodeId);
+
+        /**
+         * A node went away; everything it announced is gone with it.
+         */
+        void onNodeDown(String nodeId);
+    }
+
+    String getNodeId();
+
+    void start(Listener listener) throws IOException;
+
+    boolean hasPeers();
+
+    /**
+     * Sends the message to every other node. The buffer must not be modified afterwards.
+     */
+    void publish(ByteBuffer message);
+
+    /**
+     * Sends the message to one node. The buffer must not be modified afterwards.
+     */
+    void send(String nodeId, ByteBuffer message);
+
+    @Override
+    void close();
+
+    /**
+     * Builds the bus configured by {@code chat.cluster.*}: a {@link TcpClusterBus} listening on
+     * {@code chat.cluster.port} and talking to {@code chat.cluster.peers}
+     * ({@code id@host:port,...}), or a standalone bus without peers if no port is set.
+     */
+    static ClusterBus fromSystemProperties() {
+        String nodeId = System.getProperty("chat.cluster.nodeId", UUID.randomUUID().toString().substring(0, 8));
+        Integer port = Integer.getInteger("chat.cluster.port");
+        if (port == null) {
+            return new InProcessBus.Network().join(nodeId);
+        }
+        Map<String, InetSocketAddress> peers = new LinkedHashMap<>();
+        for (String peer : System.getProperty("chat.cluster.peers", "").split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) {
+                continue;
+            }
+            int at = peer.indexOf('@');
+            int colon = peer.lastIndexOf(':');
+            if (at <= 0 || colon < at) {
+                throw new IllegalArgumentException("Invalid cluster peer, expected id@host:port: " + peer);
+            }
+            peers.put(peer.substring(0, at), new InetSocketAddress(peer.substring(at + 1, colon),
+                    Integer.parseInt(peer.substring(colon + 1))));
+        }
+        return new TcpClusterBus(nodeId, port, peers,
+                Integer.getInteger("chat.cluster.queueCapacity", 10_000));
+    }
+}
@@ -0,0 +1,83 @@
+import org.java_websocket.framing.Framedata;
+
+/**
+ * An outbound event together with its wire frames. Each representation is encoded the first time
+ * a recipient needs it and then shared by every other recipient of that representation, so a
+ * broadcast to a mixed JSON and binary audience encodes the event at most twice, and compresses
+ * each representation at most once for sessions that negotiated permessage-deflate.
+ */
+public class EncodedEvent {
+    private final ChatCodec codec;
+    private final OutboundEvent event;
+    private final OutboundQueue.Delivery delivery;
+    private final String coalesceKey;
+    private Framedata jsonFrame;
+    private Framedata binaryFrame;
+    private Framedata deflatedJsonFrame;
+    private Framedata deflatedBinaryFrame;
+
+    EncodedEvent(ChatCodec codec, OutboundEvent event, OutboundQueue.Delivery delivery, String coalesceKey) {
+        this(codec, event, delivery, coalesceKey, null);
+    }
+
+    /**
+     * @param jsonFrame the event's JSON frame if it is already encoded, e.g. relayed from another node
+     */
+    EncodedEvent(ChatCodec codec, OutboundEvent event, OutboundQueue.Delivery delivery, String coalesceKey,
+            Framedata jsonFrame) {
+        this.codec = codec;
+        this.event = event;
+        this.delivery = delivery;
+        this.coalesceKey = coalesceKey;
+        this.jsonFrame = jsonFrame;
+    }
+
+    public OutboundQueue.Delivery getDelivery() {
+        return delivery;
+    }
+
+    public String getCoalesceKey() {
+        return coalesceKey;
+    }
+
+    /**
+     * Returns the frame in the representation the session negotiated.
+     */
+    public Framedata frameFor(Session session) {
+        if (session == null) {
+            return jsonFrame();
+        }
+        if (session.isDeflate()) {
+            return session.isBinary() ? deflatedBinaryFrame() : deflatedJsonFrame();
+        }
+        return session.isBinary() ? binaryFrame() : jsonFrame();
+    }
+
+    public synchronized Framedata jsonFrame() {
+        if (jsonFrame == null) {
+            jsonFrame = codec.encodeJson(event);
+        }
+        return jsonFrame;
+    }
+
+    public synchronized Framedata binaryFrame() {
+        if (binaryFrame == null) {
+            binaryFrame = codec.encodeBinary(event);
+        }
+        return binaryFrame;
+    }
+
+    public synchronized Framedata deflatedJsonFrame() {
+        if (deflatedJsonFrame == null) {
+            deflatedJsonFrame = codec.compress(jsonFrame());
+        }
+        return deflatedJsonFrame;
+    }
+
+    public synchronized Framedata deflatedBinaryFrame() {
+        if (deflatedBinaryFrame == null) {
+            deflatedBinaryFrame = codec.compress(binaryFrame());
+        }
+        return deflatedBinaryFrame;
+    }
+}
@@ -0,0 +1,36 @@
+/**
+ * Pull-style source of an inbound event, walked field by field by {@link ChatCodec}. Implemented
+ * for JSON text frames and for the binary protocol, so both decode through the same code.
+ */
+public interface EventReader {
+
+    void beginObject();
+
+    void endObject();
+
+    void beginArray();
+
+    void endArray();
+
+    /**
+     * Returns whether the current object or array has another element.
+     */
+    boolean hasNext();
+
+    String nextName();
+
+    String nextString();
+
+    long nextLong();
+
+    double nextDouble();
+
+    boolean nextBoolean();
+
+    /**
+     * Returns the next value as JSON text, for values that are passed through untouched.
+     */
+    String nextRaw();
+
+    void skipValue();
+}
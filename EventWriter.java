@@ -0,0 +1,56 @@
+/**
+ * Streaming sink for {@link OutboundEvent}s. Mirrors the shape of a JSON document: objects hold
+ * named fields, arrays hold unnamed values. Every method returns {@code this} for chaining.
+ */
+public interface EventWriter {
+
+    EventWriter beginObject();
+
+    EventWriter endObject();
+
+    EventWriter beginArray();
+
+    EventWriter endArray();
+
+    /**
+     * Starts a field whose value follows as an object, array or single value.
+     */
+    EventWriter name(String name);
+
+    EventWriter value(String value);
+
+    EventWriter value(long value);
+
+    EventWriter value(double value);
+
+    EventWriter value(boolean value);
+
+    /**
+     * Writes a value that is already encoded as JSON text, such as a relayed WebRTC signal.
+     */
+    EventWriter rawJson(String json);
+
+    default EventWriter field(String name, String value) {
+        return name(name).value(value);
+    }
+
+    default EventWriter field(String name, long value) {
+        return name(name).value(value);
+    }
+
+    default EventWriter field(String name, double value) {
+        return name(name).value(value);
+    }
+
+    default EventWriter field(String name, boolean value) {
+        return name(name).value(value);
+    }
+
+    default EventWriter stringArray(String name, Iterable<String> values) {
+        name(name).beginArray();
+        for (String value : values) {
+            value(value);
+        }
+        return endArray();
+    }
+}
@@ -0,0 +1,165 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.java_websocket.WebSocket;
+import org.java_websocket.enums.Opcode;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.framing.DataFrame;
+import org.java_websocket.framing.Framedata;
+
+/**
+ * Writes one outbound event to many connections. The event is encoded once into a shared frame
+ * per wire representation, so every recipient reuses the same payload instead of re-encoding it.
+ */
+public class FanOut {
+    private final ChatMetrics metrics;
+
+    public FanOut() {
+        this(new ChatMetrics());
+    }
+
+    /**
+     * @param metrics records recipients, time and bytes of every broadcast
+     */
+    public FanOut(ChatMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Builds a shared text frame for the given message.
+     */
+    public static Framedata textFrame(String message) {
+        return textFrame(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Builds a shared text frame around an already encoded UTF-8 payload. The buffer is not copied
+     * and must not be modified afterwards.
+     */
+    public static Framedata textFrame(ByteBuffer utf8) {
+        return new SharedFrame(Opcode.TEXT, utf8);
+    }
+
+    /**
+     * Builds a shared binary frame around the payload. The buffer is not copied and must not be
+     * modified afterwards.
+     */
+    public static Framedata binaryFrame(ByteBuffer payload) {
+        return new SharedFrame(Opcode.BINARY, payload);
+    }
+
+    /**
+     * Builds a shared frame around a payload that is already one permessage-deflate message,
+     * for connections that negotiated the extension.
+     */
+    static Framedata deflatedFrame(Opcode opcode, ByteBuffer deflated) {
+        SharedFrame frame = new SharedFrame(opcode, deflated);
+        frame.setRSV1(true);
+        return frame;
+    }
+
+    /**
+     * Sends the event to every open target, each in the representation its session negotiated,
+     * and returns the number of recipients.
+     */
+    public int broadcast(EncodedEvent event, Iterable<WebSocket> targets) {
+        return broadcast(event, targets, null);
+    }
+
+    /**
+     * Like {@link #broadcast(EncodedEvent, Iterable)}, skipping {@code exclude}.
+     */
+    public int broadcast(EncodedEvent event, Iterable<WebSocket> targets, WebSocket exclude) {
+        long start = System.nanoTime();
+        int sent = 0;
+        for (WebSocket conn : targets) {
+            if (conn != exclude && send(conn, event)) {
+                sent++;
+            }
+        }
+        metrics.recordFanOut(sent, System.nanoTime() - start);
+        return sent;
+    }
+
+    /**
+     * Sends the event to a single connection in the representation its session negotiated,
+     * through the session's {@link OutboundQueue} so slow connections are throttled.
+     */
+    public boolean send(WebSocket conn, EncodedEvent event) {
+        Session session = conn.getAttachment();
+        if (session == null) {
+            return send(conn, event.frameFor(null));
+        }
+        Framedata frame = event.frameFor(session);
+        if (conn.isOpen() && session.getOutbound().offer(frame, event.getDelivery(), event.getCoalesceKey())) {
+            metrics.recordOutbound(payloadSize(frame));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sends the frame to every open target and returns the number of recipients.
+     */
+    public int broadcast(Framedata frame, Iterable<WebSocket> targets) {
+        return broadcast(frame, targets, null);
+    }
+
+    /**
+     * Sends the frame to every open target except {@code exclude} and returns the number of
+     * recipients.
+     */
+    public int broadcast(Framedata frame, Iterable<WebSocket> targets, WebSocket exclude) {
+        long start = System.nanoTime();
+        int sent = 0;
+        for (WebSocket conn : targets) {
+            if (conn != exclude && send(conn, frame)) {
+                sent++;
+            }
+        }
+        metrics.recordFanOut(sent, System.nanoTime() - start);
+        return sent;
+    }
+
+    /**
+     * Sends the frame to a single connection, ignoring connections that closed in the meantime.
+     */
+    public boolean send(WebSocket conn, Framedata frame) {
+        if (!conn.isOpen()) {
+            return false;
+        }
+        try {
+            conn.sendFrame(frame);
+            metrics.recordOutbound(payloadSize(frame));
+            return true;
+        } catch (WebsocketNotConnectedException e) {
+            return false;
+        }
+    }
+
+    private static int payloadSize(Framedata frame) {
+        // Shared frames would otherwise hand out a new view just to be measured
+        return frame instanceof SharedFrame ? ((SharedFrame) frame).payload.remaining()
+                : frame.getPayloadData().remaining();
+    }
+
+    /**
+     * Data frame whose payload is handed out as a fresh view on every read. The draft consumes and
+     * flips the buffer while framing it, so sharing one frame across connections (and threads)
+     * is only safe if nobody ever sees the original buffer.
+     */
+    static class SharedFrame extends DataFrame {
+        private final ByteBuffer payload;
+
+        SharedFrame(Opcode opcode, ByteBuffer payload) {
+            super(opcode);
+            this.payload = payload;
+            setPayload(payload);
+            setFin(true);
+        }
+
+        @Override
+        public ByteBuffer getPayloadData() {
+            return payload.duplicate();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+import org.java_websocket.framing.Framedata;
+
+/**
+ * permessage-deflate (RFC 7692) for shared frames. The server always negotiates
+ * {@code server_no_context_takeover}, so every message is compressed on its own and a broadcast
+ * frame can be compressed once and sent unchanged to every recipient that negotiated the
+ * extension, instead of once per connection. Frames below the threshold, or that would not get
+ * smaller, are sent uncompressed.
+ */
+public class FrameCompressor {
+    private static final byte[] TAIL = {0, 0, (byte) 0xff, (byte) 0xff};
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[4096]);
+
+    private final boolean enabled;
+    private final int threshold;
+    private final ThreadLocal<Deflater> deflaters;
+
+    /**
+     * @param threshold payload size in bytes below which frames are not compressed
+     * @param level     {@link Deflater} compression level
+     */
+    public FrameCompressor(boolean enabled, int threshold, int level) {
+        this.enabled = enabled;
+        this.threshold = threshold;
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+    }
+
+    public static FrameCompressor fromSystemProperties() {
+        return new FrameCompressor(Boolean.parseBoolean(System.getProperty("chat.deflate.enabled", "true")),
+                Integer.getInteger("chat.deflate.threshold", 256),
+                Integer.getInteger("chat.deflate.level", Deflater.BEST_SPEED));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * The extension to offer in the handshake. Each connection gets its own copy.
+     */
+    public IExtension newExtension() {
+        return new Extension(threshold);
+    }
+
+    /**
+     * Returns the frame compressed as one permessage-deflate message, or the frame itself if it
+     * is below the threshold or does not compress.
+     */
+    public Framedata compress(Framedata frame) {
+        ByteBuffer payload = frame.getPayloadData();
+        int length = payload.remaining();
+        if (length < threshold) {
+            return frame;
+        }
+        byte[] out = SCRATCH.get();
+        if (out.length < length + TAIL.length) {
+            out = new byte[length + TAIL.length];
+            SCRATCH.set(out);
+        }
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(payload);
+        // With room for the whole input, a sync flush consumes all of it and ends in the tail
+        int size = deflater.deflate(out, 0, length + TAIL.length, Deflater.SYNC_FLUSH);
+        if (!deflater.needsInput() || size == length + TAIL.length || !endsWithTail(out, size)) {
+            return frame;
+        }
+        size -= TAIL.length;
+        if (size >= length) {
+            return frame;
+        }
+        return FanOut.deflatedFrame(frame.getOpcode(), ByteBuffer.wrap(Arrays.copyOf(out, size)));
+    }
+
+    private static boolean endsWithTail(byte[] out, int size) {
+        if (size < TAIL.length) {
+            return false;
+        }
+        for (int i = 0; i < TAIL.length; i++) {
+            if (out[size - TAIL.length + i] != TAIL[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Java-WebSocket's permessage-deflate, minus compressing shared frames: it compresses by
+     * replacing the payload of the frame it is given, which would corrupt a frame shared between
+     * connections, so those are compressed up front by {@link #compress} or sent as they are.
+     */
+    static class Extension extends PerMessageDeflateExtension {
+
+        Extension(int threshold) {
+            setThreshold(threshold);
+        }
+
+        @Override
+        public void encodeFrame(Framedata frame) {
+            if (frame instanceof FanOut.SharedFrame || frame.isRSV1()) {
+                return;
+            }
+            super.encodeFrame(frame);
+        }
+
+        @Override
+        public IExtension copyInstance() {
+            return new Extension(getThreshold());
+        }
+    }
+}
@@ -0,0 +1,175 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides where client events are decoded and handled. {@link Mode#INLINE} runs them on the
+ * Java-WebSocket thread that read the frame, so one slow handler holds up every connection that
+ * thread serves. {@link Mode#OFFLOAD} hands them to virtual threads when the runtime has them and
+ * to a fixed worker pool otherwise, leaving the WebSocket threads to do I/O only.
+ *
+ * <p>Each session gets its own {@link Serial} lane, so events of one connection are still handled
+ * one at a time in arrival order. Per-room order then follows from the room shards: a handler
+ * queues its room work before the connection's next event is handled.
+ */
+public class HandlerExecutor {
+    private static final Logger logger = LoggerFactory.getLogger(HandlerExecutor.class);
+    // Events a lane runs before yielding its worker to other sessions
+    private static final int BATCH_SIZE = 16;
+
+    public enum Mode {
+        INLINE, OFFLOAD
+    }
+
+    private final Mode mode;
+    private final ExecutorService workers;
+    private final int maxPending;
+
+    /**
+     * @param threads worker pool size, or {@code 0} to use a virtual thread per lane run when the
+     *        runtime supports it
+     * @param maxPending events a session may have waiting before further ones are rejected
+     */
+    public HandlerExecutor(Mode mode, int threads, int maxPending) {
+        this.mode = mode;
+        this.maxPending = maxPending;
+        if (mode == Mode.INLINE) {
+            workers = null;
+        } else {
+            ExecutorService virtual = threads <= 0 ? newVirtualThreadExecutor() : null;
+            workers = virtual != null ? virtual : newWorkerPool(threads > 0 ? threads
+                    : 2 * Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    public static HandlerExecutor fromSystemProperties() {
+        return new HandlerExecutor(Mode.valueOf(System.getProperty("chat.handler.mode", "offload").toUpperCase()),
+                Integer.getInteger("chat.handler.threads", 0),
+                Integer.getInteger("chat.handler.maxPending", 1000));
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public Serial newSerial() {
+        return new Serial();
+    }
+
+    public void shutdown() {
+        if (workers != null) {
+            workers.shutdown();
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (workers == null) {
+            return "inline";
+        }
+        return workers instanceof ThreadPoolExecutor
+                ? "offload(" + ((ThreadPoolExecutor) workers).getCorePoolSize() + " threads)"
+                : "offload(virtual threads)";
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newWorkerPool(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        // Unbounded, but each lane queues at most one run at a time, so it never holds more
+        // entries than there are sessions
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "chat-handler-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static void run(Runnable task) {
+        try {
+            task.run();
+        } catch (Exception e) {
+            logger.error("Error handling client event", e);
+        }
+    }
+
+    /**
+     * Runs the tasks of one session in submission order, never two at once.
+     */
+    public final class Serial {
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Queued plus running tasks; the submitter that moves it off zero schedules the lane
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private Serial() {
+        }
+
+        /**
+         * @return {@code false} if the session already has too many events waiting and the task
+         *         was dropped
+         */
+        public boolean execute(Runnable task) {
+            if (workers != null && pending.get() >= maxPending) {
+                return false;
+            }
+            enqueue(task);
+            return true;
+        }
+
+        /**
+         * Queues the task even if the lane is full, for cleanup that must run after everything
+         * already queued.
+         */
+        public void executeLast(Runnable task) {
+            enqueue(task);
+        }
+
+        private void enqueue(Runnable task) {
+            if (workers == null) {
+                run(task);
+                return;
+            }
+            tasks.add(task);
+            if (pending.getAndIncrement() == 0) {
+                schedule();
+            }
+        }
+
+        private void schedule() {
+            try {
+                workers.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                logger.debug("Dropping {} client events after shutdown", pending.get());
+                tasks.clear();
+                pending.set(0);
+            }
+        }
+
+        private void drain() {
+            for (int ran = 1; ; ran++) {
+                run(tasks.poll());
+                if (pending.decrementAndGet() == 0) {
+                    return;
+                }
+                if (ran == BATCH_SIZE) {
+                    schedule();
+                    return;
+                }
+            }
+        }
+    }
+}
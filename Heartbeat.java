@@ -0,0 +1,204 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Liveness tracking for a large number of connections on a hashed timer wheel. A connection that
+ * has been silent for the ping interval is pinged; one that is still silent after the timeout is
+ * expired. Any frame from the client, including a pong, counts as a sign of life.
+ *
+ * <p>There is no task per connection: each one has a single entry on the wheel, checked once per
+ * interval, and marking it alive only writes its last-seen time. First pings are spread out and
+ * later checks get a little jitter, so pings do not go out in bursts.
+ *
+ * <p>{@link #track}, {@link #touch} and {@link #cancel} may be called from any thread;
+ * {@link #tick} is expected to be called from a single scheduler thread, every tick.
+ */
+public class Heartbeat<T> {
+    private final long intervalMillis;
+    private final long timeoutMillis;
+    private final long tickMillis;
+    private final Listener<T> listener;
+    private final List<List<Entry<T>>> wheel;
+    private final int mask;
+    private final Queue<Entry<T>> added = new ConcurrentLinkedQueue<>();
+    // Ticks are numbered from the first one; lastTick is the newest one processed
+    private final long start;
+    private long lastTick;
+
+    public Heartbeat(long intervalMillis, long timeoutMillis, long tickMillis, Listener<T> listener) {
+        if (intervalMillis > 0 && (timeoutMillis <= intervalMillis || tickMillis <= 0)) {
+            throw new IllegalArgumentException("Heartbeat timeout must be longer than the ping interval");
+        }
+        this.intervalMillis = intervalMillis;
+        this.timeoutMillis = timeoutMillis;
+        this.tickMillis = Math.max(tickMillis, 1);
+        this.listener = listener;
+        // One round covers the timeout, so most entries fire the first time their slot comes up
+        int slots = Integer.highestOneBit((int) Math.min(timeoutMillis / this.tickMillis + 1, 1 << 16) * 2 - 1);
+        wheel = new ArrayList<>(Math.max(slots, 1));
+        for (int i = 0; i < Math.max(slots, 1); i++) {
+            wheel.add(new ArrayList<>());
+        }
+        mask = wheel.size() - 1;
+        start = clock();
+    }
+
+    public static <T> Heartbeat<T> fromSystemProperties(Listener<T> listener) {
+        return new Heartbeat<>(Long.getLong("chat.heartbeat.intervalMs", 25_000),
+                Long.getLong("chat.heartbeat.timeoutMs", 60_000), Long.getLong("chat.heartbeat.tickMs", 100),
+                listener);
+    }
+
+    public boolean isEnabled() {
+        return intervalMillis > 0;
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Starts tracking a connection that was just seen. Untracked entries are returned when
+     * heartbeats are off, so callers need not care.
+     */
+    public Entry<T> track(T item) {
+        return track(item, clock());
+    }
+
+    Entry<T> track(T item, long now) {
+        Entry<T> entry = new Entry<>(item, now);
+        if (isEnabled()) {
+            // Connections opened together, as in a reconnect storm, are first pinged spread out, and
+            // stay that way; the spread leaves time for the pong before the timeout
+            long spread = Math.min(intervalMillis, (timeoutMillis - intervalMillis) / 2);
+            entry.deadline = now + intervalMillis + ThreadLocalRandom.current().nextLong(spread + 1);
+            added.add(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Processes every tick since the previous call, pinging and expiring connections that are due.
+     */
+    public void tick() {
+        advance(clock());
+    }
+
+    void advance(long time) {
+        long tick = (time - start) / tickMillis;
+        for (Entry<T> entry; (entry = added.poll()) != null; ) {
+            schedule(entry, lastTick);
+        }
+        while (lastTick < tick) {
+            lastTick++;
+            fire(wheel.get((int) (lastTick & mask)), lastTick, time);
+        }
+    }
+
+    private void fire(List<Entry<T>> slot, long tick, long time) {
+        int kept = 0;
+        int size = slot.size();
+        for (int i = 0; i < size; i++) {
+            Entry<T> entry = slot.get(i);
+            if (entry.cancelled) {
+                continue;
+            }
+            if (tickOf(entry.deadline) > tick) {
+                slot.set(kept++, entry);
+                continue;
+            }
+            long seen = entry.lastSeen;
+            long idle = time - seen;
+            if (idle >= timeoutMillis) {
+                entry.cancelled = true;
+                listener.expire(entry.item);
+                continue;
+            }
+            if (idle >= intervalMillis) {
+                // Pinged again after another interval until the timeout, so a pong keeps the pace
+                listener.ping(entry.item);
+                entry.deadline = Math.min(seen + timeoutMillis, time + intervalMillis);
+            } else {
+                entry.deadline = seen + intervalMillis + ThreadLocalRandom.current().nextLong(intervalMillis / 10 + 1);
+            }
+            if (tickOf(entry.deadline) <= tick) {
+                entry.deadline = start + (tick + 1) * tickMillis;
+            }
+            List<Entry<T>> next = wheel.get((int) (tickOf(entry.deadline) & mask));
+            if (next == slot) {
+                // A whole round ahead
+                slot.set(kept++, entry);
+            } else {
+                next.add(entry);
+            }
+        }
+        slot.subList(kept, size).clear();
+    }
+
+    private void schedule(Entry<T> entry, long current) {
+        if (tickOf(entry.deadline) <= current) {
+            entry.deadline = start + (current + 1) * tickMillis;
+        }
+        wheel.get((int) (tickOf(entry.deadline) & mask)).add(entry);
+    }
+
+    private long tickOf(long time) {
+        return (time - start + tickMillis - 1) / tickMillis;
+    }
+
+    private static long clock() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    /**
+     * Marks the connection alive. Cheap enough to call for every frame received.
+     */
+    public void touch(Entry<T> entry) {
+        touch(entry, clock());
+    }
+
+    void touch(Entry<T> entry, long time) {
+        if (entry.lastSeen != time) {
+            entry.lastSeen = time;
+        }
+    }
+
+    /**
+     * Stops tracking the connection; it is dropped from the wheel when its slot next comes up.
+     */
+    public void cancel(Entry<T> entry) {
+        entry.cancelled = true;
+    }
+
+    /**
+     * A tracked connection.
+     */
+    public static class Entry<T> {
+        private final T item;
+        private volatile long lastSeen;
+        private volatile boolean cancelled;
+        // Owned by the ticking thread once the entry is on the wheel
+        private long deadline;
+
+        Entry(T item, long lastSeen) {
+            this.item = item;
+            this.lastSeen = lastSeen;
+        }
+    }
+
+    public interface Listener<T> {
+
+        /**
+         * Called from the ticking thread for a connection that has been silent for the interval.
+         */
+        void ping(T item);
+
+        /**
+         * Called from the ticking thread, once, for a connection silent for longer than the timeout.
+         */
+        void expire(T item);
+    }
+}
@@ -0,0 +1,112 @@
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link ClusterBus} between nodes in the same JVM, for tests and single-machine benchmarks. Each
+ * node has its own inbox thread, so delivery is asynchronous and ordered per sender, as over TCP.
+ * A network with a single node is a standalone server.
+ */
+public class InProcessBus implements ClusterBus {
+    private static final Logger logger = LoggerFactory.getLogger(InProcessBus.class);
+
+    /**
+     * The set of nodes that can reach each other.
+     */
+    public static class Network {
+        private final Map<String, InProcessBus> nodes = new ConcurrentHashMap<>();
+
+        public InProcessBus join(String nodeId) {
+            return new InProcessBus(this, nodeId);
+        }
+    }
+
+    private final Network network;
+    private final String nodeId;
+    private final ExecutorService inbox;
+    private volatile Listener listener;
+
+    private InProcessBus(Network network, String nodeId) {
+        this.network = network;
+        this.nodeId = nodeId;
+        this.inbox = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "cluster-inbox-" + nodeId);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void start(Listener listener) {
+        this.listener = listener;
+        if (network.nodes.putIfAbsent(nodeId, this) != null) {
+            throw new IllegalStateException("Node " + nodeId + " already joined the network");
+        }
+        for (InProcessBus other : network.nodes.values()) {
+            if (other != this) {
+                other.deliver(() -> other.listener.onNodeUp(nodeId));
+                deliver(() -> listener.onNodeUp(other.nodeId));
+            }
+        }
+    }
+
+    @Override
+    public boolean hasPeers() {
+        return network.nodes.size() > 1;
+    }
+
+    @Override
+    public void publish(ByteBuffer message) {
+        for (InProcessBus other : network.nodes.values()) {
+            if (other != this) {
+                other.receive(nodeId, message);
+            }
+        }
+    }
+
+    @Override
+    public void send(String nodeId, ByteBuffer message) {
+        InProcessBus other = network.nodes.get(nodeId);
+        if (other != null && other != this) {
+            other.receive(this.nodeId, message);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (network.nodes.remove(nodeId, this)) {
+            for (InProcessBus other : network.nodes.values()) {
+                other.deliver(() -> other.listener.onNodeDown(nodeId));
+            }
+        }
+        inbox.shutdown();
+    }
+
+    private void receive(String fromNode, ByteBuffer message) {
+        deliver(() -> listener.onMessage(fromNode, message.duplicate()));
+    }
+
+    private void deliver(Runnable task) {
+        try {
+            inbox.execute(() -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    logger.error("Error handling cluster message on {}", nodeId, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.debug("Node {} is closed, dropping cluster message", nodeId);
+        }
+    }
+}
@@ -0,0 +1,365 @@
+import java.util.List;
+
+/**
+ * A decoded client frame. There is one subclass per message type; {@link ChatCodec} picks the
+ * subclass from the {@code type} field and fills in only the fields that type uses.
+ */
+public abstract class InboundEvent {
+    private final String type;
+    private final String username;
+    private String room = Room.DEFAULT;
+
+    protected InboundEvent(String type, String username) {
+        this.type = type;
+        this.username = username;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Room the event is addressed to; {@link Room#DEFAULT} when the client did not name one.
+     */
+    public String getRoom() {
+        return room;
+    }
+
+    void setRoom(String room) {
+        this.room = room;
+    }
+
+    public static class Join extends InboundEvent {
+        private final String avatar;
+        private final Long lastMessageId;
+        private final String resumeToken;
+
+        public Join(String username, String avatar, Long lastMessageId, String resumeToken) {
+            super("join", username);
+            this.avatar = avatar;
+            this.lastMessageId = lastMessageId;
+            this.resumeToken = resumeToken;
+        }
+
+        public String getAvatar() {
+            return avatar;
+        }
+
+        /**
+         * Id of the last message the client saw before reconnecting, or {@code null} on a fresh join.
+         */
+        public Long getLastMessageId() {
+            return lastMessageId;
+        }
+
+        /**
+         * Token from the {@code resume-token} event of an earlier session, or {@code null}.
+         */
+        public String getResumeToken() {
+            return resumeToken;
+        }
+    }
+
+    public static class Leave extends InboundEvent {
+        public Leave(String username) {
+            super("leave", username);
+        }
+    }
+
+    /**
+     * {@code join-room}, {@code leave-room} or {@code presence-sync}; the room is {@link #getRoom()}.
+     */
+    public static class RoomAction extends InboundEvent {
+        public RoomAction(String type, String username) {
+            super(type, username);
+        }
+    }
+
+    public static class ChatMessage extends InboundEvent {
+        private final String message;
+        private final Long messageId;
+
+        public ChatMessage(String username, String message, Long messageId) {
+            super("message", username);
+            this.message = message;
+            this.messageId = messageId;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * The id in the frame: assigned by the server for relayed and logged messages, and ignored
+         * when a client sends one.
+         */
+        public Long getMessageId() {
+            return messageId;
+        }
+    }
+
+    public static class FileMessage extends InboundEvent {
+        private final String fileUrl;
+        private final boolean image;
+        private final Long messageId;
+
+        public FileMessage(String username, String fileUrl, boolean image, Long messageId) {
+            super("file", username);
+            this.fileUrl = fileUrl;
+            this.image = image;
+            this.messageId = messageId;
+        }
+
+        public String getFileUrl() {
+            return fileUrl;
+        }
+
+        public boolean isImage() {
+            return image;
+        }
+
+        /**
+         * Like {@link ChatMessage#getMessageId()}.
+         */
+        public Long getMessageId() {
+            return messageId;
+        }
+    }
+
+    public static class Location extends InboundEvent {
+        private final double latitude;
+        private final double longitude;
+
+        public Location(String username, double latitude, double longitude) {
+            super("location", username);
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        public double getLatitude() {
+            return latitude;
+        }
+
+        public double getLongitude() {
+            return longitude;
+        }
+    }
+
+    public static class Delete extends InboundEvent {
+        private final long messageId;
+
+        public Delete(String username, long messageId) {
+            super("delete", username);
+            this.messageId = messageId;
+        }
+
+        public long getMessageId() {
+            return messageId;
+        }
+    }
+
+    public static class Edit extends InboundEvent {
+        private final long messageId;
+        private final String newMessage;
+
+        public Edit(String username, long messageId, String newMessage) {
+            super("edit", username);
+            this.messageId = messageId;
+            this.newMessage = newMessage;
+        }
+
+        public long getMessageId() {
+            return messageId;
+        }
+
+        public String getNewMessage() {
+            return newMessage;
+        }
+    }
+
+    /**
+     * {@code call-initiate}, {@code call-accept}, {@code call-reject} and {@code call-end}, which
+     * all carry just a call id.
+     */
+    public static class CallAction extends InboundEvent {
+        private final String callId;
+
+        public CallAction(String type, String username, String callId) {
+            super(type, username);
+            this.callId = callId;
+        }
+
+        public String getCallId() {
+            return callId;
+        }
+    }
+
+    /**
+     * WebRTC signal relayed to one participant. The signal object is kept as raw JSON text since
+     * the server never looks inside it beyond its {@code type}.
+     */
+    public static class CallSignal extends InboundEvent {
+        private final String callId;
+        private final String target;
+        private final Long targetSession;
+        private final String signalType;
+        private final String signal;
+
+        public CallSignal(String username, String callId, String target, Long targetSession, String signalType,
+                String signal) {
+            super("call-signal", username);
+            this.callId = callId;
+            this.target = target;
+            this.targetSession = targetSession;
+            this.signalType = signalType;
+            this.signal = signal;
+        }
+
+        public String getCallId() {
+            return callId;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        /**
+         * The target's session that sent the signal being answered, or {@code null} for any of them.
+         */
+        public Long getTargetSession() {
+            return targetSession;
+        }
+
+        public String getSignalType() {
+            return signalType;
+        }
+
+        public String getSignal() {
+            return signal;
+        }
+    }
+
+    public static class Typing extends InboundEvent {
+        private final boolean typing;
+
+        public Typing(String username, boolean typing) {
+            super("typing", username);
+            this.typing = typing;
+        }
+
+        public boolean isTyping() {
+            return typing;
+        }
+    }
+
+    public static class Reaction extends InboundEvent {
+        private final long messageId;
+        private final String emoji;
+
+        public Reaction(String username, long messageId, String emoji) {
+            super("reaction", username);
+            this.messageId = messageId;
+            this.emoji = emoji;
+        }
+
+        public long getMessageId() {
+            return messageId;
+        }
+
+        public String getEmoji() {
+            return emoji;
+        }
+    }
+
+    public static class Read extends InboundEvent {
+        private final long messageId;
+
+        public Read(String username, long messageId) {
+            super("read", username);
+            this.messageId = messageId;
+        }
+
+        public long getMessageId() {
+            return messageId;
+        }
+    }
+
+    /**
+     * Asks for the current state of a page of messages, e.g. the ones on screen.
+     */
+    public static class MessageStateRequest extends InboundEvent {
+        private final List<Long> messageIds;
+
+        public MessageStateRequest(String username, List<Long> messageIds) {
+            super("message-state", username);
+            this.messageIds = messageIds;
+        }
+
+        public List<Long> getMessageIds() {
+            return messageIds;
+        }
+    }
+
+    /**
+     * Asks for a page of the room's messages containing every word of the query, newest first.
+     */
+    public static class Search extends InboundEvent {
+        private final String query;
+        private final Long before;
+        private final Long limit;
+
+        public Search(String username, String query, Long before, Long limit) {
+            super("search", username);
+            this.query = query;
+            this.before = before;
+            this.limit = limit;
+        }
+
+        public String getQuery() {
+            return query;
+        }
+
+        /**
+         * The {@code next} cursor of the previous page, or {@code null} for the first page.
+         */
+        public Long getBefore() {
+            return before;
+        }
+
+        /**
+         * Page size asked for, or {@code null} for the server's default.
+         */
+        public Long getLimit() {
+            return limit;
+        }
+    }
+
+    /**
+     * Asks for the avatar behind an id sent in a presence update.
+     */
+    public static class AvatarRequest extends InboundEvent {
+        private final String avatarId;
+
+        public AvatarRequest(String username, String avatarId) {
+            super("avatar", username);
+            this.avatarId = avatarId;
+        }
+
+        public String getAvatarId() {
+            return avatarId;
+        }
+    }
+
+    /**
+     * A well-formed frame whose type the server does not know.
+     */
+    public static class Unknown extends InboundEvent {
+        public Unknown(String type, String username) {
+            super(type, username);
+        }
+    }
+}
@@ -0,0 +1,245 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * {@link EventWriter} that produces UTF-8 JSON directly into a reusable byte array. Instances are
+ * meant to be reused per thread through {@link #reset()}; only {@link #toByteBuffer()} copies the
+ * result out.
+ */
+public class JsonEventWriter implements EventWriter {
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private byte[] buf = new byte[1024];
+    private int len;
+    private boolean[] hasElements = new boolean[16];
+    private int depth;
+    private boolean afterName;
+
+    public void reset() {
+        if (buf.length > MAX_RETAINED_CAPACITY) {
+            buf = new byte[1024];
+        }
+        len = 0;
+        depth = 0;
+        afterName = false;
+    }
+
+    public ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(Arrays.copyOf(buf, len));
+    }
+
+    @Override
+    public String toString() {
+        return new String(buf, 0, len, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public EventWriter beginObject() {
+        separator();
+        put('{');
+        push();
+        return this;
+    }
+
+    @Override
+    public EventWriter endObject() {
+        put('}');
+        depth--;
+        return this;
+    }
+
+    @Override
+    public EventWriter beginArray() {
+        separator();
+        put('[');
+        push();
+        return this;
+    }
+
+    @Override
+    public EventWriter endArray() {
+        put(']');
+        depth--;
+        return this;
+    }
+
+    @Override
+    public EventWriter name(String name) {
+        separator();
+        writeString(name);
+        put(':');
+        afterName = true;
+        return this;
+    }
+
+    @Override
+    public EventWriter value(String value) {
+        separator();
+        if (value == null) {
+            writeAscii("null");
+        } else {
+            writeString(value);
+        }
+        return this;
+    }
+
+    @Override
+    public EventWriter value(long value) {
+        separator();
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return this;
+        }
+        if (value < 0) {
+            put('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        ensure(digits);
+        for (int i = len + digits - 1; i >= len; i--) {
+            buf[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        len += digits;
+        return this;
+    }
+
+    @Override
+    public EventWriter value(double value) {
+        separator();
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            writeAscii("null");
+        } else {
+            writeAscii(Double.toString(value));
+        }
+        return this;
+    }
+
+    @Override
+    public EventWriter value(boolean value) {
+        separator();
+        writeAscii(value ? "true" : "false");
+        return this;
+    }
+
+    @Override
+    public EventWriter rawJson(String json) {
+        separator();
+        writeUtf8(json, 0, json.length());
+        return this;
+    }
+
+    private void separator() {
+        if (afterName) {
+            afterName = false;
+        } else if (depth > 0) {
+            if (hasElements[depth - 1]) {
+                put(',');
+            }
+            hasElements[depth - 1] = true;
+        }
+    }
+
+    private void push() {
+        if (depth == hasElements.length) {
+            hasElements = Arrays.copyOf(hasElements, depth * 2);
+        }
+        hasElements[depth++] = false;
+    }
+
+    private void writeString(String value) {
+        put('"');
+        int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                continue;
+            }
+            writeUtf8(value, start, i);
+            start = i + 1;
+            switch (c) {
+                case '"':
+                    writeAscii("\\\"");
+                    break;
+                case '\\':
+                    writeAscii("\\\\");
+                    break;
+                case '\n':
+                    writeAscii("\\n");
+                    break;
+                case '\r':
+                    writeAscii("\\r");
+                    break;
+                case '\t':
+                    writeAscii("\\t");
+                    break;
+                case '\b':
+                    writeAscii("\\b");
+                    break;
+                case '\f':
+                    writeAscii("\\f");
+                    break;
+                default:
+                    writeAscii("\\u00");
+                    put(HEX[c >> 4]);
+                    put(HEX[c & 0xF]);
+                    break;
+            }
+        }
+        writeUtf8(value, start, length);
+        put('"');
+    }
+
+    private void writeUtf8(String value, int from, int to) {
+        ensure((to - from) * 3);
+        byte[] out = buf;
+        int n = len;
+        for (int i = from; i < to; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                out[n++] = (byte) c;
+            } else if (c < 0x800) {
+                out[n++] = (byte) (0xC0 | c >> 6);
+                out[n++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                out[n++] = (byte) (0xF0 | codePoint >> 18);
+                out[n++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                out[n++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                out[n++] = (byte) (0x80 | codePoint & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                out[n++] = (byte) '?';
+            } else {
+                out[n++] = (byte) (0xE0 | c >> 12);
+                out[n++] = (byte) (0x80 | c >> 6 & 0x3F);
+                out[n++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        len = n;
+    }
+
+    private void writeAscii(String value) {
+        int length = value.length();
+        ensure(length);
+        for (int i = 0; i < length; i++) {
+            buf[len++] = (byte) value.charAt(i);
+        }
+    }
+
+    private void put(int b) {
+        ensure(1);
+        buf[len++] = (byte) b;
+    }
+
+    private void ensure(int extra) {
+        if (len + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+        }
+    }
+}
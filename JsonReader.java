@@ -0,0 +1,280 @@
+/**
+ * Minimal pull parser over a JSON text. Values are read in place as the caller walks the object,
+ * so decoding a frame never builds an intermediate tree. Scalars are read leniently the way
+ * {@code org.json} does: numbers and booleans may also arrive as strings.
+ */
+public class JsonReader implements EventReader {
+    private final String json;
+    private int pos;
+
+    public JsonReader(String json) {
+        this.json = json;
+    }
+
+    @Override
+    public void beginObject() {
+        expect('{');
+    }
+
+    @Override
+    public void endObject() {
+        expect('}');
+    }
+
+    @Override
+    public void beginArray() {
+        expect('[');
+    }
+
+    @Override
+    public void endArray() {
+        expect(']');
+    }
+
+    /**
+     * Returns whether the current object or array has another element, consuming the separating
+     * comma if there is one.
+     */
+    @Override
+    public boolean hasNext() {
+        char c = peek();
+        if (c == ',') {
+            pos++;
+            c = peek();
+        }
+        return c != '}' && c != ']';
+    }
+
+    @Override
+    public String nextName() {
+        String name = readString();
+        expect(':');
+        return name;
+    }
+
+    /**
+     * Reads a string value; {@code null} is returned as {@code null}, other scalars as their text.
+     */
+    @Override
+    public String nextString() {
+        char c = peek();
+        if (c == '"') {
+            return readString();
+        }
+        String literal = readLiteral();
+        return literal.equals("null") ? null : literal;
+    }
+
+    @Override
+    public long nextLong() {
+        String value = peek() == '"' ? readString() : readLiteral();
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return (long) parseDouble(value);
+        }
+    }
+
+    @Override
+    public double nextDouble() {
+        return parseDouble(peek() == '"' ? readString() : readLiteral());
+    }
+
+    @Override
+    public boolean nextBoolean() {
+        String value = peek() == '"' ? readString() : readLiteral();
+        if (value.equalsIgnoreCase("true")) {
+            return true;
+        }
+        if (value.equalsIgnoreCase("false")) {
+            return false;
+        }
+        throw error("Expected a boolean but was " + value);
+    }
+
+    /**
+     * Skips the next value and returns its raw JSON text, for values that are passed through
+     * untouched.
+     */
+    @Override
+    public String nextRaw() {
+        int start = skipWhitespace();
+        skipValue();
+        return json.substring(start, pos);
+    }
+
+    @Override
+    public void skipValue() {
+        char c = peek();
+        if (c == '{' || c == '[') {
+            pos++;
+            int depth = 1;
+            while (depth > 0) {
+                c = charAt(pos);
+                if (c == '"') {
+                    readString();
+                    continue;
+                }
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+                pos++;
+            }
+        } else if (c == '"') {
+            readString();
+        } else {
+            readLiteral();
+        }
+    }
+
+    /**
+     * Copies the next value, including nested objects and arrays, to the writer.
+     */
+    public void copyValue(EventWriter out) {
+        char c = peek();
+        if (c == '{') {
+            beginObject();
+            out.beginObject();
+            while (hasNext()) {
+                out.name(nextName());
+                copyValue(out);
+            }
+            endObject();
+            out.endObject();
+        } else if (c == '[') {
+            beginArray();
+            out.beginArray();
+            while (hasNext()) {
+                copyValue(out);
+            }
+            endArray();
+            out.endArray();
+        } else if (c == '"') {
+            out.value(readString());
+        } else {
+            String literal = readLiteral();
+            if (literal.equals("null")) {
+                out.value((String) null);
+            } else if (literal.equals("true") || literal.equals("false")) {
+                out.value(Boolean.parseBoolean(literal));
+            } else if (literal.indexOf('.') < 0 && literal.indexOf('e') < 0 && literal.indexOf('E') < 0) {
+                out.value(Long.parseLong(literal));
+            } else {
+                out.value(parseDouble(literal));
+            }
+        }
+    }
+
+    private String readString() {
+        expect('"');
+        int start = pos;
+        while (true) {
+            char c = charAt(pos);
+            if (c == '"') {
+                return json.substring(start, pos++);
+            }
+            if (c == '\\') {
+                return readEscapedString(start);
+            }
+            pos++;
+        }
+    }
+
+    private String readEscapedString(int start) {
+        StringBuilder sb = new StringBuilder(pos - start + 16);
+        sb.append(json, start, pos);
+        while (true) {
+            char c = charAt(pos++);
+            if (c == '"') {
+                return sb.toString();
+            }
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            char escaped = charAt(pos++);
+            switch (escaped) {
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    if (pos + 4 > json.length()) {
+                        throw error("Truncated unicode escape");
+                    }
+                    sb.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+                    pos += 4;
+                    break;
+                default:
+                    sb.append(escaped);
+                    break;
+            }
+        }
+    }
+
+    private String readLiteral() {
+        int start = skipWhitespace();
+        while (pos < json.length()) {
+            char c = json.charAt(pos);
+            if (c == ',' || c == '}' || c == ']' || c == ':' || Character.isWhitespace(c)) {
+                break;
+            }
+            pos++;
+        }
+        if (start == pos) {
+            throw error("Expected a value");
+        }
+        return json.substring(start, pos);
+    }
+
+    private double parseDouble(String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw error("Expected a number but was " + value);
+        }
+    }
+
+    private void expect(char expected) {
+        if (peek() != expected) {
+            throw error("Expected '" + expected + "'");
+        }
+        pos++;
+    }
+
+    private char peek() {
+        skipWhitespace();
+        return charAt(pos);
+    }
+
+    private int skipWhitespace() {
+        while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private char charAt(int index) {
+        if (index >= json.length()) {
+            throw error("Unexpected end of input");
+        }
+        return json.charAt(index);
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + pos);
+    }
+}
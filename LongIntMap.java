@@ -0,0 +1,137 @@
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from primitive {@code long} keys to non-negative {@code int} values,
+ * with linear probing and backward-shift deletion. Avoids boxing and per-entry objects for maps
+ * keyed by message id. Not thread-safe.
+ */
+public class LongIntMap {
+    private static final int FREE = -1;
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+    private int mask;
+
+    public LongIntMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        allocate(capacity);
+    }
+
+    /**
+     * Returns the value for the key, or {@code -1} if absent.
+     */
+    public int get(long key) {
+        int index = indexOf(key);
+        return index < 0 ? FREE : values[index];
+    }
+
+    public boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    public void put(long key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value: " + value);
+        }
+        int index = slot(key);
+        while (values[index] != FREE) {
+            if (keys[index] == key) {
+                values[index] = value;
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        values[index] = value;
+        if (++size * 2 > keys.length) {
+            rehash(keys.length << 1);
+        }
+    }
+
+    /**
+     * Removes the key and returns its value, or {@code -1} if absent.
+     */
+    public int remove(long key) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return FREE;
+        }
+        int removed = values[index];
+        values[index] = FREE;
+        size--;
+        int next = (index + 1) & mask;
+        while (values[next] != FREE) {
+            int home = slot(keys[next]);
+            if (((next - home) & mask) >= ((next - index) & mask)) {
+                keys[index] = keys[next];
+                values[index] = values[next];
+                values[next] = FREE;
+                index = next;
+            }
+            next = (next + 1) & mask;
+        }
+        return removed;
+    }
+
+    /**
+     * Removes every entry whose value is below {@code min} and returns how many were removed.
+     */
+    public int removeValuesBelow(int min) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        int oldSize = size;
+        allocate(keys.length);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != FREE && oldValues[i] >= min) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+        return oldSize - size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(values, FREE);
+        size = 0;
+    }
+
+    private int indexOf(long key) {
+        int index = slot(key);
+        while (values[index] != FREE) {
+            if (keys[index] == key) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int slot(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, FREE);
+        mask = capacity - 1;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != FREE) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
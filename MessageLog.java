@@ -0,0 +1,386 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Durable, append-only log of chat events stored in memory-mapped segment files. Every record gets
+ * a sequential offset; each segment has a companion index of fixed-size entries so an offset maps
+ * to a file position without scanning, and replay hands out slices of the mapped file instead of
+ * copying history onto the heap.
+ *
+ * <p>Record layout in {@code <baseOffset>.log}:
+ * {@code [int payloadLength][int crc32][long offset][long messageId][payload]}, with the top bit of
+ * {@code payloadLength} set for updates. Index layout in {@code <baseOffset>.idx}:
+ * {@code [long messageKey][int position]} per record, where {@code messageKey} is the highest id
+ * of a new message logged so far. Keys therefore never decrease, even though edits and deletes
+ * refer to older messages, and can be binary searched. Only new messages move the key: their ids
+ * are assigned by the server, while an update carries whatever id its sender named.
+ *
+ * <p>On open, every segment is scanned and its index rebuilt. The log is cut at the first torn or
+ * corrupt record of the newest segment, where a crash leaves a partly written record. Older
+ * segments are sealed: were one to be damaged, the records from its first bad one to its end are
+ * skipped on replay, as the following segments' offsets are already fixed.
+ */
+public class MessageLog implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(MessageLog.class);
+    private static final int HEADER_BYTES = 24;
+    private static final int UPDATE_FLAG = 0x8000_0000;
+    private static final int LENGTH_MASK = ~UPDATE_FLAG;
+    // Index position of a record lost to corruption in a sealed segment
+    private static final int LOST = -1;
+    private static final int INDEX_ENTRY_BYTES = 12;
+    /**
+     * Index capacity is sized for records of at least this many bytes on average; a segment of
+     * smaller records rolls once its index is full rather than when its log is.
+     */
+    private static final int MIN_AVERAGE_RECORD_BYTES = 96;
+
+    /**
+     * Receives replayed records. The payload is a read-only view on the mapped segment and stays
+     * valid after the call returns.
+     */
+    @FunctionalInterface
+    public interface RecordConsumer {
+
+        void accept(long offset, long messageId, ByteBuffer payload);
+    }
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final List<Segment> segments = new ArrayList<>();
+    private final CRC32 crc = new CRC32();
+    private long highestMessageId;
+
+    public MessageLog(Path dir, int segmentBytes, int maxSegments) throws IOException {
+        if (segmentBytes < 1024) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentBytes);
+        }
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = Math.max(1, maxSegments);
+        Files.createDirectories(dir);
+        recover();
+    }
+
+    /**
+     * Appends a new message, or an event that refers to no message with {@code messageId} 0, and
+     * returns its offset.
+     */
+    public long append(long messageId, ByteBuffer payload) throws IOException {
+        return append(messageId, false, payload);
+    }
+
+    /**
+     * Appends an update to an earlier message, such as an edit or a delete, and returns its offset.
+     */
+    public long appendUpdate(long messageId, ByteBuffer payload) throws IOException {
+        return append(messageId, true, payload);
+    }
+
+    private synchronized long append(long messageId, boolean update, ByteBuffer payload) throws IOException {
+        int length = payload.remaining();
+        if (HEADER_BYTES + length > segmentBytes) {
+            throw new IllegalArgumentException("Record of " + length + " bytes does not fit in a segment");
+        }
+        Segment active = active();
+        if (!active.fits(length)) {
+            active = roll();
+        }
+        long offset = active.baseOffset + active.count;
+        if (!update) {
+            highestMessageId = Math.max(highestMessageId, messageId);
+        }
+
+        ByteBuffer log = active.log;
+        int position = active.position;
+        log.putInt(position + 4, checksum(offset, messageId, payload));
+        log.putLong(position + 8, offset);
+        log.putLong(position + 16, messageId);
+        log.position(position + HEADER_BYTES);
+        log.put(payload.duplicate());
+        log.putInt(position, update ? length | UPDATE_FLAG : length);
+        active.index.putLong(active.count * INDEX_ENTRY_BYTES, highestMessageId);
+        active.index.putInt(active.count * INDEX_ENTRY_BYTES + 8, position);
+        active.count++;
+        active.position = position + HEADER_BYTES + length;
+        return offset;
+    }
+
+    /**
+     * Highest message id logged so far, or 0 if none.
+     */
+    public synchronized long highestMessageId() {
+        return highestMessageId;
+    }
+
+    /**
+     * Offset the next appended record will get.
+     */
+    public synchronized long nextOffset() {
+        Segment active = active();
+        return active.baseOffset + active.count;
+    }
+
+    /**
+     * Oldest offset still retained.
+     */
+    public synchronized long firstOffset() {
+        return segments.get(0).baseOffset;
+    }
+
+    /**
+     * Returns the offset of the first record logged after the message with the given id, i.e.
+     * where a client that last saw {@code messageId} should resume.
+     */
+    public synchronized long offsetAfter(long messageId) {
+        long low = firstOffset();
+        long high = nextOffset();
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (keyAt(mid) < messageId) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        if (low < nextOffset() && keyAt(low) == messageId) {
+            low++;
+        }
+        return low;
+    }
+
+    /**
+     * Streams up to {@code maxRecords} records starting at {@code fromOffset} and returns how many
+     * offsets were covered; records lost to corruption are counted but not delivered. Offsets below
+     * the retained range start at the oldest record.
+     */
+    public int read(long fromOffset, int maxRecords, RecordConsumer consumer) {
+        List<ByteBuffer> payloads = new ArrayList<>();
+        long[] offsets;
+        long[] ids;
+        int covered;
+        synchronized (this) {
+            long start = Math.max(fromOffset, firstOffset());
+            long end = Math.min(nextOffset(), start + maxRecords);
+            covered = (int) Math.max(0, end - start);
+            offsets = new long[covered];
+            ids = new long[covered];
+            for (long offset = start; offset < end; offset++) {
+                Segment segment = segmentFor(offset);
+                int position = segment.index.getInt((int) (offset - segment.baseOffset) * INDEX_ENTRY_BYTES + 8);
+                if (position == LOST) {
+                    continue;
+                }
+                int length = segment.log.getInt(position) & LENGTH_MASK;
+                offsets[payloads.size()] = offset;
+                ids[payloads.size()] = segment.log.getLong(position + 16);
+                ByteBuffer payload = segment.log.duplicate();
+                payload.limit(position + HEADER_BYTES + length).position(position + HEADER_BYTES);
+                payloads.add(payload.slice().asReadOnlyBuffer());
+            }
+        }
+        for (int i = 0; i < payloads.size(); i++) {
+            consumer.accept(offsets[i], ids[i], payloads.get(i));
+        }
+        return covered;
+    }
+
+    /**
+     * Forces appended records to disk.
+     */
+    public synchronized void flush() {
+        active().log.force();
+        active().index.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+    }
+
+    private long keyAt(long offset) {
+        Segment segment = segmentFor(offset);
+        return segment.index.getLong((int) (offset - segment.baseOffset) * INDEX_ENTRY_BYTES);
+    }
+
+    private Segment segmentFor(long offset) {
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            Segment segment = segments.get(i);
+            if (offset >= segment.baseOffset) {
+                return segment;
+            }
+        }
+        throw new IllegalArgumentException("Offset " + offset + " is no longer retained");
+    }
+
+    private Segment active() {
+        return segments.get(segments.size() - 1);
+    }
+
+    private Segment roll() throws IOException {
+        Segment previous = active();
+        previous.log.force();
+        previous.index.force();
+        Segment next = new Segment(dir, previous.baseOffset + previous.count, segmentBytes);
+        segments.add(next);
+        while (segments.size() > maxSegments) {
+            Segment oldest = segments.remove(0);
+            oldest.close();
+            Files.deleteIfExists(oldest.logPath);
+            Files.deleteIfExists(oldest.indexPath);
+            logger.info("Deleted message log segment {}", oldest.logPath.getFileName());
+        }
+        return next;
+    }
+
+    private void recover() throws IOException {
+        List<Long> baseOffsets = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                baseOffsets.add(Long.parseLong(name.substring(0, name.length() - 4)));
+            }
+        }
+        baseOffsets.sort(null);
+        if (baseOffsets.isEmpty()) {
+            baseOffsets.add(0L);
+        }
+        for (long baseOffset : baseOffsets) {
+            segments.add(new Segment(dir, baseOffset, segmentBytes));
+        }
+        for (int i = 0; i < segments.size() - 1; i++) {
+            Segment sealed = segments.get(i);
+            highestMessageId = verify(sealed, (int) (segments.get(i + 1).baseOffset - sealed.baseOffset),
+                    highestMessageId);
+        }
+        highestMessageId = scan(active(), highestMessageId);
+        logger.info("Message log recovered: offsets {}..{} in {} segments", firstOffset(), nextOffset(),
+                segments.size());
+    }
+
+    /**
+     * Rebuilds the newest segment's index from its records, continuing from the key the segments
+     * before it ended on, cuts it at the first bad record, and returns the key it ends on.
+     */
+    private long scan(Segment segment, long highest) {
+        highest = index(segment, segment.maxRecords, highest);
+        ByteBuffer log = segment.log;
+        if (segment.position + 4 <= log.capacity() && log.getInt(segment.position) != 0) {
+            logger.warn("Truncating message log segment {} at offset {}", segment.logPath.getFileName(),
+                    segment.baseOffset + segment.count);
+            log.putInt(segment.position, 0);
+        }
+        return highest;
+    }
+
+    /**
+     * Verifies a sealed segment that should hold {@code expected} records and rebuilds its index,
+     * marking the records from the first bad one on as lost, and returns the key it ends on.
+     */
+    private long verify(Segment segment, int expected, long highest) {
+        highest = index(segment, expected, highest);
+        if (segment.count < expected) {
+            logger.error("Message log segment {} is damaged at offset {}; skipping its {} remaining records",
+                    segment.logPath.getFileName(), segment.baseOffset + segment.count, expected - segment.count);
+            for (int i = segment.count; i < expected; i++) {
+                segment.index.putLong(i * INDEX_ENTRY_BYTES, highest);
+                segment.index.putInt(i * INDEX_ENTRY_BYTES + 8, LOST);
+            }
+            segment.count = expected;
+        }
+        return highest;
+    }
+
+    /**
+     * Indexes up to {@code maxRecords} records from the start of the segment, stopping at the end
+     * of the records or at the first torn or corrupt one, and returns the key it ends on.
+     */
+    private long index(Segment segment, int maxRecords, long highest) {
+        ByteBuffer log = segment.log;
+        int position = 0;
+        int count = 0;
+        while (position + HEADER_BYTES <= log.capacity() && count < maxRecords) {
+            int word = log.getInt(position);
+            int length = word & LENGTH_MASK;
+            if (length == 0 || position + HEADER_BYTES + length > log.capacity()) {
+                break;
+            }
+            long offset = log.getLong(position + 8);
+            long messageId = log.getLong(position + 16);
+            ByteBuffer payload = log.duplicate();
+            payload.limit(position + HEADER_BYTES + length).position(position + HEADER_BYTES);
+            if (offset != segment.baseOffset + count || log.getInt(position + 4) != checksum(offset, messageId, payload)) {
+                break;
+            }
+            if ((word & UPDATE_FLAG) == 0) {
+                highest = Math.max(highest, messageId);
+            }
+            segment.index.putLong(count * INDEX_ENTRY_BYTES, highest);
+            segment.index.putInt(count * INDEX_ENTRY_BYTES + 8, position);
+            count++;
+            position += HEADER_BYTES + length;
+        }
+        segment.count = count;
+        segment.position = position;
+        return highest;
+    }
+
+    private int checksum(long offset, long messageId, ByteBuffer payload) {
+        crc.reset();
+        ByteBuffer header = ByteBuffer.allocate(16);
+        header.putLong(offset).putLong(messageId).flip();
+        crc.update(header);
+        crc.update(payload.duplicate());
+        return (int) crc.getValue();
+    }
+
+    private static class Segment {
+        final long baseOffset;
+        final Path logPath;
+        final Path indexPath;
+        final FileChannel logChannel;
+        final FileChannel indexChannel;
+        final MappedByteBuffer log;
+        final MappedByteBuffer index;
+        final int maxRecords;
+        int count;
+        int position;
+
+        Segment(Path dir, long baseOffset, int segmentBytes) throws IOException {
+            this.baseOffset = baseOffset;
+            this.logPath = dir.resolve(String.format("%020d.log", baseOffset));
+            this.indexPath = dir.resolve(String.format("%020d.idx", baseOffset));
+            this.maxRecords = segmentBytes / MIN_AVERAGE_RECORD_BYTES;
+            this.logChannel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.indexChannel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.log = logChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            this.index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, (long) maxRecords * INDEX_ENTRY_BYTES);
+        }
+
+        boolean fits(int payloadLength) {
+            return count < maxRecords && position + HEADER_BYTES + payloadLength <= log.capacity();
+        }
+
+        void close() throws IOException {
+            logChannel.close();
+            indexChannel.close();
+        }
+    }
+}
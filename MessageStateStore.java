@@ -0,0 +1,288 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The current state of a room's recent messages: text, whether it was edited or deleted, and who
+ * reacted with which emoji. Holds at most {@code maxMessages} messages and evicts the least
+ * recently used one beyond that. Reactors are kept as sorted interned user ids, like readers in
+ * {@link ReadReceiptStore}, each holding a reference to its id until the reaction is taken back
+ * or the message is deleted or evicted.
+ *
+ * <p>Only the author of a message may edit or delete it, and a message id is never reused for
+ * another message.
+ *
+ * <p>A reaction toggles: the same user reacting with the same emoji again takes it back.
+ * Reactions are not broadcast one by one; messages whose counts changed are collected and
+ * {@link #drainReactions} returns them once per flush.
+ *
+ * <p>Confined to the room's shard, like the rest of the {@link Room}.
+ */
+public class MessageStateStore {
+    private static final int[] NO_USERS = new int[0];
+    private static final String[] NO_EMOJIS = new String[0];
+    private static final int[][] NO_REACTORS = new int[0][];
+
+    private final UserIds userIds;
+    private final int maxReactionKinds;
+    private final Map<Long, MessageState> messages;
+    private final Set<Long> changedReactions = new LinkedHashSet<>();
+
+    public MessageStateStore(UserIds userIds, int maxMessages, int maxReactionKinds) {
+        this.userIds = userIds;
+        this.maxReactionKinds = maxReactionKinds;
+        this.messages = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, MessageState> eldest) {
+                if (size() <= maxMessages) {
+                    return false;
+                }
+                releaseReactors(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Records a new message, or a file message with its link as the text. A message only known
+     * from later events, e.g. a reaction relayed ahead of it, gets its author and text.
+     *
+     * @return {@code false} if a message with this id is already known
+     */
+    public boolean put(long messageId, String username, String text) {
+        MessageState state = messages.get(messageId);
+        if (state == null) {
+            messages.put(messageId, new MessageState(messageId, username, text));
+            return true;
+        }
+        if (state.username != null) {
+            return false;
+        }
+        state.username = username;
+        if (!state.deleted) {
+            state.text = text;
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the text of the message. Messages evicted or sent before this server started are
+     * added with what is known about them, with the user as their author.
+     *
+     * @return {@code false} if the message is deleted or someone else sent it
+     */
+    public boolean edit(long messageId, String username, String text) {
+        MessageState state = getOrAdd(messageId, username);
+        if (state.deleted || !username.equals(state.username)) {
+            return false;
+        }
+        state.text = text;
+        state.edited = true;
+        return true;
+    }
+
+    /**
+     * Marks the message deleted and drops its text and reactions.
+     *
+     * @return {@code false} if someone else sent it
+     */
+    public boolean delete(long messageId, String username) {
+        MessageState state = getOrAdd(messageId, username);
+        if (!username.equals(state.username)) {
+            return false;
+        }
+        state.deleted = true;
+        state.text = null;
+        if (state.emojis.length > 0) {
+            releaseReactors(state);
+            state.emojis = NO_EMOJIS;
+            state.reactors = NO_REACTORS;
+            changedReactions.add(messageId);
+        }
+        return true;
+    }
+
+    /**
+     * Adds the user's reaction to the message, or takes it back if the user already reacted with
+     * this emoji.
+     *
+     * @return {@code false} if nothing changed: the message is deleted or already has the maximum
+     *         number of different emojis
+     */
+    public boolean react(long messageId, String username, String emoji) {
+        MessageState state = getOrAdd(messageId, null);
+        if (state.deleted) {
+            return false;
+        }
+        int kind = indexOf(state.emojis, emoji);
+        if (kind < 0) {
+            if (state.emojis.length >= maxReactionKinds) {
+                return false;
+            }
+            kind = state.emojis.length;
+            state.emojis = Arrays.copyOf(state.emojis, kind + 1);
+            state.reactors = Arrays.copyOf(state.reactors, kind + 1);
+            state.emojis[kind] = emoji;
+            state.reactors[kind] = NO_USERS;
+        }
+        int[] users = state.reactors[kind];
+        int userId = userIds.acquire(username);
+        int index = Arrays.binarySearch(users, userId);
+        if (index >= 0) {
+            users = remove(users, index);
+            // Both the reference just taken and the reaction's
+            userIds.release(userId);
+            userIds.release(userId);
+        } else {
+            index = -index - 1;
+            int[] added = new int[users.length + 1];
+            System.arraycopy(users, 0, added, 0, index);
+            added[index] = userId;
+            System.arraycopy(users, index, added, index + 1, users.length - index);
+            users = added;
+        }
+        if (users.length == 0) {
+            state.emojis = remove(state.emojis, kind);
+            state.reactors = remove(state.reactors, kind);
+        } else {
+            state.reactors[kind] = users;
+        }
+        changedReactions.add(messageId);
+        return true;
+    }
+
+    public MessageState get(long messageId) {
+        return messages.get(messageId);
+    }
+
+    /**
+     * Returns the known messages among {@code messageIds}, in the order asked for.
+     */
+    public List<MessageState> getAll(Collection<Long> messageIds) {
+        List<MessageState> states = new ArrayList<>(messageIds.size());
+        for (long messageId : messageIds) {
+            MessageState state = messages.get(messageId);
+            if (state != null) {
+                states.add(state);
+            }
+        }
+        return states;
+    }
+
+    public int size() {
+        return messages.size();
+    }
+
+    /**
+     * Returns the messages whose reactions changed since the previous call, in the order they first
+     * changed; messages evicted in the meantime are skipped.
+     */
+    public List<MessageState> drainReactions() {
+        List<MessageState> changed = new ArrayList<>(changedReactions.size());
+        for (long messageId : changedReactions) {
+            MessageState state = messages.get(messageId);
+            if (state != null) {
+                changed.add(state);
+            }
+        }
+        changedReactions.clear();
+        return changed;
+    }
+
+    private MessageState getOrAdd(long messageId, String username) {
+        MessageState state = messages.get(messageId);
+        if (state == null) {
+            state = new MessageState(messageId, username, null);
+            messages.put(messageId, state);
+        } else if (state.username == null) {
+            state.username = username;
+        }
+        return state;
+    }
+
+    private void releaseReactors(MessageState state) {
+        for (int[] users : state.reactors) {
+            for (int userId : users) {
+                userIds.release(userId);
+            }
+        }
+    }
+
+    private static int indexOf(String[] values, String value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i].equals(value)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int[] remove(int[] values, int index) {
+        int[] result = new int[values.length - 1];
+        System.arraycopy(values, 0, result, 0, index);
+        System.arraycopy(values, index + 1, result, index, result.length - index);
+        return result;
+    }
+
+    private static <T> T[] remove(T[] values, int index) {
+        T[] result = Arrays.copyOf(values, values.length - 1);
+        System.arraycopy(values, index + 1, result, index, result.length - index);
+        return result;
+    }
+
+    /**
+     * One message. Text and author are {@code null} when the server only saw later events for
+     * the message, e.g. a reaction to a message from before it started.
+     */
+    public static class MessageState {
+        private final long messageId;
+        private String username;
+        private String text;
+        private boolean edited;
+        private boolean deleted;
+        private String[] emojis = NO_EMOJIS;
+        private int[][] reactors = NO_REACTORS;
+
+        MessageState(long messageId, String username, String text) {
+            this.messageId = messageId;
+            this.username = username;
+            this.text = text;
+        }
+
+        public long getMessageId() {
+            return messageId;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public boolean isEdited() {
+            return edited;
+        }
+
+        public boolean isDeleted() {
+            return deleted;
+        }
+
+        /**
+         * Writes {@code "reactions": {emoji: count, ...}} into the current object.
+         */
+        public void writeReactions(EventWriter w) {
+            w.name("reactions").beginObject();
+            for (int i = 0; i < emojis.length; i++) {
+                w.field(emojis[i], reactors[i].length);
+            }
+            w.endObject();
+        }
+    }
+}
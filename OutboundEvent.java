@@ -0,0 +1,9 @@
+/**
+ * An event the server sends to clients, described by how it writes itself rather than by an
+ * intermediate object tree. The same event can be written once per wire representation.
+ */
+@FunctionalInterface
+public interface OutboundEvent {
+
+    void writeTo(EventWriter writer);
+}
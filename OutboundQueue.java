@@ -0,0 +1,208 @@
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.framing.Framedata;
+
+/**
+ * Bounded outbound buffer in front of one connection. Frames go straight to the connection while
+ * Java-WebSocket's own write queue stays under the high watermark. Above it, frames are held here
+ * until the write queue drains below the low watermark:
+ *
+ * <ul>
+ * <li>{@link Delivery#RELIABLE} frames (chat messages, edits, calls) are kept in order;</li>
+ * <li>{@link Delivery#COALESCE} frames replace the held frame with the same key, so only the
+ * latest of e.g. a room's presence deltas is delivered;</li>
+ * <li>{@link Delivery#DROPPABLE} frames (typing, read receipts) are discarded.</li>
+ * </ul>
+ *
+ * A connection whose backlog exceeds {@link Limits#maxQueued} frames, or that stays congested for
+ * longer than {@link Limits#maxCongestedMillis}, is dropped with close code {@link #SLOW_CONSUMER}.
+ */
+public class OutboundQueue {
+    public static final int SLOW_CONSUMER = 4001;
+
+    public enum Delivery {
+        RELIABLE,
+        COALESCE,
+        DROPPABLE
+    }
+
+    /**
+     * Watermarks shared by all queues, counted in frames.
+     */
+    public static class Limits {
+        final int highWatermark;
+        final int lowWatermark;
+        final int maxQueued;
+        final long maxCongestedMillis;
+
+        public Limits(int highWatermark, int lowWatermark, int maxQueued, long maxCongestedMillis) {
+            this.highWatermark = highWatermark;
+            this.lowWatermark = lowWatermark;
+            this.maxQueued = maxQueued;
+            this.maxCongestedMillis = maxCongestedMillis;
+        }
+
+        public static Limits fromSystemProperties() {
+            return new Limits(Integer.getInteger("chat.outbound.highWatermark", 256),
+                    Integer.getInteger("chat.outbound.lowWatermark", 64),
+                    Integer.getInteger("chat.outbound.maxQueued", 1024),
+                    Long.getLong("chat.outbound.maxCongestedMs", 15_000));
+        }
+    }
+
+    private final WebSocket conn;
+    private final Limits limits;
+    private final Set<OutboundQueue> backlog;
+    private final ArrayDeque<Object> pending = new ArrayDeque<>();
+    private final Map<String, Framedata> coalesced = new HashMap<>();
+    private long congestedSince;
+    private long dropped;
+    private boolean closed;
+
+    /**
+     * @param backlog set this queue adds itself to while it holds frames, so the drain task only
+     *                visits congested connections
+     */
+    public OutboundQueue(WebSocket conn, Limits limits, Set<OutboundQueue> backlog) {
+        this.conn = conn;
+        this.limits = limits;
+        this.backlog = backlog;
+    }
+
+    /**
+     * Sends or holds the frame according to its delivery class.
+     *
+     * @param key coalescing key, only used for {@link Delivery#COALESCE}
+     * @return {@code false} if the frame was dropped or the connection is gone
+     */
+    public boolean offer(Framedata frame, Delivery delivery, String key) {
+        boolean evict;
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            if (pending.isEmpty() && writeQueueSize() < limits.highWatermark) {
+                return write(frame);
+            }
+            if (congestedSince == 0) {
+                congestedSince = System.currentTimeMillis();
+                backlog.add(this);
+            }
+            switch (delivery) {
+                case DROPPABLE:
+                    dropped++;
+                    return false;
+                case COALESCE:
+                    if (coalesced.put(key, frame) == null) {
+                        pending.add(new CoalesceSlot(key));
+                    } else {
+                        dropped++;
+                    }
+                    break;
+                default:
+                    pending.add(frame);
+                    break;
+            }
+            evict = pending.size() > limits.maxQueued;
+        }
+        if (evict) {
+            evict("Outbound queue limit exceeded");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Moves held frames to the connection once its write queue is below the low watermark, and
+     * evicts the connection if it has been congested for too long.
+     */
+    public void drain() {
+        boolean evict;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (writeQueueSize() <= limits.lowWatermark) {
+                while (!pending.isEmpty() && writeQueueSize() < limits.highWatermark) {
+                    Object next = pending.poll();
+                    Framedata frame = next instanceof CoalesceSlot
+                            ? coalesced.remove(((CoalesceSlot) next).key)
+                            : (Framedata) next;
+                    write(frame);
+                }
+            }
+            if (pending.isEmpty() && writeQueueSize() < limits.highWatermark) {
+                congestedSince = 0;
+                backlog.remove(this);
+                return;
+            }
+            evict = congestedSince != 0 && System.currentTimeMillis() - congestedSince > limits.maxCongestedMillis;
+        }
+        if (evict) {
+            evict("Connection too slow");
+        }
+    }
+
+    /**
+     * Frames waiting for this connection, both held here and buffered by Java-WebSocket.
+     */
+    public synchronized int depth() {
+        return pending.size() + writeQueueSize();
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    private boolean write(Framedata frame) {
+        try {
+            conn.sendFrame(frame);
+            return true;
+        } catch (WebsocketNotConnectedException e) {
+            return false;
+        }
+    }
+
+    private int writeQueueSize() {
+        return conn instanceof WebSocketImpl ? ((WebSocketImpl) conn).outQueue.size() : 0;
+    }
+
+    /**
+     * Discards held frames once the connection is gone.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            pending.clear();
+            coalesced.clear();
+        }
+        backlog.remove(this);
+    }
+
+    /**
+     * Drops the connection without waiting for its backlog: a close handshake would queue behind
+     * the very frames that are holding the heap. {@code onClose} still sees {@link #SLOW_CONSUMER}.
+     */
+    private void evict(String reason) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+        }
+        close();
+        conn.closeConnection(SLOW_CONSUMER, reason);
+    }
+
+    private static class CoalesceSlot {
+        final String key;
+
+        CoalesceSlot(String key) {
+            this.key = key;
+        }
+    }
+}
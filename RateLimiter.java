@@ -0,0 +1,231 @@
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Admission control for inbound events: {@link TokenBucket}s per event type, one set per session
+ * and one shared by all sessions of a user, checked on the WebSocket thread before an event is
+ * decoded or queued. Each type has an action for events over its limit:
+ *
+ * <ul>
+ * <li>{@code drop}: discard silently</li>
+ * <li>{@code coalesce}: keep only the latest event of that type and handle it once a token is
+ * available, for state updates like {@code typing} where only the last one matters</li>
+ * <li>{@code reject}: discard and tell the client</li>
+ * </ul>
+ *
+ * Dropped and rejected events also take a token from the session's strike bucket; a session that
+ * runs out of strikes is disconnected.
+ *
+ * <p>Uploads to the {@link BlobHttpServer} are admitted the same way, as events of type
+ * {@code upload} with one set of buckets per client address.
+ *
+ * <p>Limits are system properties {@code chat.limit.<type>=<perSecond>/<burst>/<action>}, with
+ * {@code chat.limit.default} for all other types. A user's buckets allow
+ * {@code chat.limit.userFactor} times the per-session rate and burst.
+ */
+public class RateLimiter {
+    public enum Action { DROP, COALESCE, REJECT }
+
+    public enum Decision { ACCEPT, DROP, COALESCE, REJECT, DISCONNECT }
+
+    private static final String PREFIX = "chat.limit.";
+    private static final String DEFAULT_TYPE = "default";
+    private static final Set<String> SETTINGS = Set.of("enabled", "userFactor", "strikes", "coalesceIntervalMs");
+    private static final Map<String, String> DEFAULT_LIMITS = new LinkedHashMap<>();
+
+    static {
+        DEFAULT_LIMITS.put("message", "5/20/reject");
+        DEFAULT_LIMITS.put("file", "2/5/reject");
+        DEFAULT_LIMITS.put("location", "2/5/reject");
+        DEFAULT_LIMITS.put("edit", "5/20/reject");
+        DEFAULT_LIMITS.put("delete", "5/20/reject");
+        DEFAULT_LIMITS.put("reaction", "5/15/reject");
+        DEFAULT_LIMITS.put("typing", "4/8/coalesce");
+        DEFAULT_LIMITS.put("read", "10/30/coalesce");
+        DEFAULT_LIMITS.put("presence-sync", "2/5/coalesce");
+        DEFAULT_LIMITS.put("avatar", "100/500/reject");
+        // ICE candidates arrive in bursts when a call starts
+        DEFAULT_LIMITS.put("call-signal", "50/150/reject");
+        DEFAULT_LIMITS.put("upload", "1/10/reject");
+        DEFAULT_LIMITS.put(DEFAULT_TYPE, "5/20/reject");
+    }
+
+    private final boolean enabled;
+    private final Map<String, Integer> typeIndex = new HashMap<>();
+    private final Limit[] limits;
+    private final double userFactor;
+    private final Limit strikes;
+    private final Map<String, TokenBucket[]> users = new ConcurrentHashMap<>();
+
+    /**
+     * @param limits     limit per event type, including {@code "default"} for all other types
+     * @param userFactor multiple of the per-session limits that all sessions of one user share
+     * @param strikes    rate and burst of over-limit events a session may send before it is
+     *                   disconnected
+     */
+    public RateLimiter(boolean enabled, Map<String, Limit> limits, double userFactor, Limit strikes) {
+        if (!limits.containsKey(DEFAULT_TYPE)) {
+            throw new IllegalArgumentException("Missing the default limit");
+        }
+        this.enabled = enabled;
+        this.limits = new Limit[limits.size()];
+        int index = 0;
+        for (Map.Entry<String, Limit> entry : limits.entrySet()) {
+            typeIndex.put(entry.getKey(), index);
+            this.limits[index++] = entry.getValue();
+        }
+        this.userFactor = userFactor;
+        this.strikes = strikes;
+    }
+
+    public static RateLimiter fromSystemProperties() {
+        Map<String, Limit> limits = new LinkedHashMap<>();
+        DEFAULT_LIMITS.forEach((type, spec) -> limits.put(type, Limit.parse(spec)));
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(PREFIX) && !SETTINGS.contains(name.substring(PREFIX.length()))) {
+                limits.put(name.substring(PREFIX.length()), Limit.parse(System.getProperty(name)));
+            }
+        }
+        return new RateLimiter(Boolean.parseBoolean(System.getProperty(PREFIX + "enabled", "true")), limits,
+                Double.parseDouble(System.getProperty(PREFIX + "userFactor", "2")),
+                Limit.parse(System.getProperty(PREFIX + "strikes", "2/50/drop")));
+    }
+
+    public SessionLimits newSession() {
+        return new SessionLimits(this);
+    }
+
+    /**
+     * Decides what to do with an event of this type. A coalesced event is kept in the session
+     * until {@link #releaseParked} finds a token for it.
+     *
+     * @param username the session's user, or {@code null} before it joined
+     * @param type     the event type, or {@code null} if it could not be read
+     * @param frame    the undecoded frame
+     */
+    public Decision admit(SessionLimits session, String username, String type, Object frame) {
+        if (!enabled) {
+            return Decision.ACCEPT;
+        }
+        int index = indexOf(type);
+        if (acquire(session, username, index)) {
+            return Decision.ACCEPT;
+        }
+        Limit limit = limits[index];
+        if (limit.action == Action.COALESCE) {
+            session.parked.set(index, frame);
+            return Decision.COALESCE;
+        }
+        if (!session.strikes.tryAcquire()) {
+            return Decision.DISCONNECT;
+        }
+        return limit.action == Action.DROP ? Decision.DROP : Decision.REJECT;
+    }
+
+    /**
+     * Hands every coalesced event that now fits the session's limits to {@code handler}.
+     *
+     * @return {@code true} if events are still waiting
+     */
+    public boolean releaseParked(SessionLimits session, String username, Consumer<Object> handler) {
+        boolean waiting = false;
+        for (int i = 0; i < limits.length; i++) {
+            if (session.parked.get(i) == null) {
+                continue;
+            }
+            if (acquire(session, username, i)) {
+                Object frame = session.parked.getAndSet(i, null);
+                if (frame != null) {
+                    handler.accept(frame);
+                }
+            } else {
+                waiting = true;
+            }
+        }
+        return waiting;
+    }
+
+    /**
+     * Drops the shared buckets of a user who has no sessions left.
+     */
+    public void forget(String username) {
+        users.remove(username);
+    }
+
+    private boolean acquire(SessionLimits session, String username, int index) {
+        if (!session.types[index].tryAcquire()) {
+            return false;
+        }
+        if (username == null) {
+            return true;
+        }
+        TokenBucket[] shared = users.get(username);
+        if (shared == null) {
+            shared = users.computeIfAbsent(username, u -> buckets(userFactor));
+        }
+        if (shared[index].tryAcquire()) {
+            return true;
+        }
+        // Refused for the user as a whole, so the session has not spent its token
+        session.types[index].release();
+        return false;
+    }
+
+    private int indexOf(String type) {
+        Integer index = type != null ? typeIndex.get(type) : null;
+        return index != null ? index : typeIndex.get(DEFAULT_TYPE);
+    }
+
+    private TokenBucket[] buckets(double factor) {
+        TokenBucket[] buckets = new TokenBucket[limits.length];
+        for (int i = 0; i < limits.length; i++) {
+            buckets[i] = new TokenBucket(limits[i].perSecond * factor, (int) Math.ceil(limits[i].burst * factor));
+        }
+        return buckets;
+    }
+
+    public static class Limit {
+        final double perSecond;
+        final int burst;
+        final Action action;
+
+        public Limit(double perSecond, int burst, Action action) {
+            this.perSecond = perSecond;
+            this.burst = burst;
+            this.action = action;
+        }
+
+        /**
+         * Parses {@code <perSecond>/<burst>/<action>}, e.g. {@code 4/8/coalesce}.
+         */
+        public static Limit parse(String spec) {
+            String[] parts = spec.split("/");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Expected <perSecond>/<burst>/<action>, got " + spec);
+            }
+            return new Limit(Double.parseDouble(parts[0].trim()), Integer.parseInt(parts[1].trim()),
+                    Action.valueOf(parts[2].trim().toUpperCase(Locale.ROOT)));
+        }
+    }
+
+    /**
+     * Buckets and coalesced events of one session.
+     */
+    public static class SessionLimits {
+        private final TokenBucket[] types;
+        private final TokenBucket strikes;
+        private final AtomicReferenceArray<Object> parked;
+
+        SessionLimits(RateLimiter limiter) {
+            types = limiter.buckets(1);
+            strikes = new TokenBucket(limiter.strikes.perSecond, limiter.strikes.burst);
+            parked = new AtomicReferenceArray<>(types.length);
+        }
+    }
+}
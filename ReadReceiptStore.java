@@ -0,0 +1,210 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded store of who has read which message. Messages are tracked in a fixed ring of slots
+ * indexed by a primitive {@link LongIntMap}; each slot holds the sorted interned ids of its
+ * readers. When the ring is full, or a message is older than the retention period, the oldest
+ * message is evicted. Each stored reader, and each pending one, holds a reference to its id in
+ * {@link UserIds}, released when the message or the pending entry goes.
+ *
+ * <p>New reads are also appended to a pending list so they can be broadcast in batches: one
+ * {@link #drainPending} call returns the readers added since the previous call, grouped by message.
+ */
+public class ReadReceiptStore {
+    private static final int[] NO_READERS = new int[0];
+
+    private final UserIds userIds;
+    private final long retentionMillis;
+    private final LongIntMap slots;
+    private final long[] messageIds;
+    private final long[] createdAt;
+    private final int[][] readers;
+    private final int[] readerCounts;
+    private int head;
+    private int size;
+
+    private long[] pendingMessages = new long[64];
+    private int[] pendingReaders = new int[64];
+    private int pendingCount;
+
+    public ReadReceiptStore(UserIds userIds, int maxMessages, long retentionMillis) {
+        this.userIds = userIds;
+        this.retentionMillis = retentionMillis;
+        this.slots = new LongIntMap(maxMessages);
+        this.messageIds = new long[maxMessages];
+        this.createdAt = new long[maxMessages];
+        this.readers = new int[maxMessages][];
+        this.readerCounts = new int[maxMessages];
+    }
+
+    /**
+     * Records that the user read the message.
+     *
+     * @return {@code false} if the user had already read it
+     */
+    public synchronized boolean markRead(long messageId, String username) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        int slot = slots.get(messageId);
+        if (slot < 0) {
+            slot = allocate(messageId, now);
+        }
+        int userId = userIds.acquire(username);
+        int[] slotReaders = readers[slot];
+        int count = readerCounts[slot];
+        int index = Arrays.binarySearch(slotReaders, 0, count, userId);
+        if (index >= 0) {
+            userIds.release(userId);
+            return false;
+        }
+        index = -index - 1;
+        if (count == slotReaders.length) {
+            slotReaders = Arrays.copyOf(slotReaders, Math.max(4, count * 2));
+            readers[slot] = slotReaders;
+        }
+        System.arraycopy(slotReaders, index, slotReaders, index + 1, count - index);
+        slotReaders[index] = userId;
+        readerCounts[slot] = count + 1;
+        addPending(messageId, userIds.acquire(username));
+        return true;
+    }
+
+    public synchronized List<String> getReaders(long messageId) {
+        int slot = slots.get(messageId);
+        if (slot < 0) {
+            return new ArrayList<>();
+        }
+        List<String> names = new ArrayList<>(readerCounts[slot]);
+        for (int i = 0; i < readerCounts[slot]; i++) {
+            names.add(userIds.name(readers[slot][i]));
+        }
+        return names;
+    }
+
+    public synchronized void remove(long messageId) {
+        int slot = slots.remove(messageId);
+        if (slot >= 0) {
+            releaseReaders(slot);
+            readers[slot] = NO_READERS;
+            readerCounts[slot] = 0;
+        }
+    }
+
+    public synchronized int size() {
+        return slots.size();
+    }
+
+    /**
+     * Returns the readers added since the previous call, keyed by message id in arrival order, and
+     * clears the pending list. Reads of messages that were removed or evicted in the meantime are
+     * skipped.
+     */
+    public synchronized Map<Long, List<String>> drainPending() {
+        Map<Long, List<String>> batch = new LinkedHashMap<>();
+        for (int i = 0; i < pendingCount; i++) {
+            long messageId = pendingMessages[i];
+            if (slots.containsKey(messageId)) {
+                batch.computeIfAbsent(messageId, k -> new ArrayList<>()).add(userIds.name(pendingReaders[i]));
+            }
+            userIds.release(pendingReaders[i]);
+        }
+        pendingCount = 0;
+        if (pendingMessages.length > 4096) {
+            pendingMessages = new long[64];
+            pendingReaders = new int[64];
+        }
+        return batch;
+    }
+
+    /**
+     * Passes every tracked message with its readers to {@code receipts}, oldest first.
+     */
+    public synchronized void forEach(Receipts receipts) {
+        for (int i = 0; i < size; i++) {
+            int slot = (head + i) % messageIds.length;
+            if (slots.get(messageIds[slot]) != slot) {
+                continue;
+            }
+            List<String> names = new ArrayList<>(readerCounts[slot]);
+            for (int j = 0; j < readerCounts[slot]; j++) {
+                names.add(userIds.name(readers[slot][j]));
+            }
+            receipts.accept(messageIds[slot], createdAt[slot], names);
+        }
+    }
+
+    /**
+     * Adds a message and its readers as passed by {@link #forEach}, e.g. from a snapshot. Messages
+     * are restored oldest first, and none of them count as pending.
+     */
+    public synchronized void restore(long messageId, long created, List<String> names) {
+        if (System.currentTimeMillis() - created > retentionMillis || slots.containsKey(messageId)) {
+            return;
+        }
+        int slot = allocate(messageId, created);
+        int[] ids = new int[names.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = userIds.acquire(names.get(i));
+        }
+        Arrays.sort(ids);
+        readers[slot] = ids;
+        readerCounts[slot] = ids.length;
+    }
+
+    private int allocate(long messageId, long now) {
+        int capacity = messageIds.length;
+        if (size == capacity) {
+            evictOldest();
+        }
+        int slot = (head + size) % capacity;
+        size++;
+        messageIds[slot] = messageId;
+        createdAt[slot] = now;
+        readers[slot] = NO_READERS;
+        readerCounts[slot] = 0;
+        slots.put(messageId, slot);
+        return slot;
+    }
+
+    private void expire(long now) {
+        while (size > 0 && now - createdAt[head] > retentionMillis) {
+            evictOldest();
+        }
+    }
+
+    private void evictOldest() {
+        long messageId = messageIds[head];
+        if (slots.get(messageId) == head) {
+            slots.remove(messageId);
+        }
+        releaseReaders(head);
+        readers[head] = null;
+        readerCounts[head] = 0;
+        head = (head + 1) % messageIds.length;
+        size--;
+    }
+
+    private void releaseReaders(int slot) {
+        for (int i = 0; i < readerCounts[slot]; i++) {
+            userIds.release(readers[slot][i]);
+        }
+    }
+
+    private void addPending(long messageId, int userId) {
+        if (pendingCount == pendingMessages.length) {
+            pendingMessages = Arrays.copyOf(pendingMessages, pendingCount * 2);
+            pendingReaders = Arrays.copyOf(pendingReaders, pendingCount * 2);
+        }
+        pendingMessages[pendingCount] = messageId;
+        pendingReaders[pendingCount] = userId;
+        pendingCount++;
+    }
+
+    public interface Receipts {
+        void accept(long messageId, long createdAt, List<String> readers);
+    }
+}
@@ -0,0 +1,56 @@
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Which other cluster nodes each user is connected to, as announced over the {@link ClusterBus}.
+ * A user counts as present on a node while it is in at least one room there. Used to route
+ * direct messages such as call signals to the nodes that can deliver them.
+ *
+ * <p>Announcements are idempotent, so a presence snapshot may overlap with live updates.
+ */
+public class RemotePresence {
+    private final Map<String, Map<String, Set<String>>> roomsByUserAndNode = new ConcurrentHashMap<>();
+
+    public void add(String nodeId, String username, String room) {
+        roomsByUserAndNode.compute(username, (name, nodes) -> {
+            if (nodes == null) {
+                nodes = new ConcurrentHashMap<>();
+            }
+            nodes.computeIfAbsent(nodeId, k -> ConcurrentHashMap.newKeySet()).add(room);
+            return nodes;
+        });
+    }
+
+    public void remove(String nodeId, String username, String room) {
+        roomsByUserAndNode.computeIfPresent(username, (name, nodes) -> {
+            nodes.computeIfPresent(nodeId, (id, rooms) -> {
+                rooms.remove(room);
+                return rooms.isEmpty() ? null : rooms;
+            });
+            return nodes.isEmpty() ? null : nodes;
+        });
+    }
+
+    /**
+     * Forgets everything the node announced.
+     */
+    public void removeNode(String nodeId) {
+        for (String username : roomsByUserAndNode.keySet()) {
+            roomsByUserAndNode.computeIfPresent(username, (name, nodes) -> {
+                nodes.remove(nodeId);
+                return nodes.isEmpty() ? null : nodes;
+            });
+        }
+    }
+
+    public Set<String> getNodes(String username) {
+        Map<String, Set<String>> nodes = roomsByUserAndNode.get(username);
+        return nodes != null ? nodes.keySet() : Collections.emptySet();
+    }
+
+    public boolean isOnline(String username) {
+        return roomsByUserAndNode.containsKey(username);
+    }
+}
@@ -0,0 +1,187 @@
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resume tokens, one per user, handed out on {@code join}. When a user's connections drop, their
+ * place in each room and their calls are held for a grace period instead of being given up, so a
+ * client that reconnects with the token within that time is put back quietly: no leave and join
+ * notices, no presence churn, only the events it missed. Held places are part of the
+ * {@link StateSnapshot}, so the same holds for every client reconnecting after a restart.
+ *
+ * <p>The grace period is {@code chat.resume.graceMs}; 0 turns resuming off.
+ */
+public class ResumeTokens {
+    private static final int TOKEN_BYTES = 18;
+
+    private final long graceMillis;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Ticket> byUser = new ConcurrentHashMap<>();
+    private final Map<String, Ticket> byToken = new ConcurrentHashMap<>();
+
+    public ResumeTokens(long graceMillis) {
+        this.graceMillis = graceMillis;
+    }
+
+    public static ResumeTokens fromSystemProperties() {
+        return new ResumeTokens(Long.getLong("chat.resume.graceMs", 60_000));
+    }
+
+    public boolean isEnabled() {
+        return graceMillis > 0;
+    }
+
+    public long getGraceMillis() {
+        return graceMillis;
+    }
+
+    /**
+     * Returns the user's ticket for a session that just joined, creating it on the user's first
+     * join. Unless the session resumed with the ticket's token, the ticket gets a new token: a
+     * token only ever goes to a session that already held it, so joining under a name never
+     * reveals the token of its earlier sessions. They keep their places but can no longer resume.
+     *
+     * @param resumed the ticket the session's token resumed, or {@code null}
+     */
+    public Ticket issue(String username, Ticket resumed) {
+        return byUser.compute(username, (name, ticket) -> {
+            if (ticket == null) {
+                ticket = new Ticket(newToken(), name);
+            } else if (ticket == resumed) {
+                return ticket;
+            } else {
+                byToken.remove(ticket.token, ticket);
+                ticket.token = newToken();
+            }
+            byToken.put(ticket.token, ticket);
+            return ticket;
+        });
+    }
+
+    private String newToken() {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    /**
+     * Returns the ticket if the token is the user's, or {@code null} for an unknown, expired or
+     * someone else's token.
+     */
+    public Ticket resume(String token, String username) {
+        Ticket ticket = byToken.get(token);
+        return ticket != null && ticket.username.equals(username) ? ticket : null;
+    }
+
+    public Ticket get(String username) {
+        return byUser.get(username);
+    }
+
+    /**
+     * Drops the user's ticket, after an explicit leave or once nothing is held any more.
+     */
+    public void forget(Ticket ticket) {
+        if (byUser.remove(ticket.username, ticket)) {
+            byToken.remove(ticket.token, ticket);
+        }
+    }
+
+    /**
+     * Adds a ticket read from a snapshot, with all its places held from now on.
+     */
+    public Ticket restore(String token, String username, Collection<String> rooms, long now) {
+        Ticket ticket = new Ticket(token, username);
+        for (String room : rooms) {
+            ticket.hold(room, now + graceMillis);
+        }
+        ticket.offlineUntil = now + graceMillis;
+        byUser.put(username, ticket);
+        byToken.put(token, ticket);
+        return ticket;
+    }
+
+    public Collection<Ticket> getTickets() {
+        return byUser.values();
+    }
+
+    /**
+     * A user's token and the places held for them. Rooms are held one by one, as the user's last
+     * session in each leaves, and calls once the user has no session left at all.
+     */
+    public class Ticket {
+        private volatile String token;
+        private final String username;
+        // Deadline by room
+        private final Map<String, Long> heldRooms = new ConcurrentHashMap<>();
+        // Deadline for the user's calls, 0 while the user is online
+        private volatile long offlineUntil;
+
+        Ticket(String token, String username) {
+            this.token = token;
+            this.username = username;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public void hold(String room) {
+            hold(room, System.currentTimeMillis() + graceMillis);
+        }
+
+        void hold(String room, long deadline) {
+            heldRooms.put(room, deadline);
+        }
+
+        /**
+         * Takes the room off hold.
+         *
+         * @return {@code false} if it was not held, or just expired
+         */
+        public boolean release(String room) {
+            return heldRooms.remove(room) != null;
+        }
+
+        public Set<String> getHeldRooms() {
+            return heldRooms.keySet();
+        }
+
+        /**
+         * Removes and returns the rooms whose hold ran out.
+         */
+        public List<String> expireRooms(long now) {
+            List<String> expired = new ArrayList<>();
+            for (Map.Entry<String, Long> entry : heldRooms.entrySet()) {
+                if (entry.getValue() <= now && heldRooms.remove(entry.getKey(), entry.getValue())) {
+                    expired.add(entry.getKey());
+                }
+            }
+            return expired;
+        }
+
+        public void setOffline() {
+            offlineUntil = System.currentTimeMillis() + graceMillis;
+        }
+
+        public void setOnline() {
+            offlineUntil = 0;
+        }
+
+        /**
+         * Whether the user has been offline for longer than the grace period.
+         */
+        public boolean isExpired(long now) {
+            long deadline = offlineUntil;
+            return deadline != 0 && deadline <= now;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.java_websocket.WebSocket;
+
+/**
+ * A chat room: the connections that joined it, the users other cluster nodes announced in it,
+ * and the room's presence, typing, read-receipt and message state.
+ *
+ * <p>A room is confined to the {@link ShardedExecutor} shard that owns its name. Membership is
+ * only read and changed on that shard's thread, which is also the thread that broadcasts to the
+ * room, so it needs no locking and every member sees the room's events in the same order.
+ */
+public class Room {
+    public static final String DEFAULT = "lobby";
+
+    private final String name;
+    private final Map<WebSocket, String> members = new LinkedHashMap<>();
+    private final Map<String, Integer> users = new LinkedHashMap<>();
+    // Avatar id by node, per username
+    private final Map<String, Map<String, String>> remoteUsers = new LinkedHashMap<>();
+    private final RoomPresence presence = new RoomPresence();
+    private final TypingPresence typing;
+    private final ReadReceiptStore readReceipts;
+    private final MessageStateStore messageStates;
+
+    Room(String name, TypingPresence typing, ReadReceiptStore readReceipts, MessageStateStore messageStates) {
+        this.name = name;
+        this.typing = typing;
+        this.readReceipts = readReceipts;
+        this.messageStates = messageStates;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Adds the connection under the given username.
+     *
+     * @return {@code true} if this is the user's first session in the room
+     */
+    public boolean add(WebSocket conn, String username) {
+        if (members.putIfAbsent(conn, username) != null) {
+            return false;
+        }
+        return users.merge(username, 1, Integer::sum) == 1;
+    }
+
+    /**
+     * Removes the connection.
+     *
+     * @return {@code true} if this was the user's last session in the room
+     */
+    public boolean remove(WebSocket conn) {
+        String username = members.remove(conn);
+        if (username == null) {
+            return false;
+        }
+        boolean last = users.computeIfPresent(username, (k, count) -> count > 1 ? count - 1 : null) == null;
+        if (last) {
+            typing.remove(username);
+        }
+        return last;
+    }
+
+    public boolean contains(WebSocket conn) {
+        return members.containsKey(conn);
+    }
+
+    /**
+     * Records that the user is in this room on another node.
+     *
+     * @return {@code true} if the user was not in the room on any node, this one included
+     */
+    public boolean addRemote(String nodeId, String username, String avatarId) {
+        boolean added = !hasUser(username);
+        remoteUsers.computeIfAbsent(username, k -> new LinkedHashMap<>()).put(nodeId, avatarId);
+        return added;
+    }
+
+    /**
+     * @return {@code true} if the user is no longer in the room on any node, this one included
+     */
+    public boolean removeRemote(String nodeId, String username) {
+        Map<String, String> nodes = remoteUsers.get(username);
+        if (nodes == null || nodes.remove(nodeId) == null) {
+            return false;
+        }
+        if (nodes.isEmpty()) {
+            remoteUsers.remove(username);
+        }
+        return !hasUser(username);
+    }
+
+    /**
+     * Forgets every user announced by the node and returns those that left the room entirely.
+     */
+    public List<String> removeNode(String nodeId) {
+        List<String> gone = new ArrayList<>();
+        for (String username : new ArrayList<>(remoteUsers.keySet())) {
+            if (removeRemote(nodeId, username)) {
+                gone.add(username);
+            }
+        }
+        return gone;
+    }
+
+    /**
+     * Whether the user is in the room on any node.
+     */
+    public boolean hasUser(String username) {
+        return users.containsKey(username) || remoteUsers.containsKey(username);
+    }
+
+    public String getRemoteAvatarId(String username) {
+        Map<String, String> nodes = remoteUsers.get(username);
+        return nodes != null && !nodes.isEmpty() ? nodes.values().iterator().next() : null;
+    }
+
+    /**
+     * Whether the room has neither local members nor users on other nodes.
+     */
+    public boolean isEmpty() {
+        return members.isEmpty() && remoteUsers.isEmpty();
+    }
+
+    public String getUsername(WebSocket conn) {
+        return members.get(conn);
+    }
+
+    /**
+     * Live view of the member connections, i.e. the room's broadcast audience.
+     */
+    public Collection<WebSocket> getConnections() {
+        return members.keySet();
+    }
+
+    /**
+     * Live view of the usernames with at least one session in the room on this node.
+     */
+    public Set<String> getLocalUsernames() {
+        return users.keySet();
+    }
+
+    /**
+     * Usernames in the room on any node.
+     */
+    public Set<String> getUsernames() {
+        if (remoteUsers.isEmpty()) {
+            return users.keySet();
+        }
+        Set<String> usernames = new LinkedHashSet<>(users.keySet());
+        usernames.addAll(remoteUsers.keySet());
+        return usernames;
+    }
+
+    public RoomPresence getPresence() {
+        return presence;
+    }
+
+    public TypingPresence getTyping() {
+        return typing;
+    }
+
+    public ReadReceiptStore getReadReceipts() {
+        return readReceipts;
+    }
+
+    public MessageStateStore getMessageStates() {
+        return messageStates;
+    }
+
+    @Override
+    public String toString() {
+        return "Room{name=" + name + ", members=" + members.size() + "}";
+    }
+}
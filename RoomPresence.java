@@ -0,0 +1,101 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Versioned presence of one room. Clients get a snapshot of the room's users when they enter it
+ * and only deltas afterwards; users added and removed between two flushes are batched into one
+ * delta, and the version goes up by one per delta so a client can tell when it missed one.
+ *
+ * <p>Like its {@link Room}, confined to the room's shard thread.
+ */
+public class RoomPresence {
+    private final Map<String, String> added = new LinkedHashMap<>();
+    private final Set<String> removed = new LinkedHashSet<>();
+    private long version;
+    // Bumped on every change, to tell whether the cached snapshot is still current
+    private long changes;
+    private EncodedEvent snapshot;
+    private long snapshotChanges = -1;
+
+    /**
+     * Records that the user is in the room, or changed avatar.
+     */
+    public void add(String username, String avatarId) {
+        removed.remove(username);
+        added.put(username, avatarId);
+        changes++;
+    }
+
+    public void remove(String username) {
+        added.remove(username);
+        removed.add(username);
+        changes++;
+    }
+
+    /**
+     * Returns the snapshot cached by {@link #setSnapshot}, or {@code null} if presence changed
+     * since. While nobody enters or leaves, e.g. while clients resume after a restart, every
+     * newcomer gets the same encoded snapshot.
+     */
+    public EncodedEvent getSnapshot() {
+        return snapshotChanges == changes ? snapshot : null;
+    }
+
+    public void setSnapshot(EncodedEvent snapshot) {
+        this.snapshot = snapshot;
+        snapshotChanges = changes;
+    }
+
+    /**
+     * Version of the last delta handed out. A snapshot taken now is at this version, possibly
+     * including changes the next delta will repeat; applying a delta twice is harmless.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the changes since the previous flush, or {@code null} if there were none.
+     */
+    public Delta flush() {
+        if (added.isEmpty() && removed.isEmpty()) {
+            return null;
+        }
+        Delta delta = new Delta(++version, new LinkedHashMap<>(added), new ArrayList<>(removed));
+        changes++;
+        added.clear();
+        removed.clear();
+        return delta;
+    }
+
+    public static class Delta {
+        private final long version;
+        private final Map<String, String> added;
+        private final List<String> removed;
+
+        Delta(long version, Map<String, String> added, List<String> removed) {
+            this.version = version;
+            this.added = added;
+            this.removed = removed;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Avatar ids of the users that entered the room, keyed by username.
+         */
+        public Map<String, String> getAdded() {
+            return added;
+        }
+
+        public List<String> getRemoved() {
+            return removed;
+        }
+    }
+}
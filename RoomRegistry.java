@@ -0,0 +1,38 @@
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Rooms by name. Rooms are created when the first session joins and dropped when the last one
+ * leaves; both happen on the room's shard, so a room is never dropped while a join is in flight.
+ */
+public class RoomRegistry {
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    private final Function<String, Room> factory;
+
+    public RoomRegistry(Function<String, Room> factory) {
+        this.factory = factory;
+    }
+
+    public Room getOrCreate(String name) {
+        return rooms.computeIfAbsent(name, factory);
+    }
+
+    public Room get(String name) {
+        return rooms.get(name);
+    }
+
+    public void removeIfEmpty(Room room) {
+        if (room.isEmpty()) {
+            rooms.remove(room.getName(), room);
+        }
+    }
+
+    /**
+     * Live view of the current rooms. Only the owning shard may look inside a room.
+     */
+    public Collection<Room> getRooms() {
+        return rooms.values();
+    }
+}
@@ -0,0 +1,857 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Inverted index over chat message text for search. Every message, edit and delete becomes a
+ * document with a sequential number; each word maps to the ascending list of documents that
+ * contain it. Results come newest document first, and a document number is also the cursor for
+ * the next page.
+ *
+ * <p>New documents go to an in-memory tail. Once the tail holds {@code segmentDocs} documents,
+ * {@link #sealIfFull} writes it to {@code <baseDoc>.seg} and maps the file; segments are never
+ * changed afterwards, and beyond {@code maxSegments} the oldest is deleted. {@link #close} writes
+ * the partial tail the same way, and it is read back into the tail on open.
+ *
+ * <p>Segment layout: a header ({@code int magic, int version, int baseDoc, int docCount,
+ * long lastOffset} and the positions of the sections), a table of the room and user names used
+ * below, an {@code int} position per document, the documents
+ * ({@code [byte kind][long messageId][varint room][varint user][string text]}), the words in
+ * sorted order with their posting lists as varint deltas, the documents that edit or delete a
+ * message, and a CRC-32 of everything before it. Only every 64th word stays on the heap; a lookup
+ * binary searches those and scans at most 64 words in the mapped file.
+ *
+ * <p>An edit adds the new text as a new document and a delete adds an empty one; the latest
+ * document of each message that has been edited or deleted is kept in memory, and older versions
+ * are skipped in results. {@code lastOffset} is the highest {@link MessageLog} offset indexed, so
+ * documents lost with an unwritten tail can be indexed again from the log.
+ *
+ * <p>Thread-safe. Adds take a lock, which a search holds only to read the tail and to check its
+ * results against the latest versions; sealed segments are searched, and written, outside it.
+ */
+public class SearchIndex implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(SearchIndex.class);
+    // <baseDoc>.seg, or a segment file left half written
+    private static final Pattern SEGMENT_FILE = Pattern.compile("(0|[1-9][0-9]{0,8})\\.seg(\\.tmp)?");
+    private static final int MAGIC = 0x43534958;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 40;
+    private static final int MAX_WORD_LENGTH = 32;
+    private static final int MAX_QUERY_WORDS = 8;
+    private static final int TERM_INDEX_INTERVAL = 64;
+    private static final byte MESSAGE = 0;
+    private static final byte EDIT = 1;
+    private static final byte DELETE = 2;
+
+    private final Path dir;
+    private final int segmentDocs;
+    private final int maxSegments;
+    // Sealed segments, oldest first
+    private final List<Segment> segments = new ArrayList<>();
+    // Per room, the document with the latest version of every message that was edited or deleted
+    private final Map<String, LongIntMap> latest = new HashMap<>();
+    // Held while a segment file is written, so close waits for a seal in progress
+    private final Object writeLock = new Object();
+    private Tail tail;
+    // A full tail being written; searched until its segment is open
+    private Tail sealing;
+
+    public SearchIndex(Path dir, int segmentDocs, int maxSegments) throws IOException {
+        if (segmentDocs < 1) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentDocs);
+        }
+        this.dir = dir;
+        this.segmentDocs = segmentDocs;
+        this.maxSegments = Math.max(1, maxSegments);
+        Files.createDirectories(dir);
+        recover();
+    }
+
+    /**
+     * Indexes a new message.
+     *
+     * @param offset the message log offset of the event, or {@code -1} if it was not logged
+     */
+    public void add(long offset, String room, long messageId, String username, String text) {
+        append(offset, new Doc(MESSAGE, messageId, room, username, text), tokenize(text));
+    }
+
+    /**
+     * Indexes the new text of a message; its earlier versions no longer match.
+     */
+    public void edit(long offset, String room, long messageId, String username, String text) {
+        append(offset, new Doc(EDIT, messageId, room, username, text), tokenize(text));
+    }
+
+    /**
+     * Removes the message from results.
+     */
+    public void delete(long offset, String room, long messageId, String username) {
+        append(offset, new Doc(DELETE, messageId, room, username, null), List.of());
+    }
+
+    private synchronized void append(long offset, Doc doc, List<String> words) {
+        int number = tail.add(doc, words);
+        if (doc.kind != MESSAGE) {
+            latest.computeIfAbsent(doc.room, k -> new LongIntMap(16)).put(doc.messageId, number);
+        }
+        tail.lastOffset = Math.max(tail.lastOffset, offset);
+    }
+
+    /**
+     * Returns up to {@code limit} messages of the room containing every word of the query, newest
+     * first, among documents numbered below {@code before}. Only the first eight words count.
+     */
+    public Page search(String room, String query, int before, int limit) {
+        List<String> words = tokenize(query);
+        if (words.size() > MAX_QUERY_WORDS) {
+            words = words.subList(0, MAX_QUERY_WORDS);
+        }
+        List<Hit> hits = new ArrayList<>();
+        if (words.isEmpty() || limit <= 0) {
+            return new Page(hits, -1);
+        }
+        List<Source> sealed = new ArrayList<>();
+        int next;
+        synchronized (this) {
+            // The tail changes with every add; what is sealed does not, and is searched outside
+            // the lock so adds do not wait for it
+            next = collect(tail, room, words, before, limit, hits);
+            if (sealing != null) {
+                sealed.add(sealing);
+            }
+            for (int i = segments.size() - 1; i >= 0; i--) {
+                sealed.add(segments.get(i));
+            }
+        }
+        for (int i = 0; i < sealed.size() && hits.size() < limit; i++) {
+            int last = collect(sealed.get(i), room, words, before, limit, hits);
+            if (last >= 0) {
+                next = last;
+            }
+        }
+        return new Page(hits, hits.size() == limit ? next : -1);
+    }
+
+    /**
+     * Adds the source's documents in the room that contain every word and are numbered below
+     * {@code before} to the hits, newest first, until there are {@code limit}, and returns the
+     * number of the last one added, or {@code -1} if none. Candidates are checked against the
+     * latest versions under the lock, a page's worth at a time.
+     */
+    private int collect(Source source, String room, List<String> words, int before, int limit, List<Hit> hits) {
+        if (source.baseDoc() >= before) {
+            return -1;
+        }
+        int roomRef = source.roomRef(room);
+        if (roomRef < 0) {
+            return -1;
+        }
+        Postings[] lists = new Postings[words.size()];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = source.postings(words.get(i));
+            if (lists[i] == null) {
+                return -1;
+            }
+        }
+        Postings matches = intersect(lists);
+        int last = -1;
+        int[] candidates = new int[limit - hits.size()];
+        List<Doc> stored = new ArrayList<>(candidates.length);
+        for (int i = matches.size - 1; i >= 0 && hits.size() < limit; ) {
+            stored.clear();
+            for (int wanted = limit - hits.size(); i >= 0 && stored.size() < wanted; i--) {
+                int doc = matches.docs[i];
+                Doc candidate = doc < before ? source.doc(doc, roomRef) : null;
+                if (candidate != null) {
+                    candidates[stored.size()] = doc;
+                    stored.add(candidate);
+                }
+            }
+            synchronized (this) {
+                LongIntMap roomLatest = latest.get(room);
+                int first = firstDoc();
+                for (int c = 0; c < stored.size(); c++) {
+                    Doc doc = stored.get(c);
+                    // Below the first document, its segment was dropped meanwhile with what
+                    // superseded it
+                    if (candidates[c] < first
+                            || roomLatest != null && isSuperseded(roomLatest, doc.messageId, candidates[c])) {
+                        continue;
+                    }
+                    hits.add(new Hit(doc.messageId, doc.username, doc.text));
+                    last = candidates[c];
+                }
+            }
+        }
+        return last;
+    }
+
+    private static boolean isSuperseded(LongIntMap roomLatest, long messageId, int doc) {
+        int newest = roomLatest.get(messageId);
+        return newest >= 0 && newest != doc;
+    }
+
+    /**
+     * The documents in every list, ascending. Starts from the shortest list and looks each
+     * candidate up in the others, moving forward only, so rare words keep it cheap.
+     */
+    private static Postings intersect(Postings[] lists) {
+        Arrays.sort(lists, Comparator.comparingInt(p -> p.size));
+        Postings result = new Postings(Arrays.copyOf(lists[0].docs, lists[0].size), lists[0].size);
+        for (int l = 1; l < lists.length && result.size > 0; l++) {
+            Postings other = lists[l];
+            int from = 0;
+            int kept = 0;
+            for (int i = 0; i < result.size && from < other.size; i++) {
+                int found = Arrays.binarySearch(other.docs, from, other.size, result.docs[i]);
+                if (found >= 0) {
+                    result.docs[kept++] = result.docs[i];
+                    from = found + 1;
+                } else {
+                    from = -found - 1;
+                }
+            }
+            result.size = kept;
+        }
+        return result;
+    }
+
+    /**
+     * Highest message log offset indexed; the log is indexed again from the record after it.
+     */
+    public synchronized long getIndexedOffset() {
+        return tail.lastOffset;
+    }
+
+    /**
+     * Number of documents retained.
+     */
+    public synchronized int size() {
+        return tail.baseDoc + tail.docs.size() - firstDoc();
+    }
+
+    private int firstDoc() {
+        return segments.isEmpty() ? (sealing != null ? sealing.baseDoc : tail.baseDoc) : segments.get(0).baseDoc;
+    }
+
+    /**
+     * Writes the tail to a segment once it is full. Called periodically from one thread; a failed
+     * write is retried on the next call.
+     */
+    public void sealIfFull() throws IOException {
+        synchronized (writeLock) {
+            Tail full;
+            synchronized (this) {
+                if (sealing == null) {
+                    if (tail.docs.size() < segmentDocs) {
+                        return;
+                    }
+                    sealing = tail;
+                    tail = new Tail(sealing.baseDoc + sealing.docs.size(), sealing.lastOffset);
+                }
+                full = sealing;
+            }
+            Path file = write(full);
+            Segment segment = Segment.open(file);
+            synchronized (this) {
+                segments.add(segment);
+                sealing = null;
+                dropOldSegments();
+            }
+        }
+    }
+
+    /**
+     * Deletes the oldest segments beyond {@code maxSegments} and forgets the latest versions that
+     * were in them; every earlier version of those messages was in them too.
+     */
+    private void dropOldSegments() throws IOException {
+        if (segments.size() <= maxSegments) {
+            return;
+        }
+        while (segments.size() > maxSegments) {
+            Segment oldest = segments.remove(0);
+            Files.deleteIfExists(oldest.file);
+            logger.info("Deleted search index segment {}", oldest.file.getFileName());
+        }
+        int first = segments.get(0).baseDoc;
+        for (Iterator<LongIntMap> rooms = latest.values().iterator(); rooms.hasNext(); ) {
+            LongIntMap roomLatest = rooms.next();
+            roomLatest.removeValuesBelow(first);
+            if (roomLatest.size() == 0) {
+                rooms.remove();
+            }
+        }
+    }
+
+    /**
+     * Writes what is not in a segment yet, including a partial tail.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            synchronized (this) {
+                if (sealing != null) {
+                    write(sealing);
+                    sealing = null;
+                }
+                if (!tail.docs.isEmpty()) {
+                    write(tail);
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits text into lower-case words of letters and digits, each once, in order of first
+     * appearance. Words are cut at 32 characters.
+     */
+    static List<String> tokenize(String text) {
+        if (text == null) {
+            return List.of();
+        }
+        Set<String> words = new LinkedHashSet<>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); ) {
+            int c = i < text.length() ? text.codePointAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (word.length() < MAX_WORD_LENGTH) {
+                    word.appendCodePoint(c);
+                }
+            } else if (word.length() > 0) {
+                words.add(word.toString().toLowerCase(Locale.ROOT));
+                word.setLength(0);
+            }
+            i += Character.charCount(c);
+        }
+        return new ArrayList<>(words);
+    }
+
+    private void recover() throws IOException {
+        List<Integer> baseDocs = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.seg*")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                Matcher matcher = SEGMENT_FILE.matcher(name);
+                if (!matcher.matches()) {
+                    logger.warn("Ignoring {} in the search index directory: not a segment file", name);
+                } else if (matcher.group(2) != null) {
+                    Files.delete(file);
+                } else {
+                    baseDocs.add(Integer.parseInt(matcher.group(1)));
+                }
+            }
+        }
+        baseDocs.sort(null);
+        for (int baseDoc : baseDocs) {
+            Path file = dir.resolve(baseDoc + ".seg");
+            try {
+                Segment segment = Segment.open(file);
+                segment.readUpdates(latest);
+                segments.add(segment);
+            } catch (IOException e) {
+                // The log brings back what it still has
+                logger.error("Dropping unreadable search index segment {}", file.getFileName(), e);
+                Files.delete(file);
+            }
+        }
+        Segment newest = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (newest != null && newest.docCount < segmentDocs) {
+            // Written by close; filled up again and written over once full
+            segments.remove(segments.size() - 1);
+            tail = new Tail(newest.baseDoc, newest.lastOffset);
+            for (int doc = newest.baseDoc; doc < newest.baseDoc + newest.docCount; doc++) {
+                Doc stored = newest.doc(doc, -1);
+                tail.add(stored, tokenize(stored.text));
+            }
+        } else {
+            tail = newest == null ? new Tail(0, -1)
+                    : new Tail(newest.baseDoc + newest.docCount, newest.lastOffset);
+        }
+        dropOldSegments();
+    }
+
+    /**
+     * Writes the documents to their segment file, replacing a partial one written earlier.
+     */
+    private Path write(Tail source) throws IOException {
+        int count = source.docs.size();
+        Map<String, Integer> names = new LinkedHashMap<>();
+        Output docs = new Output();
+        int[] positions = new int[count];
+        Output updates = new Output();
+        int updateCount = 0;
+        for (int i = 0; i < count; i++) {
+            Doc doc = source.docs.get(i);
+            positions[i] = docs.size();
+            docs.write(doc.kind);
+            docs.writeLong(doc.messageId);
+            docs.writeRef(doc.room, names);
+            docs.writeRef(doc.username, names);
+            if (doc.kind != DELETE) {
+                docs.writeString(doc.text);
+            }
+            if (doc.kind != MESSAGE) {
+                updates.writeVarint(i);
+                updateCount++;
+            }
+        }
+        String[] words = source.words.keySet().toArray(new String[0]);
+        Arrays.sort(words);
+        Output terms = new Output();
+        Output deltas = new Output();
+        terms.writeVarint(words.length);
+        for (String word : words) {
+            Postings postings = source.words.get(word);
+            deltas.reset();
+            int previous = source.baseDoc;
+            for (int i = 0; i < postings.size; i++) {
+                deltas.writeVarint(postings.docs[i] - previous);
+                previous = postings.docs[i];
+            }
+            terms.writeString(word);
+            terms.writeVarint(postings.size);
+            terms.writeVarint(deltas.size());
+            terms.write(deltas.buffer(), 0, deltas.size());
+        }
+        Output nameTable = new Output();
+        nameTable.writeVarint(names.size());
+        names.keySet().forEach(nameTable::writeString);
+
+        int docTablePosition = HEADER_BYTES + nameTable.size();
+        int docsPosition = docTablePosition + 4 * count;
+        int termsPosition = docsPosition + docs.size();
+        int updatesPosition = termsPosition + terms.size();
+        Output out = new Output();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(source.baseDoc);
+        out.writeInt(count);
+        out.writeLong(source.lastOffset);
+        out.writeInt(HEADER_BYTES);
+        out.writeInt(docTablePosition);
+        out.writeInt(termsPosition);
+        out.writeInt(updatesPosition);
+        out.write(nameTable.buffer(), 0, nameTable.size());
+        for (int position : positions) {
+            out.writeInt(docsPosition + position);
+        }
+        out.write(docs.buffer(), 0, docs.size());
+        out.write(terms.buffer(), 0, terms.size());
+        out.writeVarint(updateCount);
+        out.write(updates.buffer(), 0, updates.size());
+        byte[] bytes = out.finish();
+
+        Path file = dir.resolve(source.baseDoc + ".seg");
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Wrote search index segment {}: {} documents, {} words, {} bytes", file.getFileName(),
+                    count, words.length, bytes.length);
+        }
+        return file;
+    }
+
+    /**
+     * One page of results.
+     */
+    public static class Page {
+        private final List<Hit> hits;
+        private final int next;
+
+        Page(List<Hit> hits, int next) {
+            this.hits = hits;
+            this.next = next;
+        }
+
+        public List<Hit> getHits() {
+            return hits;
+        }
+
+        /**
+         * The {@code before} cursor for the next page, or {@code -1} if this is the last one.
+         */
+        public int getNext() {
+            return next;
+        }
+    }
+
+    /**
+     * A matching message with its text as last indexed.
+     */
+    public static class Hit {
+        private final long messageId;
+        private final String username;
+        private final String text;
+
+        Hit(long messageId, String username, String text) {
+            this.messageId = messageId;
+            this.username = username;
+            this.text = text;
+        }
+
+        public long getMessageId() {
+            return messageId;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+
+    private static class Doc {
+        final byte kind;
+        final long messageId;
+        final String room;
+        final String username;
+        final String text;
+
+        Doc(byte kind, long messageId, String room, String username, String text) {
+            this.kind = kind;
+            this.messageId = messageId;
+            this.room = room;
+            this.username = username;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Ascending document numbers; for the tail, the array grows and only {@code size} are valid.
+     */
+    private static class Postings {
+        int[] docs;
+        int size;
+
+        Postings(int[] docs, int size) {
+            this.docs = docs;
+            this.size = size;
+        }
+
+        void add(int doc) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+            }
+            docs[size++] = doc;
+        }
+    }
+
+    /**
+     * Documents in one segment or the tail.
+     */
+    private interface Source {
+
+        int baseDoc();
+
+        /**
+         * Reference to compare with {@link #doc}'s room, or {@code -1} if no document is in the room.
+         */
+        int roomRef(String room);
+
+        Postings postings(String word);
+
+        /**
+         * The document if it is in the room, or any room for {@code -1}; {@code null} otherwise.
+         */
+        Doc doc(int doc, int roomRef);
+    }
+
+    private static class Tail implements Source {
+        final int baseDoc;
+        final List<Doc> docs = new ArrayList<>();
+        final Map<String, Postings> words = new HashMap<>();
+        // Rooms by reference, as in a segment's name table
+        final Map<String, Integer> roomRefs = new HashMap<>();
+        final List<String> rooms = new ArrayList<>();
+        long lastOffset;
+
+        Tail(int baseDoc, long lastOffset) {
+            this.baseDoc = baseDoc;
+            this.lastOffset = lastOffset;
+        }
+
+        int add(Doc doc, List<String> tokens) {
+            int number = baseDoc + docs.size();
+            roomRefs.computeIfAbsent(doc.room, r -> {
+                rooms.add(r);
+                return rooms.size() - 1;
+            });
+            docs.add(doc);
+            for (String token : tokens) {
+                words.computeIfAbsent(token, k -> new Postings(new int[4], 0)).add(number);
+            }
+            return number;
+        }
+
+        @Override
+        public int baseDoc() {
+            return baseDoc;
+        }
+
+        @Override
+        public int roomRef(String room) {
+            Integer ref = roomRefs.get(room);
+            return ref != null ? ref : -1;
+        }
+
+        @Override
+        public Postings postings(String word) {
+            return words.get(word);
+        }
+
+        @Override
+        public Doc doc(int doc, int roomRef) {
+            Doc stored = docs.get(doc - baseDoc);
+            return roomRef < 0 || stored.room.equals(rooms.get(roomRef)) ? stored : null;
+        }
+    }
+
+    private static class Segment implements Source {
+        final Path file;
+        final int baseDoc;
+        final int docCount;
+        final long lastOffset;
+        final ByteBuffer buffer;
+        final String[] names;
+        final Map<String, Integer> nameIndex = new HashMap<>();
+        final int docTablePosition;
+        final int updatesPosition;
+        final int termCount;
+        // Every TERM_INDEX_INTERVAL-th word and its position
+        final String[] indexWords;
+        final int[] indexPositions;
+
+        private Segment(Path file, MappedByteBuffer mapped) throws IOException {
+            this.file = file;
+            int length = mapped.capacity();
+            if (length < HEADER_BYTES + 4) {
+                throw new IOException("Search index segment " + file + " is truncated");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(mapped.duplicate().limit(length - 4));
+            if (mapped.getInt(length - 4) != (int) crc.getValue()) {
+                throw new IOException("Search index segment " + file + " is damaged");
+            }
+            buffer = mapped.duplicate().limit(length - 4);
+            try {
+                if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                    throw new IOException("Search index segment " + file + " has an unknown format");
+                }
+                baseDoc = buffer.getInt(8);
+                docCount = buffer.getInt(12);
+                lastOffset = buffer.getLong(16);
+                docTablePosition = buffer.getInt(28);
+                updatesPosition = buffer.getInt(36);
+                ByteBuffer in = buffer.duplicate().position(buffer.getInt(24));
+                names = new String[readVarint(in)];
+                for (int i = 0; i < names.length; i++) {
+                    names[i] = readString(in);
+                    nameIndex.putIfAbsent(names[i], i);
+                }
+                in.position(buffer.getInt(32));
+                termCount = readVarint(in);
+                int indexSize = (termCount + TERM_INDEX_INTERVAL - 1) / TERM_INDEX_INTERVAL;
+                indexWords = new String[indexSize];
+                indexPositions = new int[indexSize];
+                for (int i = 0; i < termCount; i++) {
+                    int position = in.position();
+                    int wordLength = readVarint(in);
+                    if (i % TERM_INDEX_INTERVAL == 0) {
+                        in.position(position);
+                        indexWords[i / TERM_INDEX_INTERVAL] = readString(in);
+                        indexPositions[i / TERM_INDEX_INTERVAL] = position;
+                    } else {
+                        in.position(in.position() + wordLength);
+                    }
+                    readVarint(in);
+                    int bytes = readVarint(in);
+                    in.position(in.position() + bytes);
+                }
+            } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+                throw new IOException("Search index segment " + file + " is malformed", e);
+            }
+        }
+
+        static Segment open(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                return new Segment(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        }
+
+        void readUpdates(Map<String, LongIntMap> latest) {
+            ByteBuffer in = buffer.duplicate().position(updatesPosition);
+            for (int i = readVarint(in); i > 0; i--) {
+                int doc = baseDoc + readVarint(in);
+                Doc stored = doc(doc, -1);
+                latest.computeIfAbsent(stored.room, k -> new LongIntMap(16)).put(stored.messageId, doc);
+            }
+        }
+
+        @Override
+        public int baseDoc() {
+            return baseDoc;
+        }
+
+        @Override
+        public int roomRef(String room) {
+            Integer ref = nameIndex.get(room);
+            return ref != null ? ref : -1;
+        }
+
+        @Override
+        public Postings postings(String word) {
+            int block = Arrays.binarySearch(indexWords, word);
+            if (block < 0) {
+                block = -block - 2;
+                if (block < 0) {
+                    return null;
+                }
+            }
+            ByteBuffer in = buffer.duplicate().position(indexPositions[block]);
+            int end = Math.min(termCount, (block + 1) * TERM_INDEX_INTERVAL);
+            for (int i = block * TERM_INDEX_INTERVAL; i < end; i++) {
+                int compared = readString(in).compareTo(word);
+                int count = readVarint(in);
+                int bytes = readVarint(in);
+                if (compared == 0) {
+                    int[] docs = new int[count];
+                    int doc = baseDoc;
+                    for (int j = 0; j < count; j++) {
+                        doc += readVarint(in);
+                        docs[j] = doc;
+                    }
+                    return new Postings(docs, count);
+                }
+                if (compared > 0) {
+                    return null;
+                }
+                in.position(in.position() + bytes);
+            }
+            return null;
+        }
+
+        @Override
+        public Doc doc(int doc, int roomRef) {
+            ByteBuffer in = buffer.duplicate().position(buffer.getInt(docTablePosition + 4 * (doc - baseDoc)));
+            byte kind = in.get();
+            long messageId = in.getLong();
+            int room = readVarint(in);
+            if (roomRef >= 0 && room != roomRef) {
+                return null;
+            }
+            String username = names[readVarint(in)];
+            return new Doc(kind, messageId, names[room], username, kind != DELETE ? readString(in) : null);
+        }
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IndexOutOfBoundsException("Varint too long");
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = readVarint(in);
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class Output extends ByteArrayOutputStream {
+
+        Output() {
+            super(4096);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+
+        void writeInt(int value) {
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+
+        void writeLong(long value) {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        void writeVarint(int value) {
+            while ((value & ~0x7f) != 0) {
+                write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        /**
+         * Writes the index of the value in the name table, adding it if it is new.
+         */
+        void writeRef(String value, Map<String, Integer> names) {
+            Integer index = names.putIfAbsent(value, names.size());
+            writeVarint(index != null ? index : names.size() - 1);
+        }
+
+        /**
+         * Appends a CRC-32 of everything written and returns the bytes.
+         */
+        byte[] finish() {
+            CRC32 crc = new CRC32();
+            crc.update(buf, 0, count);
+            writeInt((int) crc.getValue());
+            return toByteArray();
+        }
+    }
+}
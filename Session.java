@@ -0,0 +1,119 @@
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.java_websocket.WebSocket;
+
+/**
+ * Server-side state of one WebSocket connection. A session exists from {@code onOpen} until
+ * {@code onClose}; it only has a username once the client sent {@code join}.
+ */
+public class Session {
+    private final long id;
+    private final WebSocket conn;
+    private final boolean binary;
+    private final boolean deflate;
+    private final OutboundQueue outbound;
+    private final HandlerExecutor.Serial inbound;
+    private final RateLimiter.SessionLimits limits;
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+    private final SignalBatches signals = new SignalBatches();
+    private volatile String username;
+    private volatile Heartbeat.Entry<Session> heartbeat;
+
+    Session(long id, WebSocket conn, boolean binary, boolean deflate, OutboundQueue outbound,
+            HandlerExecutor.Serial inbound, RateLimiter.SessionLimits limits) {
+        this.id = id;
+        this.conn = conn;
+        this.binary = binary;
+        this.deflate = deflate;
+        this.outbound = outbound;
+        this.inbound = inbound;
+        this.limits = limits;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public WebSocket getConnection() {
+        return conn;
+    }
+
+    /**
+     * Returns whether the client negotiated the {@link BinaryProtocol} subprotocol.
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Returns whether the client negotiated permessage-deflate, so shared frames are sent to it
+     * compressed.
+     */
+    public boolean isDeflate() {
+        return deflate;
+    }
+
+    public OutboundQueue getOutbound() {
+        return outbound;
+    }
+
+    /**
+     * The lane this connection's events are handled on, one at a time in arrival order.
+     */
+    public HandlerExecutor.Serial getInbound() {
+        return inbound;
+    }
+
+    public RateLimiter.SessionLimits getLimits() {
+        return limits;
+    }
+
+    /**
+     * ICE candidates waiting to be forwarded; only touched on the {@link #getInbound() inbound lane}.
+     */
+    public SignalBatches getSignalBatches() {
+        return signals;
+    }
+
+    /**
+     * This connection's entry in the server's {@link Heartbeat}.
+     */
+    public Heartbeat.Entry<Session> getHeartbeat() {
+        return heartbeat;
+    }
+
+    void setHeartbeat(Heartbeat.Entry<Session> heartbeat) {
+        this.heartbeat = heartbeat;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    void setUsername(String username) {
+        this.username = username;
+    }
+
+    /**
+     * Names of the rooms this session asked to be in. Updated on the connection's own thread
+     * before the room itself is changed on its shard, so a disconnect always sees every room the
+     * session still has to leave.
+     */
+    public Set<String> getRooms() {
+        return Collections.unmodifiableSet(rooms);
+    }
+
+    boolean enterRoom(String room) {
+        return rooms.add(room);
+    }
+
+    boolean exitRoom(String room) {
+        return rooms.remove(room);
+    }
+
+    @Override
+    public String toString() {
+        return "Session{id=" + id + ", username=" + username + "}";
+    }
+}
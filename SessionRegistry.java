@@ -0,0 +1,129 @@
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.java_websocket.WebSocket;
+
+/**
+ * Indexes sessions by connection, session id and username, and keeps track of the calls each user
+ * takes part in. Every lookup used on the signaling and disconnect paths is a single hash lookup.
+ *
+ * <p>A username may be bound to several sessions (one per browser tab). Per-user membership is
+ * always updated inside {@code compute} on that user's entry, so concurrent joins and disconnects
+ * of the same user agree on which session was the first to join and which one was the last to
+ * leave.
+ */
+public class SessionRegistry {
+    private final AtomicLong nextId = new AtomicLong();
+    private final Map<WebSocket, Session> sessions = new ConcurrentHashMap<>();
+    private final Map<Long, Session> sessionsById = new ConcurrentHashMap<>();
+    private final Map<String, Set<Session>> sessionsByUser = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> callsByUser = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the session for a newly opened connection and attaches it to the connection.
+     */
+    public Session open(WebSocket conn, boolean binary, boolean deflate, OutboundQueue outbound,
+            HandlerExecutor.Serial inbound, RateLimiter.SessionLimits limits) {
+        Session session = new Session(nextId.incrementAndGet(), conn, binary, deflate, outbound, inbound, limits);
+        conn.setAttachment(session);
+        sessions.put(conn, session);
+        sessionsById.put(session.getId(), session);
+        return session;
+    }
+
+    /**
+     * Removes the session of a closed connection. Callers {@link #leave} it first if it had joined.
+     *
+     * @return the removed session, or {@code null} if the connection was unknown
+     */
+    public Session close(WebSocket conn) {
+        Session session = sessions.remove(conn);
+        if (session != null) {
+            sessionsById.remove(session.getId());
+        }
+        return session;
+    }
+
+    public Session get(WebSocket conn) {
+        return sessions.get(conn);
+    }
+
+    public Session get(long sessionId) {
+        return sessionsById.get(sessionId);
+    }
+
+    /**
+     * Binds the session to a username, unbinding any username it had before.
+     *
+     * @return {@code true} if this is the user's first session
+     */
+    public boolean join(Session session, String username) {
+        if (session.getUsername() != null) {
+            leave(session);
+        }
+        boolean[] first = new boolean[1];
+        sessionsByUser.compute(username, (name, userSessions) -> {
+            if (userSessions == null) {
+                userSessions = ConcurrentHashMap.newKeySet();
+            }
+            userSessions.add(session);
+            first[0] = userSessions.size() == 1;
+            session.setUsername(name);
+            return userSessions;
+        });
+        return first[0];
+    }
+
+    /**
+     * Unbinds the session from its username.
+     *
+     * @return {@code true} if this was the user's last session, i.e. the user is now offline
+     */
+    public boolean leave(Session session) {
+        String username = session.getUsername();
+        if (username == null) {
+            return false;
+        }
+        boolean[] last = new boolean[1];
+        sessionsByUser.computeIfPresent(username, (name, userSessions) -> {
+            userSessions.remove(session);
+            session.setUsername(null);
+            last[0] = userSessions.isEmpty();
+            return last[0] ? null : userSessions;
+        });
+        return last[0];
+    }
+
+    /**
+     * Live view of all open sessions, joined or not.
+     */
+    public Collection<Session> getSessions() {
+        return sessions.values();
+    }
+
+    public Set<Session> getSessions(String username) {
+        return sessionsByUser.getOrDefault(username, Collections.emptySet());
+    }
+
+    public boolean isOnline(String username) {
+        return sessionsByUser.containsKey(username);
+    }
+
+    public void addCall(String username, String callId) {
+        callsByUser.computeIfAbsent(username, k -> ConcurrentHashMap.newKeySet()).add(callId);
+    }
+
+    public void removeCall(String username, String callId) {
+        callsByUser.computeIfPresent(username, (k, callIds) -> {
+            callIds.remove(callId);
+            return callIds.isEmpty() ? null : callIds;
+        });
+    }
+
+    public Set<String> getCalls(String username) {
+        return callsByUser.getOrDefault(username, Collections.emptySet());
+    }
+}
@@ -0,0 +1,56 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs tasks on a fixed set of single-threaded shards chosen by key. Tasks with the same key run
+ * one at a time in submission order; tasks with different keys usually run on different threads,
+ * so a busy key only delays the few keys that hash to the same shard.
+ */
+public class ShardedExecutor {
+    private static final Logger logger = LoggerFactory.getLogger(ShardedExecutor.class);
+
+    private final ExecutorService[] shards;
+
+    public ShardedExecutor(int shardCount, String threadName) {
+        shards = new ExecutorService[Math.max(1, shardCount)];
+        for (int i = 0; i < shards.length; i++) {
+            String name = threadName + "-" + i;
+            shards[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Queues the task on the shard that owns the key. Tasks submitted after {@link #shutdown} are
+     * dropped.
+     */
+    public void execute(String key, Runnable task) {
+        try {
+            shards[Math.floorMod(key.hashCode(), shards.length)].execute(() -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    logger.error("Error running task for {}", key, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.debug("Dropping task for {} after shutdown", key);
+        }
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public void shutdown() {
+        for (ExecutorService shard : shards) {
+            shard.shutdown();
+        }
+    }
+}
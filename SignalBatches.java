@@ -0,0 +1,108 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Trickle-ICE candidates a session sent and the server has not forwarded yet, one batch per call
+ * and target. Candidates come in bursts while a call is set up; holding them for a short window
+ * turns each burst into one frame per peer instead of one per candidate.
+ *
+ * <p>Not thread-safe: used only from the owning session's inbound lane.
+ */
+public class SignalBatches {
+    private static final int MAX_SIGNALS = Integer.getInteger("chat.call.batchMaxSignals", 32);
+
+    private final Map<Key, Batch> pending = new LinkedHashMap<>();
+
+    /**
+     * Adds a candidate to the target's batch.
+     *
+     * @return the batch if it is full and is to be sent now, else {@code null}
+     */
+    public Batch add(String callId, String target, Long targetSession, String signal) {
+        Key key = new Key(callId, target, targetSession);
+        Batch batch = pending.computeIfAbsent(key, k -> new Batch(callId, target, targetSession));
+        batch.signals.add(signal);
+        return batch.signals.size() >= MAX_SIGNALS ? pending.remove(key) : null;
+    }
+
+    /**
+     * Removes the target's batch, for sending ahead of a signal that must not overtake it.
+     *
+     * @return the batch, or {@code null} if nothing is pending for the target
+     */
+    public Batch take(String callId, String target, Long targetSession) {
+        return pending.remove(new Key(callId, target, targetSession));
+    }
+
+    /**
+     * Removes and returns every batch, oldest first.
+     */
+    public Collection<Batch> drain() {
+        List<Batch> batches = new ArrayList<>(pending.values());
+        pending.clear();
+        return batches;
+    }
+
+    public static class Batch {
+        private final String callId;
+        private final String target;
+        private final Long targetSession;
+        private final List<String> signals = new ArrayList<>();
+
+        Batch(String callId, String target, Long targetSession) {
+            this.callId = callId;
+            this.target = target;
+            this.targetSession = targetSession;
+        }
+
+        public String getCallId() {
+            return callId;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        public Long getTargetSession() {
+            return targetSession;
+        }
+
+        /**
+         * The signals as raw JSON, in the order they were sent.
+         */
+        public List<String> getSignals() {
+            return signals;
+        }
+    }
+
+    private static class Key {
+        private final String callId;
+        private final String target;
+        private final Long targetSession;
+
+        Key(String callId, String target, Long targetSession) {
+            this.callId = callId;
+            this.target = target;
+            this.targetSession = targetSession;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return callId.equals(other.callId) && target.equals(other.target)
+                    && Objects.equals(targetSession, other.targetSession);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(callId, target, targetSession);
+        }
+    }
+}
@@ -0,0 +1,341 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The server state that is not in the {@link MessageLog} and would otherwise be lost on restart:
+ * resume tickets with the rooms they hold, calls, and read receipts.
+ *
+ * <p>Binary layout: a header ({@code int magic, int version, long takenAt}), a table of the
+ * usernames and room names used below, the tickets, calls and read receipts, and a CRC-32 of
+ * everything before it. Counts and table references are varints, message ids and times are
+ * zigzag varint deltas from the previous one. The file is written next to the previous snapshot
+ * and moved over it, so a crash while writing leaves the previous snapshot intact.
+ */
+public class StateSnapshot {
+    private static final int MAGIC = 0x43534e50;
+    private static final int VERSION = 1;
+
+    private final long takenAt;
+    private final List<Ticket> tickets = new ArrayList<>();
+    private final List<Call> calls = new ArrayList<>();
+    private final Map<String, List<Receipt>> receipts = new LinkedHashMap<>();
+
+    public StateSnapshot(long takenAt) {
+        this.takenAt = takenAt;
+    }
+
+    public long getTakenAt() {
+        return takenAt;
+    }
+
+    public void addTicket(String token, String username, String avatar, List<String> rooms) {
+        tickets.add(new Ticket(token, username, avatar, rooms));
+    }
+
+    public void addCall(String callId, String room, String initiator, List<String> participants) {
+        calls.add(new Call(callId, room, initiator, participants));
+    }
+
+    /**
+     * Adds a read message of the room; messages of a room are added oldest first.
+     */
+    public void addReceipt(String room, long messageId, long createdAt, List<String> readers) {
+        receipts.computeIfAbsent(room, k -> new ArrayList<>()).add(new Receipt(messageId, createdAt, readers));
+    }
+
+    public List<Ticket> getTickets() {
+        return tickets;
+    }
+
+    public List<Call> getCalls() {
+        return calls;
+    }
+
+    /**
+     * Read messages by room, oldest first.
+     */
+    public Map<String, List<Receipt>> getReceipts() {
+        return receipts;
+    }
+
+    public int getReceiptCount() {
+        int count = 0;
+        for (List<Receipt> room : receipts.values()) {
+            count += room.size();
+        }
+        return count;
+    }
+
+    /**
+     * Writes the snapshot to {@code file}, replacing the previous one atomically.
+     *
+     * @return the size of the snapshot in bytes
+     */
+    public int write(Path file) throws IOException {
+        // The name table goes first in the file but is only complete once the body is written
+        Map<String, Integer> names = new LinkedHashMap<>();
+        Output body = new Output();
+        body.writeVarint(tickets.size());
+        for (Ticket ticket : tickets) {
+            body.writeString(ticket.token);
+            body.writeRef(ticket.username, names);
+            body.writeString(ticket.avatar);
+            body.writeRefs(ticket.rooms, names);
+        }
+        body.writeVarint(calls.size());
+        for (Call call : calls) {
+            body.writeString(call.callId);
+            body.writeRef(call.room, names);
+            body.writeRef(call.initiator, names);
+            body.writeRefs(call.participants, names);
+        }
+        body.writeVarint(receipts.size());
+        for (Map.Entry<String, List<Receipt>> room : receipts.entrySet()) {
+            body.writeRef(room.getKey(), names);
+            body.writeVarint(room.getValue().size());
+            long messageId = 0;
+            long createdAt = takenAt;
+            for (Receipt receipt : room.getValue()) {
+                body.writeZigzag(receipt.messageId - messageId);
+                body.writeZigzag(receipt.createdAt - createdAt);
+                body.writeRefs(receipt.readers, names);
+                messageId = receipt.messageId;
+                createdAt = receipt.createdAt;
+            }
+        }
+
+        Output out = new Output();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(takenAt);
+        out.writeVarint(names.size());
+        names.keySet().forEach(out::writeString);
+        out.write(body.buffer(), 0, body.size());
+        byte[] bytes = out.finish();
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return bytes.length;
+    }
+
+    /**
+     * Reads the snapshot in {@code file}.
+     *
+     * @return the snapshot, or {@code null} if there is none
+     * @throws IOException if it cannot be read or is damaged
+     */
+    public static StateSnapshot read(Path file) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (bytes.length < 4) {
+            throw new IOException("Snapshot " + file + " is truncated");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        if (in.getInt(bytes.length - 4) != (int) crc.getValue()) {
+            throw new IOException("Snapshot " + file + " is damaged");
+        }
+        in.limit(bytes.length - 4);
+        try {
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                throw new IOException("Snapshot " + file + " has an unknown format");
+            }
+            StateSnapshot snapshot = new StateSnapshot(in.getLong());
+            String[] names = new String[readVarint(in)];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = readString(in);
+            }
+            for (int i = readVarint(in); i > 0; i--) {
+                String token = readString(in);
+                String username = names[readVarint(in)];
+                snapshot.addTicket(token, username, readString(in), readRefs(in, names));
+            }
+            for (int i = readVarint(in); i > 0; i--) {
+                String callId = readString(in);
+                String room = names[readVarint(in)];
+                String initiator = names[readVarint(in)];
+                snapshot.addCall(callId, room, initiator, readRefs(in, names));
+            }
+            for (int i = readVarint(in); i > 0; i--) {
+                String room = names[readVarint(in)];
+                long messageId = 0;
+                long createdAt = snapshot.takenAt;
+                for (int j = readVarint(in); j > 0; j--) {
+                    messageId += readZigzag(in);
+                    createdAt += readZigzag(in);
+                    snapshot.addReceipt(room, messageId, createdAt, readRefs(in, names));
+                }
+            }
+            return snapshot;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Snapshot " + file + " is malformed", e);
+        }
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        return (int) readVarlong(in);
+    }
+
+    private static long readVarlong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IndexOutOfBoundsException("Varint too long");
+    }
+
+    private static long readZigzag(ByteBuffer in) {
+        long value = readVarlong(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = readVarint(in);
+        String value = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private static List<String> readRefs(ByteBuffer in, String[] names) {
+        int count = readVarint(in);
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(names[readVarint(in)]);
+        }
+        return values;
+    }
+
+    private static class Output extends ByteArrayOutputStream {
+
+        Output() {
+            super(4096);
+        }
+
+        void writeInt(int value) {
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+
+        void writeLong(long value) {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        void writeVarint(long value) {
+            while ((value & ~0x7fL) != 0) {
+                write((int) (value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void writeZigzag(long value) {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        /**
+         * Writes the index of the value in the name table, adding it if it is new.
+         */
+        void writeRef(String value, Map<String, Integer> names) {
+            Integer index = names.putIfAbsent(value, names.size());
+            writeVarint(index != null ? index : names.size() - 1);
+        }
+
+        void writeRefs(List<String> values, Map<String, Integer> names) {
+            writeVarint(values.size());
+            for (String value : values) {
+                writeRef(value, names);
+            }
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+
+        byte[] finish() {
+            CRC32 crc = new CRC32();
+            crc.update(buf, 0, count);
+            writeInt((int) crc.getValue());
+            return toByteArray();
+        }
+    }
+
+    public static class Ticket {
+        final String token;
+        final String username;
+        final String avatar;
+        final List<String> rooms;
+
+        Ticket(String token, String username, String avatar, List<String> rooms) {
+            this.token = token;
+            this.username = username;
+            this.avatar = avatar;
+            this.rooms = rooms;
+        }
+    }
+
+    public static class Call {
+        final String callId;
+        final String room;
+        final String initiator;
+        final List<String> participants;
+
+        Call(String callId, String room, String initiator, List<String> participants) {
+            this.callId = callId;
+            this.room = room;
+            this.initiator = initiator;
+            this.participants = participants;
+        }
+    }
+
+    public static class Receipt {
+        final long messageId;
+        final long createdAt;
+        final List<String> readers;
+
+        Receipt(long messageId, long createdAt, List<String> readers) {
+            this.messageId = messageId;
+            this.createdAt = createdAt;
+            this.readers = readers;
+        }
+    }
+}
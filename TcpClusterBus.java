@@ -0,0 +1,252 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link ClusterBus} over plain TCP, e.g. between processes on one machine. Every node listens
+ * on its own port and keeps one outbound connection to each configured peer; a node only ever
+ * writes to its outbound connections and reads from the inbound ones, so each direction of a
+ * pair is a single ordered stream.
+ *
+ * <p>Frames are {@code [int length][bytes]}; the first frame on a connection is the sender's
+ * node id. Outbound messages wait in a bounded queue per peer while the peer is unreachable and
+ * are dropped once it is full. A lost connection is retried with backoff.
+ */
+public class TcpClusterBus implements ClusterBus {
+    private static final Logger logger = LoggerFactory.getLogger(TcpClusterBus.class);
+    private static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+    private static final long MAX_RECONNECT_DELAY_MS = 5000;
+
+    private final String nodeId;
+    private final int port;
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private final List<Socket> inbound = new ArrayList<>();
+    private volatile Listener listener;
+    private volatile boolean closed;
+    private ServerSocket server;
+
+    public TcpClusterBus(String nodeId, int port, Map<String, InetSocketAddress> peers, int queueCapacity) {
+        this.nodeId = nodeId;
+        this.port = port;
+        peers.forEach((id, address) -> {
+            if (!id.equals(nodeId)) {
+                this.peers.put(id, new Peer(id, address, queueCapacity));
+            }
+        });
+    }
+
+    @Override
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void start(Listener listener) throws IOException {
+        this.listener = listener;
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(port));
+        daemon("cluster-accept-" + nodeId, this::acceptLoop).start();
+        for (Peer peer : peers.values()) {
+            daemon("cluster-send-" + peer.id, peer::writeLoop).start();
+        }
+        logger.info("Cluster node {} listening on port {} with {} peers", nodeId, port, peers.size());
+    }
+
+    @Override
+    public boolean hasPeers() {
+        return !peers.isEmpty();
+    }
+
+    @Override
+    public void publish(ByteBuffer message) {
+        for (Peer peer : peers.values()) {
+            peer.enqueue(message);
+        }
+    }
+
+    @Override
+    public void send(String nodeId, ByteBuffer message) {
+        Peer peer = peers.get(nodeId);
+        if (peer != null) {
+            peer.enqueue(message);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        closeQuietly(server);
+        for (Peer peer : peers.values()) {
+            closeQuietly(peer.socket);
+        }
+        synchronized (inbound) {
+            for (Socket socket : inbound) {
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                synchronized (inbound) {
+                    inbound.add(socket);
+                }
+                daemon("cluster-recv-" + socket.getRemoteSocketAddress(), () -> readLoop(socket)).start();
+            } catch (IOException e) {
+                if (!closed) {
+                    logger.error("Error accepting cluster connection", e);
+                }
+            }
+        }
+    }
+
+    private void readLoop(Socket socket) {
+        String from = null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            from = new String(readFrame(in), StandardCharsets.UTF_8);
+            logger.info("Cluster node {} connected", from);
+            listener.onNodeUp(from);
+            while (!closed) {
+                listener.onMessage(from, ByteBuffer.wrap(readFrame(in)));
+            }
+        } catch (EOFException e) {
+            logger.debug("Cluster connection from {} closed", from);
+        } catch (IOException e) {
+            if (!closed) {
+                logger.warn("Cluster connection from {} failed: {}", from, e.getMessage());
+            }
+        } finally {
+            synchronized (inbound) {
+                inbound.remove(socket);
+            }
+            closeQuietly(socket);
+            if (from != null && !closed) {
+                logger.info("Cluster node {} disconnected", from);
+                listener.onNodeDown(from);
+            }
+        }
+    }
+
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+            throw new IOException("Invalid cluster frame length " + length);
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return frame;
+    }
+
+    private static Thread daemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            // Already closing
+        }
+    }
+
+    private class Peer {
+        final String id;
+        final InetSocketAddress address;
+        final BlockingQueue<ByteBuffer> queue;
+        final AtomicLong dropped = new AtomicLong();
+        volatile Socket socket;
+
+        Peer(String id, InetSocketAddress address, int queueCapacity) {
+            this.id = id;
+            this.address = address;
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        }
+
+        void enqueue(ByteBuffer message) {
+            if (!queue.offer(message.duplicate())) {
+                long total = dropped.incrementAndGet();
+                if (Long.bitCount(total) == 1) {
+                    logger.warn("Cluster queue to {} is full, {} messages dropped so far", id, total);
+                }
+            }
+        }
+
+        void writeLoop() {
+            long delay = 100;
+            while (!closed) {
+                try (Socket socket = new Socket()) {
+                    this.socket = socket;
+                    socket.setTcpNoDelay(true);
+                    socket.connect(address, 2000);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    writeFrame(out, ByteBuffer.wrap(nodeId.getBytes(StandardCharsets.UTF_8)));
+                    out.flush();
+                    delay = 100;
+                    while (!closed) {
+                        ByteBuffer message = queue.poll(1, TimeUnit.SECONDS);
+                        if (message == null) {
+                            continue;
+                        }
+                        writeFrame(out, message);
+                        while ((message = queue.poll()) != null) {
+                            writeFrame(out, message);
+                        }
+                        out.flush();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (IOException e) {
+                    if (!closed) {
+                        logger.debug("Cluster connection to {} failed: {}", id, e.getMessage());
+                    }
+                }
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                delay = Math.min(delay * 2, MAX_RECONNECT_DELAY_MS);
+            }
+        }
+
+        private void writeFrame(DataOutputStream out, ByteBuffer message) throws IOException {
+            out.writeInt(message.remaining());
+            if (message.hasArray()) {
+                out.write(message.array(), message.arrayOffset() + message.position(), message.remaining());
+            } else {
+                byte[] bytes = new byte[message.remaining()];
+                message.get(bytes);
+                out.write(bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket. Instead of a token count and a refill time it keeps a single
+ * "theoretical arrival time" (the generic cell rate algorithm): each token pushes it one
+ * interval into the future, and a request is allowed while it is less than {@code burst}
+ * intervals ahead of now. That makes taking a token one compare-and-set on one
+ * {@link AtomicLong}, with the same behaviour as refilling {@code perSecond} tokens up to
+ * {@code burst}.
+ */
+public class TokenBucket {
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final AtomicLong arrival;
+
+    public TokenBucket(double perSecond, int burst) {
+        if (perSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Invalid rate " + perSecond + "/s with burst " + burst);
+        }
+        intervalNanos = Math.max(1, (long) (1_000_000_000L / perSecond));
+        toleranceNanos = intervalNanos * (burst - 1);
+        arrival = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes a token if one is available.
+     */
+    public boolean tryAcquire() {
+        return tryAcquire(System.nanoTime());
+    }
+
+    public boolean tryAcquire(long nowNanos) {
+        while (true) {
+            long current = arrival.get();
+            // An arrival time in the past is a full bucket
+            long base = current - nowNanos > 0 ? current : nowNanos;
+            if (base - nowNanos > toleranceNanos) {
+                return false;
+            }
+            if (arrival.compareAndSet(current, base + intervalNanos)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives back a token taken by {@link #tryAcquire} that was not used after all.
+     */
+    public void release() {
+        arrival.addAndGet(-intervalNanos);
+    }
+}
@@ -0,0 +1,96 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collects typing start/stop events and turns them into at most one delta per flush. Clients that
+ * keep sending {@code typing: true} refresh their deadline; clients that go silent for longer than
+ * the idle timeout are expired on the next flush, as if they had sent {@code typing: false}.
+ *
+ * <p>{@link #record} and {@link #remove} may be called from any thread; {@link #flush} is expected
+ * to be called from a single scheduler thread.
+ */
+public class TypingPresence {
+    private final long idleTimeoutNanos;
+    private final Map<String, Long> typing = new ConcurrentHashMap<>();
+    private final Set<String> announced = new HashSet<>();
+    private volatile boolean dirty;
+
+    public TypingPresence(long idleTimeoutMillis) {
+        this.idleTimeoutNanos = idleTimeoutMillis * 1_000_000L;
+    }
+
+    public void record(String username, boolean isTyping) {
+        if (isTyping) {
+            if (typing.put(username, System.nanoTime()) == null) {
+                dirty = true;
+            }
+        } else if (typing.remove(username) != null) {
+            dirty = true;
+        }
+    }
+
+    public void remove(String username) {
+        if (typing.remove(username) != null) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Expires silent typers and returns what changed since the previous flush, or {@code null} if
+     * nothing did.
+     */
+    public Delta flush() {
+        long now = System.nanoTime();
+        typing.entrySet().removeIf(entry -> {
+            boolean expired = now - entry.getValue() > idleTimeoutNanos;
+            if (expired) {
+                dirty = true;
+            }
+            return expired;
+        });
+        if (!dirty) {
+            return null;
+        }
+        dirty = false;
+        List<String> started = new ArrayList<>();
+        for (String username : typing.keySet()) {
+            if (announced.add(username)) {
+                started.add(username);
+            }
+        }
+        List<String> stopped = new ArrayList<>();
+        announced.removeIf(username -> {
+            boolean gone = !typing.containsKey(username);
+            if (gone) {
+                stopped.add(username);
+            }
+            return gone;
+        });
+        if (started.isEmpty() && stopped.isEmpty()) {
+            return null;
+        }
+        return new Delta(started, stopped);
+    }
+
+    public static class Delta {
+        private final List<String> started;
+        private final List<String> stopped;
+
+        Delta(List<String> started, List<String> stopped) {
+            this.started = started;
+            this.stopped = stopped;
+        }
+
+        public List<String> getStarted() {
+            return started;
+        }
+
+        public List<String> getStopped() {
+            return stopped;
+        }
+    }
+}
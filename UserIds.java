@@ -0,0 +1,70 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Interns usernames to small dense {@code int} ids so per-message structures can store users as
+ * primitives. Ids are reference counted: every {@link #acquire} is matched by a {@link #release}
+ * once the holder drops the id, and an id nothing holds any more is freed and reused. The table
+ * only grows with the number of users that stored receipts and reactions refer to at once, not
+ * with every username ever seen.
+ */
+public class UserIds {
+    private final Map<String, Integer> ids = new HashMap<>();
+    private volatile String[] names = new String[64];
+    private int[] counts = new int[64];
+    private int[] free = new int[16];
+    private int freeCount;
+    private int next;
+
+    /**
+     * Returns the user's id and counts one more reference to it.
+     */
+    public synchronized int acquire(String username) {
+        Integer existing = ids.get(username);
+        if (existing != null) {
+            counts[existing]++;
+            return existing;
+        }
+        int id = freeCount > 0 ? free[--freeCount] : next++;
+        String[] table = names;
+        if (id == table.length) {
+            table = Arrays.copyOf(table, table.length << 1);
+            counts = Arrays.copyOf(counts, table.length);
+        }
+        table[id] = username;
+        names = table;
+        counts[id] = 1;
+        ids.put(username, id);
+        return id;
+    }
+
+    /**
+     * Drops one reference to the id, freeing it after the last one.
+     */
+    public synchronized void release(int id) {
+        if (--counts[id] > 0) {
+            return;
+        }
+        ids.remove(names[id]);
+        names[id] = null;
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, freeCount * 2);
+        }
+        free[freeCount++] = id;
+    }
+
+    /**
+     * Returns the username for an id that is still held.
+     */
+    public String name(int id) {
+        return names[id];
+    }
+
+    /**
+     * Number of ids currently held.
+     */
+    public synchronized int size() {
+        return ids.size();
+    }
+}
@@ -0,0 +1,68 @@
+import chat.bench.Fixture;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import org.java_websocket.WebSocket;
+
+/**
+ * Fan-out of one room event to every member, as {@code broadcastAndLog} and {@code roomBroadcast}
+ * do it: encode once per wire format, then queue the shared frame on each member's session.
+ * Members are in-memory connections that frame the bytes but do not write them.
+ */
+public class BroadcastFixture implements Fixture {
+    private final ChatCodec codec = new ChatCodec();
+    private final FanOut fanOut = new FanOut();
+    private final List<WebSocket> connections = new ArrayList<>();
+    private long messageId;
+
+    public BroadcastFixture(Map<String, String> params) {
+        int members = Integer.parseInt(params.get("members"));
+        int binaryPercent = Integer.parseInt(params.get("binaryPercent"));
+        SessionRegistry sessions = new SessionRegistry();
+        HandlerExecutor handlers = new HandlerExecutor(HandlerExecutor.Mode.INLINE, 0, 1000);
+        OutboundQueue.Limits limits = OutboundQueue.Limits.fromSystemProperties();
+        Set<OutboundQueue> backlog = ConcurrentHashMap.newKeySet();
+        RateLimiter limiter = RateLimiter.fromSystemProperties();
+        for (int i = 0; i < members; i++) {
+            StubWebSocket conn = new StubWebSocket(i * 100 < members * binaryPercent);
+            sessions.open(conn, conn.getProtocol().getProvidedProtocol().equals(BinaryProtocol.SUBPROTOCOL), false,
+                    new OutboundQueue(conn, limits, backlog), handlers.newSerial(), limiter.newSession());
+            connections.add(conn);
+        }
+    }
+
+    @Override
+    public Supplier<Object> operation(String name) {
+        switch (name) {
+            case "broadcastMessage":
+                return this::broadcastMessage;
+            case "broadcastTyping":
+                return this::broadcastTyping;
+            default:
+                throw new IllegalArgumentException("Unknown operation " + name);
+        }
+    }
+
+    private Object broadcastMessage() {
+        long id = ++messageId;
+        return fanOut.broadcast(codec.prepare(w -> w.beginObject()
+                .field("type", "message")
+                .field("room", "general")
+                .field("username", "alice")
+                .field("message", "Hello everyone, this is a fairly ordinary chat message.")
+                .field("messageId", id)
+                .endObject()), connections);
+    }
+
+    private Object broadcastTyping() {
+        return fanOut.broadcast(codec.prepare(w -> w.beginObject()
+                .field("type", "typing")
+                .field("room", "general")
+                .stringArray("started", List.of("alice", "bob"))
+                .stringArray("stopped", List.of())
+                .endObject(), OutboundQueue.Delivery.DROPPABLE, null), connections);
+    }
+}
@@ -0,0 +1,134 @@
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+
+/**
+ * Runs 1, 2, 4... {@link ChatServer} nodes in one JVM, connected by an {@link InProcessBus} or a
+ * loopback {@link TcpClusterBus}, with a fixed number of clients per node. Clients are spread over
+ * rooms that span nodes, every client sends the same number of messages, and the test reports how
+ * fast all copies were delivered. With enough cores, delivered messages per second should grow
+ * almost linearly with the node count, since each node only fans out to its own clients.
+ *
+ * <pre>java -cp ... ClusterLoadTest [nodeCounts=1,2,4] [clientsPerNode] [messagesPerClient] [roomSize] [inproc|tcp]</pre>
+ */
+public class ClusterLoadTest {
+    private static final int BASE_PORT = 19000;
+
+    public static void main(String[] args) throws Exception {
+        // Clients send as fast as they can, far beyond the per-session rate limits
+        System.setProperty("chat.limit.enabled", "false");
+        String[] nodeCounts = (args.length > 0 ? args[0] : "1,2,4").split(",");
+        int clientsPerNode = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int messagesPerClient = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int roomSize = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        boolean tcp = args.length > 4 && args[4].equals("tcp");
+
+        int round = 0;
+        for (String count : nodeCounts) {
+            run(Integer.parseInt(count.trim()), clientsPerNode, messagesPerClient, roomSize, tcp, round++);
+        }
+    }
+
+    private static void run(int nodes, int clientsPerNode, int messagesPerClient, int roomSize, boolean tcp,
+            int round) throws Exception {
+        int portBase = BASE_PORT + round * 100;
+        List<ChatServer> servers = new ArrayList<>();
+        InProcessBus.Network network = new InProcessBus.Network();
+        for (int i = 0; i < nodes; i++) {
+            ClusterBus bus;
+            if (tcp) {
+                Map<String, InetSocketAddress> peers = new HashMap<>();
+                for (int j = 0; j < nodes; j++) {
+                    peers.put("node" + j, new InetSocketAddress("localhost", portBase + 50 + j));
+                }
+                bus = new TcpClusterBus("node" + i, portBase + 50 + i, peers, 100_000);
+            } else {
+                bus = network.join("node" + i);
+            }
+            Path logDir = Files.createTempDirectory("cluster-load");
+            ChatServer server = new ChatServer(new InetSocketAddress("localhost", portBase + i), bus, logDir);
+            server.setReuseAddr(true);
+            server.start();
+            servers.add(server);
+        }
+        Thread.sleep(1000);
+
+        AtomicLong received = new AtomicLong();
+        List<Client> clients = new ArrayList<>();
+        int total = nodes * clientsPerNode;
+        for (int i = 0; i < total; i++) {
+            Client client = new Client(new URI("ws://localhost:" + (portBase + i % nodes)), received);
+            client.connectBlocking();
+            client.send("{\"type\":\"join\",\"username\":\"user" + i + "\",\"room\":\"room" + (i / roomSize) + "\"}");
+            clients.add(client);
+        }
+        Thread.sleep(1000 + 20L * total);
+        received.set(0);
+
+        long expected = 0;
+        for (int i = 0; i < total; i++) {
+            int room = i / roomSize;
+            expected += (long) messagesPerClient * Math.min(roomSize, total - room * roomSize);
+        }
+        long start = System.nanoTime();
+        for (int m = 0; m < messagesPerClient; m++) {
+            for (int i = 0; i < total; i++) {
+                clients.get(i).send("{\"type\":\"message\",\"username\":\"user" + i + "\",\"room\":\"room"
+                        + (i / roomSize) + "\",\"message\":\"load test message " + m + "\"}");
+            }
+        }
+        long deadline = System.currentTimeMillis() + 120_000;
+        while (received.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%d node(s) %-7s %5d clients: %8.0f sent/s %10.0f delivered/s (%d/%d delivered in %.2f s)%n",
+                nodes, tcp ? "tcp" : "inproc", total, total * messagesPerClient / seconds, received.get() / seconds,
+                received.get(), expected, seconds);
+
+        for (Client client : clients) {
+            client.closeBlocking();
+        }
+        for (ChatServer server : servers) {
+            server.stop(1000);
+        }
+    }
+
+    private static class Client extends WebSocketClient {
+        private final AtomicLong received;
+
+        Client(URI uri, AtomicLong received) {
+            super(uri);
+            this.received = received;
+        }
+
+        @Override
+        public void onOpen(ServerHandshake handshake) {
+        }
+
+        @Override
+        public void onMessage(String message) {
+            if (message.startsWith("{\"type\":\"message\"")) {
+                received.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+        }
+
+        @Override
+        public void onError(Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+import chat.bench.Fixture;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Turning one client frame into a typed event, the first half of every {@code onMessage}
+ * dispatch, for one of the common message types in both wire formats.
+ */
+public class DispatchFixture implements Fixture {
+    private final ChatCodec codec = new ChatCodec();
+    private final String json;
+    private final ByteBuffer binary;
+
+    public DispatchFixture(Map<String, String> params) {
+        json = frame(params.get("type"));
+        // The binary protocol carries the same document
+        binary = codec.toBinary(w -> new JsonReader(json).copyValue(w));
+    }
+
+    @Override
+    public Supplier<Object> operation(String name) {
+        switch (name) {
+            case "decodeJson":
+                return () -> codec.decode(json);
+            case "decodeBinary":
+                return () -> codec.decode(binary.duplicate());
+            default:
+                throw new IllegalArgumentException("Unknown operation " + name);
+        }
+    }
+
+    static String frame(String type) {
+        switch (type) {
+            case "message":
+                return "{\"type\":\"message\",\"username\":\"alice\",\"room\":\"general\","
+                        + "\"message\":\"Hello everyone, this is a fairly ordinary chat message.\"}";
+            case "typing":
+                return "{\"type\":\"typing\",\"username\":\"alice\",\"room\":\"general\",\"isTyping\":true}";
+            case "read":
+                return "{\"type\":\"read\",\"username\":\"alice\",\"room\":\"general\",\"messageId\":1700000000000}";
+            case "call-signal":
+                return "{\"type\":\"call-signal\",\"username\":\"alice\",\"callId\":\"call-1\",\"target\":\"bob\","
+                        + "\"signal\":{\"type\":\"candidate\",\"candidate\":{\"candidate\":\"candidate:1 1 udp "
+                        + "2122260223 192.168.1.20 54400 typ host\",\"sdpMid\":\"0\",\"sdpMLineIndex\":0}}}";
+            default:
+                throw new IllegalArgumentException("Unknown type " + type);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import org.java_websocket.WebSocket;
+import org.json.JSONObject;
+
+/**
+ * Compares the old per-connection {@code send(String)} loop against {@link FanOut} for one chat
+ * message delivered to N connections. Reports CPU time and allocated bytes per message.
+ *
+ * <pre>java -cp ... FanOutBenchmark [connections] [messages]</pre>
+ */
+public class FanOutBenchmark {
+
+    public static void main(String[] args) {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        List<WebSocket> targets = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            targets.add(new StubWebSocket());
+        }
+        String payload = message();
+        FanOut fanOut = new FanOut();
+
+        for (int round = 0; round < 3; round++) {
+            boolean report = round == 2;
+            run("send(String) loop", messages, report, () -> {
+                for (WebSocket conn : targets) {
+                    if (conn.isOpen()) {
+                        conn.send(payload);
+                    }
+                }
+            });
+            run("FanOut shared frame", messages, report, () -> fanOut.broadcast(FanOut.textFrame(payload), targets));
+        }
+    }
+
+    private static String message() {
+        JSONObject json = new JSONObject();
+        json.put("type", "message");
+        json.put("username", "alice");
+        json.put("message", "Hello everyone, this is a fairly ordinary chat message - with a bit of UTF-8 \u00e9\u00e8.");
+        json.put("messageId", System.currentTimeMillis());
+        return json.toString();
+    }
+
+    private static void run(String name, int messages, boolean report, Runnable broadcast) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long cpuBefore = threads.getCurrentThreadCpuTime();
+        for (int i = 0; i < messages; i++) {
+            broadcast.run();
+        }
+        long cpu = threads.getCurrentThreadCpuTime() - cpuBefore;
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        if (report) {
+            System.out.printf("%-22s %10.1f us/msg %12d B/msg%n", name, cpu / 1000.0 / messages, allocated / messages);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+
+/**
+ * Compares message latency with handlers run inline on the WebSocket threads against handlers
+ * offloaded to a {@link HandlerExecutor}, under mixed load: a few clients keep sending large file
+ * messages (inline data URLs, as the web client does) while many probe clients send small chat
+ * messages into their own rooms and time how long the echo takes.
+ *
+ * <pre>java -cp ... HandlerLatencyBenchmark [probes] [bulkClients] [bulkBytes] [seconds] [threads]</pre>
+ */
+public class HandlerLatencyBenchmark {
+    private static final int BASE_PORT = 19500;
+
+    public static void main(String[] args) throws Exception {
+        // Clients send as fast as they can, far beyond the per-session rate limits
+        System.setProperty("chat.limit.enabled", "false");
+        int probes = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int bulkClients = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int bulkBytes = args.length > 2 ? Integer.parseInt(args[2]) : 256 * 1024;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int threads = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+
+        int port = BASE_PORT;
+        for (HandlerExecutor.Mode mode : HandlerExecutor.Mode.values()) {
+            run(new HandlerExecutor(mode, threads, 1000), port++, probes, bulkClients, bulkBytes, seconds);
+        }
+    }
+
+    private static void run(HandlerExecutor handlers, int port, int probes, int bulkClients, int bulkBytes,
+            int seconds) throws Exception {
+        ChatServer server = new ChatServer(new InetSocketAddress("localhost", port),
+                new InProcessBus.Network().join("bench"), Files.createTempDirectory("handler-bench"), handlers);
+        server.setReuseAddr(true);
+        server.start();
+        Thread.sleep(500);
+        URI uri = new URI("ws://localhost:" + port);
+
+        List<Probe> probeClients = new ArrayList<>();
+        for (int i = 0; i < probes; i++) {
+            Probe probe = new Probe(uri, "probe" + i);
+            probe.connectBlocking();
+            probe.send("{\"type\":\"join\",\"username\":\"probe" + i + "\",\"room\":\"probe" + i + "\"}");
+            probeClients.add(probe);
+        }
+        char[] data = new char[bulkBytes];
+        Arrays.fill(data, 'A');
+        String fileUrl = "data:image/png;base64," + new String(data);
+        List<WebSocketClient> bulk = new ArrayList<>();
+        for (int i = 0; i < bulkClients; i++) {
+            Probe client = new Probe(uri, "bulk" + i);
+            client.connectBlocking();
+            client.send("{\"type\":\"join\",\"username\":\"bulk" + i + "\",\"room\":\"bulk\"}");
+            bulk.add(client);
+        }
+        Thread.sleep(500);
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        List<Thread> senders = new ArrayList<>();
+        for (int i = 0; i < bulkClients; i++) {
+            WebSocketClient client = bulk.get(i);
+            String frame = "{\"type\":\"file\",\"username\":\"bulk" + i + "\",\"room\":\"bulk\",\"fileUrl\":\"" + fileUrl
+                    + "\",\"isImage\":true}";
+            senders.add(new Thread(() -> {
+                while (running.get() && client.isOpen()) {
+                    client.send(frame);
+                    sleep(5);
+                }
+            }));
+        }
+        senders.add(new Thread(() -> {
+            long warmupEnd = System.currentTimeMillis() + 1000;
+            while (running.get()) {
+                boolean record = System.currentTimeMillis() > warmupEnd;
+                for (Probe probe : probeClients) {
+                    probe.ping(record);
+                }
+                sleep(20);
+            }
+        }));
+        senders.forEach(Thread::start);
+        Thread.sleep(1000 + seconds * 1000L);
+        running.set(false);
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        Thread.sleep(500);
+
+        long[] latencies = probeClients.stream()
+                .flatMapToLong(probe -> probe.latencies.stream().mapToLong(Long::longValue))
+                .sorted()
+                .toArray();
+        System.out.printf("%-26s %6d samples  p50 %7.2f ms  p99 %7.2f ms  p99.9 %7.2f ms  max %7.2f ms%n",
+                handlers, latencies.length, percentile(latencies, 0.50), percentile(latencies, 0.99),
+                percentile(latencies, 0.999), latencies.length > 0 ? latencies[latencies.length - 1] / 1e6 : 0);
+
+        for (WebSocketClient client : probeClients) {
+            client.closeBlocking();
+        }
+        for (WebSocketClient client : bulk) {
+            client.closeBlocking();
+        }
+        server.stop(1000);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        return sorted.length == 0 ? 0 : sorted[(int) Math.min(sorted.length - 1, sorted.length * p)] / 1e6;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Probe extends WebSocketClient {
+        private final String username;
+        private final String prefix;
+        final List<Long> latencies = new ArrayList<>();
+        private volatile boolean record;
+
+        Probe(URI uri, String username) {
+            super(uri);
+            this.username = username;
+            this.prefix = "{\"type\":\"message\",\"room\":\"" + username + "\",\"username\":\"" + username
+                    + "\",\"message\":\"";
+        }
+
+        void ping(boolean record) {
+            this.record = record;
+            send("{\"type\":\"message\",\"username\":\"" + username + "\",\"room\":\"" + username
+                    + "\",\"message\":\"" + System.nanoTime() + "\"}");
+        }
+
+        @Override
+        public void onOpen(ServerHandshake handshake) {
+        }
+
+        @Override
+        public void onMessage(String message) {
+            if (record && message.startsWith(prefix)) {
+                long sent = Long.parseLong(message.substring(prefix.length(), message.indexOf('"', prefix.length())));
+                latencies.add(System.nanoTime() - sent);
+            }
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+        }
+
+        @Override
+        public void onError(Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+import chat.bench.Fixture;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Heartbeat bookkeeping for {@code connections} live connections that answer every ping at once,
+ * with the server's default interval, timeout and tick on a simulated clock. One operation is one
+ * ping interval: every tick in it, and so one ping to each connection.
+ */
+public class HeartbeatFixture implements Fixture {
+    private static final long INTERVAL_MS = 25_000;
+    private static final long TIMEOUT_MS = 60_000;
+    private static final long TICK_MS = 100;
+
+    private final Heartbeat<Heartbeat.Entry<?>[]> heartbeat;
+    private long now = System.nanoTime() / 1_000_000;
+    private long pings;
+
+    @SuppressWarnings("unchecked")
+    public HeartbeatFixture(Map<String, String> params) {
+        int connections = Integer.parseInt(params.get("connections"));
+        heartbeat = new Heartbeat<>(INTERVAL_MS, TIMEOUT_MS, TICK_MS, new Heartbeat.Listener<>() {
+            @Override
+            public void ping(Heartbeat.Entry<?>[] self) {
+                pings++;
+                // The pong
+                heartbeat.touch((Heartbeat.Entry<Heartbeat.Entry<?>[]>) self[0], now);
+            }
+
+            @Override
+            public void expire(Heartbeat.Entry<?>[] self) {
+                throw new IllegalStateException("A live connection expired");
+            }
+        });
+        for (int i = 0; i < connections; i++) {
+            Heartbeat.Entry<?>[] self = new Heartbeat.Entry<?>[1];
+            self[0] = heartbeat.track(self, now);
+        }
+    }
+
+    @Override
+    public Supplier<Object> operation(String name) {
+        if (!name.equals("interval")) {
+            throw new IllegalArgumentException("Unknown operation " + name);
+        }
+        return this::interval;
+    }
+
+    private Object interval() {
+        for (long end = now + INTERVAL_MS; now < end; ) {
+            now += TICK_MS;
+            heartbeat.advance(now);
+        }
+        return pings;
+    }
+}
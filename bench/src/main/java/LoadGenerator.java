@@ -0,0 +1,398 @@
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+import org.java_websocket.handshake.ServerHandshake;
+
+/**
+ * Headless load generator: opens many WebSocket clients against a {@link ChatServer}, lets them
+ * send a weighted mix of {@code message}, {@code typing}, {@code read} and {@code call-signal}
+ * events at a fixed total rate, and reports throughput per type plus send-to-delivery latency
+ * percentiles. Chat messages and call signals carry their send time, so latency is measured at
+ * every recipient; typing and read updates are batched by the server and only counted. Against
+ * the embedded server it also reports outbound bytes and the CPU time of this process, to weigh
+ * bandwidth against CPU with and without compression.
+ *
+ * <p>Without {@code url=...} it starts a server in this JVM. Arguments are {@code key=value}:
+ * <pre>
+ * url=ws://host:port   server to load (default: embedded on port 19900)
+ * clients=1000         connections to open
+ * roomSize=20          clients per room
+ * rate=2000            events per second, all clients together
+ * seconds=30           measured duration, after a 5 second warm-up
+ * mix=message:60,typing:25,read:10,call-signal:5
+ * deflate=false        offer permessage-deflate from every client
+ * </pre>
+ */
+public class LoadGenerator {
+    private static final String[] TYPES = {"message", "typing", "read", "call-signal"};
+    private static final String PROBE = "lg ";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        int clientCount = Integer.parseInt(options.getOrDefault("clients", "1000"));
+        int roomSize = Integer.parseInt(options.getOrDefault("roomSize", "20"));
+        int rate = Integer.parseInt(options.getOrDefault("rate", "2000"));
+        int seconds = Integer.parseInt(options.getOrDefault("seconds", "30"));
+        int[] weights = parseMix(options.getOrDefault("mix", "message:60,typing:25,read:10,call-signal:5"));
+        boolean deflate = Boolean.parseBoolean(options.getOrDefault("deflate", "false"));
+
+        ChatServer embedded = null;
+        String url = options.get("url");
+        if (url == null) {
+            int port = 19900;
+            embedded = new ChatServer(new InetSocketAddress("localhost", port), new InProcessBus.Network().join("load"),
+                    Files.createTempDirectory("load-generator"));
+            embedded.setReuseAddr(true);
+            embedded.start();
+            Thread.sleep(500);
+            url = "ws://localhost:" + port;
+        }
+
+        Stats stats = new Stats();
+        List<Client> clients = new ArrayList<>();
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < clientCount; i++) {
+            Client client = new Client(new URI(url), deflate, "load" + i, "load-room" + (i / roomSize), stats);
+            if (!client.connectBlocking()) {
+                throw new IllegalStateException("Could not connect client " + i + " to " + url);
+            }
+            client.send("{\"type\":\"join\",\"username\":\"" + client.username + "\",\"room\":\"" + client.room + "\"}");
+            clients.add(client);
+        }
+        System.out.printf("Connected %d clients in %.1f s, %d per room%n", clientCount,
+                (System.nanoTime() - connectStart) / 1e9, roomSize);
+
+        Sender sender = new Sender(clients, roomSize, rate, weights, stats);
+        Thread thread = new Thread(sender, "load-sender");
+        thread.start();
+        Thread.sleep(5000);
+        stats.reset();
+        long bytesBefore = embedded != null ? embedded.getMetrics().getOutboundBytes() : 0;
+        long cpuBefore = processCpuNanos();
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        sender.running = false;
+        thread.join();
+        stats.report(elapsed, clients);
+        if (embedded != null) {
+            long bytes = embedded.getMetrics().getOutboundBytes() - bytesBefore;
+            System.out.printf("Server outbound payload: %.2f MB/s%s%n", bytes / elapsed / 1e6,
+                    deflate ? " (compressed)" : "");
+            System.out.printf("Process CPU, server and clients: %.0f%% of one core%n",
+                    (processCpuNanos() - cpuBefore) / elapsed / 1e7);
+        }
+
+        for (Client client : clients) {
+            client.closeBlocking();
+        }
+        if (embedded != null) {
+            embedded.stop(1000);
+        }
+    }
+
+    private static long processCpuNanos() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+                .getProcessCpuTime();
+    }
+
+    private static int[] parseMix(String mix) {
+        int[] weights = new int[TYPES.length];
+        for (String part : mix.split(",")) {
+            String[] entry = part.split(":");
+            int index = Arrays.asList(TYPES).indexOf(entry[0].trim());
+            if (entry.length != 2 || index < 0) {
+                throw new IllegalArgumentException("Invalid mix entry " + part);
+            }
+            weights[index] = Integer.parseInt(entry[1].trim());
+        }
+        return weights;
+    }
+
+    /**
+     * Sends the mix at the target rate in 10 ms ticks from random clients.
+     */
+    private static class Sender implements Runnable {
+        private final List<Client> clients;
+        private final int roomSize;
+        private final int rate;
+        private final int[] weights;
+        private final int totalWeight;
+        private final Stats stats;
+        volatile boolean running = true;
+
+        Sender(List<Client> clients, int roomSize, int rate, int[] weights, Stats stats) {
+            this.clients = clients;
+            this.roomSize = roomSize;
+            this.rate = rate;
+            this.weights = weights;
+            this.totalWeight = Arrays.stream(weights).sum();
+            this.stats = stats;
+        }
+
+        @Override
+        public void run() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long tickNanos = 10_000_000L;
+            long next = System.nanoTime();
+            double carry = 0;
+            while (running) {
+                carry += rate / 100.0;
+                for (; carry >= 1; carry--) {
+                    int index = random.nextInt(clients.size());
+                    Client client = clients.get(index);
+                    if (!client.isOpen()) {
+                        continue;
+                    }
+                    int type = pickType(random.nextInt(totalWeight));
+                    client.send(event(type, client, index, random));
+                    stats.sent[type].increment();
+                }
+                next += tickNanos;
+                long sleep = next - System.nanoTime();
+                if (sleep > 0) {
+                    try {
+                        Thread.sleep(sleep / 1_000_000, (int) (sleep % 1_000_000));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        private int pickType(int roll) {
+            for (int i = 0; i < weights.length; i++) {
+                roll -= weights[i];
+                if (roll < 0) {
+                    return i;
+                }
+            }
+            return 0;
+        }
+
+        private String event(int type, Client client, int index, ThreadLocalRandom random) {
+            String prefix = "{\"type\":\"" + TYPES[type] + "\",\"username\":\"" + client.username + "\",\"room\":\""
+                    + client.room + "\"";
+            switch (TYPES[type]) {
+                case "message":
+                    return prefix + ",\"message\":\"" + PROBE + System.nanoTime() + "\"}";
+                case "typing":
+                    return prefix + ",\"isTyping\":" + random.nextBoolean() + "}";
+                case "read":
+                    return prefix + ",\"messageId\":" + Math.max(1, client.lastMessageId) + "}";
+                default:
+                    int roomStart = index - index % roomSize;
+                    int peer = Math.min(clients.size() - 1, roomStart + random.nextInt(roomSize));
+                    return prefix + ",\"callId\":\"load-call\",\"target\":\"" + clients.get(peer).username
+                            + "\",\"signal\":{\"type\":\"candidate\",\"sentAt\":" + System.nanoTime() + "}}";
+            }
+        }
+    }
+
+    private static class Client extends WebSocketClient {
+        final String username;
+        final String room;
+        private final Stats stats;
+        private final String messagePrefix;
+        private long[] latencies = new long[1024];
+        private int latencyCount;
+        volatile long lastMessageId;
+
+        Client(URI uri, boolean deflate, String username, String room, Stats stats) {
+            super(uri, deflate ? new Draft_6455(new PerMessageDeflateExtension()) : new Draft_6455());
+            this.username = username;
+            this.room = room;
+            this.stats = stats;
+            this.messagePrefix = "\"message\":\"" + PROBE;
+        }
+
+        @Override
+        public void onOpen(ServerHandshake handshake) {
+        }
+
+        @Override
+        public void onMessage(String message) {
+            long now = System.nanoTime();
+            String type = field(message, "type");
+            stats.received(type);
+            if (!stats.recording) {
+                return;
+            }
+            if ("message".equals(type)) {
+                int at = message.indexOf(messagePrefix);
+                if (at >= 0) {
+                    int from = at + messagePrefix.length();
+                    record(now - Long.parseLong(message.substring(from, message.indexOf('"', from))));
+                }
+                String id = number(message, "messageId");
+                if (id != null) {
+                    lastMessageId = Long.parseLong(id);
+                }
+            } else if ("call-signal".equals(type) || "call-signal-batch".equals(type)) {
+                // A batch carries several candidates, each with its own send time
+                for (int at = 0; (at = message.indexOf("\"sentAt\":", at)) >= 0; at++) {
+                    String sentAt = number(message.substring(at), "sentAt");
+                    if (sentAt != null) {
+                        stats.signalLatency(now - Long.parseLong(sentAt));
+                    }
+                }
+            }
+        }
+
+        private synchronized void record(long nanos) {
+            if (latencyCount == latencies.length) {
+                latencies = Arrays.copyOf(latencies, latencyCount * 2);
+            }
+            latencies[latencyCount++] = nanos;
+        }
+
+        synchronized long[] latencies() {
+            return Arrays.copyOf(latencies, latencyCount);
+        }
+
+        synchronized void clearLatencies() {
+            latencyCount = 0;
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+            if (remote) {
+                stats.closed.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onError(Exception ex) {
+            stats.errors.incrementAndGet();
+        }
+
+        private static String field(String json, String name) {
+            String key = "\"" + name + "\":\"";
+            int at = json.indexOf(key);
+            if (at < 0) {
+                return null;
+            }
+            int from = at + key.length();
+            return json.substring(from, json.indexOf('"', from));
+        }
+
+        private static String number(String json, String name) {
+            String key = "\"" + name + "\":";
+            int at = json.indexOf(key);
+            if (at < 0) {
+                return null;
+            }
+            int from = at + key.length();
+            int to = from;
+            while (to < json.length() && (Character.isDigit(json.charAt(to)) || json.charAt(to) == '-')) {
+                to++;
+            }
+            return to > from ? json.substring(from, to) : null;
+        }
+    }
+
+    private static class Stats {
+        final LongAdder[] sent = new LongAdder[TYPES.length];
+        final Map<String, LongAdder> received = new LinkedHashMap<>();
+        final AtomicLong closed = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        private long[] signalLatencies = new long[1024];
+        private int signalCount;
+        volatile boolean recording;
+
+        Stats() {
+            for (int i = 0; i < TYPES.length; i++) {
+                sent[i] = new LongAdder();
+            }
+        }
+
+        void received(String type) {
+            LongAdder counter;
+            synchronized (received) {
+                counter = received.computeIfAbsent(String.valueOf(type), k -> new LongAdder());
+            }
+            counter.increment();
+        }
+
+        synchronized void signalLatency(long nanos) {
+            if (signalCount == signalLatencies.length) {
+                signalLatencies = Arrays.copyOf(signalLatencies, signalCount * 2);
+            }
+            signalLatencies[signalCount++] = nanos;
+        }
+
+        /**
+         * Ends the warm-up: clears all counts and starts recording latencies.
+         */
+        void reset() {
+            for (LongAdder counter : sent) {
+                counter.reset();
+            }
+            synchronized (received) {
+                received.values().forEach(LongAdder::reset);
+            }
+            synchronized (this) {
+                signalCount = 0;
+            }
+            recording = true;
+        }
+
+        void report(double seconds, List<Client> clients) {
+            recording = false;
+            System.out.printf("%nSent over %.1f s:%n", seconds);
+            for (int i = 0; i < TYPES.length; i++) {
+                System.out.printf("  %-12s %10d  %10.0f/s%n", TYPES[i], sent[i].sum(), sent[i].sum() / seconds);
+            }
+            System.out.println("Received:");
+            synchronized (received) {
+                received.forEach((type, count) -> System.out.printf("  %-18s %10d  %10.0f/s%n", type, count.sum(),
+                        count.sum() / seconds));
+            }
+            long[] messages = clients.stream().flatMapToLong(client -> Arrays.stream(client.latencies())).toArray();
+            long[] signals;
+            synchronized (this) {
+                signals = Arrays.copyOf(signalLatencies, signalCount);
+            }
+            System.out.println("Send-to-delivery latency:");
+            printPercentiles("message", messages);
+            printPercentiles("call-signal", signals);
+            System.out.printf("Connections closed by the server: %d, client errors: %d%n", closed.get(), errors.get());
+        }
+
+        private static void printPercentiles(String type, long[] latencies) {
+            if (latencies.length == 0) {
+                System.out.printf("  %-12s no samples%n", type);
+                return;
+            }
+            Arrays.sort(latencies);
+            System.out.printf("  %-12s %9d samples  p50 %8.2f ms  p90 %8.2f ms  p99 %8.2f ms  p99.9 %8.2f ms"
+                            + "  max %8.2f ms%n", type, latencies.length, at(latencies, 0.5), at(latencies, 0.9),
+                    at(latencies, 0.99), at(latencies, 0.999), latencies[latencies.length - 1] / 1e6);
+        }
+
+        private static double at(long[] sorted, double percentile) {
+            return sorted[(int) Math.min(sorted.length - 1, sorted.length * percentile)] / 1e6;
+        }
+    }
+}
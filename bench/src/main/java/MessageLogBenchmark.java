@@ -0,0 +1,66 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Measures {@link MessageLog} append throughput, replay of the recent tail as done on join, and
+ * reopening a populated log.
+ *
+ * <pre>java -cp ... MessageLogBenchmark [records] [replayBatch]</pre>
+ */
+public class MessageLogBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int replayBatch = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        Path dir = Files.createTempDirectory("message-log-bench");
+        try {
+            ByteBuffer payload = ByteBuffer.wrap(("{\"type\":\"message\",\"username\":\"alice\",\"message\":"
+                    + "\"Hello everyone, this is a fairly ordinary chat message.\",\"messageId\":1700000000000}")
+                    .getBytes(StandardCharsets.UTF_8));
+
+            try (MessageLog log = new MessageLog(dir, 64 * 1024 * 1024, 64)) {
+                long start = System.nanoTime();
+                for (int i = 0; i < records; i++) {
+                    log.append(1_700_000_000_000L + i, payload);
+                }
+                log.flush();
+                report("append", records, System.nanoTime() - start);
+
+                long[] bytes = new long[1];
+                int joins = 100_000;
+                start = System.nanoTime();
+                for (int i = 0; i < joins; i++) {
+                    log.read(log.nextOffset() - replayBatch, replayBatch, (offset, id, data) -> bytes[0] += data.remaining());
+                }
+                report("replay tail x" + replayBatch, joins, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                for (int i = 0; i < joins; i++) {
+                    long from = log.offsetAfter(1_700_000_000_000L + records - replayBatch - 1 - (i % 1000));
+                    log.read(from, replayBatch, (offset, id, data) -> bytes[0] += data.remaining());
+                }
+                report("resume after id", joins, System.nanoTime() - start);
+                System.out.println("replayed bytes: " + bytes[0]);
+            }
+
+            long start = System.nanoTime();
+            try (MessageLog log = new MessageLog(dir, 64 * 1024 * 1024, 64)) {
+                report("reopen (" + log.nextOffset() + " records)", 1, System.nanoTime() - start);
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static void report(String name, int operations, long nanos) {
+        System.out.printf("%-28s %12.0f ops/s %10.2f us/op%n", name, operations * 1e9 / nanos,
+                nanos / 1000.0 / operations);
+    }
+}
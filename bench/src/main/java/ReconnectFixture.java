@@ -0,0 +1,112 @@
+import chat.bench.Fixture;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A reconnect storm: every member of a room drops its connection and reconnects at once, as after
+ * a restart or a network blip. With {@code resume}, clients come back with their resume token and
+ * take back their held places; without it the server has resuming off and every disconnect and
+ * join is announced to the room. The operation ends once the first member to reconnect has seen a
+ * message sent after the last one did, i.e. once the room's broadcasts have all been delivered.
+ */
+public class ReconnectFixture implements Fixture {
+    private static final String ROOM = "general";
+
+    private final ChatServer server;
+    private final int members;
+    private final boolean resume;
+    private final String[] tokens;
+    private List<StubWebSocket> connections = new ArrayList<>();
+    private long storms;
+    // Id the server gave the previous storm's marker, which every member saw last
+    private String lastMessageId;
+
+    public ReconnectFixture(Map<String, String> params) throws Exception {
+        members = Integer.parseInt(params.get("members"));
+        resume = Boolean.parseBoolean(params.get("resume"));
+        tokens = new String[members];
+        System.setProperty("chat.resume.graceMs", resume ? "60000" : "0");
+        server = new ChatServer(new InetSocketAddress("localhost", 0), new InProcessBus.Network().join("bench"),
+                Files.createTempDirectory("reconnect-bench"), new HandlerExecutor(HandlerExecutor.Mode.INLINE, 0, 1000));
+        for (int i = 0; i < members; i++) {
+            StubWebSocket conn = connect(i);
+            awaitFrames(conn, 2);
+            if (resume) {
+                String reply = conn.getFirstText();
+                int start = reply.indexOf("\"token\":\"") + 9;
+                tokens[i] = reply.substring(start, reply.indexOf('"', start));
+            }
+            connections.add(conn);
+        }
+    }
+
+    @Override
+    public Supplier<Object> operation(String name) {
+        if (!name.equals("reconnectStorm")) {
+            throw new IllegalArgumentException("Unknown operation " + name);
+        }
+        return this::reconnectStorm;
+    }
+
+    private Object reconnectStorm() {
+        for (StubWebSocket conn : connections) {
+            server.onClose(conn, 1006, "", true);
+        }
+        List<StubWebSocket> reconnected = new ArrayList<>(members);
+        for (int i = 0; i < members; i++) {
+            reconnected.add(connect(i));
+        }
+        StubWebSocket first = reconnected.get(0);
+        String marker = "back " + (++storms);
+        server.onMessage(reconnected.get(members - 1), "{\"type\":\"message\",\"username\":\"user" + (members - 1)
+                + "\",\"room\":\"" + ROOM + "\",\"message\":\"" + marker + "\"}");
+        // Frames to a connection keep their order, so everything before the marker arrived too
+        long seen = 0;
+        while (true) {
+            long frames = first.getFramesWritten();
+            if (frames != seen) {
+                seen = frames;
+                if (first.getLastText().contains(marker + "\"")) {
+                    break;
+                }
+            }
+            // Leaves the CPU to the shard on small machines
+            Thread.yield();
+        }
+        String text = first.getLastText();
+        int start = text.indexOf("\"messageId\":") + 12;
+        int end = start;
+        while (end < text.length() && Character.isDigit(text.charAt(end))) {
+            end++;
+        }
+        lastMessageId = text.substring(start, end);
+        connections = reconnected;
+        return first;
+    }
+
+    private StubWebSocket connect(int i) {
+        StubWebSocket conn = new StubWebSocket();
+        server.onOpen(conn, null);
+        // Clients reconnect with the last message they saw, like the web client
+        String lastSeen = lastMessageId != null ? ",\"lastMessageId\":" + lastMessageId : "";
+        String token = tokens[i] != null ? ",\"resumeToken\":\"" + tokens[i] + "\"" : "";
+        server.onMessage(conn, "{\"type\":\"join\",\"username\":\"user" + i + "\",\"room\":\"" + ROOM + "\""
+                + lastSeen + token + "}");
+        return conn;
+    }
+
+    @Override
+    public void close() throws Exception {
+        server.stop(100);
+    }
+
+    private static void awaitFrames(StubWebSocket conn, long frames) {
+        while (conn.getFramesWritten() < frames) {
+            Thread.onSpinWait();
+        }
+    }
+}
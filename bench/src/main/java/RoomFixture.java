@@ -0,0 +1,83 @@
+import chat.bench.Fixture;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Whole-server paths through {@link ChatServer#onMessage}, from the client frame until the last
+ * member's connection has the result: a chat message delivered to a room, and a user entering a
+ * room (which replaced the full user-list rebuild) and leaving it again. Handlers run inline and
+ * every operation waits for its delivery, so shard queues never build up.
+ */
+public class RoomFixture implements Fixture {
+    private static final String ROOM = "general";
+
+    private final ChatServer server;
+    private final List<StubWebSocket> connections = new ArrayList<>();
+    private final StubWebSocket sender;
+    private final StubWebSocket last;
+    private final String message;
+
+    public RoomFixture(Map<String, String> params) throws Exception {
+        int members = Integer.parseInt(params.get("members"));
+        server = new ChatServer(new InetSocketAddress("localhost", 0), new InProcessBus.Network().join("bench"),
+                Files.createTempDirectory("room-bench"), new HandlerExecutor(HandlerExecutor.Mode.INLINE, 0, 1000));
+        for (int i = 0; i < members; i++) {
+            StubWebSocket conn = new StubWebSocket();
+            server.onOpen(conn, null);
+            server.onMessage(conn, "{\"type\":\"join\",\"username\":\"user" + i + "\",\"room\":\"" + ROOM + "\"}");
+            connections.add(conn);
+        }
+        sender = connections.get(0);
+        last = connections.get(members - 1);
+        // Every member has seen the last one join
+        awaitFrames(sender, members + 1);
+        message = "{\"type\":\"message\",\"username\":\"user0\",\"room\":\"" + ROOM
+                + "\",\"message\":\"Hello everyone, this is a fairly ordinary chat message.\"}";
+    }
+
+    @Override
+    public Supplier<Object> operation(String name) {
+        switch (name) {
+            case "messageToRoom":
+                return this::messageToRoom;
+            case "enterAndLeaveRoom":
+                return this::enterAndLeaveRoom;
+            default:
+                throw new IllegalArgumentException("Unknown operation " + name);
+        }
+    }
+
+    private Object messageToRoom() {
+        long expected = last.getFramesWritten() + 1;
+        server.onMessage(sender, message);
+        awaitFrames(last, expected);
+        return last;
+    }
+
+    private Object enterAndLeaveRoom() {
+        StubWebSocket conn = new StubWebSocket();
+        server.onOpen(conn, null);
+        server.onMessage(conn, "{\"type\":\"join\",\"username\":\"newcomer\",\"room\":\"" + ROOM + "\"}");
+        // Its own join notice and the presence snapshot
+        awaitFrames(conn, 2);
+        long expected = last.getFramesWritten() + 1;
+        server.onClose(conn, 1000, "", false);
+        awaitFrames(last, expected);
+        return conn;
+    }
+
+    @Override
+    public void close() throws Exception {
+        server.stop(100);
+    }
+
+    private static void awaitFrames(StubWebSocket conn, long frames) {
+        while (conn.getFramesWritten() < frames) {
+            Thread.onSpinWait();
+        }
+    }
+}
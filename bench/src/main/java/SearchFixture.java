@@ -0,0 +1,116 @@
+import chat.bench.Fixture;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Search over an index of {@code messages} chat messages in {@link #ROOMS} rooms, each message
+ * eight words from a vocabulary of {@link #VOCABULARY} with a skewed distribution, so a few words
+ * are in most messages and most words are rare, as in chat. Measures a page of results for one-
+ * and two-word queries drawn from the same distribution, and building an index of
+ * {@link #BUILD_MESSAGES} messages from scratch, segments written included.
+ */
+public class SearchFixture implements Fixture {
+    private static final int ROOMS = 100;
+    private static final int VOCABULARY = 50_000;
+    private static final int WORDS_PER_MESSAGE = 8;
+    private static final int BUILD_MESSAGES = 100_000;
+    private static final int SEGMENT_DOCS = 64 * 1024;
+    private static final int PAGE_SIZE = 20;
+    private static final int QUERIES = 4096;
+
+    private final Path dir;
+    private final SearchIndex index;
+    private final String[] messages;
+    private final String[] queries = new String[QUERIES];
+    private final String[] queryRooms = new String[QUERIES];
+    private int nextQuery;
+    private int builds;
+
+    public SearchFixture(Map<String, String> params) throws Exception {
+        int count = Integer.parseInt(params.get("messages"));
+        Random random = new Random(42);
+        messages = new String[Math.max(count, BUILD_MESSAGES)];
+        for (int i = 0; i < messages.length; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int w = 0; w < WORDS_PER_MESSAGE; w++) {
+                text.append(w > 0 ? " " : "").append(word(random));
+            }
+            messages[i] = text.toString();
+        }
+        for (int i = 0; i < QUERIES; i++) {
+            queries[i] = i % 2 == 0 ? word(random) : word(random) + " " + word(random);
+            queryRooms[i] = room(random.nextInt(ROOMS));
+        }
+        dir = Files.createTempDirectory("search-bench");
+        index = build(dir.resolve("index"), count);
+    }
+
+    /**
+     * Word {@code n} with {@code n} log-uniform over the vocabulary: the first ten words are as
+     * common as the next ninety, and so on.
+     */
+    private static String word(Random random) {
+        return "w" + ((int) Math.pow(VOCABULARY, random.nextDouble()) - 1);
+    }
+
+    private static String room(int n) {
+        return "room" + n;
+    }
+
+    private SearchIndex build(Path path, int count) throws IOException {
+        SearchIndex built = new SearchIndex(path, SEGMENT_DOCS, Integer.MAX_VALUE);
+        for (int i = 0; i < count; i++) {
+            built.add(i, room(i % ROOMS), 1_700_000_000_000L + i, "user" + (i % 1000), messages[i]);
+            if (i % SEGMENT_DOCS == SEGMENT_DOCS - 1) {
+                built.sealIfFull();
+            }
+        }
+        return built;
+    }
+
+    @Override
+    public Supplier<Object> operation(String name) {
+        switch (name) {
+            case "query":
+                return this::query;
+            case "build":
+                return this::build;
+            default:
+                throw new IllegalArgumentException("Unknown operation " + name);
+        }
+    }
+
+    private Object query() {
+        int i = nextQuery++ & (QUERIES - 1);
+        return index.search(queryRooms[i], queries[i], Integer.MAX_VALUE, PAGE_SIZE);
+    }
+
+    private Object build() {
+        Path path = dir.resolve("build" + builds++);
+        try {
+            SearchIndex built = build(path, BUILD_MESSAGES);
+            built.close();
+            delete(path);
+            return built;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        delete(dir);
+    }
+
+    private static void delete(Path path) throws IOException {
+        try (Stream<Path> files = Files.walk(path)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+}
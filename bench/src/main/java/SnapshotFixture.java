@@ -0,0 +1,89 @@
+import chat.bench.Fixture;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Snapshot cost for a server with {@code users} users: each holds a ticket for the lobby and one
+ * of ten other rooms, every room has a full ring of read messages with a tenth of the users as
+ * readers, and there are {@code users / 10} two-party calls. Measures writing and reading the
+ * snapshot on its own and a restart, i.e. a server coming up from it and stopping again.
+ */
+public class SnapshotFixture implements Fixture {
+    private static final int ROOMS = 10;
+    private static final int MESSAGES_PER_ROOM = 1000;
+
+    private final Path dir;
+    private final Path file;
+    private final StateSnapshot snapshot;
+
+    public SnapshotFixture(Map<String, String> params) throws Exception {
+        int users = Integer.parseInt(params.get("users"));
+        dir = Files.createTempDirectory("snapshot-bench");
+        file = dir.resolve("state.snapshot");
+        long now = System.currentTimeMillis();
+        snapshot = new StateSnapshot(now);
+        for (int i = 0; i < users; i++) {
+            snapshot.addTicket("token-" + i, "user" + i, "", List.of(Room.DEFAULT, "room" + (i % ROOMS)));
+        }
+        for (int i = 0; i + 1 < users; i += 10) {
+            snapshot.addCall("call-" + i, "room" + (i % ROOMS), "user" + i, List.of("user" + i, "user" + (i + 1)));
+        }
+        for (int room = 0; room < ROOMS; room++) {
+            for (int m = 0; m < MESSAGES_PER_ROOM; m++) {
+                List<String> readers = new ArrayList<>();
+                for (int u = m % 10; u < users; u += 10) {
+                    readers.add("user" + u);
+                }
+                snapshot.addReceipt("room" + room, now - (MESSAGES_PER_ROOM - m) * 1000L, now - 1000L, readers);
+            }
+        }
+        snapshot.write(file);
+    }
+
+    @Override
+    public Supplier<Object> operation(String name) {
+        switch (name) {
+            case "write":
+                return this::write;
+            case "read":
+                return this::read;
+            case "restart":
+                return this::restart;
+            default:
+                throw new IllegalArgumentException("Unknown operation " + name);
+        }
+    }
+
+    private Object write() {
+        try {
+            return snapshot.write(file);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Object read() {
+        try {
+            return StateSnapshot.read(file);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Object restart() {
+        try {
+            ChatServer server = new ChatServer(new InetSocketAddress("localhost", 0),
+                    new InProcessBus.Network().join("bench"), dir,
+                    new HandlerExecutor(HandlerExecutor.Mode.INLINE, 0, 1000));
+            server.stop(0);
+            return server;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
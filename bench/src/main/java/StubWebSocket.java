@@ -0,0 +1,206 @@
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLSession;
+import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.enums.Opcode;
+import org.java_websocket.enums.ReadyState;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.protocols.IProtocol;
+import org.java_websocket.protocols.Protocol;
+
+/**
+ * In-memory connection for benchmarks. Sends run through a real {@link Draft_6455} so framing
+ * cost matches {@code WebSocketImpl}, but the bytes are only counted, never written.
+ */
+public class StubWebSocket implements WebSocket {
+    private final Draft draft = new Draft_6455();
+    private final IProtocol protocol;
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong framesWritten = new AtomicLong();
+    private volatile Framedata firstFrame;
+    private volatile Framedata lastFrame;
+    private Object attachment;
+    private volatile boolean open = true;
+
+    public StubWebSocket() {
+        this(false);
+    }
+
+    /**
+     * @param binary whether the connection negotiated the {@link BinaryProtocol} subprotocol
+     */
+    public StubWebSocket(boolean binary) {
+        protocol = new Protocol(binary ? BinaryProtocol.SUBPROTOCOL : "");
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * Frames sent so far; safe to poll from another thread.
+     */
+    public long getFramesWritten() {
+        return framesWritten.get();
+    }
+
+    @Override
+    public void send(String text) {
+        sendFrame(draft.createFrames(text, false));
+    }
+
+    @Override
+    public void send(ByteBuffer bytes) {
+        sendFrame(draft.createFrames(bytes, false));
+    }
+
+    @Override
+    public void send(byte[] bytes) {
+        send(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Payload of the first frame sent, e.g. the reply to {@code join}.
+     */
+    public String getFirstText() {
+        return textOf(firstFrame);
+    }
+
+    /**
+     * Payload of the most recent frame sent.
+     */
+    public String getLastText() {
+        return textOf(lastFrame);
+    }
+
+    private static String textOf(Framedata frame) {
+        return frame != null ? StandardCharsets.UTF_8.decode(frame.getPayloadData().duplicate()).toString() : null;
+    }
+
+    @Override
+    public void sendFrame(Framedata framedata) {
+        if (firstFrame == null) {
+            firstFrame = framedata;
+        }
+        lastFrame = framedata;
+        ByteBuffer buffer = draft.createBinaryFrame(framedata);
+        bytesWritten.addAndGet(buffer.remaining());
+        framesWritten.incrementAndGet();
+    }
+
+    @Override
+    public void sendFrame(Collection<Framedata> frames) {
+        for (Framedata frame : frames) {
+            sendFrame(frame);
+        }
+    }
+
+    @Override
+    public void sendPing() {
+    }
+
+    @Override
+    public void sendFragmentedFrame(Opcode op, ByteBuffer buffer, boolean fin) {
+    }
+
+    @Override
+    public void close(int code, String message) {
+        open = false;
+    }
+
+    @Override
+    public void close(int code) {
+        open = false;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    @Override
+    public void closeConnection(int code, String message) {
+        open = false;
+    }
+
+    @Override
+    public boolean hasBufferedData() {
+        return false;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteSocketAddress() {
+        return null;
+    }
+
+    @Override
+    public InetSocketAddress getLocalSocketAddress() {
+        return null;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public boolean isClosing() {
+        return false;
+    }
+
+    @Override
+    public boolean isFlushAndClose() {
+        return false;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !open;
+    }
+
+    @Override
+    public Draft getDraft() {
+        return draft;
+    }
+
+    @Override
+    public ReadyState getReadyState() {
+        return open ? ReadyState.OPEN : ReadyState.CLOSED;
+    }
+
+    @Override
+    public String getResourceDescriptor() {
+        return "/";
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T getAttachment() {
+        return (T) attachment;
+    }
+
+    @Override
+    public <T> void setAttachment(T attachment) {
+        this.attachment = attachment;
+    }
+
+    @Override
+    public boolean hasSSLSupport() {
+        return false;
+    }
+
+    @Override
+    public SSLSession getSSLSession() {
+        throw new IllegalArgumentException("No SSL session");
+    }
+
+    @Override
+    public IProtocol getProtocol() {
+        return protocol;
+    }
+}
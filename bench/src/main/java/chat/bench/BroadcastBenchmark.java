@@ -0,0 +1,55 @@
+package chat.bench;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Fan-out of one room event to every member; see {@code BroadcastFixture}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int members;
+
+    @Param({"0", "50"})
+    public int binaryPercent;
+
+    private Supplier<Object> broadcastMessage;
+    private Supplier<Object> broadcastTyping;
+
+    @Setup
+    public void setUp() throws Exception {
+        Fixture fixture = Fixture.create("BroadcastFixture",
+                Map.of("members", String.valueOf(members), "binaryPercent", String.valueOf(binaryPercent)));
+        broadcastMessage = fixture.operation("broadcastMessage");
+        broadcastTyping = fixture.operation("broadcastTyping");
+    }
+
+    @Benchmark
+    public Object broadcastMessage() {
+        return broadcastMessage.get();
+    }
+
+    @Benchmark
+    public Object broadcastTyping() {
+        return broadcastTyping.get();
+    }
+}
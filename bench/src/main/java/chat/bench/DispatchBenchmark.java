@@ -0,0 +1,51 @@
+package chat.bench;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding one client frame per {@code onMessage} dispatch; see {@code DispatchFixture}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatchBenchmark {
+
+    @Param({"message", "typing", "read", "call-signal"})
+    public String type;
+
+    private Supplier<Object> decodeJson;
+    private Supplier<Object> decodeBinary;
+
+    @Setup
+    public void setUp() throws Exception {
+        Fixture fixture = Fixture.create("DispatchFixture", Map.of("type", type));
+        decodeJson = fixture.operation("decodeJson");
+        decodeBinary = fixture.operation("decodeBinary");
+    }
+
+    @Benchmark
+    public Object decodeJson() {
+        return decodeJson.get();
+    }
+
+    @Benchmark
+    public Object decodeBinary() {
+        return decodeBinary.get();
+    }
+}
@@ -0,0 +1,26 @@
+package chat.bench;
+
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Set-up state for one benchmark, implemented next to the server classes in the default package.
+ * JMH only accepts benchmarks in a named package, and those cannot refer to default-package
+ * classes, so each benchmark loads its fixture by name once and then only calls the resolved
+ * operations.
+ */
+public interface Fixture extends AutoCloseable {
+
+    /**
+     * Returns the operation with this name; called once per trial, outside the measurement.
+     */
+    Supplier<Object> operation(String name);
+
+    @Override
+    default void close() throws Exception {
+    }
+
+    static Fixture create(String className, Map<String, String> params) throws Exception {
+        return (Fixture) Class.forName(className).getConstructor(Map.class).newInstance(params);
+    }
+}
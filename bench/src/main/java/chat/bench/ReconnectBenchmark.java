@@ -0,0 +1,58 @@
+package chat.bench;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Every member of a room reconnecting at once, with and without resume tokens; see
+ * {@code ReconnectFixture}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dorg.slf4j.simpleLogger.defaultLogLevel=warn",
+        "-Dchat.log.segmentBytes=8388608", "-Dchat.log.maxSegments=2", "-Dchat.limit.enabled=false",
+        "-Dchat.snapshot.intervalMs=0"})
+public class ReconnectBenchmark {
+
+    @Param({"100", "1000"})
+    public int members;
+
+    @Param({"true", "false"})
+    public boolean resume;
+
+    private Fixture fixture;
+    private Supplier<Object> reconnectStorm;
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture = Fixture.create("ReconnectFixture",
+                Map.of("members", String.valueOf(members), "resume", String.valueOf(resume)));
+        reconnectStorm = fixture.operation("reconnectStorm");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public Object reconnectStorm() {
+        return reconnectStorm.get();
+    }
+}
@@ -0,0 +1,60 @@
+package chat.bench;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A message to a room and a user entering and leaving it, through the whole server; see
+ * {@code RoomFixture}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dorg.slf4j.simpleLogger.defaultLogLevel=warn",
+        "-Dchat.log.segmentBytes=8388608", "-Dchat.log.maxSegments=2", "-Dchat.limit.enabled=false"})
+public class RoomBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int members;
+
+    private Fixture fixture;
+    private Supplier<Object> messageToRoom;
+    private Supplier<Object> enterAndLeaveRoom;
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture = Fixture.create("RoomFixture", Map.of("members", String.valueOf(members)));
+        messageToRoom = fixture.operation("messageToRoom");
+        enterAndLeaveRoom = fixture.operation("enterAndLeaveRoom");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public Object messageToRoom() {
+        return messageToRoom.get();
+    }
+
+    @Benchmark
+    public Object enterAndLeaveRoom() {
+        return enterAndLeaveRoom.get();
+    }
+}
@@ -0,0 +1,67 @@
+package chat.bench;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing and reading a state snapshot, and restart-to-ready time from one; see
+ * {@code SnapshotFixture}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dorg.slf4j.simpleLogger.defaultLogLevel=warn",
+        "-Dchat.log.segmentBytes=1048576", "-Dchat.log.maxSegments=2", "-Dchat.snapshot.intervalMs=0"})
+public class SnapshotBenchmark {
+
+    @Param({"1000", "10000"})
+    public int users;
+
+    private Fixture fixture;
+    private Supplier<Object> write;
+    private Supplier<Object> read;
+    private Supplier<Object> restart;
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture = Fixture.create("SnapshotFixture", Map.of("users", String.valueOf(users)));
+        write = fixture.operation("write");
+        read = fixture.operation("read");
+        restart = fixture.operation("restart");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public Object write() {
+        return write.get();
+    }
+
+    @Benchmark
+    public Object read() {
+        return read.get();
+    }
+
+    @Benchmark
+    public Object restart() {
+        return restart.get();
+    }
+}
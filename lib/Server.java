@@ -1,94 +1,405 @@
 package lib;
 
-// Server.java
-import java.io.*;
-import java.net.*;
-import java.util.*;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-public class Server {
+/**
+ * Server for the line protocol of the old terminal clients: the server sends {@code SUBMITNAME}
+ * until the client answers with a name it accepts, confirms it with {@code NAMEACCEPTED <name>},
+ * and from then on every line the client sends is a chat message, while the server sends
+ * {@code MESSAGE <text>} lines.
+ *
+ * <p>All sockets are served by one selector thread, so an idle client costs a channel and a
+ * selection key rather than a thread. Reads go through one shared buffer; only a client that
+ * sent part of a line keeps bytes of its own. {@link #deliver} and {@link #announce} may be
+ * called from any thread: the line is encoded once and queued on every client, and the selector
+ * thread writes it out. A client whose queue grows past the limit is disconnected.
+ *
+ * <p>What happens to names and messages is up to the {@link Listener}; run standalone, the
+ * server broadcasts them to its own clients.
+ */
+public class Server implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(Server.class);
     private static final int PORT = 5000;
-    private static HashSet<PrintWriter> writers = new HashSet<>();
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+
+    /**
+     * Receives the events of named clients, on the selector thread, so implementations must not
+     * block.
+     */
+    public interface Listener {
+
+        /**
+         * @return {@code false} to refuse the name, in which case the client is asked for another
+         */
+        boolean onJoin(String name);
+
+        void onMessage(String name, String text);
+
+        void onLeave(String name);
+    }
+
+    private final int port;
+    private final Listener listener;
+    private final int maxLineBytes;
+    private final long maxPendingBytes;
+    private final Map<String, Client> clients = new ConcurrentHashMap<>();
+    // Clients with new output, for the selector thread to pick up
+    private final Queue<Client> flushes = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+    private Selector selector;
+    private ServerSocketChannel acceptor;
+    private Thread thread;
+    private volatile boolean running;
+
+    /**
+     * @param maxLineBytes    longest line a client may send; a client sending a longer one is
+     *                        disconnected
+     * @param maxPendingBytes output a client may have waiting before it is disconnected as too slow
+     */
+    public Server(int port, Listener listener, int maxLineBytes, long maxPendingBytes) {
+        this.port = port;
+        this.listener = listener;
+        this.maxLineBytes = maxLineBytes;
+        this.maxPendingBytes = maxPendingBytes;
+    }
 
     public static void main(String[] args) throws Exception {
+        Server[] server = new Server[1];
+        server[0] = new Server(PORT, new Listener() {
+            @Override
+            public boolean onJoin(String name) {
+                server[0].announce(name + " has joined the chat");
+                return true;
+            }
+
+            @Override
+            public void onMessage(String name, String text) {
+                server[0].deliver(name, text);
+            }
+
+            @Override
+            public void onLeave(String name) {
+                server[0].announce(name + " has left the chat");
+            }
+        }, 8192, 1024 * 1024);
+        server[0].start();
         System.out.println("Chat Server is running...");
-        ServerSocket listener = new ServerSocket(PORT);
-        try {
-            while (true) {
-                new ClientHandler(listener.accept()).start();
+        server[0].thread.join();
+    }
+
+    /**
+     * Binds the port and starts the selector thread.
+     */
+    public void start() throws IOException {
+        selector = Selector.open();
+        acceptor = ServerSocketChannel.open();
+        acceptor.bind(new InetSocketAddress(port), 1024);
+        acceptor.configureBlocking(false);
+        acceptor.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        thread = new Thread(this::run, "line-server");
+        thread.setDaemon(true);
+        thread.start();
+        logger.info("Line protocol server listening on port {}", port);
+    }
+
+    public int getPort() {
+        return acceptor != null ? acceptor.socket().getLocalPort() : port;
+    }
+
+    /**
+     * Number of clients that have a name.
+     */
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    /**
+     * Sends {@code MESSAGE <from>: <text>} to every named client.
+     */
+    public void deliver(String from, String text) {
+        broadcast("MESSAGE " + from + ": " + text + "\n");
+    }
+
+    /**
+     * Sends {@code MESSAGE <text>} to every named client.
+     */
+    public void announce(String text) {
+        broadcast("MESSAGE " + text + "\n");
+    }
+
+    private void broadcast(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        for (Client client : clients.values()) {
+            // Names are reserved before the listener accepts them
+            if (client.name != null) {
+                client.enqueue(ByteBuffer.wrap(bytes));
             }
-        } finally {
-            listener.close();
         }
     }
 
-    private static class ClientHandler extends Thread {
-        private String name;
-        private Socket socket;
-        private BufferedReader in;
-        private PrintWriter out;
-
-        public ClientHandler(Socket socket) {
-            this.socket = socket;
+    @Override
+    public void close() throws IOException {
+        running = false;
+        if (selector == null) {
+            return;
+        }
+        selector.wakeup();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+    }
 
-        public void run() {
-            try {
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
-
-                // Request a name from this client
-                while (true) {
-                    out.println("SUBMITNAME");
-                    name = in.readLine();
-                    if (name == null) {
-                        return;
+    private void run() {
+        try {
+            while (running) {
+                // Before blocking, including output queued by this thread in the last round
+                Client flushed;
+                while ((flushed = flushes.poll()) != null) {
+                    flushed.scheduled.set(false);
+                    flushed.flush();
+                }
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
                     }
-                    synchronized (writers) {
-                        if (!name.isEmpty()) {
-                            break;
-                        }
+                    Client client = (Client) key.attachment();
+                    if (key.isWritable()) {
+                        client.flush();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        client.read();
                     }
                 }
-
-                // Add client's printwriter to the set of all writers
-                out.println("NAMEACCEPTED " + name);
-                synchronized (writers) {
-                    writers.add(out);
+            }
+        } catch (IOException e) {
+            logger.error("Line protocol server stopped", e);
+        } finally {
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                if (key.attachment() instanceof Client) {
+                    ((Client) key.attachment()).close();
                 }
+            }
+            try {
+                selector.close();
+                acceptor.close();
+            } catch (IOException e) {
+                logger.error("Error closing line protocol server", e);
+            }
+        }
+    }
 
-                // Broadcast that a new user joined
-                for (PrintWriter writer : writers) {
-                    writer.println("MESSAGE " + name + " has joined the chat");
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = acceptor.accept()) != null) {
+            channel.configureBlocking(false);
+            Client client = new Client(channel);
+            client.key = channel.register(selector, SelectionKey.OP_READ, client);
+            client.enqueue(ByteBuffer.wrap("SUBMITNAME\n".getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    /**
+     * One socket. Reads, writes and closing happen on the selector thread; {@link #enqueue} may
+     * be called from any thread.
+     */
+    private class Client {
+        private final SocketChannel channel;
+        private final Queue<ByteBuffer> output = new ConcurrentLinkedQueue<>();
+        private final AtomicLong pendingBytes = new AtomicLong();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private SelectionKey key;
+        // Start of a line that has not ended yet, only while there is one
+        private byte[] partial;
+        private int partialLength;
+        private volatile String name;
+        private volatile boolean closed;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void enqueue(ByteBuffer line) {
+            if (closed) {
+                return;
+            }
+            if (pendingBytes.addAndGet(line.remaining()) > maxPendingBytes) {
+                logger.warn("Disconnecting line client {}: {} bytes of output pending", name, pendingBytes.get());
+                closed = true;
+            } else {
+                output.add(line);
+            }
+            if (scheduled.compareAndSet(false, true)) {
+                flushes.add(this);
+                if (Thread.currentThread() != thread) {
+                    selector.wakeup();
                 }
+            }
+        }
 
-                // Accept messages from this client and broadcast them
-                while (true) {
-                    String input = in.readLine();
-                    if (input == null) {
+        void flush() {
+            if (closed) {
+                close();
+                return;
+            }
+            try {
+                ByteBuffer line;
+                while ((line = output.peek()) != null) {
+                    int written = channel.write(line);
+                    pendingBytes.addAndGet(-written);
+                    if (line.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
                         return;
                     }
-                    for (PrintWriter writer : writers) {
-                        writer.println("MESSAGE " + name + ": " + input);
-                    }
+                    output.poll();
                 }
+                key.interestOps(SelectionKey.OP_READ);
             } catch (IOException e) {
-                System.out.println(e);
-            } finally {
-                if (out != null) {
-                    synchronized (writers) {
-                        writers.remove(out);
-                    }
+                close();
+            }
+        }
+
+        void read() {
+            ByteBuffer buffer = readBuffer;
+            buffer.clear();
+            int read;
+            try {
+                read = channel.read(buffer);
+            } catch (IOException e) {
+                read = -1;
+            }
+            if (read < 0) {
+                close();
+                return;
+            }
+            byte[] bytes = buffer.array();
+            int start = 0;
+            for (int i = 0; i < read && !closed; i++) {
+                if (bytes[i] != '\n') {
+                    continue;
                 }
-                if (name != null) {
-                    for (PrintWriter writer : writers) {
-                        writer.println("MESSAGE " + name + " has left the chat");
-                    }
+                String line;
+                if (partial != null) {
+                    append(bytes, start, i - start);
+                    line = decode(partial, 0, partialLength);
+                    partial = null;
+                } else {
+                    line = decode(bytes, start, i - start);
                 }
-                try {
-                    socket.close();
-                } catch (IOException e) {
+                start = i + 1;
+                if (line != null) {
+                    onLine(line);
                 }
             }
+            if (start < read && !closed) {
+                append(bytes, start, read - start);
+            }
+            if (closed) {
+                close();
+            }
+        }
+
+        private void append(byte[] bytes, int offset, int length) {
+            if (partial == null) {
+                partial = new byte[Math.max(256, length)];
+                partialLength = 0;
+            }
+            if (partialLength + length > maxLineBytes + 1) {
+                logger.warn("Disconnecting line client {}: line over {} bytes", name, maxLineBytes);
+                closed = true;
+                return;
+            }
+            if (partialLength + length > partial.length) {
+                partial = Arrays.copyOf(partial, Math.max(partialLength + length, partial.length * 2));
+            }
+            System.arraycopy(bytes, offset, partial, partialLength, length);
+            partialLength += length;
+        }
+
+        /**
+         * Returns the line without its {@code \r}, or {@code null} if it is too long, in which
+         * case the client is closed.
+         */
+        private String decode(byte[] bytes, int offset, int length) {
+            if (length > 0 && bytes[offset + length - 1] == '\r') {
+                length--;
+            }
+            if (length > maxLineBytes) {
+                logger.warn("Disconnecting line client {}: line over {} bytes", name, maxLineBytes);
+                closed = true;
+                return null;
+            }
+            return new String(bytes, offset, length, StandardCharsets.UTF_8);
+        }
+
+        private void onLine(String line) {
+            if (name != null) {
+                listener.onMessage(name, line);
+                return;
+            }
+            if (line.isEmpty() || clients.putIfAbsent(line, this) != null) {
+                enqueue(ByteBuffer.wrap("SUBMITNAME\n".getBytes(StandardCharsets.UTF_8)));
+                return;
+            }
+            boolean accepted;
+            try {
+                accepted = listener.onJoin(line);
+            } catch (RuntimeException e) {
+                logger.error("Error accepting line client {}", line, e);
+                accepted = false;
+            }
+            if (!accepted) {
+                clients.remove(line);
+                enqueue(ByteBuffer.wrap("SUBMITNAME\n".getBytes(StandardCharsets.UTF_8)));
+                return;
+            }
+            name = line;
+            enqueue(ByteBuffer.wrap(("NAMEACCEPTED " + line + "\n").getBytes(StandardCharsets.UTF_8)));
+        }
+
+        void close() {
+            closed = true;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+            String left = name;
+            if (left != null && clients.remove(left, this)) {
+                listener.onLeave(left);
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -7,8 +7,22 @@ let callDurationInterval;
 let callStartTime;
 let localStream;
 let peerConnections = {};
+// Session of each peer's tab in the call, so signals go to that tab only
+let peerSessions = {};
 let isMuted = false;
 let isVideoOff = false;
+let lastMessageId = null;
+// Lets a reconnect take back this tab's rooms and calls instead of joining afresh
+let resumeToken = sessionStorage.getItem('resumeToken');
+const BLOB_SERVER = 'http://localhost:8888';
+const currentRoom = new URLSearchParams(window.location.search).get('room') || 'lobby';
+const seenMessageIds = new Set();
+// Room presence: avatar id by username, kept in sync by versioned deltas
+const presence = new Map();
+let presenceVersion = 0;
+let presenceSyncPending = false;
+const avatarCache = new Map();
+const requestedAvatars = new Set();
 
 // Initialize event listeners
 document.addEventListener('DOMContentLoaded', function() {
@@ -45,12 +59,15 @@ document.addEventListener('DOMContentLoaded', function() {
     });
 });
 
-function addMessage(text, type = 'received', sender = '', isFile = false, isImage = false) {
+// messageId is the server's id for chat messages and files, which later events refer to
+function addMessage(text, type = 'received', sender = '', isFile = false, isImage = false, messageId = null) {
     const messages = document.getElementById('messages');
     const messageElement = document.createElement('div');
     
     messageElement.className = `message ${type}`;
-    messageElement.setAttribute('data-timestamp', Date.now());
+    if (messageId !== null && messageId !== undefined) {
+        messageElement.setAttribute('data-message-id', messageId);
+    }
     
     if (sender) {
         const senderElement = document.createElement('div');
@@ -76,7 +93,7 @@ function addMessage(text, type = 'received', sender = '', isFile = false, isImag
     }
     messageElement.appendChild(contentElement);
 
-    if (type === 'sent') {
+    if (type === 'sent' && messageId !== null && messageId !== undefined) {
         const messageMenu = document.createElement('div');
         messageMenu.className = 'message-menu';
         messageMenu.textContent = '⋮';
@@ -97,11 +114,11 @@ function addMessage(text, type = 'received', sender = '', isFile = false, isImag
         const deleteButton = document.createElement('button');
         deleteButton.textContent = 'Delete';
         deleteButton.onclick = function() {
-            ws.send(JSON.stringify({
+            sendEvent({
                 type: 'delete',
                 username: username,
-                messageId: messageElement.getAttribute('data-timestamp')
-            }));
+                messageId: messageId
+            });
             messageElement.remove();
         };
         messageMenuContent.appendChild(editButton);
@@ -131,11 +148,13 @@ function connect() {
         updateStatus('Connected', true);
         document.getElementById('loginArea').style.display = 'none';
         document.getElementById('chatArea').style.display = 'block';
-        ws.send(JSON.stringify({
+        sendEvent({
             type: 'join',
             username: username,
-            avatar: avatarUrl
-        }));
+            avatar: avatarUrl,
+            lastMessageId: lastMessageId,
+            resumeToken: resumeToken
+        });
         addMessage(`Welcome to the chat room, ${username}!`, 'system');
     };
 
@@ -168,22 +187,26 @@ function connect() {
                     addMessage(`${data.username} left the chat`, 'system');
                     break;
                 case 'message':
-                    addMessage(data.message, data.username === username ? 'sent' : 'received', data.username);
+                    if (!trackMessageId(data.messageId)) break;
+                    addMessage(data.message, data.username === username ? 'sent' : 'received', data.username,
+                        false, false, data.messageId);
                     break;
                 case 'file':
-                    addMessage(data.fileUrl, data.username === username ? 'sent' : 'received', data.username, true, data.isImage);
+                    if (!trackMessageId(data.messageId)) break;
+                    addMessage(data.fileUrl, data.username === username ? 'sent' : 'received', data.username,
+                        true, data.isImage, data.messageId);
                     break;
                 case 'location':
                     addLocation(data.username, data.latitude, data.longitude);
                     break;
                 case 'delete':
-                    const messageToDelete = document.querySelector(`[data-timestamp="${data.messageId}"]`);
+                    const messageToDelete = document.querySelector(`[data-message-id="${data.messageId}"]`);
                     if (messageToDelete) {
                         messageToDelete.remove();
                     }
                     break;
                 case 'edit':
-                    const messageToEdit = document.querySelector(`[data-timestamp="${data.messageId}"]`);
+                    const messageToEdit = document.querySelector(`[data-message-id="${data.messageId}"]`);
                     if (messageToEdit) {
                         const contentDiv = messageToEdit.querySelector('div:not(.sender)');
                         if (contentDiv) {
@@ -191,8 +214,32 @@ function connect() {
                         }
                     }
                     break;
-                case 'user-list-update':
-                    updateUserList(data.userList);
+                case 'reactions':
+                    data.messages.forEach(state => renderReactions(state.messageId, state.reactions));
+                    break;
+                case 'message-state':
+                    data.messages.forEach(applyMessageState);
+                    break;
+                case 'search-results':
+                    showSearchResults(data);
+                    break;
+                case 'resume-token':
+                    resumeToken = data.token;
+                    sessionStorage.setItem('resumeToken', resumeToken);
+                    break;
+                case 'presence-snapshot':
+                    presence.clear();
+                    data.users.forEach(user => presence.set(user.username, user.avatarId));
+                    presenceVersion = data.version;
+                    presenceSyncPending = false;
+                    renderPresence();
+                    break;
+                case 'presence-delta':
+                    applyPresenceDelta(data);
+                    break;
+                case 'avatar':
+                    avatarCache.set(data.avatarId, data.avatar);
+                    renderPresence();
                     break;
                 case 'call-incoming':
                     handleIncomingCall(data.callId, data.initiator);
@@ -210,8 +257,13 @@ function connect() {
                     handleCallRejected(data.callId, data.username);
                     break;
                 case 'call-signal':
+                    peerSessions[data.username] = data.session;
                     handleCallSignal(data.callId, data.username, data.signal);
                     break;
+                case 'call-signal-batch':
+                    peerSessions[data.username] = data.session;
+                    data.signals.forEach(signal => handleCallSignal(data.callId, data.username, signal));
+                    break;
             }
         } catch (e) {
             console.error('Error parsing message:', e);
@@ -318,12 +370,18 @@ function sendMessage() {
     if (!message) {
         return;
     }
+
+    if (message.startsWith('/search ')) {
+        searchMessages(message.substring(8));
+        messageInput.value = '';
+        return;
+    }
     
-    ws.send(JSON.stringify({
+    sendEvent({
         type: 'message',
         username: username,
         message: message
-    }));
+    });
     
     messageInput.value = '';
 }
@@ -334,23 +392,31 @@ function sendFile(file) {
         return;
     }
     
-    // In a real app, you would upload the file to a server and get a URL
-    // For simplicity, we'll create a temporary URL and simulate sending it
-    const reader = new FileReader();
-    reader.onload = function(event) {
-        const isImage = file.type.startsWith('image/');
-        const fileUrl = URL.createObjectURL(file);
-        
-        ws.send(JSON.stringify({
-            type: 'file',
-            username: username,
-            fileUrl: fileUrl,
-            isImage: isImage
-        }));
-        
-        addMessage(fileUrl, 'sent', username, true, isImage);
-    };
-    reader.readAsDataURL(file);
+    // Upload the file to the blob store; the chat message only carries its link
+    fetch(`${BLOB_SERVER}/blobs`, {
+        method: 'POST',
+        headers: { 'Content-Type': file.type || 'application/octet-stream' },
+        body: file
+    })
+        .then(response => {
+            if (!response.ok) {
+                return response.text().then(text => { throw new Error(text || response.statusText); });
+            }
+            return response.json();
+        })
+        .then(blob => {
+            const isImage = file.type.startsWith('image/');
+            const fileUrl = BLOB_SERVER + blob.url;
+            
+            sendEvent({
+                type: 'file',
+                username: username,
+                fileUrl: fileUrl,
+                isImage: isImage
+            });
+            // Shown when the server echoes it back with its id, like a text message
+        })
+        .catch(error => addMessage(`Failed to upload ${file.name}: ${error.message}`, 'system'));
 }
 
 function shareLocation() {
@@ -369,12 +435,12 @@ function shareLocation() {
             const latitude = position.coords.latitude;
             const longitude = position.coords.longitude;
             
-            ws.send(JSON.stringify({
+            sendEvent({
                 type: 'location',
                 username: username,
                 latitude: latitude,
                 longitude: longitude
-            }));
+            });
             
             addLocation(username, latitude, longitude, true);
         },
@@ -411,10 +477,10 @@ function addLocation(sender, latitude, longitude, isSender = false) {
 
 function endChat() {
     if (ws && ws.readyState === WebSocket.OPEN) {
-        ws.send(JSON.stringify({
+        sendEvent({
             type: 'leave',
             username: username
-        }));
+        });
         ws.close();
     }
 }
@@ -438,11 +504,11 @@ function initiateCall() {
     
     currentCallId = Date.now().toString();
     
-    ws.send(JSON.stringify({
+    sendEvent({
         type: 'call-initiate',
         username: username,
         callId: currentCallId
-    }));
+    });
     
     setupLocalMedia()
         .then(() => {
@@ -514,14 +580,123 @@ function startCallTimer() {
     }, 1000);
 }
 
+function applyPresenceDelta(delta) {
+    if (delta.version <= presenceVersion) return;
+    if (delta.version > presenceVersion + 1) {
+        // Missed a delta, replaced by a later one while we were slow to read; the roster stays
+        // as it is until a snapshot brings it up to date
+        if (!presenceSyncPending) {
+            presenceSyncPending = true;
+            sendEvent({ type: 'presence-sync', username: username });
+        }
+        return;
+    }
+    delta.removed.forEach(name => presence.delete(name));
+    delta.added.forEach(user => presence.set(user.username, user.avatarId));
+    presenceVersion = delta.version;
+    renderPresence();
+}
+
+// Avatars arrive by id; each one is fetched once and cached for the whole session
+function renderPresence() {
+    const users = [];
+    presence.forEach((avatarId, name) => {
+        if (avatarId && !avatarCache.has(avatarId) && !requestedAvatars.has(avatarId)) {
+            requestedAvatars.add(avatarId);
+            sendEvent({ type: 'avatar', username: username, avatarId: avatarId });
+        }
+        users.push({ username: name, avatar: avatarCache.get(avatarId) || '' });
+    });
+    updateUserList(users);
+}
+
+// Sends an event to the server, addressed to the room this page is in
+function sendEvent(event) {
+    event.room = currentRoom;
+    ws.send(JSON.stringify(event));
+}
+
+// Brings a shown message up to date with the server's view of it, e.g. after history replay
+function applyMessageState(state) {
+    const messageElement = document.querySelector(`[data-message-id="${state.messageId}"]`);
+    if (!messageElement) return;
+    if (state.deleted) {
+        messageElement.remove();
+        return;
+    }
+    const contentDiv = messageElement.querySelector('div:not(.sender):not(.reactions)');
+    if (state.edited && contentDiv) {
+        contentDiv.textContent = state.message;
+    }
+    renderReactions(state.messageId, state.reactions);
+}
+
+// Reaction counts arrive as totals per emoji, so each update replaces the previous one
+function renderReactions(messageId, reactions) {
+    const messageElement = document.querySelector(`[data-message-id="${messageId}"]`);
+    if (!messageElement) return;
+    let reactionsDiv = messageElement.querySelector('.reactions');
+    if (!reactionsDiv) {
+        reactionsDiv = document.createElement('div');
+        reactionsDiv.className = 'reactions';
+        messageElement.appendChild(reactionsDiv);
+    }
+    reactionsDiv.textContent = Object.entries(reactions)
+        .map(([emoji, count]) => `${emoji} ${count}`)
+        .join('  ');
+}
+
+// Typing "/search <words>" asks for the room's messages containing every word, newest first;
+// "/search more" fetches the next page of the last search
+let lastSearch = null;
+
+function searchMessages(query) {
+    query = query.trim();
+    if (query === 'more') {
+        if (!lastSearch || lastSearch.next === undefined) {
+            addMessage('No more results', 'system');
+            return;
+        }
+        sendEvent({ type: 'search', username: username, query: lastSearch.query, before: lastSearch.next });
+        return;
+    }
+    if (!query) return;
+    sendEvent({ type: 'search', username: username, query: query });
+}
+
+function showSearchResults(data) {
+    lastSearch = data;
+    if (data.results.length === 0) {
+        addMessage(`No messages found for "${data.query}"`, 'system');
+        return;
+    }
+    addMessage(`Messages matching "${data.query}":`, 'system');
+    data.results.forEach(result => addMessage(`${result.username}: ${result.message}`, 'system'));
+    if (data.next !== undefined) {
+        addMessage('Type /search more for older results', 'system');
+    }
+}
+
+// Remembers the newest message id so a reconnect only replays what was missed;
+// returns false for messages already shown (replay can overlap live traffic)
+function trackMessageId(messageId) {
+    if (messageId === undefined || messageId === null) return true;
+    if (seenMessageIds.has(messageId)) return false;
+    seenMessageIds.add(messageId);
+    if (lastMessageId === null || messageId > lastMessageId) {
+        lastMessageId = messageId;
+    }
+    return true;
+}
+
 function handleIncomingCall(callId, initiator) {
     if (currentCallId) {
         // Already in a call, auto-reject
-        ws.send(JSON.stringify({
+        sendEvent({
             type: 'call-reject',
             username: username,
             callId: callId
-        }));
+        });
         return;
     }
     
@@ -541,11 +716,11 @@ function acceptCall() {
             showCallUI();
             startCallTimer();
             
-            ws.send(JSON.stringify({
+            sendEvent({
                 type: 'call-accept',
                 username: username,
                 callId: currentCallId
-            }));
+            });
             
             addMessage(`You joined ${document.getElementById('incomingCallUser').textContent}'s call`, 'system');
         })
@@ -559,11 +734,11 @@ function acceptCall() {
 function declineCall() {
     document.getElementById('incomingCallModal').style.display = 'none';
     
-    ws.send(JSON.stringify({
+    sendEvent({
         type: 'call-reject',
         username: username,
         callId: currentCallId
-    }));
+    });
     
     currentCallId = null;
 }
@@ -583,16 +758,17 @@ function handleUserJoinedCall(callId, user, participants) {
         peerConnection.createOffer()
             .then(offer => peerConnection.setLocalDescription(offer))
             .then(() => {
-                ws.send(JSON.stringify({
+                sendEvent({
                     type: 'call-signal',
                     username: username,
                     target: user,
+                    targetSession: peerSessions[user],
                     callId: currentCallId,
                     signal: {
                         type: 'offer',
                         sdp: peerConnection.localDescription
                     }
-                }));
+                });
             })
             .catch(error => console.error('Error creating offer:', error));
     }
@@ -613,6 +789,7 @@ function handleUserLeftCall(callId, user, participants) {
     if (peerConnections[user]) {
         peerConnections[user].close();
         delete peerConnections[user];
+        delete peerSessions[user];
     }
 }
 
@@ -643,16 +820,17 @@ function handleCallSignal(callId, user, signal) {
             .then(() => peerConnection.createAnswer())
             .then(answer => peerConnection.setLocalDescription(answer))
             .then(() => {
-                ws.send(JSON.stringify({
+                sendEvent({
                     type: 'call-signal',
                     username: username,
                     target: user,
+                    targetSession: peerSessions[user],
                     callId: currentCallId,
                     signal: {
                         type: 'answer',
                         sdp: peerConnection.localDescription
                     }
-                }));
+                });
             })
             .catch(error => console.error('Error handling offer:', error));
     } 
@@ -684,16 +862,17 @@ function createPeerConnection(user) {
     // Handle ICE candidates
     peerConnection.onicecandidate = event => {
         if (event.candidate) {
-            ws.send(JSON.stringify({
+            sendEvent({
                 type: 'call-signal',
                 username: username,
                 target: user,
+                targetSession: peerSessions[user],
                 callId: currentCallId,
                 signal: {
                     type: 'candidate',
                     candidate: event.candidate
                 }
-            }));
+            });
         }
     };
     
@@ -708,11 +887,11 @@ function createPeerConnection(user) {
 function endCall() {
     if (!currentCallId) return;
     
-    ws.send(JSON.stringify({
+    sendEvent({
         type: 'call-end',
         username: username,
         callId: currentCallId
-    }));
+    });
     
     cleanupCall();
     addMessage('You ended the call', 'system');
@@ -728,6 +907,7 @@ function cleanupCall() {
     // Close all peer connections
     Object.values(peerConnections).forEach(pc => pc.close());
     peerConnections = {};
+    peerSessions = {};
     
     // Hide call UI
     hideCallUI();
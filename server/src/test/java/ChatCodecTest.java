@@ -0,0 +1,141 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class ChatCodecTest {
+    private final ChatCodec codec = new ChatCodec();
+
+    private static final OutboundEvent MESSAGE = w -> w.beginObject()
+            .field("type", "message")
+            .field("room", "general")
+            .field("username", "alice")
+            .field("message", "héllo \"world\" ✓")
+            .field("messageId", 1_700_000_000_123L)
+            .endObject();
+
+    @Test
+    void decodesJsonFromAClient() {
+        InboundEvent event = codec.decode("{\"type\":\"message\",\"username\":\"bob\",\"message\":\"hi\"}");
+
+        InboundEvent.ChatMessage message = assertInstanceOf(InboundEvent.ChatMessage.class, event);
+        assertEquals("bob", message.getUsername());
+        assertEquals("hi", message.getMessage());
+        assertEquals(Room.DEFAULT, message.getRoom());
+        assertNull(message.getMessageId());
+    }
+
+    @Test
+    void roundTripsAMessageThroughJson() {
+        assertMessage(codec.decode(codec.toJson(MESSAGE)));
+    }
+
+    @Test
+    void roundTripsAMessageThroughBinary() {
+        assertMessage(codec.decode(codec.toBinary(MESSAGE)));
+    }
+
+    @Test
+    void transcodesJsonToTheSameBinary() {
+        ByteBuffer json = ByteBuffer.wrap(codec.toJson(MESSAGE).getBytes(StandardCharsets.UTF_8));
+
+        ByteBuffer transcoded = codec.transcodeToBinary(json).getPayloadData();
+
+        ByteBuffer binary = codec.toBinary(MESSAGE);
+        assertEquals(binary, transcoded);
+        assertMessage(codec.decode(transcoded));
+    }
+
+    @Test
+    void roundTripsEveryMessageUpdate() {
+        for (boolean binary : new boolean[] {false, true}) {
+            InboundEvent.Edit edit = assertInstanceOf(InboundEvent.Edit.class, roundTrip(binary, w -> w.beginObject()
+                    .field("type", "edit").field("username", "alice").field("messageId", 42L)
+                    .field("newMessage", "fixed").endObject()));
+            assertEquals(42L, edit.getMessageId());
+            assertEquals("fixed", edit.getNewMessage());
+
+            InboundEvent.Delete delete = assertInstanceOf(InboundEvent.Delete.class, roundTrip(binary,
+                    w -> w.beginObject().field("type", "delete").field("messageId", 43L).endObject()));
+            assertEquals(43L, delete.getMessageId());
+
+            InboundEvent.Reaction reaction = assertInstanceOf(InboundEvent.Reaction.class, roundTrip(binary,
+                    w -> w.beginObject().field("type", "reaction").field("messageId", 44L).field("emoji", "👍")
+                            .endObject()));
+            assertEquals(44L, reaction.getMessageId());
+            assertEquals("👍", reaction.getEmoji());
+
+            InboundEvent.MessageStateRequest request = assertInstanceOf(InboundEvent.MessageStateRequest.class,
+                    roundTrip(binary, w -> {
+                        w.beginObject().field("type", "message-state").name("messageIds").beginArray();
+                        w.value(1L).value(Long.MAX_VALUE);
+                        w.endArray().endObject();
+                    }));
+            assertEquals(List.of(1L, Long.MAX_VALUE), request.getMessageIds());
+        }
+    }
+
+    @Test
+    void roundTripsFilesAndLocations() {
+        for (boolean binary : new boolean[] {false, true}) {
+            InboundEvent.FileMessage file = assertInstanceOf(InboundEvent.FileMessage.class, roundTrip(binary,
+                    w -> w.beginObject().field("type", "file").field("fileUrl", "/blobs/abc")
+                            .field("isImage", true).field("messageId", 7L).endObject()));
+            assertEquals("/blobs/abc", file.getFileUrl());
+            assertEquals(7L, file.getMessageId());
+
+            InboundEvent.Location location = assertInstanceOf(InboundEvent.Location.class, roundTrip(binary,
+                    w -> w.beginObject().field("type", "location").field("latitude", 52.37)
+                            .field("longitude", -4.89).endObject()));
+            assertEquals(52.37, location.getLatitude());
+            assertEquals(-4.89, location.getLongitude());
+        }
+    }
+
+    @Test
+    void rejectsAFrameWithoutItsRequiredFields() {
+        assertThrows(IllegalArgumentException.class, () -> codec.decode("{\"type\":\"message\"}"));
+        assertThrows(IllegalArgumentException.class, () -> codec.decode("{\"type\":\"edit\",\"messageId\":1}"));
+        assertThrows(IllegalArgumentException.class, () -> codec.decode("{\"message\":\"no type\"}"));
+        assertThrows(IllegalArgumentException.class,
+                () -> codec.decode(codec.toBinary(w -> w.beginObject().field("type", "delete").endObject())));
+    }
+
+    @Test
+    void peeksTheTypeWithoutConsumingTheFrame() {
+        ByteBuffer binary = codec.toBinary(MESSAGE);
+
+        assertEquals("message", codec.peekType(binary));
+        assertEquals("message", codec.peekType(codec.toJson(MESSAGE)));
+        assertNull(codec.peekType("not json"));
+        assertMessage(codec.decode(binary));
+    }
+
+    @Test
+    void readsTopLevelFieldsOfALoggedRecord() {
+        ByteBuffer json = ByteBuffer.wrap(codec.toJson(MESSAGE).getBytes(StandardCharsets.UTF_8));
+
+        assertArrayEquals(new String[] {"general", "alice", null},
+                codec.readFields(json, "room", "username", "missing"));
+        assertEquals("message", codec.readField(json, "type"));
+        assertEquals(0, json.position());
+    }
+
+    private InboundEvent roundTrip(boolean binary, OutboundEvent event) {
+        return binary ? codec.decode(codec.toBinary(event)) : codec.decode(codec.toJson(event));
+    }
+
+    private static void assertMessage(InboundEvent event) {
+        InboundEvent.ChatMessage message = assertInstanceOf(InboundEvent.ChatMessage.class, event);
+        assertEquals("general", message.getRoom());
+        assertEquals("alice", message.getUsername());
+        assertEquals("héllo \"world\" ✓", message.getMessage());
+        assertEquals(1_700_000_000_123L, message.getMessageId());
+    }
+}
@@ -0,0 +1,115 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class LongIntMapTest {
+
+    @Test
+    void putsGetsAndReplaces() {
+        LongIntMap map = new LongIntMap(4);
+        map.put(1_700_000_000_000L, 3);
+        map.put(-5, 0);
+        map.put(1_700_000_000_000L, 7);
+
+        assertEquals(7, map.get(1_700_000_000_000L));
+        assertEquals(0, map.get(-5));
+        assertEquals(-1, map.get(42));
+        assertTrue(map.containsKey(-5));
+        assertFalse(map.containsKey(42));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    void rejectsNegativeValues() {
+        assertThrows(IllegalArgumentException.class, () -> new LongIntMap(4).put(1, -1));
+    }
+
+    @Test
+    void growsPastItsExpectedSize() {
+        LongIntMap map = new LongIntMap(2);
+        for (int i = 0; i < 10_000; i++) {
+            map.put(i * 1_000L, i);
+        }
+
+        assertEquals(10_000, map.size());
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals(i, map.get(i * 1_000L));
+        }
+    }
+
+    @Test
+    void keepsCollidingKeysReachableAfterRemovals() {
+        // Consecutive ids land in neighbouring slots, so removals shift whole probe runs back
+        LongIntMap map = new LongIntMap(64);
+        for (int i = 0; i < 40; i++) {
+            map.put(i, i);
+        }
+        for (int i = 0; i < 40; i += 3) {
+            assertEquals(i, map.remove(i));
+        }
+
+        assertEquals(-1, map.remove(0));
+        for (int i = 0; i < 40; i++) {
+            assertEquals(i % 3 == 0 ? -1 : i, map.get(i));
+        }
+    }
+
+    @Test
+    void matchesAHashMapUnderRandomUse() {
+        Random random = new Random(7);
+        LongIntMap map = new LongIntMap(16);
+        Map<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 200_000; i++) {
+            long key = random.nextInt(2_000);
+            switch (random.nextInt(3)) {
+                case 0:
+                    int value = random.nextInt(1_000_000);
+                    map.put(key, value);
+                    expected.put(key, value);
+                    break;
+                case 1:
+                    assertEquals(expected.getOrDefault(key, -1).intValue(), map.remove(key));
+                    expected.remove(key);
+                    break;
+                default:
+                    assertEquals(expected.getOrDefault(key, -1).intValue(), map.get(key));
+                    break;
+            }
+            assertEquals(expected.size(), map.size());
+        }
+    }
+
+    @Test
+    void removesValuesBelowAThreshold() {
+        LongIntMap map = new LongIntMap(16);
+        for (int i = 0; i < 100; i++) {
+            map.put(1_000 + i, i);
+        }
+
+        assertEquals(60, map.removeValuesBelow(60));
+
+        assertEquals(40, map.size());
+        assertEquals(-1, map.get(1_059));
+        assertEquals(60, map.get(1_060));
+        assertEquals(0, map.removeValuesBelow(0));
+    }
+
+    @Test
+    void clears() {
+        LongIntMap map = new LongIntMap(4);
+        map.put(1, 1);
+        map.put(2, 2);
+        map.clear();
+
+        assertEquals(0, map.size());
+        assertEquals(-1, map.get(1));
+        map.put(1, 5);
+        assertEquals(5, map.get(1));
+    }
+}
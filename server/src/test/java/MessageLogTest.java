@@ -0,0 +1,192 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MessageLogTest {
+    // Small enough that a few dozen records fill a segment
+    private static final int SEGMENT_BYTES = 4096;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void readsBackWhatWasAppended() throws IOException {
+        try (MessageLog log = new MessageLog(dir, SEGMENT_BYTES, 8)) {
+            assertEquals(0, log.append(100, payload("first")));
+            assertEquals(1, log.append(101, payload("second")));
+
+            List<String> records = readAll(log, 0);
+
+            assertEquals(List.of("0:100:first", "1:101:second"), records);
+            assertEquals(2, log.nextOffset());
+            assertEquals(101, log.highestMessageId());
+        }
+    }
+
+    @Test
+    void rollsSegmentsAndReadsAcrossThem() throws IOException {
+        try (MessageLog log = new MessageLog(dir, SEGMENT_BYTES, 8)) {
+            appendMessages(log, 200);
+
+            assertTrue(segmentFiles().size() > 1, "the log rolled");
+            List<String> records = readAll(log, 0);
+            assertEquals(200, records.size());
+            assertEquals("199:1199:message 199", records.get(199));
+        }
+    }
+
+    @Test
+    void deletesTheOldestSegmentsBeyondTheLimit() throws IOException {
+        try (MessageLog log = new MessageLog(dir, SEGMENT_BYTES, 2)) {
+            appendMessages(log, 500);
+
+            assertEquals(2, segmentFiles().size());
+            assertTrue(log.firstOffset() > 0);
+            List<String> records = readAll(log, 0);
+            assertEquals(log.nextOffset() - log.firstOffset(), records.size());
+            assertTrue(records.get(0).startsWith(log.firstOffset() + ":"), "reading starts at the oldest record");
+        }
+    }
+
+    @Test
+    void findsWhereToResumeAfterAMessage() throws IOException {
+        try (MessageLog log = new MessageLog(dir, SEGMENT_BYTES, 8)) {
+            appendMessages(log, 200);
+
+            assertEquals(51, log.offsetAfter(1050));
+            assertEquals(0, log.offsetAfter(1));
+            assertEquals(200, log.offsetAfter(1199));
+            assertEquals(200, log.offsetAfter(Long.MAX_VALUE));
+        }
+    }
+
+    @Test
+    void updatesDoNotMoveTheResumeKey() throws IOException {
+        try (MessageLog log = new MessageLog(dir, SEGMENT_BYTES, 8)) {
+            log.append(1000, payload("message"));
+            long edit = log.appendUpdate(Long.MAX_VALUE, payload("edit naming a bogus id"));
+            log.append(1001, payload("next message"));
+
+            assertEquals(1001, log.highestMessageId());
+            assertEquals(edit, log.offsetAfter(1000));
+            assertEquals(edit + 2, log.offsetAfter(1001));
+        }
+        try (MessageLog log = new MessageLog(dir, SEGMENT_BYTES, 8)) {
+            assertEquals(1001, log.highestMessageId());
+            assertEquals(1, log.offsetAfter(1000));
+        }
+    }
+
+    @Test
+    void recoversEverySegmentOnOpen() throws IOException {
+        try (MessageLog log = new MessageLog(dir, SEGMENT_BYTES, 8)) {
+            appendMessages(log, 200);
+        }
+        try (MessageLog log = new MessageLog(dir, SEGMENT_BYTES, 8)) {
+            assertEquals(200, log.nextOffset());
+            assertEquals(1199, log.highestMessageId());
+            assertEquals(51, log.offsetAfter(1050));
+            assertEquals(200, readAll(log, 0).size());
+
+            assertEquals(200, log.append(1200, payload("after recovery")));
+            assertEquals("200:1200:after recovery", readAll(log, 200).get(0));
+        }
+    }
+
+    @Test
+    void cutsTheNewestSegmentAtTheFirstBadRecord() throws IOException {
+        try (MessageLog log = new MessageLog(dir, SEGMENT_BYTES, 8)) {
+            appendMessages(log, 3);
+        }
+        Path newest = segmentFiles().get(0);
+        // The third record's checksum no longer matches
+        overwrite(newest, recordEnd(newest, 2) + 4, ByteBuffer.allocate(4).putInt(0xBAD).flip());
+
+        try (MessageLog log = new MessageLog(dir, SEGMENT_BYTES, 8)) {
+            assertEquals(2, log.nextOffset());
+            assertEquals(List.of("0:1000:message 0", "1:1001:message 1"), readAll(log, 0));
+            assertEquals(2, log.append(2000, payload("rewritten")));
+        }
+    }
+
+    @Test
+    void skipsTheDamagedPartOfASealedSegment() throws IOException {
+        try (MessageLog log = new MessageLog(dir, SEGMENT_BYTES, 8)) {
+            appendMessages(log, 200);
+        }
+        Path sealed = segmentFiles().get(0);
+        // Corrupts the payload of the sixth record
+        overwrite(sealed, recordEnd(sealed, 5) + 24, ByteBuffer.wrap(new byte[] {'X'}));
+
+        try (MessageLog log = new MessageLog(dir, SEGMENT_BYTES, 8)) {
+            List<String> records = new ArrayList<>();
+            int covered = log.read(0, 1000, (offset, id, payload) -> records.add(offset + ":" + id));
+
+            assertEquals(200, covered);
+            assertEquals(200, log.nextOffset());
+            assertEquals("4:1004", records.get(4));
+            int sealedCount = (int) baseOffset(segmentFiles().get(1));
+            assertEquals(200 - (sealedCount - 5), records.size());
+            assertEquals(sealedCount + ":" + (1000 + sealedCount), records.get(5));
+            assertEquals(51, log.offsetAfter(1050));
+        }
+    }
+
+    private static void appendMessages(MessageLog log, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            log.append(1000 + i, payload("message " + i));
+        }
+    }
+
+    private static List<String> readAll(MessageLog log, long from) {
+        List<String> records = new ArrayList<>();
+        log.read(from, Integer.MAX_VALUE, (offset, id, payload) ->
+                records.add(offset + ":" + id + ":" + StandardCharsets.UTF_8.decode(payload)));
+        return records;
+    }
+
+    private static ByteBuffer payload(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(file -> file.toString().endsWith(".log")).sorted().toList();
+        }
+    }
+
+    private static long baseOffset(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - ".log".length()));
+    }
+
+    /**
+     * File position after the first {@code records} records of a segment.
+     */
+    private static int recordEnd(Path segment, int records) throws IOException {
+        ByteBuffer log = ByteBuffer.wrap(Files.readAllBytes(segment));
+        int position = 0;
+        for (int i = 0; i < records; i++) {
+            position += 24 + (log.getInt(position) & 0x7fff_ffff);
+        }
+        return position;
+    }
+
+    private static void overwrite(Path file, int position, ByteBuffer bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(bytes, position);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.WebSocketListener;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.framing.Framedata;
+import org.junit.jupiter.api.Test;
+
+class OutboundQueueTest {
+    private static final OutboundQueue.Limits LIMITS = new OutboundQueue.Limits(4, 2, 5, 60_000);
+
+    private final Set<OutboundQueue> backlog = ConcurrentHashMap.newKeySet();
+    private final FakeConnection conn = new FakeConnection();
+
+    @Test
+    void writesStraightThroughBelowTheHighWatermark() {
+        OutboundQueue queue = new OutboundQueue(conn, LIMITS, backlog);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(frame("m" + i), OutboundQueue.Delivery.RELIABLE, null));
+        }
+
+        assertEquals(List.of("m0", "m1", "m2", "m3"), conn.sent());
+        assertTrue(backlog.isEmpty());
+        assertEquals(4, queue.depth());
+    }
+
+    @Test
+    void holdsReliableFramesInOrderUntilTheLowWatermark() {
+        OutboundQueue queue = new OutboundQueue(conn, LIMITS, backlog);
+        fillWriteQueue(queue);
+        queue.offer(frame("a"), OutboundQueue.Delivery.RELIABLE, null);
+        queue.offer(frame("b"), OutboundQueue.Delivery.RELIABLE, null);
+
+        assertEquals(4, conn.sent().size());
+        assertTrue(backlog.contains(queue));
+
+        // Between the watermarks nothing moves yet
+        conn.outQueue.poll();
+        queue.drain();
+        assertEquals(4, conn.sent().size());
+
+        conn.outQueue.poll();
+        queue.drain();
+        assertEquals(List.of("a", "b"), conn.sent().subList(4, 6));
+        // Back at the high watermark, so still congested until the write queue drains
+        assertTrue(backlog.contains(queue));
+
+        conn.outQueue.clear();
+        queue.drain();
+        assertTrue(backlog.isEmpty());
+        assertTrue(queue.offer(frame("c"), OutboundQueue.Delivery.RELIABLE, null));
+        assertEquals("c", conn.sent().get(6));
+    }
+
+    @Test
+    void keepsOnlyTheLatestCoalescedFrameInItsPlace() {
+        OutboundQueue queue = new OutboundQueue(conn, LIMITS, backlog);
+        fillWriteQueue(queue);
+        queue.offer(frame("presence v1"), OutboundQueue.Delivery.COALESCE, "presence:lobby");
+        queue.offer(frame("message"), OutboundQueue.Delivery.RELIABLE, null);
+        queue.offer(frame("presence v2"), OutboundQueue.Delivery.COALESCE, "presence:lobby");
+
+        conn.outQueue.clear();
+        queue.drain();
+
+        assertEquals(List.of("presence v2", "message"), conn.sent().subList(4, 6));
+        assertEquals(1, queue.getDropped());
+    }
+
+    @Test
+    void dropsDroppableFramesWhileCongested() {
+        OutboundQueue queue = new OutboundQueue(conn, LIMITS, backlog);
+        fillWriteQueue(queue);
+
+        assertFalse(queue.offer(frame("typing"), OutboundQueue.Delivery.DROPPABLE, null));
+
+        conn.outQueue.clear();
+        queue.drain();
+        assertEquals(4, conn.sent().size());
+        assertEquals(1, queue.getDropped());
+    }
+
+    @Test
+    void closesASlowConsumerPastTheQueueLimit() {
+        OutboundQueue queue = new OutboundQueue(conn, LIMITS, backlog);
+        fillWriteQueue(queue);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.offer(frame("held " + i), OutboundQueue.Delivery.RELIABLE, null));
+        }
+
+        assertFalse(queue.offer(frame("one too many"), OutboundQueue.Delivery.RELIABLE, null));
+
+        assertEquals(OutboundQueue.SLOW_CONSUMER, conn.closeCode);
+        assertTrue(backlog.isEmpty());
+        assertFalse(queue.offer(frame("after close"), OutboundQueue.Delivery.RELIABLE, null));
+        conn.outQueue.clear();
+        queue.drain();
+        assertEquals(4, conn.sent().size());
+    }
+
+    @Test
+    void closesAConnectionCongestedForTooLong() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(conn, new OutboundQueue.Limits(4, 2, 100, 0), backlog);
+        fillWriteQueue(queue);
+        queue.offer(frame("held"), OutboundQueue.Delivery.RELIABLE, null);
+        Thread.sleep(5);
+
+        queue.drain();
+
+        assertEquals(OutboundQueue.SLOW_CONSUMER, conn.closeCode);
+        assertTrue(backlog.isEmpty());
+    }
+
+    private void fillWriteQueue(OutboundQueue queue) {
+        for (int i = 0; i < LIMITS.highWatermark; i++) {
+            queue.offer(frame("fill " + i), OutboundQueue.Delivery.RELIABLE, null);
+        }
+    }
+
+    private static Framedata frame(String text) {
+        return FanOut.textFrame(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Connection whose write queue only empties when the test says so.
+     */
+    private static class FakeConnection extends WebSocketImpl {
+        final List<Framedata> frames = new ArrayList<>();
+        int closeCode;
+
+        FakeConnection() {
+            super((WebSocketListener) Proxy.newProxyInstance(WebSocketListener.class.getClassLoader(),
+                    new Class<?>[] {WebSocketListener.class}, (proxy, method, args) -> null), new Draft_6455());
+        }
+
+        @Override
+        public void sendFrame(Framedata frame) {
+            frames.add(frame);
+            outQueue.add(frame.getPayloadData());
+        }
+
+        @Override
+        public void closeConnection(int code, String message) {
+            closeCode = code;
+        }
+
+        List<String> sent() {
+            List<String> texts = new ArrayList<>();
+            for (Framedata frame : frames) {
+                texts.add(StandardCharsets.UTF_8.decode(frame.getPayloadData()).toString());
+            }
+            return texts;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class RateLimiterTest {
+    // Slow enough that no token comes back while a test runs
+    private static final RateLimiter.Limit LIMIT = new RateLimiter.Limit(0.001, 4, RateLimiter.Action.REJECT);
+
+    @Test
+    void rejectsOverTheSessionLimit() {
+        RateLimiter limiter = limiter(10);
+        RateLimiter.SessionLimits session = limiter.newSession();
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(RateLimiter.Decision.ACCEPT, limiter.admit(session, "alice", "message", "frame"));
+        }
+        assertEquals(RateLimiter.Decision.REJECT, limiter.admit(session, "alice", "message", "frame"));
+    }
+
+    @Test
+    void sharesTheUserLimitBetweenSessions() {
+        RateLimiter limiter = limiter(1.5);
+        RateLimiter.SessionLimits first = limiter.newSession();
+        RateLimiter.SessionLimits second = limiter.newSession();
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(RateLimiter.Decision.ACCEPT, limiter.admit(first, "alice", "message", "frame"));
+        }
+        for (int i = 0; i < 2; i++) {
+            assertEquals(RateLimiter.Decision.ACCEPT, limiter.admit(second, "alice", "message", "frame"));
+        }
+        assertEquals(RateLimiter.Decision.REJECT, limiter.admit(second, "alice", "message", "frame"));
+    }
+
+    @Test
+    void keepsTheSessionTokenWhenTheUserLimitRefuses() {
+        RateLimiter limiter = limiter(1);
+        RateLimiter.SessionLimits busy = limiter.newSession();
+        RateLimiter.SessionLimits idle = limiter.newSession();
+        for (int i = 0; i < 4; i++) {
+            limiter.admit(busy, "alice", "message", "frame");
+        }
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(RateLimiter.Decision.REJECT, limiter.admit(idle, "alice", "message", "frame"));
+        }
+        limiter.forget("alice");
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(RateLimiter.Decision.ACCEPT, limiter.admit(idle, "alice", "message", "frame"));
+        }
+    }
+
+    private static RateLimiter limiter(double userFactor) {
+        return new RateLimiter(true, Map.of("default", LIMIT), userFactor,
+                new RateLimiter.Limit(1, 100, RateLimiter.Action.DROP));
+    }
+}
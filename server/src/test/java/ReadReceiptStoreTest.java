@@ -0,0 +1,119 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class ReadReceiptStoreTest {
+    private static final long HOUR = 3_600_000;
+
+    private final UserIds userIds = new UserIds();
+
+    @Test
+    void recordsEachReaderOnce() {
+        ReadReceiptStore store = new ReadReceiptStore(userIds, 8, HOUR);
+
+        assertTrue(store.markRead(1, "carol"));
+        assertTrue(store.markRead(1, "alice"));
+        assertFalse(store.markRead(1, "carol"));
+        assertTrue(store.markRead(1, "bob"));
+
+        assertEquals(3, store.getReaders(1).size());
+        assertTrue(store.getReaders(1).containsAll(List.of("alice", "bob", "carol")));
+        assertEquals(List.of(), store.getReaders(2));
+    }
+
+    @Test
+    void evictsTheOldestMessageWhenTheRingIsFull() {
+        ReadReceiptStore store = new ReadReceiptStore(userIds, 3, HOUR);
+        for (long id = 1; id <= 5; id++) {
+            store.markRead(id, "alice");
+        }
+
+        assertEquals(3, store.size());
+        assertEquals(List.of(), store.getReaders(1));
+        assertEquals(List.of(), store.getReaders(2));
+        assertEquals(List.of("alice"), store.getReaders(5));
+        assertEquals(List.of(3L, 4L, 5L), messages(store));
+    }
+
+    @Test
+    void reusesTheSlotsOfRemovedMessages() {
+        ReadReceiptStore store = new ReadReceiptStore(userIds, 3, HOUR);
+        store.markRead(1, "alice");
+        store.markRead(2, "alice");
+        store.remove(1);
+        store.markRead(3, "bob");
+        store.markRead(4, "bob");
+
+        assertEquals(List.of(), store.getReaders(1));
+        assertEquals(List.of("alice"), store.getReaders(2));
+        assertEquals(List.of("bob"), store.getReaders(4));
+        assertEquals(List.of(2L, 3L, 4L), messages(store));
+    }
+
+    @Test
+    void drainsNewReadersInBatches() {
+        ReadReceiptStore store = new ReadReceiptStore(userIds, 8, HOUR);
+        store.markRead(1, "alice");
+        store.markRead(2, "alice");
+        store.markRead(1, "bob");
+        store.markRead(1, "bob");
+        store.markRead(3, "carol");
+        store.remove(3);
+
+        Map<Long, List<String>> batch = store.drainPending();
+
+        assertEquals(Map.of(1L, List.of("alice", "bob"), 2L, List.of("alice")), batch);
+        assertEquals(List.of(1L, 2L), new ArrayList<>(batch.keySet()));
+        assertEquals(Map.of(), store.drainPending());
+        store.markRead(2, "bob");
+        assertEquals(Map.of(2L, List.of("bob")), store.drainPending());
+    }
+
+    @Test
+    void restoresWhatItPassesOn() {
+        ReadReceiptStore store = new ReadReceiptStore(userIds, 8, HOUR);
+        store.markRead(1, "alice");
+        store.markRead(2, "bob");
+        store.markRead(2, "alice");
+        store.drainPending();
+
+        ReadReceiptStore restored = new ReadReceiptStore(new UserIds(), 8, HOUR);
+        store.forEach(restored::restore);
+        long now = System.currentTimeMillis();
+        restored.restore(3, now - 2 * HOUR, List.of("carol"));
+
+        assertEquals(List.of(1L, 2L), messages(restored));
+        assertEquals(List.of("alice"), restored.getReaders(1));
+        assertTrue(restored.getReaders(2).containsAll(List.of("alice", "bob")));
+        assertEquals(Map.of(), restored.drainPending());
+        assertFalse(restored.markRead(2, "bob"));
+    }
+
+    @Test
+    void releasesReaderIdsOnceNothingRefersToThem() {
+        ReadReceiptStore store = new ReadReceiptStore(userIds, 2, HOUR);
+        for (int i = 0; i < 100; i++) {
+            store.markRead(i, "user" + i);
+        }
+        assertEquals(100, userIds.size(), "every reader is pending");
+
+        store.drainPending();
+        assertEquals(2, userIds.size());
+        store.remove(98);
+        store.remove(99);
+        assertEquals(0, userIds.size());
+        store.markRead(100, "alice");
+        assertEquals(List.of("alice"), store.getReaders(100));
+    }
+
+    private static List<Long> messages(ReadReceiptStore store) {
+        List<Long> ids = new ArrayList<>();
+        store.forEach((messageId, createdAt, readers) -> ids.add(messageId));
+        return ids;
+    }
+}
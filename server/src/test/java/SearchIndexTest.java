@@ -0,0 +1,167 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SearchIndexTest {
+    private static final int SEGMENT_DOCS = 4;
+
+    @TempDir
+    Path dir;
+
+    private long offset;
+
+    @Test
+    void findsMessagesContainingEveryWordNewestFirst() throws IOException {
+        try (SearchIndex index = new SearchIndex(dir, SEGMENT_DOCS, 16)) {
+            add(index, "general", 1, "The quick brown fox");
+            add(index, "general", 2, "a slow brown dog");
+            add(index, "general", 3, "QUICK, brown!");
+            add(index, "random", 4, "quick brown");
+
+            assertEquals(List.of(3L, 1L), ids(index, "general", "brown quick"));
+            assertEquals(List.of(3L, 2L, 1L), ids(index, "general", "brown"));
+            assertEquals(List.of(4L), ids(index, "random", "quick"));
+            assertEquals(List.of(), ids(index, "general", "cat"));
+            assertEquals(List.of(), ids(index, "general", "  !! "));
+        }
+    }
+
+    @Test
+    void mergesSealedSegmentsWithTheTail() throws IOException {
+        try (SearchIndex index = new SearchIndex(dir, SEGMENT_DOCS, 16)) {
+            for (int i = 1; i <= 10; i++) {
+                add(index, "general", i, "word " + (i % 2 == 0 ? "even" : "odd"));
+                index.sealIfFull();
+            }
+
+            assertEquals(List.of(10L, 8L, 6L, 4L, 2L), ids(index, "general", "even"));
+            assertEquals(10, ids(index, "general", "word").size());
+            assertEquals(10, index.size());
+        }
+    }
+
+    @Test
+    void pagesThroughResultsWithTheCursor() throws IOException {
+        try (SearchIndex index = new SearchIndex(dir, SEGMENT_DOCS, 16)) {
+            for (int i = 1; i <= 9; i++) {
+                add(index, "general", i, "page");
+                index.sealIfFull();
+            }
+
+            List<Long> seen = new ArrayList<>();
+            int before = Integer.MAX_VALUE;
+            int pages = 0;
+            while (before >= 0) {
+                SearchIndex.Page page = index.search("general", "page", before, 2);
+                page.getHits().forEach(hit -> seen.add(hit.getMessageId()));
+                before = page.getNext();
+                pages++;
+            }
+
+            assertEquals(List.of(9L, 8L, 7L, 6L, 5L, 4L, 3L, 2L, 1L), seen);
+            assertEquals(5, pages);
+        }
+    }
+
+    @Test
+    void showsOnlyTheLatestVersionOfAnEditedMessage() throws IOException {
+        try (SearchIndex index = new SearchIndex(dir, SEGMENT_DOCS, 16)) {
+            add(index, "general", 1, "meeting at noon");
+            add(index, "general", 2, "lunch at noon");
+            index.sealIfFull();
+            index.edit(offset++, "general", 1, "alice", "meeting at three");
+            index.sealIfFull();
+
+            assertEquals(List.of(2L), ids(index, "general", "noon"));
+            SearchIndex.Hit hit = index.search("general", "meeting", Integer.MAX_VALUE, 10).getHits().get(0);
+            assertEquals(1L, hit.getMessageId());
+            assertEquals("meeting at three", hit.getText());
+        }
+    }
+
+    @Test
+    void hidesDeletedMessages() throws IOException {
+        try (SearchIndex index = new SearchIndex(dir, SEGMENT_DOCS, 16)) {
+            for (int i = 1; i <= 5; i++) {
+                add(index, "general", i, "secret " + i);
+            }
+            index.sealIfFull();
+            index.delete(offset++, "general", 2, "alice");
+            index.delete(offset++, "general", 5, "alice");
+
+            assertEquals(List.of(4L, 3L, 1L), ids(index, "general", "secret"));
+        }
+    }
+
+    @Test
+    void keepsEditsAndDeletesAcrossARestart() throws IOException {
+        try (SearchIndex index = new SearchIndex(dir, SEGMENT_DOCS, 16)) {
+            for (int i = 1; i <= 6; i++) {
+                add(index, "general", i, "note " + i);
+                index.sealIfFull();
+            }
+            index.edit(offset++, "general", 1, "alice", "note rewritten");
+            index.delete(offset++, "general", 3, "alice");
+        }
+        try (SearchIndex index = new SearchIndex(dir, SEGMENT_DOCS, 16)) {
+            assertEquals(List.of(1L, 6L, 5L, 4L, 2L), ids(index, "general", "note"));
+            assertEquals(List.of(1L), ids(index, "general", "rewritten"));
+            assertEquals(offset - 1, index.getIndexedOffset());
+            assertEquals(8, index.size());
+        }
+    }
+
+    @Test
+    void skipsStrayFilesWhenItOpens() throws IOException {
+        try (SearchIndex index = new SearchIndex(dir, SEGMENT_DOCS, 16)) {
+            for (int i = 1; i <= 5; i++) {
+                add(index, "general", i, "note " + i);
+                index.sealIfFull();
+            }
+        }
+        for (String stray : List.of("old.seg", "0.seg.bak", "007.seg", "99999999999.seg")) {
+            Files.writeString(dir.resolve(stray), "not a segment");
+        }
+
+        try (SearchIndex index = new SearchIndex(dir, SEGMENT_DOCS, 16)) {
+            assertEquals(List.of(5L, 4L, 3L, 2L, 1L), ids(index, "general", "note"));
+        }
+        assertTrue(Files.exists(dir.resolve("old.seg")), "stray files are left alone");
+    }
+
+    @Test
+    void forgetsMessagesWhoseSegmentsWereDropped() throws IOException {
+        try (SearchIndex index = new SearchIndex(dir, SEGMENT_DOCS, 2)) {
+            add(index, "general", 1, "old news");
+            index.edit(offset++, "general", 1, "alice", "old news corrected");
+            add(index, "general", 2, "filler");
+            add(index, "general", 3, "filler");
+            index.sealIfFull();
+            for (int i = 4; i <= 11; i++) {
+                add(index, "general", i, "filler");
+                index.sealIfFull();
+            }
+
+            assertEquals(8, index.size());
+            assertEquals(List.of(), ids(index, "general", "old"));
+            assertEquals(8, ids(index, "general", "filler").size());
+        }
+    }
+
+    private void add(SearchIndex index, String room, long messageId, String text) {
+        index.add(offset++, room, messageId, "alice", text);
+    }
+
+    private static List<Long> ids(SearchIndex index, String room, String query) {
+        List<Long> ids = new ArrayList<>();
+        index.search(room, query, Integer.MAX_VALUE, 100).getHits().forEach(hit -> ids.add(hit.getMessageId()));
+        return ids;
+    }
+}